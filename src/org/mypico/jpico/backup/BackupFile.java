@@ -27,6 +27,7 @@ import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 
@@ -111,6 +112,59 @@ public final class BackupFile {
         }
     }
 
+    /**
+     * Write an encrypted backup of the Pico pairings and services database to a file, in the
+     * chunked format read by {@link EncBackupFile#restoreBackupFile(File, File, BackupKey)}.
+     * Unlike {@link #createEncBackupFile(BackupKey)}, the database is streamed a chunk at a time,
+     * so memory use does not grow with the size of the database.
+     *
+     * @param backupKey The key to use to encrypt the backup.
+     * @param encFile   The file to write the encrypted backup to.
+     * @throws FileNotFoundException if the file could not be created.
+     * @throws IOException           if an error is generated writing the file.
+     */
+    public void writeEncBackupFile(final BackupKey backupKey, final File encFile)
+        throws FileNotFoundException, IOException {
+        writeEncBackupFile(backupKey, encFile, ChunkedBackupFormat.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Write an encrypted backup of the Pico pairings and services database to a file, using
+     * chunks of the given size.
+     *
+     * @param backupKey The key to use to encrypt the backup.
+     * @param encFile   The file to write the encrypted backup to.
+     * @param chunkSize The number of bytes of the database to encrypt in each chunk.
+     * @throws FileNotFoundException if the file could not be created.
+     * @throws IOException           if an error is generated writing the file.
+     * @see #writeEncBackupFile(BackupKey, File)
+     */
+    public void writeEncBackupFile(final BackupKey backupKey, final File encFile,
+                                   final int chunkSize)
+        throws FileNotFoundException, IOException {
+        // Verify the method's preconditions
+        checkNotNull(backupKey);
+        checkNotNull(encFile);
+
+        final FileInputStream fileIs = new FileInputStream(dbFile);
+        try {
+            final FileOutputStream encOs = new FileOutputStream(encFile);
+            boolean written = false;
+            try {
+                ChunkedBackupFormat.encrypt(fileIs, encOs, backupKey, chunkSize);
+                encOs.flush();
+                written = true;
+            } finally {
+                encOs.close();
+                if (!written) {
+                    encFile.delete();
+                }
+            }
+        } finally {
+            fileIs.close();
+        }
+    }
+
     /**
      * Get the File for backup storage.
      *
@@ -0,0 +1,288 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.backup;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.SecureRandom;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.CryptoRuntimeException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Version 1 of the chunked backup format, which encrypts the database a chunk at a time so
+ * backups of any size can be written and restored in constant memory.
+ * <p>
+ * A backup starts with a header made up of the {@link #MAGIC} bytes, a version byte, the chunk
+ * size as a big-endian int and a random salt. The file key is the HMAC-SHA256 of the header
+ * under the backup key, so changing any header field changes the key and every chunk then fails
+ * to authenticate. Each chunk of plaintext is sealed separately with AES-GCM under the file key.
+ * The nonce is the chunk index as a big-endian long followed by three zero bytes and a byte
+ * set to one for the final chunk only, so chunks cannot be reordered and a backup truncated at
+ * a chunk boundary is rejected. Every chunk but the last holds exactly chunk size bytes of
+ * plaintext; the last may be shorter, or empty.
+ *
+ * @see BackupFile#writeEncBackupFile(BackupKey, java.io.File)
+ * @see EncBackupFile#restoreBackupFile(java.io.File, java.io.File, BackupKey)
+ */
+final class ChunkedBackupFormat {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        ChunkedBackupFormat.class.getSimpleName());
+
+    /**
+     * Bytes at the start of every chunked backup. Older backups are JSON-serialized
+     * {@link EncBackupFile} objects, which can't start with these.
+     */
+    static final byte[] MAGIC = {'P', 'I', 'C', 'O', 'B', 'A', 'K'};
+    static final int VERSION = 1;
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int SALT_LENGTH = 32;
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 4 + SALT_LENGTH;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    private ChunkedBackupFormat() {
+    }
+
+    /**
+     * Check whether a backup starts with the chunked format's magic bytes.
+     *
+     * @param start  The first bytes of the backup.
+     * @param length The number of bytes of <code>start</code> that were read.
+     * @return <code>true</code> if the backup is in the chunked format.
+     */
+    static boolean isChunked(final byte[] start, final int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (start[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encrypt a database into a chunked backup. Neither stream is closed.
+     *
+     * @param in        The unencrypted database.
+     * @param out       The stream to write the backup to.
+     * @param backupKey The key to encrypt the backup with.
+     * @param chunkSize The number of bytes of plaintext in each chunk.
+     * @throws IOException if reading the database or writing the backup fails.
+     */
+    static void encrypt(final InputStream in, final OutputStream out, final BackupKey backupKey,
+                        final int chunkSize) throws IOException {
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        }
+        final byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        final byte[] header = header(chunkSize, salt);
+        out.write(header);
+
+        final SecretKey fileKey;
+        try {
+            fileKey = fileKey(backupKey, header);
+        } catch (InvalidKeyException e) {
+            throw new CryptoRuntimeException(e);
+        }
+        final Cipher cipher = CryptoFactory.INSTANCE.aes256();
+        byte[] current = new byte[chunkSize];
+        byte[] next = new byte[chunkSize];
+        final byte[] sealed = new byte[chunkSize + TAG_LENGTH];
+
+        // Read a chunk ahead so the final chunk can be flagged as such
+        int currentLength = ByteStreams.read(in, current, 0, chunkSize);
+        long index = 0;
+        while (true) {
+            final int nextLength = (currentLength == chunkSize)
+                ? ByteStreams.read(in, next, 0, chunkSize) : 0;
+            final boolean last = (nextLength == 0);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, fileKey, nonce(index, last));
+                final int sealedLength = cipher.doFinal(current, 0, currentLength, sealed, 0);
+                out.write(sealed, 0, sealedLength);
+            } catch (InvalidKeyException e) {
+                throw new CryptoRuntimeException(e);
+            } catch (InvalidAlgorithmParameterException e) {
+                throw new CryptoRuntimeException(e);
+            } catch (ShortBufferException e) {
+                throw new CryptoRuntimeException(e);
+            } catch (IllegalBlockSizeException e) {
+                throw new CryptoRuntimeException(e);
+            } catch (BadPaddingException e) {
+                throw new CryptoRuntimeException(e);
+            }
+            if (last) {
+                break;
+            }
+            final byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            index++;
+        }
+    }
+
+    /**
+     * Decrypt a chunked backup. Plaintext is written out as each chunk is authenticated, so if
+     * decryption fails part of the database may already have been written. Neither stream is
+     * closed.
+     *
+     * @param in        The chunked backup, including its header.
+     * @param out       The stream to write the database to.
+     * @param backupKey The key used to encrypt the backup.
+     * @throws IOException                   if reading the backup or writing the database fails.
+     * @throws BackupKeyInvalidException     if the key is invalid.
+     * @throws BackupFileDecryptionException if the backup is not in a supported version of the
+     *                                       format, is truncated, or fails to authenticate.
+     */
+    static void decrypt(final InputStream in, final OutputStream out, final BackupKey backupKey)
+        throws IOException, BackupKeyInvalidException, BackupFileDecryptionException {
+        final byte[] header = new byte[HEADER_LENGTH];
+        final DataInputStream headerIs = new DataInputStream(in);
+        try {
+            headerIs.readFully(header);
+        } catch (EOFException e) {
+            throw new BackupFileDecryptionException("Backup header is truncated");
+        }
+        if (!isChunked(header, header.length)) {
+            throw new BackupFileDecryptionException("Backup is not in the chunked format");
+        }
+        final int version = header[MAGIC.length] & 0xff;
+        if (version != VERSION) {
+            LOGGER.error("Unsupported backup format version {}", version);
+            throw new BackupFileDecryptionException("Unsupported backup format version");
+        }
+        final int chunkSize = ((header[MAGIC.length + 1] & 0xff) << 24)
+            | ((header[MAGIC.length + 2] & 0xff) << 16)
+            | ((header[MAGIC.length + 3] & 0xff) << 8)
+            | (header[MAGIC.length + 4] & 0xff);
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            LOGGER.error("Invalid backup chunk size {}", chunkSize);
+            throw new BackupFileDecryptionException("Invalid backup chunk size");
+        }
+
+        final SecretKey fileKey;
+        try {
+            fileKey = fileKey(backupKey, header);
+        } catch (InvalidKeyException e) {
+            LOGGER.error("Backup key is invalid", e);
+            throw new BackupKeyInvalidException("BackupKey is invalid");
+        }
+        final Cipher cipher = CryptoFactory.INSTANCE.aes256();
+        final int sealedSize = chunkSize + TAG_LENGTH;
+        byte[] current = new byte[sealedSize];
+        byte[] next = new byte[sealedSize];
+        final byte[] opened = new byte[sealedSize];
+
+        int currentLength = ByteStreams.read(in, current, 0, sealedSize);
+        long index = 0;
+        while (true) {
+            final int nextLength = (currentLength == sealedSize)
+                ? ByteStreams.read(in, next, 0, sealedSize) : 0;
+            final boolean last = (nextLength == 0);
+            if (currentLength < TAG_LENGTH) {
+                throw new BackupFileDecryptionException("Backup chunk is truncated");
+            }
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, fileKey, nonce(index, last));
+                final int openedLength = cipher.doFinal(current, 0, currentLength, opened, 0);
+                out.write(opened, 0, openedLength);
+            } catch (InvalidKeyException e) {
+                LOGGER.error("Backup key is invalid", e);
+                throw new BackupKeyInvalidException("BackupKey is invalid");
+            } catch (InvalidAlgorithmParameterException e) {
+                LOGGER.error("Failure decrypting Pico database backup", e);
+                throw new BackupFileDecryptionException();
+            } catch (ShortBufferException e) {
+                throw new CryptoRuntimeException(e);
+            } catch (IllegalBlockSizeException e) {
+                LOGGER.error("Failure decrypting Pico database backup chunk {}", index, e);
+                throw new BackupFileDecryptionException();
+            } catch (BadPaddingException e) {
+                // Authenticated encryption failure: wrong key, tampering, or truncation
+                LOGGER.error("Authenticated encryption failure on chunk {}", index, e);
+                throw new BackupFileDecryptionException();
+            }
+            if (last) {
+                break;
+            }
+            final byte[] swap = current;
+            current = next;
+            next = swap;
+            currentLength = nextLength;
+            index++;
+        }
+    }
+
+    private static byte[] header(final int chunkSize, final byte[] salt) {
+        final byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = (byte) VERSION;
+        header[MAGIC.length + 1] = (byte) (chunkSize >>> 24);
+        header[MAGIC.length + 2] = (byte) (chunkSize >>> 16);
+        header[MAGIC.length + 3] = (byte) (chunkSize >>> 8);
+        header[MAGIC.length + 4] = (byte) chunkSize;
+        System.arraycopy(salt, 0, header, MAGIC.length + 5, SALT_LENGTH);
+        return header;
+    }
+
+    private static SecretKey fileKey(final BackupKey backupKey, final byte[] header)
+        throws InvalidKeyException {
+        final Mac mac = CryptoFactory.INSTANCE.sha256Hmac();
+        mac.init(new SecretKeySpec(backupKey.getSecretKey().getEncoded(),
+            CryptoFactory.HMAC_SHA256));
+        return new SecretKeySpec(mac.doFinal(header), CryptoFactory.AES);
+    }
+
+    private static IvParameterSpec nonce(final long index, final boolean last) {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            nonce[i] = (byte) (index >>> (56 - 8 * i));
+        }
+        nonce[NONCE_LENGTH - 1] = (byte) (last ? 1 : 0);
+        return new IvParameterSpec(nonce);
+    }
+}
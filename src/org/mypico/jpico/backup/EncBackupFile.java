@@ -23,12 +23,16 @@ package org.mypico.jpico.backup;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.io.ByteStreams.copy;
+import static com.google.common.io.ByteStreams.read;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 
@@ -38,9 +42,13 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.IvParameterSpec;
 
 import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.gson.EncBackupFileGson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.gson.JsonParseException;
+
 /**
  * Abstraction representing an encrypted backup of the Pico database.
  *
@@ -127,6 +135,118 @@ public final class EncBackupFile {
         }
     }
 
+    /**
+     * Restore the database from an encrypted backup file. Backups written by
+     * {@link BackupFile#writeEncBackupFile(BackupKey, File)} are decrypted a chunk at a time
+     * into a temporary file, which replaces <code>dbFile</code> once every chunk has been
+     * authenticated, so <code>dbFile</code> is left untouched if the backup can't be restored.
+     * The old database is only removed once the restored one is in its place.
+     * Anything else is read as a JSON-serialized <code>EncBackupFile</code>, the format used
+     * before chunked backups, and decrypted in memory.
+     *
+     * @param encFile   The encrypted backup file.
+     * @param dbFile    The file to restore the database to.
+     * @param backupKey The key used to encrypt the backup.
+     * @return the decrypted backup.
+     * @throws FileNotFoundException         thrown if the specified backup file doesn't exist.
+     * @throws IOException                   thown if there's an error reading the backup file.
+     * @throws BackupKeyInvalidException     thrown if the key is invalid for this backup file.
+     * @throws BackupFileDecryptionException thrown if there's an error decrypting the file.
+     */
+    public static BackupFile restoreBackupFile(final File encFile, final File dbFile,
+                                               final BackupKey backupKey)
+        throws FileNotFoundException, IOException, BackupKeyInvalidException,
+        BackupFileDecryptionException {
+        // Verify the method's preconditions
+        checkNotNull(encFile);
+        checkNotNull(dbFile);
+        checkNotNull(backupKey);
+
+        final BufferedInputStream encIs = new BufferedInputStream(new FileInputStream(encFile));
+        try {
+            final byte[] start = new byte[ChunkedBackupFormat.MAGIC.length];
+            encIs.mark(start.length);
+            final int length = read(encIs, start, 0, start.length);
+            encIs.reset();
+
+            if (!ChunkedBackupFormat.isChunked(start, length)) {
+                final EncBackupFile legacy;
+                try {
+                    legacy = EncBackupFileGson.gson.fromJson(
+                        new InputStreamReader(encIs, Charsets.UTF_8), EncBackupFile.class);
+                } catch (JsonParseException e) {
+                    LOGGER.error("Pico database backup is not in a known format", e);
+                    throw new BackupFileDecryptionException();
+                }
+                if (legacy == null || legacy.encryptedData == null || legacy.iv == null) {
+                    throw new BackupFileDecryptionException("Backup is empty");
+                }
+                return legacy.createUnencryptedBackupFile(dbFile, backupKey);
+            }
+
+            final File parent = dbFile.getAbsoluteFile().getParentFile();
+            parent.mkdirs();
+            final File tempFile = File.createTempFile(dbFile.getName(), ".restore", parent);
+            boolean restored = false;
+            try {
+                final FileOutputStream outputStream = new FileOutputStream(tempFile);
+                try {
+                    ChunkedBackupFormat.decrypt(encIs, outputStream, backupKey);
+                    outputStream.flush();
+                } finally {
+                    outputStream.close();
+                }
+                replace(dbFile, tempFile);
+                restored = true;
+                return BackupFile.newInstance(dbFile);
+            } finally {
+                if (!restored) {
+                    tempFile.delete();
+                }
+            }
+        } finally {
+            encIs.close();
+        }
+    }
+
+    /**
+     * Replace a file with another in the same directory. Where the platform allows it, as on
+     * POSIX systems, this is a single atomic rename. Otherwise the old file is first renamed
+     * aside, and put back if the new file can't be moved into its place, so there is always a
+     * copy of one or the other on disk.
+     *
+     * @param file        The file to replace.
+     * @param replacement The file to put in its place.
+     * @throws IOException thrown if the file can't be replaced. The original file is left as it
+     *                     was, unless it could not even be put back, in which case the error
+     *                     says where it is.
+     */
+    private static void replace(final File file, final File replacement) throws IOException {
+        if (replacement.renameTo(file)) {
+            return;
+        }
+        if (!file.exists()) {
+            throw new IOException("Unable to move restored database to " + file);
+        }
+
+        final File aside = File.createTempFile(file.getName(), ".old",
+            file.getAbsoluteFile().getParentFile());
+        if (!aside.delete() || !file.renameTo(aside)) {
+            aside.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        if (!replacement.renameTo(file)) {
+            if (!aside.renameTo(file)) {
+                throw new IOException("Unable to move restored database to " + file
+                    + ", the previous database is in " + aside);
+            }
+            throw new IOException("Unable to move restored database to " + file);
+        }
+        if (!aside.delete()) {
+            LOGGER.warn("Unable to delete previous database {}", aside);
+        }
+    }
+
     /**
      * Accessor method for the instance's encryptedData attribute.
      *
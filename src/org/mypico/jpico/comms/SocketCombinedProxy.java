@@ -23,14 +23,18 @@ package org.mypico.jpico.comms;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 
 import org.apache.commons.io.IOUtils;
+import org.mypico.jpico.crypto.IPollableContinuousVerifier;
+import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,7 +47,8 @@ import org.slf4j.LoggerFactory;
  * @author Graeme Jenkinson <gcj21@cam.ac.uk>
  * @author Max Spencer <ms955@cam.ac.uk>
  */
-public class SocketCombinedProxy extends CombinedVerifierProxy {
+public class SocketCombinedProxy extends CombinedVerifierProxy
+    implements IPollableContinuousVerifier {
 
     private final static Logger LOGGER =
         LoggerFactory.getLogger(SocketCombinedProxy.class.getSimpleName());
@@ -52,6 +57,12 @@ public class SocketCombinedProxy extends CombinedVerifierProxy {
     private final InetSocketAddress address;
     private final Socket socket;
 
+    // State of a partially read message, so that reads can be resumed after a poll or timeout
+    private final byte[] pendingLength = new byte[4];
+    private int pendingLengthRead = 0;
+    private byte[] pendingMessage = null;
+    private int pendingMessageRead = 0;
+
     /**
      * Consructor.
      *
@@ -152,24 +163,108 @@ public class SocketCombinedProxy extends CombinedVerifierProxy {
      */
     @Override
     protected byte[] readMessage() throws IOException {
-        final DataInputStream dis = new DataInputStream(socket.getInputStream());
+        final byte[] b = readFrame(true);
 
-        // Verify that the number of bytes in the message is within a sensible range
-        final int len = dis.readInt();
-        if (len > 0 && len <= MAXIMUM_MESSAGE_LEN_IN_BYTES) {
-            // Read the bytes of the message
-            LOGGER.debug("Reading serialised message of {} bytes...", len);
-            final byte[] b = IOUtils.toByteArray(dis, len);
-            LOGGER.trace("Message read");
+        // Verify the method's postconditions
+        assert (b != null);
 
-            // Verify the method's postconditions
-            assert (b != null);
+        return b;
+    }
 
-            return b;
-        } else {
-            LOGGER.error("Invalid message length of {} bytes", len);
-            throw new IOException(String.format("Invalid message length %d", len));
+    /**
+     * Read the next service reauth message if it has already arrived on the socket.
+     *
+     * @return the message, or null if it has not yet been fully received.
+     * @throws IOException
+     */
+    @Override
+    public EncServiceReauthMessage pollServiceReauth() throws IOException {
+        ensureInitialised();
+        final byte[] serializedResponse = readFrame(false);
+        if (serializedResponse == null) {
+            return null;
+        }
+        return serializer.deserialize(serializedResponse, EncServiceReauthMessage.class);
+    }
+
+    /**
+     * Read a length-prepended message from the socket. Any partially read message is kept, so a
+     * read which is interrupted by a timeout, or which finds too few bytes available when not
+     * blocking, can be resumed by the next call.
+     *
+     * @param block true to block until the whole message has arrived, false to read only bytes
+     *              which are already available.
+     * @return the message, or null if not blocking and the message is incomplete.
+     * @throws IOException
+     */
+    private synchronized byte[] readFrame(final boolean block) throws IOException {
+        final InputStream is = socket.getInputStream();
+
+        // Read the message length
+        while (pendingMessage == null) {
+            final int read = readAvailable(
+                is, pendingLength, pendingLengthRead, pendingLength.length - pendingLengthRead,
+                block);
+            if (read == 0) {
+                return null;
+            }
+            pendingLengthRead += read;
+
+            if (pendingLengthRead == pendingLength.length) {
+                // Verify that the number of bytes in the message is within a sensible range
+                final int len = ByteBuffer.wrap(pendingLength).getInt();
+                pendingLengthRead = 0;
+                if (len > 0 && len <= MAXIMUM_MESSAGE_LEN_IN_BYTES) {
+                    LOGGER.debug("Reading serialised message of {} bytes...", len);
+                    pendingMessage = new byte[len];
+                    pendingMessageRead = 0;
+                } else {
+                    LOGGER.error("Invalid message length of {} bytes", len);
+                    throw new IOException(String.format("Invalid message length %d", len));
+                }
+            }
+        }
+
+        // Read the bytes of the message
+        while (pendingMessageRead < pendingMessage.length) {
+            final int read = readAvailable(
+                is, pendingMessage, pendingMessageRead, pendingMessage.length - pendingMessageRead,
+                block);
+            if (read == 0) {
+                return null;
+            }
+            pendingMessageRead += read;
+        }
+        LOGGER.trace("Message read");
+
+        final byte[] b = pendingMessage;
+        pendingMessage = null;
+        return b;
+    }
+
+    /**
+     * Read up to <code>len</code> bytes from the stream.
+     *
+     * @param is    the stream to read from.
+     * @param b     the buffer to read into.
+     * @param off   the offset into the buffer.
+     * @param len   the maximum number of bytes to read.
+     * @param block true to block until at least one byte is read.
+     * @return the number of bytes read, which is only zero if not blocking.
+     * @throws IOException
+     */
+    private static int readAvailable(
+        final InputStream is, final byte[] b, final int off, final int len, final boolean block)
+        throws IOException {
+        final int toRead = block ? len : Math.min(len, is.available());
+        if (toRead == 0) {
+            return 0;
+        }
+        final int read = is.read(b, off, toRead);
+        if (read < 0) {
+            throw new EOFException();
         }
+        return read;
     }
 
     /**
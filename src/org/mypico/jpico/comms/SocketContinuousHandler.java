@@ -36,6 +36,15 @@ import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
 
 /**
  * A sigma handler that uses a socket as its channel.
+ * <p>
+ * By default each reauth read from the socket is answered before the next is read. When
+ * constructed with an acknowledgement window greater than one, the handler instead processes every
+ * reauth that has already arrived, in order and up to the window size, and then answers them all
+ * with a single service reauth. Since the service reauth carries the response to the sequence
+ * number of the last reauth processed, it acknowledges the whole run cumulatively. This suits
+ * provers that pipeline their reauths, see
+ * {@link org.mypico.jpico.crypto.ContinuousProver#setPipelineWindow(int)}, and makes no difference
+ * to provers that don't.
  *
  * @author Claudio Dettoni <cd611@cam.ac.uk>
  * @author David Llewellyn-Jones <dl551@cam.ac.uk>
@@ -48,6 +57,7 @@ public class SocketContinuousHandler implements Callable<Void> {
     private final Socket socket;
     private final MessageSerializer serializer;
     private final IContinuousVerifier verifier;
+    private final int ackWindow;
 
     private DataInputStream dis = null;
     private DataOutputStream dos = null;
@@ -63,9 +73,40 @@ public class SocketContinuousHandler implements Callable<Void> {
         final Socket socket,
         final MessageSerializer serializer,
         final IContinuousVerifier verifier) {
+        this(socket, serializer, verifier, 1);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param socket     The socket to use for communication.
+     * @param serializer A message serializer compatible with the remote verifier.
+     * @param verifier   The sigma verifier to use.
+     * @param ackWindow  The maximum number of reauths answered by a single service reauth. A
+     *                   value of 1 answers every reauth individually.
+     */
+    public SocketContinuousHandler(
+        final Socket socket,
+        final MessageSerializer serializer,
+        final IContinuousVerifier verifier,
+        final int ackWindow) {
+        if (ackWindow <= 0) {
+            throw new IllegalArgumentException("ackWindow must be positive");
+        }
         this.socket = socket;
         this.serializer = serializer;
         this.verifier = verifier;
+        this.ackWindow = ackWindow;
+    }
+
+    /**
+     * Check whether the verifier will accept further reauths.
+     *
+     * @return true if the session is active or paused.
+     */
+    private boolean isRunning() {
+        return verifier.getState() == IContinuousVerifier.State.ACTIVE ||
+            verifier.getState() == IContinuousVerifier.State.PAUSED;
     }
 
     /**
@@ -104,15 +145,22 @@ public class SocketContinuousHandler implements Callable<Void> {
             dis = new DataInputStream(socket.getInputStream());
             dos = new DataOutputStream(socket.getOutputStream());
 
-            while (verifier.getState() == IContinuousVerifier.State.ACTIVE ||
-                verifier.getState() == IContinuousVerifier.State.PAUSED) {
-                // Read EncPicoReauthMessage from client:
-                byte[] seprm = IOUtils.toByteArray(dis, readMessageLength());
-                EncPicoReauthMessage eprm = serializer.deserialize(
-                    seprm, EncPicoReauthMessage.class);
+            while (isRunning()) {
+                int processed = 0;
+                do {
+                    // Read EncPicoReauthMessage from client:
+                    byte[] seprm = IOUtils.toByteArray(dis, readMessageLength());
+                    EncPicoReauthMessage eprm = serializer.deserialize(
+                        seprm, EncPicoReauthMessage.class);
+
+                    // Pass to verifier, in the order received
+                    verifier.reauth(eprm);
+                    processed++;
+
+                    // Carry on while more pipelined reauths are already waiting
+                } while (processed < ackWindow && dis.available() > 0 && isRunning());
 
-                // Pass to verifier and get next message
-                verifier.reauth(eprm);
+                // Get the next message, which acknowledges everything processed so far
                 EncServiceReauthMessage esrm = verifier.getServiceReauth();
 
                 // Write EncServiceReauthMessage response back to client
@@ -0,0 +1,329 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.mypico.jpico.util.MetricsSource;
+import org.mypico.jpico.util.RateCounter;
+
+/**
+ * {@link ReauthTimeoutPolicy} which stretches reauth intervals when the verifier is busy and
+ * tightens them again when it is idle.
+ * <p>
+ * Load is measured by a set of {@link LoadIndicator}s, each reporting a value where
+ * <code>0</code> means idle and <code>1</code> means the node is at its nominal capacity. The
+ * policy takes the highest reading and maps it onto a timeout:
+ * <ul>
+ * <li>at zero load the minimum timeout is used;</li>
+ * <li>at nominal load the standard {@link ContinuousVerifier#activeTimeout} and
+ * {@link ContinuousVerifier#pausedTimeout} are used;</li>
+ * <li>at {@link #OVERLOAD} or above the maximum timeout is used;</li>
+ * </ul>
+ * with linear interpolation in between. The minimum and maximum are the security bounds: however
+ * loaded the node, a prover is never allowed to go longer than the maximum without proving its
+ * presence.
+ * <p>
+ * Besides any indicators added, the policy estimates the number of live sessions from the rate at
+ * which it is consulted, since it is called once per heartbeat. Set a nominal session count with
+ * {@link #setNominalSessions(int)} to take this into account.
+ * <p>
+ * Load is sampled at most once per update interval so that indicators are not queried for every
+ * message. Instances of this class are thread safe.
+ */
+public class AdaptiveReauthTimeoutPolicy implements ReauthTimeoutPolicy, MetricsSource {
+
+    /**
+     * Source of a load reading.
+     */
+    public interface LoadIndicator {
+
+        /**
+         * Get the current load.
+         *
+         * @return <code>0</code> when idle, <code>1</code> at nominal capacity and greater than
+         * <code>1</code> when overloaded.
+         */
+        double getLoad();
+    }
+
+    /**
+     * Load at or above which the maximum timeouts are used.
+     */
+    public static final double OVERLOAD = 2.0;
+
+    /**
+     * Default interval in milliseconds between load samples.
+     */
+    public static final long DEFAULT_UPDATE_INTERVAL = 1000;
+
+    private final int minActiveTimeout;
+    private final int maxActiveTimeout;
+    private final int minPausedTimeout;
+    private final int maxPausedTimeout;
+    private final long updateInterval;
+    private final List<LoadIndicator> indicators = new CopyOnWriteArrayList<LoadIndicator>();
+    private final RateCounter activeHeartbeats = new RateCounter();
+    private final RateCounter pausedHeartbeats = new RateCounter();
+
+    private volatile int nominalSessions = 0;
+    private volatile double load = 1.0;
+    private volatile int activeTimeout = ContinuousVerifier.activeTimeout;
+    private volatile int pausedTimeout = ContinuousVerifier.pausedTimeout;
+    private long lastUpdate = 0;
+
+    /**
+     * Constructor using the default update interval.
+     *
+     * @param minActiveTimeout lower bound in milliseconds for active sessions.
+     * @param maxActiveTimeout upper bound in milliseconds for active sessions.
+     * @param minPausedTimeout lower bound in milliseconds for paused sessions.
+     * @param maxPausedTimeout upper bound in milliseconds for paused sessions.
+     */
+    public AdaptiveReauthTimeoutPolicy(final int minActiveTimeout, final int maxActiveTimeout,
+                                       final int minPausedTimeout, final int maxPausedTimeout) {
+        this(minActiveTimeout, maxActiveTimeout, minPausedTimeout, maxPausedTimeout,
+            DEFAULT_UPDATE_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param minActiveTimeout lower bound in milliseconds for active sessions.
+     * @param maxActiveTimeout upper bound in milliseconds for active sessions.
+     * @param minPausedTimeout lower bound in milliseconds for paused sessions.
+     * @param maxPausedTimeout upper bound in milliseconds for paused sessions.
+     * @param updateInterval   minimum time in milliseconds between load samples.
+     */
+    public AdaptiveReauthTimeoutPolicy(final int minActiveTimeout, final int maxActiveTimeout,
+                                       final int minPausedTimeout, final int maxPausedTimeout,
+                                       final long updateInterval) {
+        if (minActiveTimeout <= 0 || minActiveTimeout > maxActiveTimeout) {
+            throw new IllegalArgumentException("invalid active timeout bounds");
+        }
+        if (minPausedTimeout <= 0 || minPausedTimeout > maxPausedTimeout) {
+            throw new IllegalArgumentException("invalid paused timeout bounds");
+        }
+        if (updateInterval < 0) {
+            throw new IllegalArgumentException("updateInterval must not be negative");
+        }
+        this.minActiveTimeout = minActiveTimeout;
+        this.maxActiveTimeout = maxActiveTimeout;
+        this.minPausedTimeout = minPausedTimeout;
+        this.maxPausedTimeout = maxPausedTimeout;
+        this.updateInterval = updateInterval;
+        this.activeTimeout = timeoutFor(
+            load, minActiveTimeout, ContinuousVerifier.activeTimeout, maxActiveTimeout);
+        this.pausedTimeout = timeoutFor(
+            load, minPausedTimeout, ContinuousVerifier.pausedTimeout, maxPausedTimeout);
+    }
+
+    /**
+     * Add a source of load readings.
+     *
+     * @param indicator the indicator to add.
+     * @return this policy, to allow calls to be chained.
+     */
+    public AdaptiveReauthTimeoutPolicy addIndicator(final LoadIndicator indicator) {
+        if (indicator == null) {
+            throw new NullPointerException();
+        }
+        indicators.add(indicator);
+        return this;
+    }
+
+    /**
+     * Set the number of concurrent sessions the node is expected to handle comfortably. When set,
+     * the estimated session count is used as an additional load reading.
+     *
+     * @param nominalSessions nominal session count, or <code>0</code> to ignore the session
+     *                        count.
+     * @return this policy, to allow calls to be chained.
+     */
+    public AdaptiveReauthTimeoutPolicy setNominalSessions(final int nominalSessions) {
+        if (nominalSessions < 0) {
+            throw new IllegalArgumentException("nominalSessions must not be negative");
+        }
+        this.nominalSessions = nominalSessions;
+        return this;
+    }
+
+    @Override
+    public int getActiveTimeout() {
+        activeHeartbeats.mark();
+        update();
+        return activeTimeout;
+    }
+
+    @Override
+    public int getPausedTimeout() {
+        pausedHeartbeats.mark();
+        update();
+        return pausedTimeout;
+    }
+
+    /**
+     * Get the most recent load reading.
+     *
+     * @return the highest value reported by the indicators when last sampled.
+     */
+    public double getLoad() {
+        return load;
+    }
+
+    /**
+     * Estimate the number of live sessions. Each session sends one heartbeat per timeout period,
+     * so the number of sessions is the heartbeat rate multiplied by the timeout.
+     *
+     * @return the estimated number of active and paused sessions.
+     */
+    public double getEstimatedSessions() {
+        return activeHeartbeats.getRate() * activeTimeout / 1000.0
+            + pausedHeartbeats.getRate() * pausedTimeout / 1000.0;
+    }
+
+    /**
+     * Get the rate at which service reauth messages are being sent, across all sessions.
+     *
+     * @return heartbeats per second.
+     */
+    public double getHeartbeatRate() {
+        return activeHeartbeats.getRate() + pausedHeartbeats.getRate();
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("heartbeats", activeHeartbeats.getCount() + pausedHeartbeats.getCount());
+        metrics.put("heartbeatRate", getHeartbeatRate());
+        metrics.put("activeHeartbeatRate", activeHeartbeats.getRate());
+        metrics.put("pausedHeartbeatRate", pausedHeartbeats.getRate());
+        metrics.put("estimatedSessions", getEstimatedSessions());
+        metrics.put("load", load);
+        metrics.put("activeTimeout", activeTimeout);
+        metrics.put("pausedTimeout", pausedTimeout);
+        return metrics;
+    }
+
+    /* *************** Load Indicators *************** */
+
+    /**
+     * Indicator based on the system load average divided by the number of processors. Reports
+     * zero on platforms where the load average is unavailable.
+     *
+     * @return a CPU load indicator.
+     */
+    public static LoadIndicator systemLoad() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return new LoadIndicator() {
+            @Override
+            public double getLoad() {
+                final double average = os.getSystemLoadAverage();
+                if (average < 0) {
+                    return 0;
+                }
+                return average / os.getAvailableProcessors();
+            }
+        };
+    }
+
+    /**
+     * Indicator based on the length of a work queue, for example that of the executor handling
+     * incoming connections.
+     *
+     * @param queue         the queue to monitor.
+     * @param nominalLength queue length considered to be nominal load.
+     * @return a queue depth indicator.
+     */
+    public static LoadIndicator queueDepth(final Collection<?> queue, final int nominalLength) {
+        if (queue == null) {
+            throw new NullPointerException();
+        }
+        if (nominalLength <= 0) {
+            throw new IllegalArgumentException("nominalLength must be positive");
+        }
+        return new LoadIndicator() {
+            @Override
+            public double getLoad() {
+                return queue.size() / (double) nominalLength;
+            }
+        };
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private void update() {
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (now - lastUpdate < updateInterval) {
+                return;
+            }
+            lastUpdate = now;
+        }
+
+        double current = 0;
+        for (LoadIndicator indicator : indicators) {
+            current = Math.max(current, indicator.getLoad());
+        }
+        final int sessions = nominalSessions;
+        if (sessions > 0) {
+            current = Math.max(current, getEstimatedSessions() / sessions);
+        }
+
+        load = current;
+        activeTimeout = timeoutFor(
+            current, minActiveTimeout, ContinuousVerifier.activeTimeout, maxActiveTimeout);
+        pausedTimeout = timeoutFor(
+            current, minPausedTimeout, ContinuousVerifier.pausedTimeout, maxPausedTimeout);
+    }
+
+    /**
+     * Map a load reading onto a timeout.
+     *
+     * @param load    the load reading.
+     * @param min     timeout at zero load.
+     * @param nominal timeout at nominal load, clamped to the bounds.
+     * @param max     timeout at {@link #OVERLOAD}.
+     * @return the timeout in milliseconds.
+     */
+    private static int timeoutFor(final double load, final int min, final int nominal,
+                                  final int max) {
+        final int mid = Math.max(min, Math.min(nominal, max));
+        final double timeout;
+        if (load <= 0) {
+            timeout = min;
+        } else if (load <= 1) {
+            timeout = min + (mid - min) * load;
+        } else if (load < OVERLOAD) {
+            timeout = mid + (max - mid) * (load - 1) / (OVERLOAD - 1);
+        } else {
+            timeout = max;
+        }
+        return (int) Math.round(timeout);
+    }
+}
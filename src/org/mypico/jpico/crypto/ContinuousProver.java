@@ -26,6 +26,8 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.Executor;
 
 import javax.crypto.BadPaddingException;
@@ -142,6 +144,11 @@ final public class ContinuousProver implements Destroyable {
     private SequenceNumber picoSequenceNumber;
     private SequenceNumber serviceSequenceNumber;
 
+    // Pipelining: reauths sent but not yet acknowledged by the service, oldest first
+    private int pipelineWindow = 0;
+    private final Deque<SequenceNumber> outstanding = new ArrayDeque<SequenceNumber>();
+    private boolean updatePending = false;
+
     private class PollService implements Runnable {
         private final Logger LOGGER = LoggerFactory
             .getLogger(PollService.class);
@@ -156,18 +163,8 @@ final public class ContinuousProver implements Destroyable {
             LOGGER.info("Starting continuout authentication thread.");
             for (; ; ) {
                 prover.getServiceMessage();
-                serviceInterface.setTimeout(requestedTimeout + IContinuousVerifier.timeoutLeeway);
-
-                synchronized (prover) {
-                    if (state != State.ERROR) {
-                        // Be ready to reply
-                        schedulerInterface.setTimer(requestedTimeout, prover);
-                    } else {
-                        schedulerInterface.clearTimer(prover);
-                        return;
-                    }
-
-                    proverStateChangeNotificationInterface.tick(prover.session);
+                if (!prover.scheduleNextReauth()) {
+                    return;
                 }
             }
         }
@@ -193,6 +190,30 @@ final public class ContinuousProver implements Destroyable {
                             ProverStateChangeNotificationInterface proverStateChangeNotificationInterface,
                             SchedulerInterface schedulerInterface, SequenceNumber currentSequenceNumber,
                             Executor pollServiceExecutor) {
+        this(session, serviceInterface, proverStateChangeNotificationInterface, schedulerInterface,
+            currentSequenceNumber);
+        pollServiceExecutor.execute(new PollService(this));
+    }
+
+    /**
+     * Constructor for a prover which does not own a poll thread. The service messages must
+     * instead be collected by calling {@link #pollServiceMessage()}, followed by
+     * {@link #scheduleNextReauth()} for each message received. This is done by
+     * {@link ContinuousProverManager}.
+     *
+     * @param session                                The current session, including the secret key
+     * @param serviceInterface                       The connection from the SigmaProver.
+     * @param proverStateChangeNotificationInterface The application can be updated by callbacks by implementing
+     *                                               this interface.
+     * @param schedulerInterface                     The implementor of the SchedulerInterface must call
+     *                                               prover.updateverifier() exactly once within the time specified
+     *                                               (i.e. it can be called earlier).
+     * @param currentSequenceNumber                  The sequence number on the prover side must increment with
+     *                                               each message sent to ensure freshness.
+     */
+    ContinuousProver(Session session, IContinuousVerifier serviceInterface,
+                     ProverStateChangeNotificationInterface proverStateChangeNotificationInterface,
+                     SchedulerInterface schedulerInterface, SequenceNumber currentSequenceNumber) {
         this.serviceInterface = checkNotNull(serviceInterface);
         this.session = checkNotNull(session);
         this.proverStateChangeNotificationInterface = checkNotNull(proverStateChangeNotificationInterface);
@@ -200,7 +221,6 @@ final public class ContinuousProver implements Destroyable {
         this.picoSequenceNumber = checkNotNull(currentSequenceNumber);
         this.serviceSequenceNumber = null;
         this.timeoutLeeway = DEFAULT_TIMEOUT_LEEWAY;
-        pollServiceExecutor.execute(new PollService(this));
     }
 
 	/* ************************ State Entry Methods ************************ */
@@ -261,6 +281,12 @@ final public class ContinuousProver implements Destroyable {
             throw new IllegalStateException();
 
         if (state == State.ACTIVE || state == State.PAUSED || state == State.STOPPED) {
+            if (pipelineWindow > 0 && outstanding.size() >= pipelineWindow) {
+                // Window is full, send the latest state once an acknowledgement arrives
+                LOGGER.debug("Reauth window full, deferring update");
+                updatePending = true;
+                return;
+            }
             try {
                 // Generate response to the current sequenceNumber.
                 ReauthState t;
@@ -298,6 +324,9 @@ final public class ContinuousProver implements Destroyable {
                 LOGGER.info("Writing Pico reauth message " + picoSequenceNumber.toString());
                 // Send it and get the encrypted response
                 serviceInterface.reauth(encPicoReauthMessage);
+                if (pipelineWindow > 0) {
+                    outstanding.addLast(picoSequenceNumber);
+                }
                 // Update sequence number for next message
                 picoSequenceNumber = picoSequenceNumber.getResponse();
 
@@ -310,7 +339,8 @@ final public class ContinuousProver implements Destroyable {
     }
 
     /**
-     * Get the message sent by the service at the last authentication step.
+     * Get the message sent by the service at the last authentication step. Blocks until the
+     * message arrives.
      */
     public void getServiceMessage() {
         if (isDestroyed == true)
@@ -320,80 +350,193 @@ final public class ContinuousProver implements Destroyable {
             try {
                 LOGGER.info("Reading service reauth message");
                 // get the encrypted response
-                final EncServiceReauthMessage encServiceReauthMessage = serviceInterface.getServiceReauth();
+                handleServiceMessage(serviceInterface.getServiceReauth());
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.error(e);
+                return;
+            }
+        } // else do nothing
 
-                // Decrypt the response
-                ServiceReauthMessage serviceReauthMessage;
-                try {
-                    serviceReauthMessage = encServiceReauthMessage.decrypt(session.getSecretKey());
-                } catch (InvalidKeyException e) {
-                    // Re-thrown unchecked because this signals incompatibility
-                    // between the session
-                    // encryption key and the chosen encryption cipher. This is
-                    // a configuration
-                    // error and is considered a fatal error from which the
-                    // program probably can't
-                    // (and shouldn't try to) recover.
-                    throw new CryptoRuntimeException(e);
-                } catch (InvalidAlgorithmParameterException e) {
-                    // Any of the other exceptions caught here indicate that the
-                    // decryption failed due
-                    // to some error on the part of the prover.
-                    error();
-                    return;
-                } catch (IllegalBlockSizeException e) {
-                    error();
-                    return;
-                } catch (BadPaddingException e) {
-                    error();
-                    return;
-                } catch (FieldDeserializationException e) {
-                    error();
-                    return;
-                }
+    }
 
-                // Verify the service's response
-                final SequenceNumber c3 = serviceReauthMessage.getSequenceNumber();
-                if (serviceSequenceNumber == null) {
-                    serviceSequenceNumber = c3;
-                } else if (!serviceSequenceNumber.getResponse().equals(c3)) {
-                    LOGGER.error("Wrong sequence number");
-                    this.error();
-                    return;
+    /**
+     * Get the message sent by the service at the last authentication step, if it has arrived.
+     * Never blocks. The service interface must implement {@link IPollableContinuousVerifier}.
+     *
+     * @return true if a message was handled or an error occurred, false if there was nothing to
+     * do.
+     */
+    public boolean pollServiceMessage() {
+        if (isDestroyed == true)
+            throw new IllegalStateException();
+        if (!(serviceInterface instanceof IPollableContinuousVerifier))
+            throw new UnsupportedOperationException("service interface cannot be polled");
+
+        if (state == State.ACTIVE || state == State.PAUSED || state == State.STOPPED) {
+            try {
+                final EncServiceReauthMessage encServiceReauthMessage =
+                    ((IPollableContinuousVerifier) serviceInterface).pollServiceReauth();
+                if (encServiceReauthMessage == null) {
+                    return false;
                 }
+                LOGGER.info("Read service reauth message");
+                handleServiceMessage(encServiceReauthMessage);
+            } catch (IOException e) {
+                e.printStackTrace();
+                this.error(e);
+            }
+            return true;
+        } else {
+            return false;
+        }
+    }
 
-                final ReauthState newReauthState = serviceReauthMessage.getReauthState();
+    /**
+     * Following receipt of a service message, arrange for the next reauth to be sent within the
+     * timeout requested by the service and notify the application of the tick.
+     *
+     * @return false if the prover is in the error state and no further reauths will be sent,
+     * true o/w.
+     */
+    boolean scheduleNextReauth() {
+        serviceInterface.setTimeout(requestedTimeout + IContinuousVerifier.timeoutLeeway);
+
+        synchronized (this) {
+            if (state != State.ERROR) {
+                // Be ready to reply
+                schedulerInterface.setTimer(requestedTimeout, this);
+            } else {
+                schedulerInterface.clearTimer(this);
+                return false;
+            }
 
-                switch (newReauthState) {
-                    case CONTINUE:
-                        resume();
-                        break;
-                    case PAUSE:
-                        pause();
-                        break;
-                    case STOP:
-                        stop();
-                        break;
-                    case ERROR:
-                        // Fall through
-                    default:
-                        error();
-                        break;
+            proverStateChangeNotificationInterface.tick(session);
+        }
+        return true;
+    }
 
-                }
+    /**
+     * Decrypt and verify a message received from the service, updating the state to match.
+     *
+     * @param encServiceReauthMessage the encrypted service reauth message.
+     */
+    private void handleServiceMessage(final EncServiceReauthMessage encServiceReauthMessage) {
+        // Decrypt the response
+        ServiceReauthMessage serviceReauthMessage;
+        try {
+            serviceReauthMessage = encServiceReauthMessage.decrypt(session.getSecretKey());
+        } catch (InvalidKeyException e) {
+            // Re-thrown unchecked because this signals incompatibility
+            // between the session
+            // encryption key and the chosen encryption cipher. This is
+            // a configuration
+            // error and is considered a fatal error from which the
+            // program probably can't
+            // (and shouldn't try to) recover.
+            throw new CryptoRuntimeException(e);
+        } catch (InvalidAlgorithmParameterException e) {
+            // Any of the other exceptions caught here indicate that the
+            // decryption failed due
+            // to some error on the part of the prover.
+            error();
+            return;
+        } catch (IllegalBlockSizeException e) {
+            error();
+            return;
+        } catch (BadPaddingException e) {
+            error();
+            return;
+        } catch (FieldDeserializationException e) {
+            error();
+            return;
+        }
 
-                if (state != State.ERROR) {
-                    LOGGER.info("Success, updating sequence number " + c3.toString());
-                    this.serviceSequenceNumber = c3;
-                    this.requestedTimeout = Math.max(serviceReauthMessage.getTimeout() - this.timeoutLeeway, 0);
+        // Verify the service's response
+        final SequenceNumber c3 = serviceReauthMessage.getSequenceNumber();
+        final boolean stale;
+        if (pipelineWindow > 0) {
+            synchronized (this) {
+                if (!acknowledge(c3)) {
+                    LOGGER.error("Acknowledgement does not match an outstanding reauth");
+                    this.error();
+                    return;
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-                this.error(e);
+                // The service hasn't yet seen our latest state
+                stale = !outstanding.isEmpty() || updatePending;
+            }
+        } else {
+            stale = false;
+            if (serviceSequenceNumber == null) {
+                serviceSequenceNumber = c3;
+            } else if (!serviceSequenceNumber.getResponse().equals(c3)) {
+                LOGGER.error("Wrong sequence number");
+                this.error();
                 return;
             }
-        } // else do nothing
+        }
+
+        final ReauthState newReauthState = serviceReauthMessage.getReauthState();
+
+        if (stale && (newReauthState == ReauthState.CONTINUE
+            || newReauthState == ReauthState.PAUSE)) {
+            // Reply to an earlier reauth, whose state has since been superseded
+            LOGGER.debug("Ignoring stale {} acknowledgement", newReauthState);
+        } else {
+            switch (newReauthState) {
+                case CONTINUE:
+                    resume();
+                    break;
+                case PAUSE:
+                    pause();
+                    break;
+                case STOP:
+                    stop();
+                    break;
+                case ERROR:
+                    // Fall through
+                default:
+                    error();
+                    break;
+            }
+        }
+
+        if (state != State.ERROR) {
+            LOGGER.info("Success, updating sequence number " + c3.toString());
+            this.serviceSequenceNumber = c3;
+            this.requestedTimeout = Math.max(serviceReauthMessage.getTimeout() - this.timeoutLeeway, 0);
+            if (pipelineWindow > 0) {
+                sendPendingUpdate();
+            }
+        }
+    }
+
+    /**
+     * Remove the reauths covered by a cumulative acknowledgement from the outstanding window.
+     * The service acknowledges a reauth by replying with the response to its sequence number;
+     * doing so also acknowledges every reauth sent before it.
+     *
+     * @param ack The sequence number sent by the service.
+     * @return true if the acknowledgement matched an outstanding reauth, false o/w.
+     */
+    private boolean acknowledge(final SequenceNumber ack) {
+        assert (Thread.holdsLock(this));
+        while (!outstanding.isEmpty()) {
+            if (outstanding.removeFirst().getResponse().equals(ack)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
+    /**
+     * Send the latest state if an update was deferred because the window was full.
+     */
+    private synchronized void sendPendingUpdate() {
+        if (updatePending && outstanding.size() < pipelineWindow) {
+            updatePending = false;
+            updateVerifier();
+        }
     }
 
     /**
@@ -508,4 +651,28 @@ final public class ContinuousProver implements Destroyable {
     public void setTimeoutLeeway(int timeoutLeeway) {
         this.timeoutLeeway = timeoutLeeway;
     }
+
+    /**
+     * Allow several reauths to be in flight at once, rather than waiting for each to be answered
+     * before the next state change is sent. This hides the round-trip time of slow channels from
+     * pause, resume and stop events.
+     * <p>
+     * Each reauth is identified by its sequence number. The service may answer every reauth, or
+     * answer a run of them with a single cumulative acknowledgement carrying the response to the
+     * last sequence number in the run (see {@link org.mypico.jpico.comms.SocketContinuousHandler}).
+     * When the window is full, state changes are held back and only the latest state is sent
+     * once an acknowledgement arrives.
+     * <p>
+     * Must be called before the first reauth is sent.
+     *
+     * @param window The maximum number of unacknowledged reauths, or 0 to use the original
+     *               lock-step protocol.
+     */
+    public synchronized void setPipelineWindow(int window) {
+        if (window < 0)
+            throw new IllegalArgumentException("window must not be negative");
+        if (serviceSequenceNumber != null || !outstanding.isEmpty())
+            throw new IllegalStateException("reauths already sent");
+        this.pipelineWindow = window;
+    }
 }
@@ -0,0 +1,254 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.crypto.ContinuousProver.ProverStateChangeNotificationInterface;
+import org.mypico.jpico.crypto.ContinuousProver.SchedulerInterface;
+import org.mypico.jpico.crypto.messages.SequenceNumber;
+import org.mypico.jpico.data.session.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs many {@link ContinuousProver}s on a single {@link ScheduledExecutorService}.
+ * <p>
+ * A prover created with the public {@link ContinuousProver} constructor needs one thread
+ * permanently blocked reading from its verifier. Provers started by a manager instead share
+ * one periodic poll task, which collects service messages from every session through
+ * {@link IPollableContinuousVerifier#pollServiceReauth()}, and the manager acts as the
+ * {@link SchedulerInterface} for all of them, so a pool of one or two threads is enough for any
+ * number of sessions.
+ * <p>
+ * The {@link ProverStateChangeNotificationInterface} callbacks are invoked exactly as for a
+ * stand-alone prover, on the scheduler's threads.
+ */
+public class ContinuousProverManager implements SchedulerInterface {
+
+    private final static Logger LOGGER =
+        LoggerFactory.getLogger(ContinuousProverManager.class.getSimpleName());
+
+    /**
+     * Default interval between polls of the verifiers, in milliseconds.
+     */
+    public static final int DEFAULT_POLL_INTERVAL = 50;
+
+    private final ScheduledExecutorService scheduler;
+    private final int pollInterval;
+    private final ConcurrentMap<ContinuousProver, ScheduledFuture<?>> timers =
+        new ConcurrentHashMap<ContinuousProver, ScheduledFuture<?>>();
+    private final ConcurrentMap<ContinuousProver, Boolean> provers =
+        new ConcurrentHashMap<ContinuousProver, Boolean>();
+    private ScheduledFuture<?> pollTask = null;
+    private boolean isShutdown = false;
+    private Integer timeoutLeeway = null;
+    private int pipelineWindow = 0;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            pollAll();
+        }
+    };
+
+    /**
+     * Constructor using the default poll interval.
+     *
+     * @param scheduler The executor used to poll verifiers and send reauths.
+     */
+    public ContinuousProverManager(final ScheduledExecutorService scheduler) {
+        this(scheduler, DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler    The executor used to poll verifiers and send reauths.
+     * @param pollInterval The interval between polls of the verifiers, in milliseconds. This
+     *                     bounds the extra latency before a state change sent by a service is
+     *                     seen by the prover.
+     */
+    public ContinuousProverManager(final ScheduledExecutorService scheduler,
+                                   final int pollInterval) {
+        this.scheduler = checkNotNull(scheduler, "scheduler cannot be null");
+        checkArgument(pollInterval > 0, "pollInterval must be positive");
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Create a prover for a session and start continuous authentication. The first reauth
+     * message is sent straight away.
+     *
+     * @param session                                The current session, including the secret key.
+     * @param serviceInterface                       The non-blocking connection to the verifier.
+     * @param proverStateChangeNotificationInterface Callbacks for changes in the session state.
+     * @param currentSequenceNumber                  The initial prover sequence number.
+     * @return the new prover, which can be paused, resumed and stopped as usual.
+     * @throws IllegalStateException if the manager has been shut down.
+     */
+    public synchronized ContinuousProver startProver(
+        final Session session,
+        final IPollableContinuousVerifier serviceInterface,
+        final ProverStateChangeNotificationInterface proverStateChangeNotificationInterface,
+        final SequenceNumber currentSequenceNumber) {
+        if (isShutdown) {
+            throw new IllegalStateException("manager has been shut down");
+        }
+
+        final ContinuousProver prover = new ContinuousProver(
+            session, serviceInterface, proverStateChangeNotificationInterface, this,
+            currentSequenceNumber);
+        if (timeoutLeeway != null) {
+            prover.setTimeoutLeeway(timeoutLeeway);
+        }
+        prover.setPipelineWindow(pipelineWindow);
+        provers.put(prover, Boolean.TRUE);
+        if (pollTask == null) {
+            pollTask = scheduler.scheduleWithFixedDelay(
+                poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        }
+        setTimer(0, prover);
+        return prover;
+    }
+
+    /**
+     * Set the leeway used by provers started after this call. See
+     * {@link ContinuousProver#setTimeoutLeeway(int)}.
+     *
+     * @param timeoutLeeway The leeway time allowed for sending messages between the Pico and
+     *                      service.
+     */
+    public synchronized void setTimeoutLeeway(final int timeoutLeeway) {
+        this.timeoutLeeway = timeoutLeeway;
+    }
+
+    /**
+     * Set the reauth window used by provers started after this call. See
+     * {@link ContinuousProver#setPipelineWindow(int)}.
+     *
+     * @param window The maximum number of unacknowledged reauths, or 0 for lock-step.
+     */
+    public synchronized void setPipelineWindow(final int window) {
+        if (window < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.pipelineWindow = window;
+    }
+
+    /**
+     * Stop managing a prover. No further reauths will be sent or service messages read for it.
+     *
+     * @param prover The prover to remove.
+     */
+    public void removeProver(final ContinuousProver prover) {
+        provers.remove(prover);
+        clearTimer(prover);
+    }
+
+    /**
+     * Get the number of sessions currently being managed.
+     *
+     * @return the number of provers.
+     */
+    public int getProverCount() {
+        return provers.size();
+    }
+
+    /**
+     * Stop polling and cancel all pending reauths. The scheduler itself is not shut down.
+     */
+    public synchronized void shutdown() {
+        isShutdown = true;
+        if (pollTask != null) {
+            pollTask.cancel(false);
+            pollTask = null;
+        }
+        for (ContinuousProver prover : provers.keySet()) {
+            removeProver(prover);
+        }
+    }
+
+    /* *************** SchedulerInterface *************** */
+
+    @Override
+    public void setTimer(final int milliseconds, final ContinuousProver prover) {
+        if (!provers.containsKey(prover)) {
+            return;
+        }
+        final ScheduledFuture<?> timer = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!prover.isDestroyed() && provers.containsKey(prover)) {
+                    prover.updateVerifier();
+                }
+            }
+        }, milliseconds, TimeUnit.MILLISECONDS);
+
+        final ScheduledFuture<?> previous = timers.put(prover, timer);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    @Override
+    public void clearTimer(final ContinuousProver prover) {
+        final ScheduledFuture<?> previous = timers.remove(prover);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /* *************** Helper Methods *************** */
+
+    /**
+     * Collect any service messages which have arrived for every managed prover.
+     */
+    private void pollAll() {
+        for (ContinuousProver prover : provers.keySet()) {
+            try {
+                if (prover.isDestroyed()) {
+                    removeProver(prover);
+                    continue;
+                }
+                while (prover.pollServiceMessage()) {
+                    if (!prover.scheduleNextReauth()) {
+                        LOGGER.info("Continuous session ended, removing prover");
+                        removeProver(prover);
+                        break;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Don't let one failing session stop the others being polled
+                LOGGER.error("Error polling continuous session, removing prover", e);
+                removeProver(prover);
+            }
+        }
+    }
+}
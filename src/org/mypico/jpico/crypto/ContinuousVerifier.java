@@ -39,6 +39,7 @@ import org.mypico.jpico.crypto.messages.ReauthState;
 import org.mypico.jpico.crypto.messages.SequenceNumber;
 import org.mypico.jpico.crypto.messages.ServiceReauthMessage;
 import org.mypico.jpico.crypto.messages.EncryptedMessage.FieldDeserializationException;
+import org.mypico.jpico.crypto.util.VaultSecretKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -93,6 +94,7 @@ final public class ContinuousVerifier implements IContinuousVerifier,
     private final SecretKey sessionEncryptionKey;
     private final IContinuousVerifier.Client clientInterface;
     private final PublicKey picoPublicKey;
+    private final ReauthTimeoutPolicy timeoutPolicy;
 
     private SequenceNumber currentSequenceNumber;
     private int currentSessionId;
@@ -103,7 +105,8 @@ final public class ContinuousVerifier implements IContinuousVerifier,
         .getLogger(ContinuousVerifier.class);
 
     /**
-     * Constructor.
+     * Constructor. The fixed {@link #activeTimeout} and {@link #pausedTimeout} are sent to the
+     * prover.
      *
      * @param sessionEncryptionKey  The symmetric key for encrypting messages.
      * @param initialSequenceNumber The initial sequence number to use for the continuous
@@ -115,6 +118,25 @@ final public class ContinuousVerifier implements IContinuousVerifier,
                               final SequenceNumber initialSequenceNumber,
                               final IContinuousVerifier.Client clientInterface,
                               final PublicKey picoPublicKey) {
+        this(sessionEncryptionKey, initialSequenceNumber, clientInterface, picoPublicKey,
+            FixedReauthTimeoutPolicy.DEFAULT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sessionEncryptionKey  The symmetric key for encrypting messages.
+     * @param initialSequenceNumber The initial sequence number to use for the continuous
+     *                              authentication.
+     * @param clientInterface       The continuous verifier client interface.
+     * @param picoPublicKey         The long term identity public key of the prover (Pico).
+     * @param timeoutPolicy         Policy deciding the timeout sent with each service reauth.
+     */
+    public ContinuousVerifier(final SecretKey sessionEncryptionKey,
+                              final SequenceNumber initialSequenceNumber,
+                              final IContinuousVerifier.Client clientInterface,
+                              final PublicKey picoPublicKey,
+                              final ReauthTimeoutPolicy timeoutPolicy) {
 
         // Verify the method's preconditions
         if (sessionEncryptionKey == null)
@@ -125,11 +147,15 @@ final public class ContinuousVerifier implements IContinuousVerifier,
             throw new NullPointerException();
         if (picoPublicKey == null)
             throw new NullPointerException();
+        if (timeoutPolicy == null)
+            throw new NullPointerException();
 
         this.sessionEncryptionKey = sessionEncryptionKey;
         this.currentSequenceNumber = initialSequenceNumber;
         this.clientInterface = clientInterface;
         this.picoPublicKey = picoPublicKey;
+        this.timeoutPolicy = timeoutPolicy;
+        // The prover was told to use the standard timeout during authentication
         setTimeout(activeTimeout + timeoutLeeway);
     }
 
@@ -318,9 +344,11 @@ final public class ContinuousVerifier implements IContinuousVerifier,
             if (state == State.ERROR) {
                 // Decryption failed, or session timed out.
             } else {
-                // Verify reauthentication
+                // Verify reauthentication. The prover starts from the sequence number it was
+                // given at authentication and counts up by one with each reauth; the reply
+                // carries the number it should use next, which also acknowledges this one.
                 final SequenceNumber n = m.getSequenceNumber();
-                if (this.currentSequenceNumber.verifyResponse(n)) {
+                if (this.currentSequenceNumber.equals(n)) {
                     // Reauthentication successful!
                     this.currentSessionId = msg.getSessionId();
                     // Increment the sequence number
@@ -360,11 +388,11 @@ final public class ContinuousVerifier implements IContinuousVerifier,
         switch (state) {
             case ACTIVE:
                 responseType = ReauthState.CONTINUE;
-                timeout = activeTimeout;
+                timeout = timeoutPolicy.getActiveTimeout();
                 break;
             case PAUSED:
                 responseType = ReauthState.PAUSE;
-                timeout = pausedTimeout;
+                timeout = timeoutPolicy.getPausedTimeout();
                 break;
             case STOPPED:
                 responseType = ReauthState.STOP;
@@ -434,6 +462,9 @@ final public class ContinuousVerifier implements IContinuousVerifier,
 
         isDestroyed = true;
         // TODO actually destroy sensitive data.
+        if (sessionEncryptionKey instanceof VaultSecretKey) {
+            ((VaultSecretKey) sessionEncryptionKey).destroy();
+        }
     }
 
     @Override
@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto;
+
+/**
+ * {@link ReauthTimeoutPolicy} which always returns the same timeouts.
+ */
+public final class FixedReauthTimeoutPolicy implements ReauthTimeoutPolicy {
+
+    /**
+     * Policy using {@link ContinuousVerifier#activeTimeout} and
+     * {@link ContinuousVerifier#pausedTimeout}. This is the policy used unless another is given.
+     */
+    public static final FixedReauthTimeoutPolicy DEFAULT = new FixedReauthTimeoutPolicy(
+        ContinuousVerifier.activeTimeout, ContinuousVerifier.pausedTimeout);
+
+    private final int activeTimeout;
+    private final int pausedTimeout;
+
+    /**
+     * Constructor.
+     *
+     * @param activeTimeout timeout in milliseconds for active sessions.
+     * @param pausedTimeout timeout in milliseconds for paused sessions.
+     */
+    public FixedReauthTimeoutPolicy(final int activeTimeout, final int pausedTimeout) {
+        if (activeTimeout <= 0 || pausedTimeout <= 0) {
+            throw new IllegalArgumentException("timeouts must be positive");
+        }
+        this.activeTimeout = activeTimeout;
+        this.pausedTimeout = pausedTimeout;
+    }
+
+    @Override
+    public int getActiveTimeout() {
+        return activeTimeout;
+    }
+
+    @Override
+    public int getPausedTimeout() {
+        return pausedTimeout;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto;
+
+import java.io.IOException;
+
+import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
+
+/**
+ * A continuous verifier (or a proxy for one) whose service reauth messages can be collected
+ * without blocking.
+ * <p>
+ * This allows a single thread to service many continuous sessions, see
+ * {@link ContinuousProverManager}.
+ */
+public interface IPollableContinuousVerifier extends IContinuousVerifier {
+
+    /**
+     * Return the next service reauth message if one has been fully received, without blocking.
+     * Partially received messages are buffered until the rest arrives.
+     *
+     * @return the service message, or null if no complete message is available yet.
+     * @throws IOException in case a network error occurs while receiving the reauth.
+     */
+    EncServiceReauthMessage pollServiceReauth() throws IOException;
+}
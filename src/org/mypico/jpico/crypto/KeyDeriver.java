@@ -30,6 +30,8 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 import javax.security.auth.Destroyable;
 
+import org.mypico.jpico.crypto.util.KeyVault;
+
 /**
  * A KeyDeriver is used to derive one or more cryptographic keys from a shared secret established by
  * a a public-key-based key establishment scheme, such as Diffie-Hellman key exchange.
@@ -132,6 +134,46 @@ public abstract class KeyDeriver implements Destroyable {
      *                               destroyed.
      */
     public SecretKey getNextKey(final String algorithm, final int length) {
+        final byte[] keyBytes = nextKeyBytes(length);
+        try {
+            // Construct and return the key
+            return new SecretKeySpec(keyBytes, algorithm);
+        } finally {
+            // Clean up working byte array
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Get a new Key for a given algorithm, with a specified length in bits, storing the key
+     * material off-heap in the given {@link KeyVault}.
+     *
+     * @param algorithm the name of the algorithm the key will be used for.
+     * @param length    the desired length of the key in bits, which is assumed to be a multiple of 8.
+     * @param vault     the vault to store the key in.
+     * @return the new Key instance, backed by the vault.
+     * @throws IllegalStateException if the key deriver has not been initialised or has been
+     *                               destroyed.
+     * @see #getNextKey(String, int)
+     */
+    public SecretKey getNextKey(final String algorithm, final int length, final KeyVault vault) {
+        final byte[] keyBytes = nextKeyBytes(length);
+        try {
+            return vault.store(keyBytes, algorithm);
+        } finally {
+            // Clean up working byte array
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Fill a new byte array with the next <code>length</code> bits of keying material. The caller
+     * is responsible for zeroing the returned array.
+     *
+     * @param length the desired length of the key in bits, which is assumed to be a multiple of 8.
+     * @return the raw key bytes.
+     */
+    private byte[] nextKeyBytes(final int length) {
         // Ensure deriver is initialised
         if (!isInitialised) {
             throw new IllegalStateException("key deriver has not been initialised");
@@ -145,49 +187,42 @@ public abstract class KeyDeriver implements Destroyable {
         final int numKeyBytes = length / 8;
         byte[] keyBytes = new byte[numKeyBytes];
 
-        try {
-            // Fill keyBytes
-            int numKeyBytesFilled = 0;
-            while (numKeyBytesFilled < numKeyBytes) {
-                // Maybe do more key expansion
-                assert (numCurrentBlockBytesUsed <= blockSizeInBytes);
-                if (numCurrentBlockBytesUsed == blockSizeInBytes) {
-                    // Derive the next block of keying material
-                    nextBlock();
-                    numCurrentBlockBytesUsed = 0;
-                }
-
-                // Determine how bytes to copy
-                final int remaining = numKeyBytes - numKeyBytesFilled;
-                final int available =
-                    blockSizeInBytes - numCurrentBlockBytesUsed;
-                final int toCopy;
-                if (remaining >= available) {
-                    toCopy = available;
-                } else {
-                    toCopy = remaining;
-                }
-
-                // Copy the bytes from currentBlock to keyBytes
-                System.arraycopy(
-                    currentBlock, // source array
-                    numCurrentBlockBytesUsed, // source array offset
-                    keyBytes, // destination array
-                    numKeyBytesFilled, // destination array offset
-                    toCopy // length to copy
-                );
-
-                // Update variables
-                numCurrentBlockBytesUsed += toCopy;
-                numKeyBytesFilled += toCopy;
+        // Fill keyBytes
+        int numKeyBytesFilled = 0;
+        while (numKeyBytesFilled < numKeyBytes) {
+            // Maybe do more key expansion
+            assert (numCurrentBlockBytesUsed <= blockSizeInBytes);
+            if (numCurrentBlockBytesUsed == blockSizeInBytes) {
+                // Derive the next block of keying material
+                nextBlock();
+                numCurrentBlockBytesUsed = 0;
             }
 
-            // Construct and return the key
-            return new SecretKeySpec(keyBytes, algorithm);
-        } finally {
-            // Clean up working byte array
-            Arrays.fill(keyBytes, (byte) 0);
+            // Determine how bytes to copy
+            final int remaining = numKeyBytes - numKeyBytesFilled;
+            final int available =
+                blockSizeInBytes - numCurrentBlockBytesUsed;
+            final int toCopy;
+            if (remaining >= available) {
+                toCopy = available;
+            } else {
+                toCopy = remaining;
+            }
+
+            // Copy the bytes from currentBlock to keyBytes
+            System.arraycopy(
+                currentBlock, // source array
+                numCurrentBlockBytesUsed, // source array offset
+                keyBytes, // destination array
+                numKeyBytesFilled, // destination array offset
+                toCopy // length to copy
+            );
+
+            // Update variables
+            numCurrentBlockBytesUsed += toCopy;
+            numKeyBytesFilled += toCopy;
         }
+        return keyBytes;
     }
 
     /**
@@ -47,6 +47,8 @@ import org.mypico.jpico.crypto.messages.ServiceAuthMessage;
 import org.mypico.jpico.crypto.messages.StartMessage;
 import org.mypico.jpico.crypto.messages.StatusMessage;
 import org.mypico.jpico.crypto.messages.EncryptedMessage.FieldDeserializationException;
+import org.mypico.jpico.crypto.util.KeyVault;
+import org.mypico.jpico.crypto.util.VaultSecretKey;
 
 /**
  * Performs the SIGMA-I authentication protocol for the verifier (Service).
@@ -89,6 +91,7 @@ public class NewSigmaVerifier implements ISigmaVerifier {
     private final boolean vContinue;
     private final ISigmaVerifier.Client client;
     private final KeyAgreement ka;
+    private final KeyVault keyVault;
 
     // Intermediate variables
     private PublicKey pEphemPubKey;
@@ -119,6 +122,33 @@ public class NewSigmaVerifier implements ISigmaVerifier {
         int sessionId,
         ISigmaVerifier.Client client,
         boolean cont) {
+        this(verifierVersion, verifierIdKeyPair, sessionId, client, cont, null);
+    }
+
+    /**
+     * Constructor storing the derived session keys off-heap.
+     * <p>
+     * When a {@link KeyVault} is supplied the MAC and encryption keys used during the protocol
+     * are zeroed as soon as authentication completes, whether or not it succeeds. The shared key
+     * is zeroed too if authentication fails; otherwise the key returned by
+     * {@link #getSharedKey()} is a {@link org.mypico.jpico.crypto.util.VaultSecretKey} which the
+     * caller should destroy at the end of the session.
+     *
+     * @param verifierVersion   The version of the protocol.
+     * @param verifierIdKeyPair The service's long term identity key pair.
+     * @param sessionId         The session id.
+     * @param client            The Sigma Verifier for the service.
+     * @param cont              true if continous authentication is desired, false o/w.
+     * @param keyVault          The vault to hold derived keys, or null to keep them on the heap.
+     */
+    public NewSigmaVerifier(
+        byte verifierVersion,
+        KeyPair verifierIdKeyPair,
+        int sessionId,
+        ISigmaVerifier.Client client,
+        boolean cont,
+        KeyVault keyVault) {
+        this.keyVault = keyVault;
         this.vVersion = verifierVersion;
         this.vIdKeyPair = checkNotNull(verifierIdKeyPair, "verifierIdKeyPair cannot be null");
         this.vSessionId = sessionId;
@@ -174,56 +204,76 @@ public class NewSigmaVerifier implements ISigmaVerifier {
             //There is a noticable second pause between the line above and the print statement on the first line of the method below
 
             KeyDeriver kd = SigmaKeyDeriver.getInstance(ecdhSharedSecret, pNonce, vNonce);
-            pMacKey = kd.getNextKey("Hmac-SHA256", 256);
-            pEncKey = kd.getNextKey("AES", 128);
-            vMacKey = kd.getNextKey("Hmac-SHA256", 256);
-            vEncKey = kd.getNextKey("AES", 128);
-            sharedKey = kd.getNextKey("AES", 128);
+            pMacKey = deriveKey(kd, "Hmac-SHA256", 256);
+            pEncKey = deriveKey(kd, "AES", 128);
+            vMacKey = deriveKey(kd, "Hmac-SHA256", 256);
+            vEncKey = deriveKey(kd, "AES", 128);
+            sharedKey = deriveKey(kd, "AES", 128);
             kd.destroy();
 
             state = State.KEYGENERATED;
-
-            // Create and encrypt a Verifier Auth Message, returning it to the prover. The verifier
-            // authenticates to the prover first (in the "I" variant of SIGMA) to protect the
-            // prover's long term identity.
-            final ServiceAuthMessage serviceAuthMessage;
-            try {
-                serviceAuthMessage = ServiceAuthMessage.getInstance(
-                    vSessionId,
-                    vEphemKeyPair.getPublic(),
-                    vNonce,
-                    pNonce,
-                    vIdKeyPair,
-                    vMacKey);
-            } catch (InvalidKeyException e) {
-                // Re-thrown unchecked because this signals that the signature algorithm has been
-                // unable to process the supplied data to sign. This is considered an unrecoverable
-                // error, probably resulting from incompatibility between the chosen crypto
-                // algorithms.
-                throw new CryptoRuntimeException(
-                    "unable to create verifier auth message signature", e);
-            } catch (SignatureException e) {
-                // Re-thrown unchecked because this signals incompatibility between the key
-                // generation algorithm used by the key deriver and the algorithm used to produce
-                // the MAC, or incompatibility between the key pair generation algorhtm used for
-                // the prover's long-term identity and the chosen signature algorithm.
-                throw new CryptoRuntimeException(
-                    "invalid verifier MAC key returned by key deriver", e);
-            }
-            state = State.STARTED;
             try {
-                return serviceAuthMessage.encrypt(vEncKey);
-            } catch (InvalidKeyException e) {
-                // Re-thrown unchecked because this signals incompatibility between the chosen
-                // symmetric key generation algorithm of the key deriver and the message cipher
-                // scheme
-                throw new CryptoRuntimeException(e);
+                return sendServiceAuth(pNonce);
+            } finally {
+                if (state != State.STARTED) {
+                    // Nothing will use the derived keys if the auth message couldn't be sent
+                    state = State.FAIL;
+                    destroyProtocolKeys();
+                    destroySharedKey();
+                }
             }
         } else {
             throw new IllegalStateException("invalid operation " + state.when);
         }
     }
 
+    /**
+     * Create and encrypt the verifier auth message once the session keys have been derived.
+     *
+     * @param pNonce The prover's nonce from the start message.
+     * @return The encrypted verifier auth message.
+     */
+    private EncServiceAuthMessage sendServiceAuth(Nonce pNonce) {
+        // Create and encrypt a Verifier Auth Message, returning it to the prover. The verifier
+        // authenticates to the prover first (in the "I" variant of SIGMA) to protect the
+        // prover's long term identity.
+        final ServiceAuthMessage serviceAuthMessage;
+        try {
+            serviceAuthMessage = ServiceAuthMessage.getInstance(
+                vSessionId,
+                vEphemKeyPair.getPublic(),
+                vNonce,
+                pNonce,
+                vIdKeyPair,
+                vMacKey);
+        } catch (InvalidKeyException e) {
+            // Re-thrown unchecked because this signals that the signature algorithm has been
+            // unable to process the supplied data to sign. This is considered an unrecoverable
+            // error, probably resulting from incompatibility between the chosen crypto
+            // algorithms.
+            throw new CryptoRuntimeException(
+                "unable to create verifier auth message signature", e);
+        } catch (SignatureException e) {
+            // Re-thrown unchecked because this signals incompatibility between the key
+            // generation algorithm used by the key deriver and the algorithm used to produce
+            // the MAC, or incompatibility between the key pair generation algorhtm used for
+            // the prover's long-term identity and the chosen signature algorithm.
+            throw new CryptoRuntimeException(
+                "invalid verifier MAC key returned by key deriver", e);
+        }
+        final EncServiceAuthMessage encServiceAuthMessage;
+        try {
+            encServiceAuthMessage = serviceAuthMessage.encrypt(vEncKey);
+        } catch (InvalidKeyException e) {
+            // Re-thrown unchecked because this signals incompatibility between the chosen
+            // symmetric key generation algorithm of the key deriver and the message cipher
+            // scheme
+            throw new CryptoRuntimeException(e);
+        }
+        state = State.STARTED;
+        return encServiceAuthMessage;
+    }
+
     /**
      * @throws IOException if an IOException occurs while notifying the verifier's client of a
      *                     successful authentication (see {@link ISigmaVerifier.Client#onAuthenticate(PublicKey, byte[])}).
@@ -232,143 +282,208 @@ public class NewSigmaVerifier implements ISigmaVerifier {
     public synchronized EncStatusMessage authenticate(EncPicoAuthMessage msg)
         throws ProtocolViolationException, IOException {
         if (state == State.STARTED) {
-            // DECRYPT PROVER AUTH MESSAGE:
-            // Decrypt the Prover Auth Message using the "prover encryption" derived key.
-            final PicoAuthMessage proverAuthMessage;
             try {
-                proverAuthMessage = msg.decrypt(pEncKey);
+                return respond(msg);
+            } finally {
+                // The protocol keys are never used again once the prover's auth message has been
+                // handled, whatever the outcome
+                destroyProtocolKeys();
+                if (state != State.AUTHENTICATED) {
+                    state = State.FAIL;
+                    destroySharedKey();
+                }
+            }
+        } else {
+            throw new IllegalStateException("invalid operation " + state.when);
+        }
+    }
+
+    /**
+     * Check the prover's auth message and build the status message to send back. Called by
+     * {@link #authenticate(EncPicoAuthMessage)}, which cleans up the derived keys however this
+     * method exits.
+     *
+     * @param msg The encrypted prover auth message.
+     * @return The encrypted status message.
+     * @throws ProtocolViolationException if the prover's message is malformed.
+     * @throws IOException                if the client throws while authorising the prover.
+     */
+    private EncStatusMessage respond(EncPicoAuthMessage msg)
+        throws ProtocolViolationException, IOException {
+        // DECRYPT PROVER AUTH MESSAGE:
+        // Decrypt the Prover Auth Message using the "prover encryption" derived key.
+        final PicoAuthMessage proverAuthMessage;
+        try {
+            proverAuthMessage = msg.decrypt(pEncKey);
+        } catch (InvalidKeyException e) {
+            // Re-thrown unchecked because this signals incompatibility between the chosen
+            // symmetric key generation algorithm of the key deriver and the message cipher
+            // scheme
+            throw new CryptoRuntimeException(e);
+        } catch (InvalidAlgorithmParameterException e) {
+            state = State.FAIL;
+            throw new ProtocolViolationException("prover supplied invalid IV", e);
+        } catch (IllegalBlockSizeException e) {
+            state = State.FAIL;
+            throw new ProtocolViolationException(
+                "prover supplied invalid encrypted data", e);
+        } catch (BadPaddingException e) {
+            state = State.FAIL;
+            throw new ProtocolViolationException(
+                "prover supplied invalid encrypted data", e);
+        } catch (FieldDeserializationException e) {
+            state = State.FAIL;
+            throw new ProtocolViolationException(
+                "prover supplied invalid encrypted data", e);
+        }
+
+
+        // PROVER AUTHENTICATION:
+        // Having decrypted the Prover Auth Message, the verifier is now in a position to 
+        // validate the prover's authentication. Two checks are carried out:
+        // 1. Verify the signature in the message using the presented long-term identity public
+        //    key. This checks the prover possesses the corresponding private key. The data
+        //    signed includes the verifier nonce sent in the Verifier Auth Message.
+        // 2. Check the MAC in the message. The message must include a keyed HMAC of the 
+        //    prover's long-term identity public key. The key for this HMAC is derived from
+        //    the ECDH shared secret, making it unforgeble for a MITM attempting an identity
+        //    misbinding attack.
+
+        // accept is initially true, but each of the three checks may set it to false, causing
+        // the prover's authentication to be rejected (see RETURN STATUS MESSAGE section
+        // below). As an optimisation, the second and third checks are only carried out if the
+        // previous ones did not already set accept to false;
+        pIdPubKey = proverAuthMessage.getPicoAccountIdentityPublicKey();
+        boolean accept = true;
+
+        assert (pIdPubKey != null);
+
+        // 1. Verify the signature in the message using the long-term identity public key.
+        if (accept) {
+            final Signature sig = CryptoFactory.INSTANCE.sha256Ecdsa();
+            try {
+                sig.initVerify(pIdPubKey);
+                sig.update(PicoAuthMessage.getBytesToSign(vNonce, vSessionId, pEphemPubKey));
+
+                // Set accept here
+                accept = sig.verify(proverAuthMessage.getSignature());
+
             } catch (InvalidKeyException e) {
-                // Re-thrown unchecked because this signals incompatibility between the chosen
-                // symmetric key generation algorithm of the key deriver and the message cipher
-                // scheme
-                throw new CryptoRuntimeException(e);
-            } catch (InvalidAlgorithmParameterException e) {
-                state = State.FAIL;
-                throw new ProtocolViolationException("prover supplied invalid IV", e);
-            } catch (IllegalBlockSizeException e) {
+                // The public key presented by the prover was not of the correct type to have
+                // created the signature.
                 state = State.FAIL;
                 throw new ProtocolViolationException(
-                    "prover supplied invalid encrypted data", e);
-            } catch (BadPaddingException e) {
-                state = State.FAIL;
-                throw new ProtocolViolationException(
-                    "prover supplied invalid encrypted data", e);
-            } catch (FieldDeserializationException e) {
+                    "prover supplied invalid identity public key", e);
+            } catch (SignatureException e) {
+                // Verification of the signature was not possible. This is more serious than the
+                // signature being invalid, i.e. not corresponding to the presented public key.
                 state = State.FAIL;
                 throw new ProtocolViolationException(
-                    "prover supplied invalid encrypted data", e);
+                    "unable to verify signature presented by prover", e);
             }
+        }
 
-
-            // PROVER AUTHENTICATION:
-            // Having decrypted the Prover Auth Message, the verifier is now in a position to 
-            // validate the prover's authentication. Two checks are carried out:
-            // 1. Verify the signature in the message using the presented long-term identity public
-            //    key. This checks the prover possesses the corresponding private key. The data
-            //    signed includes the verifier nonce sent in the Verifier Auth Message.
-            // 2. Check the MAC in the message. The message must include a keyed HMAC of the 
-            //    prover's long-term identity public key. The key for this HMAC is derived from
-            //    the ECDH shared secret, making it unforgeble for a MITM attempting an identity
-            //    misbinding attack.
-
-            // accept is initially true, but each of the three checks may set it to false, causing
-            // the prover's authentication to be rejected (see RETURN STATUS MESSAGE section
-            // below). As an optimisation, the second and third checks are only carried out if the
-            // previous ones did not already set accept to false;
-            pIdPubKey = proverAuthMessage.getPicoAccountIdentityPublicKey();
-            boolean accept = true;
-
-            assert (pIdPubKey != null);
-
-            // 1. Verify the signature in the message using the long-term identity public key.
-            if (accept) {
-                final Signature sig = CryptoFactory.INSTANCE.sha256Ecdsa();
-                try {
-                    sig.initVerify(pIdPubKey);
-                    sig.update(PicoAuthMessage.getBytesToSign(vNonce, vSessionId, pEphemPubKey));
-
-                    // Set accept here
-                    accept = sig.verify(proverAuthMessage.getSignature());
-
-                } catch (InvalidKeyException e) {
-                    // The public key presented by the prover was not of the correct type to have
-                    // created the signature.
-                    state = State.FAIL;
-                    throw new ProtocolViolationException(
-                        "prover supplied invalid identity public key", e);
-                } catch (SignatureException e) {
-                    // Verification of the signature was not possible. This is more serious than the
-                    // signature being invalid, i.e. not corresponding to the presented public key.
-                    state = State.FAIL;
-                    throw new ProtocolViolationException(
-                        "unable to verify signature presented by prover", e);
-                }
+        // 2. Check the MAC in the message:
+        if (accept) {
+            final Mac mac = CryptoFactory.INSTANCE.sha256Hmac();
+            try {
+                mac.init(pMacKey);
+            } catch (InvalidKeyException e) {
+                // Re-thrown unchecked because this signals incompatibility between the key
+                // generation algorithm used by the key deriver and the algorithm used to produce
+                // the MAC.
+                throw new CryptoRuntimeException(
+                    "invalid verifier MAC key returned by key deriver", e);
             }
+            final byte[] vExpectedMac = mac.doFinal(pIdPubKey.getEncoded());
 
-            // 2. Check the MAC in the message:
-            if (accept) {
-                final Mac mac = CryptoFactory.INSTANCE.sha256Hmac();
-                try {
-                    mac.init(pMacKey);
-                } catch (InvalidKeyException e) {
-                    // Re-thrown unchecked because this signals incompatibility between the key
-                    // generation algorithm used by the key deriver and the algorithm used to produce
-                    // the MAC.
-                    throw new CryptoRuntimeException(
-                        "invalid verifier MAC key returned by key deriver", e);
-                }
-                final byte[] vExpectedMac = mac.doFinal(pIdPubKey.getEncoded());
-
-                // Set accept here
-                accept = Arrays.equals(vExpectedMac, proverAuthMessage.getMac());
-            }
+            // Set accept here
+            accept = Arrays.equals(vExpectedMac, proverAuthMessage.getMac());
+        }
 
 
-            // RETURN STATUS MESSAGE:
-            final StatusMessage statusMessage;
-            if (accept) {
-                // Prover's authentication was successful, but the client has the opportunity to
-                // accept or reject the authentication based on the prover's identity and the
-                // received extra data.
-                // Note: pExtraData not accessible (via getReceivedExtraData) until state is set
-                //       to State.AUTHENTICATED
-                pExtraData = proverAuthMessage.getExtraData();
-                final ClientAuthorisation auth = client.onAuthenticate(pIdPubKey, pExtraData);
-
-                if (auth.authorised()) {
-                    // The client has accepted the authentication
-                    state = State.AUTHENTICATED;
-
-                    // Response
-                    vExtraData = auth.extraData();
-                    if (vContinue) {
-                        System.out.println("Continuous authentication");
-                        isContinuing = true;
-                        statusMessage = StatusMessage.getContinueInstance(vSessionId, vExtraData);
-                    } else {
-                        statusMessage = StatusMessage.getDoneInstance(vSessionId, vExtraData);
-                    }
+        // RETURN STATUS MESSAGE:
+        final StatusMessage statusMessage;
+        if (accept) {
+            // Prover's authentication was successful, but the client has the opportunity to
+            // accept or reject the authentication based on the prover's identity and the
+            // received extra data.
+            // Note: pExtraData not accessible (via getReceivedExtraData) until state is set
+            //       to State.AUTHENTICATED
+            pExtraData = proverAuthMessage.getExtraData();
+            final ClientAuthorisation auth = client.onAuthenticate(pIdPubKey, pExtraData);
+
+            if (auth.authorised()) {
+                // The client has accepted the authentication
+                state = State.AUTHENTICATED;
+
+                // Response
+                vExtraData = auth.extraData();
+                if (vContinue) {
+                    System.out.println("Continuous authentication");
+                    isContinuing = true;
+                    statusMessage = StatusMessage.getContinueInstance(vSessionId, vExtraData);
                 } else {
-                    // Client has rejected the authentication
-                    state = State.FAIL;
-                    statusMessage = StatusMessage.getRejectInstance(vSessionId);
+                    statusMessage = StatusMessage.getDoneInstance(vSessionId, vExtraData);
                 }
             } else {
-                // Prover's authentication was invalid, reject.
+                // Client has rejected the authentication
                 state = State.FAIL;
                 statusMessage = StatusMessage.getRejectInstance(vSessionId);
             }
-            // Encrypt and return the status message
-            try {
-                return statusMessage.encrypt(vEncKey);
-            } catch (InvalidKeyException e) {
-                // Re-thrown unchecked because this signals incompatibility between the chosen
-                // symmetric key generation algorithm of the key deriver and the message cipher
-                // scheme
-                throw new CryptoRuntimeException(e);
-            }
         } else {
-            throw new IllegalStateException("invalid operation " + state.when);
+            // Prover's authentication was invalid, reject.
+            state = State.FAIL;
+            statusMessage = StatusMessage.getRejectInstance(vSessionId);
+        }
+        // Encrypt and return the status message
+        try {
+            return statusMessage.encrypt(vEncKey);
+        } catch (InvalidKeyException e) {
+            // Re-thrown unchecked because this signals incompatibility between the chosen
+            // symmetric key generation algorithm of the key deriver and the message cipher
+            // scheme
+            throw new CryptoRuntimeException(e);
+        }
+    }
+
+    /**
+     * Derive the next key, storing it in the key vault if one was supplied.
+     *
+     * @param kd        The key deriver.
+     * @param algorithm The name of the algorithm the key will be used for.
+     * @param length    The length of the key in bits.
+     * @return the derived key.
+     */
+    private SecretKey deriveKey(KeyDeriver kd, String algorithm, int length) {
+        if (keyVault != null) {
+            return kd.getNextKey(algorithm, length, keyVault);
+        } else {
+            return kd.getNextKey(algorithm, length);
+        }
+    }
+
+    /**
+     * Zero the intermediate MAC and encryption keys if they are held in the key vault. Keys held
+     * on the heap are left for the garbage collector, as before.
+     */
+    private void destroyProtocolKeys() {
+        if (keyVault != null) {
+            for (SecretKey key : new SecretKey[]{pMacKey, pEncKey, vMacKey, vEncKey}) {
+                if (key instanceof VaultSecretKey) {
+                    ((VaultSecretKey) key).destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Zero the shared key if it is held in the key vault. Only called when authentication does
+     * not succeed, since on success the caller owns the shared key (see {@link #getSharedKey()}).
+     */
+    private void destroySharedKey() {
+        if (sharedKey instanceof VaultSecretKey) {
+            ((VaultSecretKey) sharedKey).destroy();
         }
     }
 
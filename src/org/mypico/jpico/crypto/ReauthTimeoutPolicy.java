@@ -0,0 +1,54 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto;
+
+/**
+ * Decides how long a prover should wait before its next reauth.
+ * <p>
+ * A {@link ContinuousVerifier} consults its policy each time it builds a service reauth message.
+ * The chosen timeout is carried to the prover in the
+ * {@link org.mypico.jpico.crypto.messages.ServiceReauthMessage}, so provers follow whatever
+ * interval the policy settles on without any further negotiation.
+ * <p>
+ * Implementations are shared between all the sessions of a verifier and must be thread safe.
+ *
+ * @see FixedReauthTimeoutPolicy
+ * @see AdaptiveReauthTimeoutPolicy
+ */
+public interface ReauthTimeoutPolicy {
+
+    /**
+     * Get the timeout to send to a prover whose session is active. Called once for every
+     * service reauth message sent in the {@link IContinuousVerifier.State#ACTIVE} state.
+     *
+     * @return timeout in milliseconds.
+     */
+    int getActiveTimeout();
+
+    /**
+     * Get the timeout to send to a prover whose session is paused. Called once for every
+     * service reauth message sent in the {@link IContinuousVerifier.State#PAUSED} state.
+     *
+     * @return timeout in milliseconds.
+     */
+    int getPausedTimeout();
+}
@@ -159,12 +159,31 @@ public class ServiceSigmaVerifier implements ISigmaVerifier {
      */
     public IContinuousVerifier getContinuousVerifier(
         final IContinuousVerifier.Client continuousClient) {
+        return getContinuousVerifier(continuousClient, FixedReauthTimeoutPolicy.DEFAULT);
+    }
+
+    /**
+     * Convenience factory method for creating a continuous verifier for the session this verifier
+     * was used to authenticate, with reauth timeouts chosen by the given policy.
+     *
+     * @param continuousClient callback interface for the continuous verifier.
+     * @param timeoutPolicy    policy deciding the timeout sent with each service reauth. Usually
+     *                         one instance is shared between all sessions.
+     * @return appropriate continuous verifier for this session
+     * @throws IllegalStateException if this method is called before the authentication has
+     *                               completed, or if this verifier is not configured to start continuous authentication
+     *                               sessions.
+     */
+    public IContinuousVerifier getContinuousVerifier(
+        final IContinuousVerifier.Client continuousClient,
+        final ReauthTimeoutPolicy timeoutPolicy) {
         if (startContinuous) {
             return new ContinuousVerifier(
                 verifier.getSharedKey(),
                 clientAdapter.getSequenceNumber(),
                 continuousClient,
-                verifier.getProverIdPubKey());
+                verifier.getProverIdPubKey(),
+                timeoutPolicy);
         } else {
             throw new IllegalStateException("not configured to start continuous auth sessions");
         }
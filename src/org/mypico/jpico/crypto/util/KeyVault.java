@@ -0,0 +1,267 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.Destroyable;
+
+/**
+ * Off-heap storage for symmetric key material.
+ * <p>
+ * Key bytes are held in direct {@link ByteBuffer} slabs outside the Java heap, so the garbage
+ * collector never copies them between generations and long-lived sessions do not add to heap
+ * churn. Each slab is divided into fixed-size slots, one per key. Slots are zeroed as soon as the
+ * key occupying them is destroyed and are then reused for later keys.
+ * <p>
+ * Keys are handed out as {@link VaultSecretKey} instances, which can be passed anywhere a
+ * {@link SecretKey} is expected. Note that the JCE requires {@link SecretKey#getEncoded()} to
+ * return a byte array, so a short-lived heap copy is still made when a key is used to initialise
+ * a cipher or MAC.
+ * <p>
+ * Instances of this class are thread safe.
+ *
+ * @see VaultSecretKey
+ */
+public final class KeyVault implements Destroyable {
+
+    /**
+     * Default size of each slot in bytes. Large enough for a 256-bit HMAC key.
+     */
+    public static final int DEFAULT_SLOT_SIZE = 32;
+
+    /**
+     * Default number of slots allocated in each direct buffer slab.
+     */
+    public static final int DEFAULT_SLOTS_PER_SLAB = 256;
+
+    private final int slotSize;
+    private final int slotsPerSlab;
+    private final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private final Deque<Integer> freeSlots = new ArrayDeque<Integer>();
+    private final byte[] zeros;
+    // Bumped each time a slot is released, so a key can tell whether it still owns its slot
+    private int[] generations = new int[0];
+    private int allocatedSlots = 0;
+    private boolean isDestroyed = false;
+
+    /**
+     * Constructor using the default slot and slab sizes.
+     */
+    public KeyVault() {
+        this(DEFAULT_SLOT_SIZE, DEFAULT_SLOTS_PER_SLAB);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param slotSize     the maximum length in bytes of a key stored in the vault.
+     * @param slotsPerSlab the number of keys held by each direct buffer allocated by the vault.
+     */
+    public KeyVault(final int slotSize, final int slotsPerSlab) {
+        if (slotSize <= 0) {
+            throw new IllegalArgumentException("slotSize must be positive");
+        }
+        if (slotsPerSlab <= 0) {
+            throw new IllegalArgumentException("slotsPerSlab must be positive");
+        }
+        this.slotSize = slotSize;
+        this.slotsPerSlab = slotsPerSlab;
+        this.zeros = new byte[slotSize];
+    }
+
+    /**
+     * Copy key material into the vault. The caller remains responsible for zeroing
+     * <code>keyBytes</code> once this method returns.
+     *
+     * @param keyBytes  the raw key bytes.
+     * @param algorithm the name of the algorithm the key will be used for.
+     * @return a key backed by the vault.
+     * @throws IllegalArgumentException if the key is longer than the slot size.
+     * @throws IllegalStateException    if the vault has been destroyed.
+     */
+    public synchronized VaultSecretKey store(final byte[] keyBytes, final String algorithm) {
+        if (keyBytes == null || algorithm == null) {
+            throw new NullPointerException();
+        }
+        if (keyBytes.length > slotSize) {
+            throw new IllegalArgumentException(
+                "key of " + keyBytes.length + " bytes does not fit in a " + slotSize
+                    + " byte slot");
+        }
+        checkNotDestroyed();
+
+        final int slot = allocateSlot();
+        final ByteBuffer slab = slabFor(slot);
+        slab.position(offsetFor(slot));
+        slab.put(keyBytes);
+        return new VaultSecretKey(this, slot, generations[slot], keyBytes.length, algorithm);
+    }
+
+    /**
+     * Move an existing key into the vault. If the key is already held by this vault it is returned
+     * unchanged. Otherwise the encoded form is copied into the vault and the temporary copy
+     * zeroed; the original key is left untouched and should be destroyed by the caller if
+     * possible.
+     *
+     * @param key the key to store.
+     * @return a key backed by the vault.
+     */
+    public VaultSecretKey store(final SecretKey key) {
+        if (key instanceof VaultSecretKey && ((VaultSecretKey) key).getVault() == this) {
+            return (VaultSecretKey) key;
+        }
+        final byte[] encoded = key.getEncoded();
+        try {
+            return store(encoded, key.getAlgorithm());
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    /**
+     * Copy a key out of its slot. The check that the key still owns the slot and the copy happen
+     * under the vault's lock, so a slot released and reused by another key is never read.
+     *
+     * @param slot       the slot index.
+     * @param generation the generation of the slot when the key was stored.
+     * @param dest       array to copy the key into.
+     * @param length     number of bytes to copy.
+     * @throws IllegalStateException if the key or the vault has been destroyed.
+     */
+    synchronized void read(final int slot, final int generation, final byte[] dest,
+                           final int length) {
+        checkNotDestroyed();
+        if (generations[slot] != generation) {
+            throw new IllegalStateException("key has been destroyed");
+        }
+        final ByteBuffer slab = slabFor(slot);
+        slab.position(offsetFor(slot));
+        slab.get(dest, 0, length);
+    }
+
+    /**
+     * Zero a slot and return it to the free list. Does nothing if the slot has already been
+     * released.
+     *
+     * @param slot       the slot index.
+     * @param generation the generation of the slot when the key was stored.
+     */
+    synchronized void release(final int slot, final int generation) {
+        if (isDestroyed || generations[slot] != generation) {
+            // Everything has already been zeroed, or the slot belongs to another key
+            return;
+        }
+        generations[slot]++;
+        final ByteBuffer slab = slabFor(slot);
+        slab.position(offsetFor(slot));
+        slab.put(zeros);
+        freeSlots.push(slot);
+        allocatedSlots--;
+    }
+
+    /**
+     * Get the number of keys currently held by the vault.
+     *
+     * @return the number of occupied slots.
+     */
+    public synchronized int getAllocatedSlots() {
+        return allocatedSlots;
+    }
+
+    /**
+     * Get the total amount of off-heap memory reserved by the vault.
+     *
+     * @return the size in bytes of all slabs allocated so far.
+     */
+    public synchronized long getOffHeapBytes() {
+        return (long) slabs.size() * slotsPerSlab * slotSize;
+    }
+
+    /**
+     * Get the maximum length of key that can be stored.
+     *
+     * @return the slot size in bytes.
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private int allocateSlot() {
+        if (freeSlots.isEmpty()) {
+            final int base = slabs.size() * slotsPerSlab;
+            slabs.add(ByteBuffer.allocateDirect(slotsPerSlab * slotSize));
+            generations = Arrays.copyOf(generations, base + slotsPerSlab);
+            // Push in reverse so that slots are handed out in ascending order
+            for (int i = slotsPerSlab - 1; i >= 0; i--) {
+                freeSlots.push(base + i);
+            }
+        }
+        allocatedSlots++;
+        return freeSlots.pop();
+    }
+
+    private ByteBuffer slabFor(final int slot) {
+        return slabs.get(slot / slotsPerSlab);
+    }
+
+    private int offsetFor(final int slot) {
+        return (slot % slotsPerSlab) * slotSize;
+    }
+
+    private void checkNotDestroyed() {
+        if (isDestroyed) {
+            throw new IllegalStateException("key vault has been destroyed");
+        }
+    }
+
+    /* *************** Destroyable *************** */
+
+    /**
+     * Zero every slab held by the vault. Any keys still referring to the vault become unusable.
+     */
+    @Override
+    public synchronized void destroy() {
+        for (ByteBuffer slab : slabs) {
+            slab.clear();
+            while (slab.remaining() >= slotSize) {
+                slab.put(zeros);
+            }
+        }
+        freeSlots.clear();
+        allocatedSlots = 0;
+        isDestroyed = true;
+    }
+
+    @Override
+    public synchronized boolean isDestroyed() {
+        return isDestroyed;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.crypto.util;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.security.auth.Destroyable;
+
+/**
+ * A {@link SecretKey} whose key material lives in a {@link KeyVault} rather than on the Java heap.
+ * <p>
+ * The key can be used directly with {@link javax.crypto.Cipher} and {@link javax.crypto.Mac}.
+ * Calling {@link #destroy()} zeroes the underlying slot and returns it to the vault, after which
+ * {@link #getEncoded()} throws {@link IllegalStateException}.
+ * <p>
+ * Two keys are equal if they have the same algorithm and key bytes, matching the behaviour of
+ * {@link javax.crypto.spec.SecretKeySpec}.
+ *
+ * @see KeyVault
+ */
+public final class VaultSecretKey implements SecretKey, Destroyable {
+
+    private static final long serialVersionUID = 5043658405542906742L;
+
+    private final transient KeyVault vault;
+    private final int slot;
+    private final int generation;
+    private final int length;
+    private final String algorithm;
+    private volatile boolean isDestroyed = false;
+
+    /**
+     * Constructor. Only called by {@link KeyVault}.
+     *
+     * @param vault      the vault holding the key material.
+     * @param slot       the slot index within the vault.
+     * @param generation the generation of the slot, used to detect the slot being reused.
+     * @param length     the key length in bytes.
+     * @param algorithm  the name of the algorithm the key will be used for.
+     */
+    VaultSecretKey(final KeyVault vault, final int slot, final int generation, final int length,
+                   final String algorithm) {
+        this.vault = vault;
+        this.slot = slot;
+        this.generation = generation;
+        this.length = length;
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Get the vault this key is stored in.
+     *
+     * @return the backing vault.
+     */
+    public KeyVault getVault() {
+        return vault;
+    }
+
+    @Override
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override
+    public String getFormat() {
+        return "RAW";
+    }
+
+    /**
+     * Return a fresh copy of the key bytes. The caller should zero the returned array once
+     * finished with it.
+     *
+     * @return the raw key bytes.
+     * @throws IllegalStateException if the key or its vault has been destroyed.
+     */
+    @Override
+    public byte[] getEncoded() {
+        if (isDestroyed) {
+            throw new IllegalStateException("key has been destroyed");
+        }
+        final byte[] encoded = new byte[length];
+        vault.read(slot, generation, encoded, length);
+        return encoded;
+    }
+
+    /* *************** Destroyable *************** */
+
+    @Override
+    public synchronized void destroy() {
+        if (!isDestroyed) {
+            isDestroyed = true;
+            vault.release(slot, generation);
+        }
+    }
+
+    @Override
+    public boolean isDestroyed() {
+        return isDestroyed || vault.isDestroyed();
+    }
+
+    /* *************** Object *************** */
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof SecretKey) || isDestroyed()) {
+            return false;
+        }
+        final SecretKey other = (SecretKey) obj;
+        if (!algorithm.equalsIgnoreCase(other.getAlgorithm())) {
+            return false;
+        }
+        final byte[] otherEncoded;
+        final byte[] encoded;
+        try {
+            otherEncoded = other.getEncoded();
+            encoded = getEncoded();
+        } catch (IllegalStateException e) {
+            // One of the keys was destroyed concurrently
+            return false;
+        }
+        try {
+            return MessageDigest.isEqual(encoded, otherEncoded);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    @Override
+    public int hashCode() {
+        final byte[] encoded;
+        try {
+            encoded = getEncoded();
+        } catch (IllegalStateException e) {
+            return algorithm.toLowerCase().hashCode();
+        }
+        // Same scheme as SecretKeySpec, so that equal keys hash equally
+        int hash = 0;
+        for (int i = 1; i < encoded.length; i++) {
+            hash += encoded[i] * i;
+        }
+        Arrays.fill(encoded, (byte) 0);
+        return hash ^ algorithm.toLowerCase().hashCode();
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.util.MetricsSource;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Non-blocking facade over a {@link DataAccessor}.
+ * <p>
+ * Every lookup of the underlying accessor, and saving any {@link Saveable}, is run on a dedicated
+ * pool of threads and returns a {@link ListenableFuture} straight away, so threads servicing
+ * sockets never wait for the data store. If the lookup fails with an
+ * {@link java.io.IOException} the future fails with it. The pool's queue is bounded: when it is
+ * full the returned future has already failed with a {@link RejectedExecutionException}, rather
+ * than the caller being blocked.
+ * <p>
+ * Identical lookups made while one is already queued or running are coalesced, so that they share
+ * its future rather than querying the store again. The objects returned are then shared between
+ * the callers, as with {@link CachingDataAccessor}. Saves are never coalesced.
+ * <p>
+ * Call counts, queueing time and latency for each operation are available through
+ * {@link #getMetrics()}. Call {@link #close()} on shutdown; operations already queued are still
+ * run. Instances of this class are thread safe.
+ */
+public class AsyncDataAccessor implements Closeable, MetricsSource {
+
+    /**
+     * Default number of threads accessing the data store.
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Default maximum number of operations waiting for a thread.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /**
+     * Statistics for one kind of operation.
+     */
+    private static final class OperationStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong coalesced = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        private long completed = 0;
+        private long totalQueueNanos = 0;
+        private long maxQueueNanos = 0;
+        private long totalNanos = 0;
+        private long maxNanos = 0;
+
+        synchronized void completed(final long queueNanos, final long nanos) {
+            completed++;
+            totalQueueNanos += queueNanos;
+            maxQueueNanos = Math.max(maxQueueNanos, queueNanos);
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        synchronized void addMetrics(final Map<String, Number> metrics, final String name) {
+            metrics.put(name + ".calls", calls.get());
+            metrics.put(name + ".coalesced", coalesced.get());
+            metrics.put(name + ".failures", failures.get());
+            metrics.put(name + ".rejected", rejected.get());
+            metrics.put(name + ".averageQueueMillis",
+                (completed == 0) ? 0.0 : totalQueueNanos / 1e6 / completed);
+            metrics.put(name + ".maxQueueMillis", maxQueueNanos / 1e6);
+            metrics.put(name + ".averageMillis",
+                (completed == 0) ? 0.0 : totalNanos / 1e6 / completed);
+            metrics.put(name + ".maxMillis", maxNanos / 1e6);
+        }
+    }
+
+    private final DataAccessor accessor;
+    private final ThreadPoolExecutor executor;
+    // Futures of lookups which are queued or running, by operation and arguments
+    private final ConcurrentMap<List<Object>, ListenableFuture<?>> inFlight =
+        new ConcurrentHashMap<List<Object>, ListenableFuture<?>>();
+    private final ConcurrentMap<String, OperationStats> stats =
+        new ConcurrentHashMap<String, OperationStats>();
+
+    /**
+     * Constructor using the default number of threads and queue capacity.
+     *
+     * @param accessor the accessor to run lookups on.
+     */
+    public AsyncDataAccessor(final DataAccessor accessor) {
+        this(accessor, DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param accessor      the accessor to run lookups on.
+     * @param threads       the number of threads accessing the data store.
+     * @param queueCapacity the maximum number of operations waiting for a thread.
+     */
+    public AsyncDataAccessor(final DataAccessor accessor, final int threads,
+                             final int queueCapacity) {
+        this.accessor = checkNotNull(accessor, "accessor cannot be null");
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be positive");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            new ThreadFactoryBuilder().setNameFormat("jpico-data-%d").setDaemon(true).build());
+    }
+
+    /* *************** Lookups *************** */
+
+    /**
+     * Asynchronous {@link DataAccessor#getPairingById(int)}.
+     */
+    public ListenableFuture<Pairing> getPairingById(final int id) {
+        return lookup("pairingById", new Callable<Pairing>() {
+            @Override
+            public Pairing call() throws Exception {
+                return accessor.getPairingById(id);
+            }
+        }, id);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getKeyPairingById(int)}.
+     */
+    public ListenableFuture<KeyPairing> getKeyPairingById(final int pairingId) {
+        return lookup("keyPairingById", new Callable<KeyPairing>() {
+            @Override
+            public KeyPairing call() throws Exception {
+                return accessor.getKeyPairingById(pairingId);
+            }
+        }, pairingId);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getKeyPairingsByServiceCommitment(byte[])}.
+     */
+    public ListenableFuture<List<KeyPairing>> getKeyPairingsByServiceCommitment(
+        final byte[] commitment) {
+        return lookup("keyPairingsByServiceCommitment", new Callable<List<KeyPairing>>() {
+            @Override
+            public List<KeyPairing> call() throws Exception {
+                return accessor.getKeyPairingsByServiceCommitment(commitment);
+            }
+        }, key(commitment));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getKeyPairingsByServiceCommitments(Collection)}.
+     */
+    public ListenableFuture<Map<ByteBuffer, List<KeyPairing>>> getKeyPairingsByServiceCommitments(
+        final Collection<byte[]> commitments) {
+        return lookup("keyPairingsByServiceCommitments",
+            new Callable<Map<ByteBuffer, List<KeyPairing>>>() {
+                @Override
+                public Map<ByteBuffer, List<KeyPairing>> call() throws Exception {
+                    return accessor.getKeyPairingsByServiceCommitments(commitments);
+                }
+            }, keys(commitments));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getAllKeyPairings()}.
+     */
+    public ListenableFuture<List<KeyPairing>> getAllKeyPairings() {
+        return lookup("allKeyPairings", new Callable<List<KeyPairing>>() {
+            @Override
+            public List<KeyPairing> call() throws Exception {
+                return accessor.getAllKeyPairings();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getLensPairingById(int)}.
+     */
+    public ListenableFuture<LensPairing> getLensPairingById(final int pairingId) {
+        return lookup("lensPairingById", new Callable<LensPairing>() {
+            @Override
+            public LensPairing call() throws Exception {
+                return accessor.getLensPairingById(pairingId);
+            }
+        }, pairingId);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getLensPairingsByServiceCommitment(byte[])}.
+     */
+    public ListenableFuture<List<LensPairing>> getLensPairingsByServiceCommitment(
+        final byte[] commitment) {
+        return lookup("lensPairingsByServiceCommitment", new Callable<List<LensPairing>>() {
+            @Override
+            public List<LensPairing> call() throws Exception {
+                return accessor.getLensPairingsByServiceCommitment(commitment);
+            }
+        }, key(commitment));
+    }
+
+    /**
+     * Asynchronous
+     * {@link DataAccessor#getLensPairingsByServiceCommitmentAndCredentials(byte[], Map)}.
+     */
+    public ListenableFuture<List<LensPairing>> getLensPairingsByServiceCommitmentAndCredentials(
+        final byte[] commitment, final Map<String, String> credentials) {
+        return lookup("lensPairingsByServiceCommitmentAndCredentials",
+            new Callable<List<LensPairing>>() {
+                @Override
+                public List<LensPairing> call() throws Exception {
+                    return accessor.getLensPairingsByServiceCommitmentAndCredentials(
+                        commitment, credentials);
+                }
+            }, key(commitment), new HashMap<String, String>(credentials));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getAllLensPairings()}.
+     */
+    public ListenableFuture<List<LensPairing>> getAllLensPairings() {
+        return lookup("allLensPairings", new Callable<List<LensPairing>>() {
+            @Override
+            public List<LensPairing> call() throws Exception {
+                return accessor.getAllLensPairings();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getServiceById(int)}.
+     */
+    public ListenableFuture<Service> getServiceById(final int serviceId) {
+        return lookup("serviceById", new Callable<Service>() {
+            @Override
+            public Service call() throws Exception {
+                return accessor.getServiceById(serviceId);
+            }
+        }, serviceId);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getServiceByCommitment(byte[])}.
+     */
+    public ListenableFuture<Service> getServiceByCommitment(final byte[] commitment) {
+        return lookup("serviceByCommitment", new Callable<Service>() {
+            @Override
+            public Service call() throws Exception {
+                return accessor.getServiceByCommitment(commitment);
+            }
+        }, key(commitment));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getServicesByCommitments(Collection)}.
+     */
+    public ListenableFuture<Map<ByteBuffer, Service>> getServicesByCommitments(
+        final Collection<byte[]> commitments) {
+        return lookup("servicesByCommitments", new Callable<Map<ByteBuffer, Service>>() {
+            @Override
+            public Map<ByteBuffer, Service> call() throws Exception {
+                return accessor.getServicesByCommitments(commitments);
+            }
+        }, keys(commitments));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getSessionById(int)}.
+     */
+    public ListenableFuture<Session> getSessionById(final int sessionId) {
+        return lookup("sessionById", new Callable<Session>() {
+            @Override
+            public Session call() throws Exception {
+                return accessor.getSessionById(sessionId);
+            }
+        }, sessionId);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getTerminalById(int)}.
+     */
+    public ListenableFuture<Terminal> getTerminalById(final int id) {
+        return lookup("terminalById", new Callable<Terminal>() {
+            @Override
+            public Terminal call() throws Exception {
+                return accessor.getTerminalById(id);
+            }
+        }, id);
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getTerminalByCommitment(byte[])}.
+     */
+    public ListenableFuture<Terminal> getTerminalByCommitment(final byte[] commitment) {
+        return lookup("terminalByCommitment", new Callable<Terminal>() {
+            @Override
+            public Terminal call() throws Exception {
+                return accessor.getTerminalByCommitment(commitment);
+            }
+        }, key(commitment));
+    }
+
+    /**
+     * Asynchronous {@link DataAccessor#getAllTerminals()}.
+     */
+    public ListenableFuture<List<Terminal>> getAllTerminals() {
+        return lookup("allTerminals", new Callable<List<Terminal>>() {
+            @Override
+            public List<Terminal> call() throws Exception {
+                return accessor.getAllTerminals();
+            }
+        });
+    }
+
+    /* *************** Saves *************** */
+
+    /**
+     * Save an object, such as a {@link Service}, {@link Pairing}, {@link Session} or
+     * {@link Terminal}, to the data store it was created for. The object must not be changed
+     * until the returned future completes.
+     *
+     * @param saveable the object to save.
+     * @return future which completes once the object has been saved.
+     */
+    public ListenableFuture<Void> save(final Saveable saveable) {
+        checkNotNull(saveable, "saveable cannot be null");
+        final String operation = "save" + saveable.getClass().getSimpleName();
+        final OperationStats operationStats = stats(operation);
+        operationStats.calls.incrementAndGet();
+        return submit(operationStats, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                saveable.save();
+                return null;
+            }
+        });
+    }
+
+    /* *************** Closeable *************** */
+
+    /**
+     * Stop accepting operations and wait for those already queued to finish. Operations started
+     * after this has been called fail with a {@link RejectedExecutionException}.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Keep waiting for queued saves to be written
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* *************** MetricsSource *************** */
+
+    /**
+     * Get operation statistics. For each operation which has been used, named after its method
+     * without the <code>get</code> prefix (such as <code>serviceByCommitment</code>) or, for
+     * saves, <code>save</code> followed by the class saved (such as <code>saveSession</code>),
+     * the metrics <code>&lt;operation&gt;.calls</code>, <code>.coalesced</code>,
+     * <code>.failures</code>, <code>.rejected</code>, <code>.averageQueueMillis</code>,
+     * <code>.maxQueueMillis</code>, <code>.averageMillis</code> and <code>.maxMillis</code> are
+     * reported. Queue times are from the call until a thread starts the operation, and latencies
+     * from then until it completes. The pool as a whole is described by <code>queued</code>,
+     * <code>activeThreads</code> and <code>completed</code>.
+     *
+     * @return the current metric values.
+     */
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+            entry.getValue().addMetrics(metrics, entry.getKey());
+        }
+        metrics.put("queued", executor.getQueue().size());
+        metrics.put("activeThreads", executor.getActiveCount());
+        metrics.put("completed", executor.getCompletedTaskCount());
+        return metrics;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private static ByteBuffer key(final byte[] commitment) {
+        // ByteBuffer compares by content, unlike arrays
+        return ByteBuffer.wrap(commitment.clone());
+    }
+
+    private static List<ByteBuffer> keys(final Collection<byte[]> commitments) {
+        final List<ByteBuffer> keys = new ArrayList<ByteBuffer>(commitments.size());
+        for (byte[] commitment : commitments) {
+            keys.add(key(commitment));
+        }
+        return keys;
+    }
+
+    private OperationStats stats(final String operation) {
+        OperationStats operationStats = stats.get(operation);
+        if (operationStats == null) {
+            final OperationStats created = new OperationStats();
+            operationStats = stats.putIfAbsent(operation, created);
+            if (operationStats == null) {
+                operationStats = created;
+            }
+        }
+        return operationStats;
+    }
+
+    /**
+     * Run a lookup, or join an identical one which has not completed yet.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> ListenableFuture<T> lookup(final String operation, final Callable<T> callable,
+                                           final Object... args) {
+        final OperationStats operationStats = stats(operation);
+        operationStats.calls.incrementAndGet();
+
+        final List<Object> key = new ArrayList<Object>(args.length + 1);
+        key.add(operation);
+        key.addAll(Arrays.asList(args));
+        final SettableFuture<T> future = SettableFuture.create();
+        final ListenableFuture<?> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            operationStats.coalesced.incrementAndGet();
+            return (ListenableFuture<T>) existing;
+        }
+        run(operationStats, callable, future, key);
+        return future;
+    }
+
+    private <T> ListenableFuture<T> submit(final OperationStats operationStats,
+                                           final Callable<T> callable) {
+        final SettableFuture<T> future = SettableFuture.create();
+        run(operationStats, callable, future, null);
+        return future;
+    }
+
+    /**
+     * Queue an operation, completing the future with its result. If the operation is a lookup,
+     * it is no longer in flight by the time the future completes, so that a caller who sees the
+     * result and looks up again runs a new lookup.
+     */
+    private <T> void run(final OperationStats operationStats, final Callable<T> callable,
+                         final SettableFuture<T> future, final List<Object> key) {
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final long start = System.nanoTime();
+                    T result = null;
+                    Throwable failure = null;
+                    try {
+                        result = callable.call();
+                    } catch (Throwable t) {
+                        operationStats.failures.incrementAndGet();
+                        failure = t;
+                    }
+                    operationStats.completed(start - queuedAt, System.nanoTime() - start);
+                    if (key != null) {
+                        inFlight.remove(key, future);
+                    }
+                    if (failure == null) {
+                        future.set(result);
+                    } else {
+                        future.setException(failure);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            operationStats.rejected.incrementAndGet();
+            if (key != null) {
+                inFlight.remove(key, future);
+            }
+            future.setException(e);
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.data;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.util.MetricsSource;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * {@link DataAccessor} decorator which caches the lookups made on every authentication:
+ * services by id and commitment, key pairings by service commitment and terminals by id and
+ * commitment. All other calls go straight to the underlying accessor.
+ * <p>
+ * Each cache is bounded and evicts the least recently used entries first. Lookups which find
+ * nothing are cached too, so the cache must be told about every change to the underlying data.
+ * For a database this is done by registering the cache with
+ * {@link org.mypico.jpico.db.DbChangeNotifier}, after which entries are invalidated precisely as
+ * services, pairings and terminals are saved or deleted:
+ * <pre>
+ * CachingDataAccessor accessor = new CachingDataAccessor(new DbDataAccessor(dbConnection));
+ * DbChangeNotifier.addListener(dbConnection, accessor);
+ * </pre>
+ * <p>
+ * Cached objects are shared between callers. Changes made to one without saving it will be
+ * visible to other callers until the entry is evicted.
+ * <p>
+ * Hit ratios, sizes and load latencies are available through {@link #getMetrics()}. Instances of
+ * this class are thread safe.
+ */
+public class CachingDataAccessor implements DataAccessor, DataChangeListener, MetricsSource {
+
+    /**
+     * Default maximum number of entries held by each cache.
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+
+    private final DataAccessor accessor;
+    private final Cache<Integer, Optional<Service>> servicesById;
+    private final Cache<ByteBuffer, Optional<Service>> servicesByCommitment;
+    private final Cache<ByteBuffer, List<KeyPairing>> keyPairingsByServiceCommitment;
+    private final Cache<Integer, Optional<Terminal>> terminalsById;
+    private final Cache<ByteBuffer, Optional<Terminal>> terminalsByCommitment;
+
+    // Incremented on every invalidation, so that loads racing with a change can be discarded
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Constructor using the default cache size.
+     *
+     * @param accessor the accessor to cache lookups from.
+     */
+    public CachingDataAccessor(final DataAccessor accessor) {
+        this(accessor, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param accessor    the accessor to cache lookups from.
+     * @param maximumSize the maximum number of entries held by each cache.
+     */
+    public CachingDataAccessor(final DataAccessor accessor, final long maximumSize) {
+        this.accessor = checkNotNull(accessor, "accessor cannot be null");
+        this.servicesById = newCache(maximumSize);
+        this.servicesByCommitment = newCache(maximumSize);
+        this.keyPairingsByServiceCommitment = newCache(maximumSize);
+        this.terminalsById = newCache(maximumSize);
+        this.terminalsByCommitment = newCache(maximumSize);
+    }
+
+    /* *************** Cached lookups *************** */
+
+    @Override
+    public Service getServiceById(final int serviceId) throws IOException {
+        return load(servicesById, serviceId, new Callable<Optional<Service>>() {
+            @Override
+            public Optional<Service> call() throws IOException {
+                return Optional.fromNullable(accessor.getServiceById(serviceId));
+            }
+        }).orNull();
+    }
+
+    @Override
+    public Service getServiceByCommitment(final byte[] commitment) throws IOException {
+        return load(servicesByCommitment, key(commitment), new Callable<Optional<Service>>() {
+            @Override
+            public Optional<Service> call() throws IOException {
+                return Optional.fromNullable(accessor.getServiceByCommitment(commitment));
+            }
+        }).orNull();
+    }
+
+    @Override
+    public List<KeyPairing> getKeyPairingsByServiceCommitment(final byte[] commitment)
+        throws IOException {
+        return new ArrayList<KeyPairing>(load(
+            keyPairingsByServiceCommitment, key(commitment), new Callable<List<KeyPairing>>() {
+                @Override
+                public List<KeyPairing> call() throws IOException {
+                    return new ArrayList<KeyPairing>(
+                        accessor.getKeyPairingsByServiceCommitment(commitment));
+                }
+            }));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Services which are cached are returned from the cache, and the rest are looked up with a
+     * single call to the underlying accessor and then cached.
+     */
+    @Override
+    public Map<ByteBuffer, Service> getServicesByCommitments(final Collection<byte[]> commitments)
+        throws IOException {
+        final Map<ByteBuffer, Service> services = new HashMap<ByteBuffer, Service>();
+        final Map<ByteBuffer, byte[]> misses = new HashMap<ByteBuffer, byte[]>();
+        for (byte[] commitment : commitments) {
+            final ByteBuffer key = key(commitment);
+            final Optional<Service> cached = servicesByCommitment.getIfPresent(key);
+            if (cached == null) {
+                misses.put(key, commitment);
+            } else if (cached.isPresent()) {
+                services.put(key, cached.get());
+            }
+        }
+        if (!misses.isEmpty()) {
+            final long before = generation.get();
+            final Map<ByteBuffer, Service> loaded =
+                accessor.getServicesByCommitments(misses.values());
+            for (ByteBuffer key : misses.keySet()) {
+                final Service service = loaded.get(key);
+                if (service != null) {
+                    services.put(key, service);
+                }
+                servicesByCommitment.put(key, Optional.fromNullable(service));
+            }
+            if (generation.get() != before) {
+                // The data changed while loading, so the values may already be stale
+                servicesByCommitment.invalidateAll(misses.keySet());
+            }
+        }
+        return services;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Key pairings which are cached are returned from the cache, and the rest are looked up with a
+     * single call to the underlying accessor and then cached.
+     */
+    @Override
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        final Collection<byte[]> commitments) throws IOException {
+        final Map<ByteBuffer, List<KeyPairing>> keyPairings =
+            new HashMap<ByteBuffer, List<KeyPairing>>();
+        final Map<ByteBuffer, byte[]> misses = new HashMap<ByteBuffer, byte[]>();
+        for (byte[] commitment : commitments) {
+            final ByteBuffer key = key(commitment);
+            final List<KeyPairing> cached = keyPairingsByServiceCommitment.getIfPresent(key);
+            if (cached == null) {
+                misses.put(key, commitment);
+            } else {
+                keyPairings.put(key, new ArrayList<KeyPairing>(cached));
+            }
+        }
+        if (!misses.isEmpty()) {
+            final long before = generation.get();
+            final Map<ByteBuffer, List<KeyPairing>> loaded =
+                accessor.getKeyPairingsByServiceCommitments(misses.values());
+            for (ByteBuffer key : misses.keySet()) {
+                final List<KeyPairing> found = loaded.get(key);
+                final List<KeyPairing> cached = (found == null)
+                    ? new ArrayList<KeyPairing>() : new ArrayList<KeyPairing>(found);
+                keyPairings.put(key, new ArrayList<KeyPairing>(cached));
+                keyPairingsByServiceCommitment.put(key, cached);
+            }
+            if (generation.get() != before) {
+                // The data changed while loading, so the values may already be stale
+                keyPairingsByServiceCommitment.invalidateAll(misses.keySet());
+            }
+        }
+        return keyPairings;
+    }
+
+    @Override
+    public Terminal getTerminalById(final int id) throws IOException {
+        return load(terminalsById, id, new Callable<Optional<Terminal>>() {
+            @Override
+            public Optional<Terminal> call() throws IOException {
+                return Optional.fromNullable(accessor.getTerminalById(id));
+            }
+        }).orNull();
+    }
+
+    @Override
+    public Terminal getTerminalByCommitment(final byte[] commitment) throws IOException {
+        return load(terminalsByCommitment, key(commitment), new Callable<Optional<Terminal>>() {
+            @Override
+            public Optional<Terminal> call() throws IOException {
+                return Optional.fromNullable(accessor.getTerminalByCommitment(commitment));
+            }
+        }).orNull();
+    }
+
+    /* *************** Uncached lookups *************** */
+
+    @Override
+    public Pairing getPairingById(final int id) throws IOException {
+        return accessor.getPairingById(id);
+    }
+
+    @Override
+    public LensPairing getLensPairingById(final int pairingId) throws IOException {
+        return accessor.getLensPairingById(pairingId);
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitment(final byte[] commitment)
+        throws IOException {
+        return accessor.getLensPairingsByServiceCommitment(commitment);
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitmentAndCredentials(
+        final byte[] commitment, final Map<String, String> credentials) throws IOException {
+        return accessor.getLensPairingsByServiceCommitmentAndCredentials(commitment, credentials);
+    }
+
+    @Override
+    public List<LensPairing> getAllLensPairings() throws IOException {
+        return accessor.getAllLensPairings();
+    }
+
+    @Override
+    public KeyPairing getKeyPairingById(final int pairingId) throws IOException {
+        return accessor.getKeyPairingById(pairingId);
+    }
+
+    @Override
+    public List<KeyPairing> getAllKeyPairings() throws IOException {
+        return accessor.getAllKeyPairings();
+    }
+
+    @Override
+    public List<Terminal> getAllTerminals() throws IOException {
+        return accessor.getAllTerminals();
+    }
+
+    @Override
+    public Session getSessionById(final int sessionId) throws IOException {
+        return accessor.getSessionById(sessionId);
+    }
+
+    /* *************** DataChangeListener *************** */
+
+    @Override
+    public void serviceChanged(final int id, final byte[] commitment) {
+        generation.incrementAndGet();
+        servicesById.invalidate(id);
+        servicesByCommitment.invalidate(key(commitment));
+        // Key pairings carry a copy of their service
+        keyPairingsByServiceCommitment.invalidate(key(commitment));
+    }
+
+    @Override
+    public void pairingChanged(final int id, final byte[] serviceCommitment) {
+        generation.incrementAndGet();
+        keyPairingsByServiceCommitment.invalidate(key(serviceCommitment));
+    }
+
+    @Override
+    public void terminalChanged(final int id, final byte[] commitment) {
+        generation.incrementAndGet();
+        terminalsById.invalidate(id);
+        terminalsByCommitment.invalidate(key(commitment));
+    }
+
+    /**
+     * Discard every cached entry.
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        servicesById.invalidateAll();
+        servicesByCommitment.invalidateAll();
+        keyPairingsByServiceCommitment.invalidateAll();
+        terminalsById.invalidateAll();
+        terminalsByCommitment.invalidateAll();
+    }
+
+    /* *************** MetricsSource *************** */
+
+    /**
+     * Get cache statistics. For each of the caches <code>servicesById</code>,
+     * <code>servicesByCommitment</code>, <code>keyPairingsByServiceCommitment</code>,
+     * <code>terminalsById</code> and <code>terminalsByCommitment</code> the metrics
+     * <code>&lt;cache&gt;.size</code>, <code>.hits</code>, <code>.misses</code>,
+     * <code>.hitRatio</code>, <code>.evictions</code> and <code>.averageLoadMillis</code> are
+     * reported, along with <code>hitRatio</code> across all of them.
+     *
+     * @return the current metric values.
+     */
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        CacheStats total = new CacheStats(0, 0, 0, 0, 0, 0);
+        total = total.plus(addMetrics(metrics, "servicesById", servicesById));
+        total = total.plus(addMetrics(metrics, "servicesByCommitment", servicesByCommitment));
+        total = total.plus(addMetrics(
+            metrics, "keyPairingsByServiceCommitment", keyPairingsByServiceCommitment));
+        total = total.plus(addMetrics(metrics, "terminalsById", terminalsById));
+        total = total.plus(addMetrics(metrics, "terminalsByCommitment", terminalsByCommitment));
+        metrics.put("hitRatio", total.hitRate());
+        return metrics;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private static <K, V> Cache<K, V> newCache(final long maximumSize) {
+        return CacheBuilder.newBuilder()
+            .maximumSize(maximumSize)
+            .recordStats()
+            .build();
+    }
+
+    private static ByteBuffer key(final byte[] commitment) {
+        // ByteBuffer compares by content, unlike arrays
+        return ByteBuffer.wrap(commitment.clone());
+    }
+
+    private <K, V> V load(final Cache<K, V> cache, final K key, final Callable<V> loader)
+        throws IOException {
+        final long before = generation.get();
+        try {
+            final V value = cache.get(key, loader);
+            if (generation.get() != before) {
+                // The data changed while loading, so the value may already be stale
+                cache.invalidate(key);
+            }
+            return value;
+        } catch (ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+            throw new IOException(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static CacheStats addMetrics(
+        final Map<String, Number> metrics, final String name, final Cache<?, ?> cache) {
+        final CacheStats stats = cache.stats();
+        metrics.put(name + ".size", cache.size());
+        metrics.put(name + ".hits", stats.hitCount());
+        metrics.put(name + ".misses", stats.missCount());
+        metrics.put(name + ".hitRatio", stats.hitRate());
+        metrics.put(name + ".evictions", stats.evictionCount());
+        metrics.put(name + ".averageLoadMillis", stats.averageLoadPenalty() / 1e6);
+        return stats;
+    }
+}
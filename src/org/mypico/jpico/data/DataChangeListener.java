@@ -0,0 +1,61 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.data;
+
+/**
+ * Notified when stored data changes, so that copies held elsewhere, such as in a cache, can be
+ * discarded.
+ * <p>
+ * Each callback identifies the changed object both by its id and by the commitment it is looked
+ * up by. Callbacks are made after the change has been written, on the thread that made it, and
+ * should return quickly.
+ *
+ * @see CachingDataAccessor
+ */
+public interface DataChangeListener {
+
+    /**
+     * Called when a service is saved.
+     *
+     * @param id         the id of the service.
+     * @param commitment the commitment of the service.
+     */
+    void serviceChanged(int id, byte[] commitment);
+
+    /**
+     * Called when a pairing of any kind is saved or deleted.
+     *
+     * @param id                the id of the pairing. For a deleted pairing this is the id it had
+     *                          before deletion.
+     * @param serviceCommitment the commitment of the service the pairing belongs to.
+     */
+    void pairingChanged(int id, byte[] serviceCommitment);
+
+    /**
+     * Called when a terminal is saved or deleted.
+     *
+     * @param id         the id of the terminal. For a deleted terminal this is the id it had
+     *                   before deletion.
+     * @param commitment the commitment of the terminal.
+     */
+    void terminalChanged(int id, byte[] commitment);
+}
@@ -22,7 +22,10 @@
 package org.mypico.jpico.data.pairing;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Interface of an "accessor" which returns {@link KeyPairing} instances saved in a data store.
@@ -54,6 +57,19 @@ public interface KeyPairingAccessor {
     public List<KeyPairing> getKeyPairingsByServiceCommitment(
         byte[] commitment) throws IOException;
 
+    /**
+     * Query the store for key pairings with a service with any of a number of commitments. This
+     * is equivalent to calling {@link #getKeyPairingsByServiceCommitment(byte[])} for each
+     * commitment, but lets the store look many of them up at once.
+     *
+     * @param commitments service commitments to query for.
+     * @return map from each commitment queried for, wrapped in a <code>ByteBuffer</code>, to the
+     * <code>KeyPairing</code> instances with a service with that commitment, which may be empty.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the data store.
+     */
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        Collection<byte[]> commitments) throws IOException;
+
     /**
      * Get a list of all key pairings in the store.
      *
@@ -22,6 +22,9 @@
 package org.mypico.jpico.data.service;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * Interface of an "accessor" which returns {@link Service} instances saved in a data store.
@@ -52,4 +55,17 @@ public interface ServiceAccessor {
      */
     public Service getServiceByCommitment(byte[] commitment)
         throws IOException;
+
+    /**
+     * Query the store for the services with any of a number of commitments. This is equivalent
+     * to calling {@link #getServiceByCommitment(byte[])} for each commitment, but lets the store
+     * look many of them up at once.
+     *
+     * @param commitments commitments to query for.
+     * @return map from commitment, wrapped in a <code>ByteBuffer</code>, to the service with
+     * that commitment. Commitments for which no service could be found have no entry.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the data store.
+     */
+    public Map<ByteBuffer, Service> getServicesByCommitments(Collection<byte[]> commitments)
+        throws IOException;
 }
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+
+import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.SelectArg;
+
+/**
+ * A prepared query which is built once and then reused for every lookup.
+ * <p>
+ * ORMLite binds the values of a {@link PreparedQuery} through the {@link SelectArg} instances it
+ * was built with, so a single prepared query cannot safely be shared between threads. Instead
+ * each thread builds its own copy the first time it calls {@link #bind(Object...)} and keeps it,
+ * along with its arguments, for the lifetime of the accessor. Subclasses supply the query in
+ * {@link #build(SelectArg[])}.
+ *
+ * @param <T> the type of object returned by the query.
+ */
+abstract class CachedQuery<T> {
+
+    private static final class Bound<T> {
+        final PreparedQuery<T> query;
+        final SelectArg[] args;
+
+        Bound(final PreparedQuery<T> query, final SelectArg[] args) {
+            this.query = query;
+            this.args = args;
+        }
+    }
+
+    private final int argCount;
+    private final ThreadLocal<Bound<T>> bound = new ThreadLocal<Bound<T>>();
+
+    /**
+     * Constructor.
+     *
+     * @param argCount the number of arguments the query takes.
+     */
+    CachedQuery(final int argCount) {
+        this.argCount = argCount;
+    }
+
+    /**
+     * Build the query. Called at most once per thread.
+     *
+     * @param args the arguments to build the query with, in the order they will be bound.
+     * @return the prepared query.
+     * @throws SQLException thrown if the query cannot be prepared.
+     */
+    protected abstract PreparedQuery<T> build(SelectArg[] args) throws SQLException;
+
+    /**
+     * Bind values to this thread's copy of the query, building it first if necessary. The
+     * returned query must be executed on the calling thread before <code>bind</code> is called
+     * again.
+     *
+     * @param values the argument values, in the order passed to {@link #build(SelectArg[])}.
+     * @return the prepared query with its arguments set.
+     * @throws SQLException thrown if the query cannot be prepared.
+     */
+    PreparedQuery<T> bind(final Object... values) throws SQLException {
+        if (values.length != argCount) {
+            throw new IllegalArgumentException(
+                "expected " + argCount + " arguments but got " + values.length);
+        }
+        Bound<T> b = bound.get();
+        if (b == null) {
+            final SelectArg[] args = new SelectArg[argCount];
+            for (int i = 0; i < argCount; i++) {
+                args[i] = new SelectArg();
+            }
+            b = new Bound<T>(build(args), args);
+            bound.set(b);
+        }
+        for (int i = 0; i < argCount; i++) {
+            b.args[i].setValue(values[i]);
+        }
+        return b.query;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
+
+/**
+ * Writes large numbers of pairings to the database.
+ * <p>
+ * Saving pairings one at a time commits a transaction per row, and each save first checks
+ * whether the row and its service already exist. Here the rows are inserted directly, a batch at
+ * a time, with each batch committed in a single transaction. Services are de-duplicated by
+ * commitment in memory, so each distinct service is looked up or created only once per import.
+ * <p>
+ * Every insert needs the generated id of the row before it (a key pairing refers to its pairing,
+ * which refers to its service), so the inserts cannot be grouped into JDBC statement batches;
+ * the saving comes from sharing transactions and skipping the existence checks.
+ */
+final class DbBulkImporter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbBulkImporter.class.getSimpleName());
+
+    private final Dao<DbServiceImp, Integer> serviceDao;
+    private final Dao<DbPairingImp, Integer> pairingDao;
+    private final Dao<DbKeyPairingImp, Integer> keyPairingDao;
+    private final Dao<DbLensPairingImp, Integer> lensPairingDao;
+    private final DbServiceImpFactory serviceImpFactory;
+    private final DbServiceAccessor serviceAccessor;
+
+    DbBulkImporter(
+        final Dao<DbServiceImp, Integer> serviceDao,
+        final Dao<DbPairingImp, Integer> pairingDao,
+        final Dao<DbKeyPairingImp, Integer> keyPairingDao,
+        final Dao<DbLensPairingImp, Integer> lensPairingDao,
+        final DbServiceImpFactory serviceImpFactory) {
+        this.serviceDao = serviceDao;
+        this.pairingDao = pairingDao;
+        this.keyPairingDao = keyPairingDao;
+        this.lensPairingDao = lensPairingDao;
+        this.serviceImpFactory = serviceImpFactory;
+        this.serviceAccessor = new DbServiceAccessor(serviceDao);
+    }
+
+    /**
+     * Write the given pairings, and any of their services not already in the database.
+     *
+     * @param pairings  the pairings to write. {@link KeyPairing}s and {@link LensPairing}s are
+     *                  written with their keys or credentials.
+     * @param batchSize the number of pairings to write in each transaction.
+     * @return a summary of the import.
+     * @throws IOException thrown if a batch cannot be written. Batches committed before the
+     *                     failure are kept.
+     */
+    DbImportResult importPairings(final Iterable<? extends Pairing> pairings, final int batchSize)
+        throws IOException {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        final long start = System.nanoTime();
+        final Map<ByteBuffer, DbServiceImp> services = new HashMap<ByteBuffer, DbServiceImp>();
+        final int[] counts = new int[2]; // services created, services reused
+        int pairingCount = 0;
+        int transactionCount = 0;
+
+        final Iterator<? extends Pairing> it = pairings.iterator();
+        final List<Pairing> batch = new ArrayList<Pairing>(batchSize);
+        while (it.hasNext()) {
+            batch.clear();
+            while (it.hasNext() && batch.size() < batchSize) {
+                batch.add(it.next());
+            }
+            final List<DbServiceImp> newServices = new ArrayList<DbServiceImp>();
+            final List<DbPairingImp> written = writeBatch(batch, services, newServices, counts);
+            transactionCount++;
+            pairingCount += written.size();
+
+            // Only tell listeners about rows once they have been committed
+            for (DbServiceImp service : newServices) {
+                DbChangeNotifier.serviceChanged(serviceDao, service);
+            }
+            for (DbPairingImp pairing : written) {
+                DbChangeNotifier.pairingChanged(pairingDao, pairing.getId(), pairing);
+            }
+        }
+
+        final DbImportResult result = new DbImportResult(
+            pairingCount, counts[0], counts[1], transactionCount, System.nanoTime() - start);
+        LOGGER.info("Imported {}", result);
+        return result;
+    }
+
+    private List<DbPairingImp> writeBatch(
+        final List<Pairing> batch,
+        final Map<ByteBuffer, DbServiceImp> services,
+        final List<DbServiceImp> newServices,
+        final int[] counts) throws IOException {
+        final int[] countsBefore = counts.clone();
+        final List<ByteBuffer> cached = new ArrayList<ByteBuffer>();
+        try {
+            return TransactionManager.callInTransaction(pairingDao.getConnectionSource(),
+                new Callable<List<DbPairingImp>>() {
+                    @Override
+                    public List<DbPairingImp> call() throws Exception {
+                        final List<DbPairingImp> written =
+                            new ArrayList<DbPairingImp>(batch.size());
+                        for (Pairing pairing : batch) {
+                            final DbServiceImp service = serviceFor(
+                                pairing.getService(), services, cached, newServices, counts);
+                            written.add(insert(pairing, service));
+                        }
+                        return written;
+                    }
+                });
+        } catch (SQLException e) {
+            // Services created in the failed transaction were never committed, and services
+            // found by it will be looked up and counted again by the next attempt
+            for (ByteBuffer key : cached) {
+                services.remove(key);
+            }
+            newServices.clear();
+            counts[0] = countsBefore[0];
+            counts[1] = countsBefore[1];
+            throw new IOException(e);
+        }
+    }
+
+    private DbServiceImp serviceFor(
+        final Service service,
+        final Map<ByteBuffer, DbServiceImp> services,
+        final List<ByteBuffer> cached,
+        final List<DbServiceImp> newServices,
+        final int[] counts) throws IOException, SQLException {
+        final ByteBuffer key = ByteBuffer.wrap(service.getCommitment());
+        DbServiceImp dbService = services.get(key);
+        if (dbService == null) {
+            final Service existing = serviceAccessor.getServiceByCommitment(key.array());
+            if (existing != null) {
+                dbService = (DbServiceImp) existing.getImp();
+                counts[1]++;
+            } else {
+                // A copy, so that the caller's service isn't given the id of a row which might
+                // yet be rolled back
+                dbService = serviceImpFactory.getImp(service);
+                serviceDao.create(dbService);
+                newServices.add(dbService);
+                counts[0]++;
+            }
+            services.put(key, dbService);
+            cached.add(key);
+        }
+        return dbService;
+    }
+
+    // The pairing row under a key or lens pairing is inserted directly, through ORMLite's getter
+    @SuppressWarnings("deprecation")
+    private DbPairingImp insert(final Pairing pairing, final DbServiceImp service)
+        throws SQLException {
+        if (pairing instanceof KeyPairing) {
+            final KeyPairing keyPairing = (KeyPairing) pairing;
+            final DbKeyPairingImp imp = new DbKeyPairingImp(
+                keyPairing.getName(),
+                service,
+                keyPairing.getPublicKey(),
+                keyPairing.getPrivateKey(),
+                keyPairing.getExtraData(),
+                pairingDao,
+                keyPairingDao);
+            pairingDao.create(imp.getDbPairing());
+            keyPairingDao.create(imp);
+            return imp.getDbPairing();
+        } else if (pairing instanceof LensPairing) {
+            final LensPairing lensPairing = (LensPairing) pairing;
+            final DbLensPairingImp imp = new DbLensPairingImp(
+                lensPairing.getName(),
+                service,
+                lensPairing.getCredentials(),
+                lensPairing.getPrivateFields(),
+                pairingDao,
+                lensPairingDao);
+            pairingDao.create(imp.getDbPairing());
+            lensPairingDao.create(imp);
+            return imp.getDbPairing();
+        } else {
+            final DbPairingImp imp = new DbPairingImp(pairing.getName(), service, pairingDao);
+            pairingDao.create(imp);
+            return imp;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.mypico.jpico.data.DataChangeListener;
+import org.mypico.jpico.data.service.Service;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Tells registered {@link DataChangeListener}s about changes written to a database.
+ * <p>
+ * Listeners are registered against a {@link ConnectionSource}, in the same way that ORMLite's
+ * {@link com.j256.ormlite.dao.DaoManager} caches DAOs per connection source. Every Db*Imp saved or
+ * deleted through a DAO on that connection source is then reported, whichever factory or accessor
+ * created it.
+ */
+public final class DbChangeNotifier {
+
+    private static final Map<ConnectionSource, List<DataChangeListener>> LISTENERS =
+        new WeakHashMap<ConnectionSource, List<DataChangeListener>>();
+
+    private DbChangeNotifier() {
+        // No instances
+    }
+
+    /**
+     * Register a listener for changes made through a connection source.
+     *
+     * @param dbConnection the connection source.
+     * @param listener     the listener to register.
+     */
+    public static synchronized void addListener(
+        final ConnectionSource dbConnection, final DataChangeListener listener) {
+        if (dbConnection == null || listener == null) {
+            throw new NullPointerException();
+        }
+        List<DataChangeListener> listeners = LISTENERS.get(dbConnection);
+        if (listeners == null) {
+            listeners = new CopyOnWriteArrayList<DataChangeListener>();
+            LISTENERS.put(dbConnection, listeners);
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param dbConnection the connection source the listener was registered against.
+     * @param listener     the listener to remove.
+     */
+    public static synchronized void removeListener(
+        final ConnectionSource dbConnection, final DataChangeListener listener) {
+        final List<DataChangeListener> listeners = LISTENERS.get(dbConnection);
+        if (listeners != null) {
+            listeners.remove(listener);
+            if (listeners.isEmpty()) {
+                LISTENERS.remove(dbConnection);
+            }
+        }
+    }
+
+    private static synchronized List<DataChangeListener> listenersFor(final Dao<?, ?> dao) {
+        return LISTENERS.get(dao.getConnectionSource());
+    }
+
+    static void serviceChanged(final Dao<?, ?> dao, final DbServiceImp service) {
+        final List<DataChangeListener> listeners = listenersFor(dao);
+        if (listeners != null) {
+            for (DataChangeListener listener : listeners) {
+                listener.serviceChanged(service.getId(), service.getCommitment());
+            }
+        }
+    }
+
+    static void pairingChanged(final Dao<?, ?> dao, final int id, final DbPairingImp pairing) {
+        final List<DataChangeListener> listeners = listenersFor(dao);
+        if (listeners != null) {
+            final Service service = pairing.getService();
+            for (DataChangeListener listener : listeners) {
+                // Saving a pairing can also create its service
+                listener.serviceChanged(service.getId(), service.getCommitment());
+                listener.pairingChanged(id, service.getCommitment());
+            }
+        }
+    }
+
+    static void terminalChanged(final Dao<?, ?> dao, final int id, final byte[] commitment) {
+        final List<DataChangeListener> listeners = listenersFor(dao);
+        if (listeners != null) {
+            for (DataChangeListener listener : listeners) {
+                listener.terminalChanged(id, commitment);
+            }
+        }
+    }
+}
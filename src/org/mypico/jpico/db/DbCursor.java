@@ -0,0 +1,51 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator over rows of the database which holds database resources until it is closed or
+ * exhausted. Rows are read and decoded one at a time as the iterator advances, so enumerating a
+ * large table does not require every row to be held in memory.
+ * <p>
+ * The iterator methods throw {@link IllegalStateException} if the database cannot be read, as
+ * ORMLite's own iterators do. Callers should always close a cursor in a <code>finally</code>
+ * block, since it may not have been exhausted.
+ *
+ * @param <T> the type of object returned by the cursor.
+ */
+public interface DbCursor<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Number of rows read by each query when no page size is given.
+     */
+    int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Release any database resources held by the cursor. Further calls to
+     * {@link #hasNext()} return <code>false</code>.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTableConfig;
+
+/**
+ * The data access objects for every table, created once for a connection source.
+ * <p>
+ * ORMLite DAOs are thread safe, so one instance of this class can be shared by a
+ * {@link DbDataFactory} and a {@link DbDataAccessor}, and by any number of threads, rather than
+ * each of them creating its own DAOs. This matters most with a {@link PooledConnectionSource},
+ * where many threads use the same DAOs at once.
+ * <p>
+ * The DAOs themselves are kept in ORMLite's {@link DaoManager} cache for the connection source,
+ * so every instance for the same connection source, along with anything else using the
+ * <code>DaoManager</code>, shares them. The first time they are needed they are created from
+ * the pre-built {@link DbTableConfigs} rather than from the annotations of the Db*Imp classes,
+ * which makes opening a database noticeably quicker.
+ */
+public final class DbDaos {
+
+    private final ConnectionSource connectionSource;
+    private final Dao<DbServiceImp, Integer> serviceDao;
+    private final Dao<DbPairingImp, Integer> pairingDao;
+    private final Dao<DbKeyPairingImp, Integer> keyPairingDao;
+    private final Dao<DbLensPairingImp, Integer> lensPairingDao;
+    private final Dao<DbSessionImp, Integer> sessionDao;
+    private final Dao<DbTerminalImp, Integer> terminalDao;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionSource the database connection source to use.
+     * @throws SQLException thrown if there's an error creating the DAOs.
+     */
+    public DbDaos(final ConnectionSource connectionSource) throws SQLException {
+        this(checkNotNull(connectionSource, "connectionSource cannot be null"), null);
+    }
+
+    /**
+     * Constructor for DAOs whose calls are measured.
+     *
+     * @param instrumentation measures the calls, and gives the connection source to use.
+     * @throws SQLException thrown if there's an error creating the DAOs.
+     */
+    public DbDaos(final DbInstrumentation instrumentation) throws SQLException {
+        this(checkNotNull(instrumentation, "instrumentation cannot be null").getConnectionSource(),
+            instrumentation);
+    }
+
+    private DbDaos(final ConnectionSource connectionSource,
+                   final DbInstrumentation instrumentation) throws SQLException {
+        this.connectionSource = connectionSource;
+        registerDaos(connectionSource);
+        serviceDao = createDao(connectionSource, DbServiceImp.class, instrumentation);
+        pairingDao = createDao(connectionSource, DbPairingImp.class, instrumentation);
+        keyPairingDao = createDao(connectionSource, DbKeyPairingImp.class, instrumentation);
+        lensPairingDao = createDao(connectionSource, DbLensPairingImp.class, instrumentation);
+        sessionDao = createDao(connectionSource, DbSessionImp.class, instrumentation);
+        terminalDao = createDao(connectionSource, DbTerminalImp.class, instrumentation);
+    }
+
+    /**
+     * @return the connection source the DAOs use.
+     */
+    public ConnectionSource getConnectionSource() {
+        return connectionSource;
+    }
+
+    Dao<DbServiceImp, Integer> getServiceDao() {
+        return serviceDao;
+    }
+
+    Dao<DbPairingImp, Integer> getPairingDao() {
+        return pairingDao;
+    }
+
+    Dao<DbKeyPairingImp, Integer> getKeyPairingDao() {
+        return keyPairingDao;
+    }
+
+    Dao<DbLensPairingImp, Integer> getLensPairingDao() {
+        return lensPairingDao;
+    }
+
+    Dao<DbSessionImp, Integer> getSessionDao() {
+        return sessionDao;
+    }
+
+    Dao<DbTerminalImp, Integer> getTerminalDao() {
+        return terminalDao;
+    }
+
+    /**
+     * Make sure the {@link DaoManager} has a DAO for every table for a connection source,
+     * creating any it doesn't have from the pre-built {@link DbTableConfigs}. Once this has been
+     * called, ORMLite's own utilities such as <code>TableUtils</code> use the same DAOs rather
+     * than reading the annotations.
+     *
+     * @param connectionSource the database connection source.
+     * @throws SQLException thrown if there's an error creating the DAOs.
+     */
+    static void registerDaos(final ConnectionSource connectionSource) throws SQLException {
+        // The DaoManager locks on its class, so nothing else can create one of the DAOs between
+        // checking for it and creating it
+        synchronized (DaoManager.class) {
+            Map<Class<?>, DatabaseTableConfig<?>> configs = null;
+            for (Class<?> table : DbTableConfigs.TABLES) {
+                if (DaoManager.lookupDao(connectionSource, table) == null) {
+                    if (configs == null) {
+                        configs = DbTableConfigs.load(connectionSource.getDatabaseType());
+                    }
+                    DaoManager.createDao(connectionSource, configs.get(table));
+                }
+            }
+        }
+    }
+
+    private static <T> Dao<T, Integer> createDao(final ConnectionSource connectionSource,
+                                                 final Class<T> clazz,
+                                                 final DbInstrumentation instrumentation)
+        throws SQLException {
+        final Dao<T, Integer> dao = DaoManager.createDao(connectionSource, clazz);
+        return (instrumentation == null) ? dao : instrumentation.wrap(dao);
+    }
+
+    /**
+     * Write a row, inserting it if it has never been saved and updating it otherwise.
+     * <p>
+     * Unlike {@link Dao#createOrUpdate(Object)} this does not first query whether the row
+     * exists, so saving takes one statement rather than two and only ever uses read-write
+     * connections. With a {@link ReplicatedConnectionSource} the existence check would otherwise
+     * be read from a replica, which may not have the row yet. A row which has been saved but
+     * is no longer in the database is inserted again, as <code>createOrUpdate</code> would.
+     *
+     * @param dao   the data access object for the row's table.
+     * @param row   the row to write.
+     * @param saved whether the row has an id from being saved before.
+     * @throws SQLException thrown if the row cannot be written.
+     */
+    static <T> void createOrUpdate(final Dao<T, Integer> dao, final T row, final boolean saved)
+        throws SQLException {
+        if (!saved || dao.update(row) == 0) {
+            dao.create(row);
+        }
+    }
+}
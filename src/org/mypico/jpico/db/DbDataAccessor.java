@@ -22,7 +22,9 @@
 package org.mypico.jpico.db;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -35,7 +37,6 @@ import org.mypico.jpico.data.session.Session;
 import org.mypico.jpico.data.terminal.Terminal;
 
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.support.ConnectionSource;
 
 /**
@@ -58,19 +59,48 @@ public class DbDataAccessor implements DataAccessor {
      */
     public DbDataAccessor(final ConnectionSource dbConnection)
         throws SQLException {
+        this(dbConnection, null);
+    }
 
-        final Dao<DbServiceImp, Integer> serviceDao =
-            DaoManager.createDao(dbConnection, DbServiceImp.class);
-        final Dao<DbPairingImp, Integer> pairingDao =
-            DaoManager.createDao(dbConnection, DbPairingImp.class);
-        final Dao<DbKeyPairingImp, Integer> keyPairingDao =
-            DaoManager.createDao(dbConnection, DbKeyPairingImp.class);
-        final Dao<DbLensPairingImp, Integer> lensPairingDao =
-            DaoManager.createDao(dbConnection, DbLensPairingImp.class);
-        final Dao<DbTerminalImp, Integer> terminalDao =
-            DaoManager.createDao(dbConnection, DbTerminalImp.class);
-        final Dao<DbSessionImp, Integer> sessionDao =
-            DaoManager.createDao(dbConnection, DbSessionImp.class);
+    /**
+     * Constructor.
+     *
+     * @param dbConnection The database connection to use.
+     * @param writeBehind  Buffer holding queued session updates, or null if updates are written
+     *                     immediately.
+     * @throws SQLException thrown if there's an error accessing the database.
+     */
+    public DbDataAccessor(final ConnectionSource dbConnection,
+                          final DbSessionWriteBehind writeBehind)
+        throws SQLException {
+        this(new DbDaos(dbConnection), writeBehind);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param daos The data access objects to use, which may be shared with a
+     *             {@link DbDataFactory}.
+     */
+    public DbDataAccessor(final DbDaos daos) {
+        this(daos, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param daos        The data access objects to use, which may be shared with a
+     *                    {@link DbDataFactory}.
+     * @param writeBehind Buffer holding queued session updates, or null if updates are written
+     *                    immediately.
+     */
+    public DbDataAccessor(final DbDaos daos, final DbSessionWriteBehind writeBehind) {
+        final Dao<DbServiceImp, Integer> serviceDao = daos.getServiceDao();
+        final Dao<DbPairingImp, Integer> pairingDao = daos.getPairingDao();
+        final Dao<DbKeyPairingImp, Integer> keyPairingDao = daos.getKeyPairingDao();
+        final Dao<DbLensPairingImp, Integer> lensPairingDao = daos.getLensPairingDao();
+        final Dao<DbTerminalImp, Integer> terminalDao = daos.getTerminalDao();
+        final Dao<DbSessionImp, Integer> sessionDao = daos.getSessionDao();
 
         dbServiceAccessor = new DbServiceAccessor(serviceDao);
         dbPairingAccessor = new DbPairingAccessor(pairingDao);
@@ -79,7 +109,7 @@ public class DbDataAccessor implements DataAccessor {
         dbLensPairingAccessor = new DbLensPairingAccessor(
             lensPairingDao, pairingDao, serviceDao);
         dbTerminalAccessor = new DbTerminalAccessor(terminalDao);
-        dbSessionAccessor = new DbSessionAccessor(sessionDao);
+        dbSessionAccessor = new DbSessionAccessor(sessionDao, writeBehind);
     }
 
     @Override
@@ -124,6 +154,12 @@ public class DbDataAccessor implements DataAccessor {
             commitment);
     }
 
+    @Override
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        Collection<byte[]> commitments) throws IOException {
+        return dbKeyPairingAccessor.getKeyPairingsByServiceCommitments(commitments);
+    }
+
     @Override
     public List<KeyPairing> getAllKeyPairings() throws IOException {
         return dbKeyPairingAccessor.getAllKeyPairings();
@@ -139,6 +175,12 @@ public class DbDataAccessor implements DataAccessor {
         return dbServiceAccessor.getServiceByCommitment(uri);
     }
 
+    @Override
+    public Map<ByteBuffer, Service> getServicesByCommitments(Collection<byte[]> commitments)
+        throws IOException {
+        return dbServiceAccessor.getServicesByCommitments(commitments);
+    }
+
     @Override
     public Terminal getTerminalById(int id) throws IOException {
         return dbTerminalAccessor.getTerminalById(id);
@@ -159,4 +201,52 @@ public class DbDataAccessor implements DataAccessor {
     public Session getSessionById(int sessionId) throws IOException {
         return dbSessionAccessor.getSessionById(sessionId);
     }
+
+    /**
+     * Get all sessions with the given status.
+     *
+     * @param status the status to match.
+     * @return the matching sessions.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     * @see DbSessionAccessor#getSessionsByStatus(Session.Status)
+     */
+    public List<Session> getSessionsByStatus(Session.Status status) throws IOException {
+        return dbSessionAccessor.getSessionsByStatus(status);
+    }
+
+    /**
+     * Enumerate all key pairings without loading them all into memory.
+     *
+     * @param pageSize the maximum number of key pairings to read with each query.
+     * @return cursor over all key pairings, which must be closed when no longer needed.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     * @see DbKeyPairingAccessor#iterateKeyPairings(int)
+     */
+    public DbCursor<KeyPairing> iterateKeyPairings(int pageSize) throws IOException {
+        return dbKeyPairingAccessor.iterateKeyPairings(pageSize);
+    }
+
+    /**
+     * Enumerate all lens pairings without loading them all into memory.
+     *
+     * @param pageSize the maximum number of lens pairings to read with each query.
+     * @return cursor over all lens pairings, which must be closed when no longer needed.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     * @see DbLensPairingAccessor#iterateLensPairings(int)
+     */
+    public DbCursor<LensPairing> iterateLensPairings(int pageSize) throws IOException {
+        return dbLensPairingAccessor.iterateLensPairings(pageSize);
+    }
+
+    /**
+     * Enumerate all terminals without loading them all into memory.
+     *
+     * @param pageSize the maximum number of terminals to read with each query.
+     * @return cursor over all terminals, which must be closed when no longer needed.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     * @see DbTerminalAccessor#iterateTerminals(int)
+     */
+    public DbCursor<Terminal> iterateTerminals(int pageSize) throws IOException {
+        return dbTerminalAccessor.iterateTerminals(pageSize);
+    }
 }
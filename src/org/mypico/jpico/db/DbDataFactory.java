@@ -21,6 +21,7 @@
 
 package org.mypico.jpico.db;
 
+import java.io.IOException;
 import java.net.URI;
 import java.security.KeyPair;
 import java.security.PrivateKey;
@@ -45,7 +46,6 @@ import org.mypico.jpico.data.session.Session.Status;
 import org.mypico.jpico.data.terminal.Terminal;
 
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.dao.DaoManager;
 import com.j256.ormlite.support.ConnectionSource;
 
 /**
@@ -60,6 +60,13 @@ public class DbDataFactory implements DataFactory {
     private final DbLensPairingImpFactory dbCredentialPairingImpFactory;
     private final DbSessionImpFactory dbSessionImpFactory;
     private final DbTerminalImpFactory dbTerminalImpFactory;
+    private final DbBulkImporter bulkImporter;
+
+    /**
+     * Default number of pairings written in each transaction by
+     * {@link #importPairings(Iterable)}.
+     */
+    public static final int DEFAULT_IMPORT_BATCH_SIZE = 1000;
 
     /**
      * Constructor.
@@ -69,19 +76,48 @@ public class DbDataFactory implements DataFactory {
      */
     public DbDataFactory(final ConnectionSource dbConnection)
         throws SQLException {
+        this(dbConnection, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dbConnection The database connection to use.
+     * @param writeBehind  Buffer for queueing updates to sessions created by this factory, or
+     *                     null to write each update immediately.
+     * @throws SQLException thrown if there's an error accessing the database.
+     */
+    public DbDataFactory(final ConnectionSource dbConnection,
+                         final DbSessionWriteBehind writeBehind)
+        throws SQLException {
+        this(new DbDaos(dbConnection), writeBehind);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param daos The data access objects to use, which may be shared with a
+     *             {@link DbDataAccessor}.
+     */
+    public DbDataFactory(final DbDaos daos) {
+        this(daos, null);
+    }
 
-        final Dao<DbServiceImp, Integer> serviceDao =
-            DaoManager.createDao(dbConnection, DbServiceImp.class);
-        final Dao<DbPairingImp, Integer> pairingDao =
-            DaoManager.createDao(dbConnection, DbPairingImp.class);
-        final Dao<DbKeyPairingImp, Integer> keyPairingDao =
-            DaoManager.createDao(dbConnection, DbKeyPairingImp.class);
-        final Dao<DbLensPairingImp, Integer> credentialPairingDao =
-            DaoManager.createDao(dbConnection, DbLensPairingImp.class);
-        final Dao<DbSessionImp, Integer> sessionDao =
-            DaoManager.createDao(dbConnection, DbSessionImp.class);
-        final Dao<DbTerminalImp, Integer> terminalDao =
-            DaoManager.createDao(dbConnection, DbTerminalImp.class);
+    /**
+     * Constructor.
+     *
+     * @param daos        The data access objects to use, which may be shared with a
+     *                    {@link DbDataAccessor}.
+     * @param writeBehind Buffer for queueing updates to sessions created by this factory, or
+     *                    null to write each update immediately.
+     */
+    public DbDataFactory(final DbDaos daos, final DbSessionWriteBehind writeBehind) {
+        final Dao<DbServiceImp, Integer> serviceDao = daos.getServiceDao();
+        final Dao<DbPairingImp, Integer> pairingDao = daos.getPairingDao();
+        final Dao<DbKeyPairingImp, Integer> keyPairingDao = daos.getKeyPairingDao();
+        final Dao<DbLensPairingImp, Integer> credentialPairingDao = daos.getLensPairingDao();
+        final Dao<DbSessionImp, Integer> sessionDao = daos.getSessionDao();
+        final Dao<DbTerminalImp, Integer> terminalDao = daos.getTerminalDao();
 
         dbServiceImpFactory = new DbServiceImpFactory(serviceDao);
         dbPairingImpFactory = new DbPairingImpFactory(
@@ -91,8 +127,45 @@ public class DbDataFactory implements DataFactory {
         dbCredentialPairingImpFactory = new DbLensPairingImpFactory(
             credentialPairingDao, pairingDao, dbServiceImpFactory);
         dbSessionImpFactory = new DbSessionImpFactory(
-            sessionDao, dbPairingImpFactory);
+            sessionDao, dbPairingImpFactory, writeBehind);
         dbTerminalImpFactory = new DbTerminalImpFactory(terminalDao);
+        bulkImporter = new DbBulkImporter(
+            serviceDao, pairingDao, keyPairingDao, credentialPairingDao, dbServiceImpFactory);
+    }
+
+    /**
+     * Write many pairings to the database at once, for example when migrating or provisioning
+     * users. This is much faster than saving each pairing in turn.
+     * <p>
+     * Each pairing is inserted as a new row, whether or not it has been saved before. Services are
+     * matched by commitment: a service already in the database is reused, and each new service
+     * is created once however many of the pairings refer to it. Pairings are written
+     * {@link #DEFAULT_IMPORT_BATCH_SIZE} at a time, each batch in a single transaction.
+     *
+     * @param pairings the pairings to write. {@link KeyPairing}s and {@link LensPairing}s are
+     *                 written with their keys or credentials.
+     * @return a summary of the import, including its throughput.
+     * @throws IOException thrown if a batch cannot be written. Batches committed before the
+     *                     failure are kept.
+     */
+    public DbImportResult importPairings(final Iterable<? extends Pairing> pairings)
+        throws IOException {
+        return importPairings(pairings, DEFAULT_IMPORT_BATCH_SIZE);
+    }
+
+    /**
+     * Write many pairings to the database at once.
+     *
+     * @param pairings  the pairings to write.
+     * @param batchSize the number of pairings to write in each transaction.
+     * @return a summary of the import, including its throughput.
+     * @throws IOException thrown if a batch cannot be written. Batches committed before the
+     *                     failure are kept.
+     * @see #importPairings(Iterable)
+     */
+    public DbImportResult importPairings(
+        final Iterable<? extends Pairing> pairings, final int batchSize) throws IOException {
+        return bulkImporter.importPairings(pairings, batchSize);
     }
 
     @Override
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.util.MetricsSource;
+
+/**
+ * Summary of a bulk import made by {@link DbDataFactory#importPairings(Iterable)}.
+ */
+public final class DbImportResult implements MetricsSource {
+
+    private final int pairingCount;
+    private final int servicesCreated;
+    private final int servicesReused;
+    private final int transactionCount;
+    private final long elapsedNanos;
+
+    DbImportResult(
+        final int pairingCount,
+        final int servicesCreated,
+        final int servicesReused,
+        final int transactionCount,
+        final long elapsedNanos) {
+        this.pairingCount = pairingCount;
+        this.servicesCreated = servicesCreated;
+        this.servicesReused = servicesReused;
+        this.transactionCount = transactionCount;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the number of pairings written.
+     */
+    public int getPairingCount() {
+        return pairingCount;
+    }
+
+    /**
+     * @return the number of services which were not already in the database and so were created.
+     */
+    public int getServicesCreated() {
+        return servicesCreated;
+    }
+
+    /**
+     * @return the number of distinct services which were already in the database.
+     */
+    public int getServicesReused() {
+        return servicesReused;
+    }
+
+    /**
+     * @return the number of transactions the import was committed in.
+     */
+    public int getTransactionCount() {
+        return transactionCount;
+    }
+
+    /**
+     * @param unit the unit to return the time in.
+     * @return the time taken by the import.
+     */
+    public long getElapsed(final TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of pairings written per second.
+     */
+    public double getPairingsPerSecond() {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return pairingCount * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("pairings", pairingCount);
+        metrics.put("servicesCreated", servicesCreated);
+        metrics.put("servicesReused", servicesReused);
+        metrics.put("transactions", transactionCount);
+        metrics.put("elapsedMillis", getElapsed(TimeUnit.MILLISECONDS));
+        metrics.put("pairingsPerSecond", getPairingsPerSecond());
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%d pairings (%d services created, %d reused) in %d ms over %d transactions,"
+                + " %.0f pairings/s",
+            pairingCount, servicesCreated, servicesReused, getElapsed(TimeUnit.MILLISECONDS),
+            transactionCount, getPairingsPerSecond());
+    }
+}
@@ -0,0 +1,409 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.mypico.jpico.util.LatencyHistogram;
+import org.mypico.jpico.util.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+
+/**
+ * Measures the DAO calls made by the database data package, and the statements they run.
+ * <p>
+ * Create an instance for an {@link InstrumentedConnectionSource} and pass it to
+ * {@link DbDaos#DbDaos(DbInstrumentation)}. The DAOs are then wrapped so that every call which
+ * can run SQL, whether made by an accessor or by a <code>save()</code> or <code>delete()</code>
+ * of a row, is timed and the rows it returned or changed counted. Statements run through the
+ * connection source are counted against the call running them, which shows when one call needs
+ * more statements than expected, such as to refresh foreign fields.
+ * <p>
+ * Statements which take longer than {@link #setSlowStatementMillis(long) a threshold} are
+ * logged as warnings. Literal strings and numbers are replaced by <code>?</code> in the logged
+ * SQL, in case a statement was built with values in its text rather than bound as parameters.
+ * Instances of this class are thread safe.
+ */
+public final class DbInstrumentation implements StatementListener, MetricsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbInstrumentation.class.getSimpleName());
+
+    /**
+     * Default time above which a statement is logged, in milliseconds.
+     */
+    public static final long DEFAULT_SLOW_STATEMENT_MILLIS = 100;
+
+    // Quoted strings, including escaped quotes, and numbers which are not part of a name
+    private static final Pattern LITERALS =
+        Pattern.compile("'(?:[^']|'')*'|(?<![\\w\"])-?\\d+(?:\\.\\d+)?");
+
+    /**
+     * Statistics for the calls of one DAO method.
+     */
+    private static final class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong statements = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+
+        void addMetrics(final Map<String, Number> metrics, final String name) {
+            metrics.put(name + ".calls", latency.getCount());
+            metrics.put(name + ".rows", rows.get());
+            metrics.put(name + ".statements", statements.get());
+            metrics.put(name + ".failures", failures.get());
+            metrics.put(name + ".averageMillis", latency.getMean() / 1e6);
+            metrics.put(name + ".maxMillis", latency.getMax() / 1e6);
+            metrics.put(name + ".p50Millis", latency.getPercentile(50) / 1e6);
+            metrics.put(name + ".p90Millis", latency.getPercentile(90) / 1e6);
+            metrics.put(name + ".p99Millis", latency.getPercentile(99) / 1e6);
+        }
+    }
+
+    /**
+     * A call in progress on the current thread.
+     */
+    static final class Call {
+        private final DbInstrumentation instrumentation;
+        private final String operation;
+        private final Class<?> dataClass;
+        private final OperationStats stats;
+        private final Call outer;
+        private final long start = System.nanoTime();
+
+        private Call(final DbInstrumentation instrumentation, final String operation,
+                     final Class<?> dataClass, final Call outer) {
+            this.instrumentation = instrumentation;
+            this.operation = operation;
+            this.dataClass = dataClass;
+            this.stats = (instrumentation == null) ? null : instrumentation.stats(operation);
+            this.outer = outer;
+        }
+
+        /**
+         * Record that the call has finished.
+         *
+         * @param result the value returned, or <code>null</code> if the call failed.
+         * @param failed whether the call threw an exception.
+         */
+        void end(final Object result, final boolean failed) {
+            if (instrumentation == null) {
+                return;
+            }
+            stats.latency.record(System.nanoTime() - start);
+            if (failed) {
+                stats.failures.incrementAndGet();
+            } else {
+                stats.rows.addAndGet(rowsIn(result, dataClass));
+            }
+            if (outer == null) {
+                instrumentation.current.remove();
+            } else {
+                instrumentation.current.set(outer);
+            }
+        }
+    }
+
+    // Returned for DAOs which are not instrumented
+    private static final Call NOT_INSTRUMENTED = new Call(null, null, null, null);
+
+    /**
+     * Wraps one DAO, timing its calls.
+     */
+    private final class Handler implements InvocationHandler {
+        final Dao<?, ?> dao;
+        final String name;
+
+        Handler(final Dao<?, ?> dao) {
+            this.dao = dao;
+            this.name = nameOf(dao.getDataClass());
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                }
+            } else if (runsSql(method)) {
+                final Call call = begin(this, method.getName());
+                Object result = null;
+                boolean failed = true;
+                try {
+                    result = delegate(method, args);
+                    failed = false;
+                    return result;
+                } finally {
+                    call.end(result, failed);
+                }
+            }
+            return delegate(method, args);
+        }
+
+        DbInstrumentation instrumentation() {
+            return DbInstrumentation.this;
+        }
+
+        private Object delegate(final Method method, final Object[] args) throws Throwable {
+            try {
+                return method.invoke(dao, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private final InstrumentedConnectionSource connectionSource;
+    private final ConcurrentMap<String, OperationStats> stats =
+        new ConcurrentHashMap<String, OperationStats>();
+    private final ThreadLocal<Call> current = new ThreadLocal<Call>();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong slowStatements = new AtomicLong();
+    private final AtomicLong unattributedStatements = new AtomicLong();
+    private volatile long slowStatementNanos =
+        TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_STATEMENT_MILLIS);
+
+    /**
+     * Constructor. The new instance registers itself as a listener of the connection source.
+     *
+     * @param connectionSource the connection source the DAOs will use.
+     */
+    public DbInstrumentation(final InstrumentedConnectionSource connectionSource) {
+        this.connectionSource = checkNotNull(
+            connectionSource, "connectionSource cannot be null");
+        connectionSource.addListener(this);
+    }
+
+    /**
+     * @return the connection source being measured.
+     */
+    public InstrumentedConnectionSource getConnectionSource() {
+        return connectionSource;
+    }
+
+    /**
+     * Set the time above which statements are logged. The default is
+     * {@link #DEFAULT_SLOW_STATEMENT_MILLIS}.
+     *
+     * @param millis the threshold in milliseconds.
+     */
+    public void setSlowStatementMillis(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        slowStatementNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return the time above which statements are logged, in milliseconds.
+     */
+    public long getSlowStatementMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(slowStatementNanos);
+    }
+
+    /**
+     * Replace string and number literals in a statement with <code>?</code>.
+     *
+     * @param statement the SQL text of a statement.
+     * @return the statement with its literals removed.
+     */
+    public static String redact(final String statement) {
+        return LITERALS.matcher(statement).replaceAll("?");
+    }
+
+    /**
+     * Wrap a DAO so that its calls are measured.
+     *
+     * @param dao the DAO to wrap.
+     * @return a DAO which delegates to <code>dao</code>.
+     */
+    @SuppressWarnings("unchecked")
+    <T> Dao<T, Integer> wrap(final Dao<T, Integer> dao) {
+        return (Dao<T, Integer>) Proxy.newProxyInstance(
+            Dao.class.getClassLoader(), new Class<?>[]{Dao.class}, new Handler(dao));
+    }
+
+    /**
+     * Get the DAO a wrapper made by {@link #wrap(Dao)} delegates to.
+     *
+     * @param dao a DAO, which may or may not be wrapped.
+     * @return the DAO being wrapped, or <code>dao</code> itself if it isn't a wrapper.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> Dao<T, Integer> unwrap(final Dao<T, Integer> dao) {
+        final Handler handler = handlerOf(dao);
+        return (handler == null) ? dao : (Dao<T, Integer>) handler.dao;
+    }
+
+    /**
+     * Start measuring a call which reads or writes through a DAO without using its methods,
+     * such as a {@link GraphQuery}. {@link Call#end(Object, boolean)} must be called on the
+     * result when the call finishes, on the same thread.
+     *
+     * @param dao    the DAO for the table being used.
+     * @param method the name to record the call under, after the name of the table.
+     * @return the call, which does nothing if <code>dao</code> is not instrumented.
+     */
+    static Call begin(final Dao<?, ?> dao, final String method) {
+        final Handler handler = handlerOf(dao);
+        return (handler == null)
+            ? NOT_INSTRUMENTED : handler.instrumentation().begin(handler, method);
+    }
+
+    /* *************** StatementListener *************** */
+
+    @Override
+    public void statementExecuted(final String statement, final long elapsedNanos) {
+        statements.incrementAndGet();
+        final Call call = current.get();
+        if (call == null) {
+            unattributedStatements.incrementAndGet();
+        } else {
+            call.stats.statements.incrementAndGet();
+        }
+        if (elapsedNanos > slowStatementNanos) {
+            slowStatements.incrementAndGet();
+            LOGGER.warn("Slow statement took {} ms in {}: {}",
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                (call == null) ? "unknown call" : call.operation, redact(statement));
+        }
+    }
+
+    /* *************** MetricsSource *************** */
+
+    /**
+     * Get call statistics. For each DAO method which has been called, named after the table
+     * and the method (such as <code>service.queryForFirst</code> or
+     * <code>keyPairing.graphQuery</code>), the metrics <code>&lt;operation&gt;.calls</code>,
+     * <code>.rows</code>, <code>.statements</code>, <code>.failures</code>,
+     * <code>.averageMillis</code>, <code>.maxMillis</code>, <code>.p50Millis</code>,
+     * <code>.p90Millis</code> and <code>.p99Millis</code> are reported. Rows are those returned
+     * by queries or changed by updates. Across all calls, <code>statements</code>,
+     * <code>slowStatements</code> and <code>unattributedStatements</code>, those run outside any
+     * measured call, are reported.
+     *
+     * @return the current metric values.
+     */
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        for (Map.Entry<String, OperationStats> entry : stats.entrySet()) {
+            entry.getValue().addMetrics(metrics, entry.getKey());
+        }
+        metrics.put("statements", statements.get());
+        metrics.put("slowStatements", slowStatements.get());
+        metrics.put("unattributedStatements", unattributedStatements.get());
+        return metrics;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private Call begin(final Handler handler, final String method) {
+        final Call call = new Call(this, handler.name + "." + method, handler.dao.getDataClass(),
+            current.get());
+        current.set(call);
+        return call;
+    }
+
+    private OperationStats stats(final String operation) {
+        OperationStats operationStats = stats.get(operation);
+        if (operationStats == null) {
+            final OperationStats created = new OperationStats();
+            operationStats = stats.putIfAbsent(operation, created);
+            if (operationStats == null) {
+                operationStats = created;
+            }
+        }
+        return operationStats;
+    }
+
+    private static Handler handlerOf(final Dao<?, ?> dao) {
+        if (dao != null && Proxy.isProxyClass(dao.getClass())) {
+            final InvocationHandler handler = Proxy.getInvocationHandler(dao);
+            if (handler instanceof Handler) {
+                return (Handler) handler;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a DAO method may run SQL. Those which do declare that they throw
+     * {@link SQLException}, or {@link Exception} for those running a callback.
+     */
+    private static boolean runsSql(final Method method) {
+        for (Class<?> exception : method.getExceptionTypes()) {
+            if (exception == SQLException.class || exception == Exception.class) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Name a table after the class of its rows, such as <code>keyPairing</code> for
+     * {@link DbKeyPairingImp}.
+     */
+    private static String nameOf(final Class<?> dataClass) {
+        String name = dataClass.getSimpleName();
+        if (name.startsWith("Db")) {
+            name = name.substring(2);
+        }
+        if (name.endsWith("Imp")) {
+            name = name.substring(0, name.length() - 3);
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Count the rows a call returned or changed: the size of a list, the count returned by an
+     * update or a single row.
+     */
+    private static long rowsIn(final Object result, final Class<?> dataClass) {
+        if (result instanceof List) {
+            return ((List<?>) result).size();
+        } else if (result instanceof Integer) {
+            return (Integer) result;
+        } else {
+            return dataClass.isInstance(result) ? 1 : 0;
+        }
+    }
+}
@@ -22,23 +22,33 @@
 package org.mypico.jpico.db;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.mypico.jpico.data.pairing.KeyPairing;
 import org.mypico.jpico.data.pairing.KeyPairingAccessor;
 
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.stmt.PreparedQuery;
-import com.j256.ormlite.stmt.QueryBuilder;
-import com.j256.ormlite.stmt.SelectArg;
 
+/**
+ * Implementation of the {@link KeyPairingAccessor} interface for accessing {@link KeyPairing}s
+ * stored in the database. Key pairings are read together with their pairing and service in a
+ * single joined query.
+ */
 public class DbKeyPairingAccessor implements KeyPairingAccessor {
 
     private final Dao<DbKeyPairingImp, Integer> keyPairingDao;
     private final Dao<DbPairingImp, Integer> pairingDao;
     private final Dao<DbServiceImp, Integer> serviceDao;
+    private final GraphQuery<DbKeyPairingImp> byIdQuery;
+    private final GraphQuery<DbKeyPairingImp> byServiceCommitmentQuery;
+    private final GraphQuery<DbKeyPairingImp> byServiceCommitmentsQuery;
+    private final GraphQuery<DbKeyPairingImp> allQuery;
 
     public DbKeyPairingAccessor(
         final Dao<DbKeyPairingImp, Integer> keyPairingDao,
@@ -47,18 +57,40 @@ public class DbKeyPairingAccessor implements KeyPairingAccessor {
         this.keyPairingDao = keyPairingDao;
         this.pairingDao = pairingDao;
         this.serviceDao = serviceDao;
+        byIdQuery = new KeyPairingQuery(GraphQuery.column(
+            keyPairingDao, GraphQuery.ROW, DbKeyPairingImp.PAIRING_COLUMN) + " = ?");
+        // All pairings whose service has a matching commitment prefix
+        byServiceCommitmentQuery = new KeyPairingQuery(GraphQuery.column(
+            keyPairingDao, GraphQuery.SERVICE, DbServiceImp.COMMITMENT_PREFIX_COLUMN) + " = ?");
+        // All pairings whose service has any of a chunk of commitment prefixes
+        final StringBuilder in = new StringBuilder(GraphQuery.column(
+            keyPairingDao, GraphQuery.SERVICE, DbServiceImp.COMMITMENT_PREFIX_COLUMN))
+            .append(" IN (?");
+        for (int i = 1; i < DbServiceImp.COMMITMENT_CHUNK_SIZE; i++) {
+            in.append(", ?");
+        }
+        byServiceCommitmentsQuery = new KeyPairingQuery(in.append(')').toString());
+        allQuery = new KeyPairingQuery(null);
+    }
+
+    private final class KeyPairingQuery extends GraphQuery<DbKeyPairingImp> {
+        KeyPairingQuery(final String condition) {
+            super(keyPairingDao, pairingDao, serviceDao, DbKeyPairingImp.PAIRING_COLUMN,
+                condition);
+        }
+
+        // setDbPairing is only deprecated to keep code outside ORMLite from relinking rows
+        @SuppressWarnings("deprecation")
+        @Override
+        protected void setPairing(final DbKeyPairingImp row, final DbPairingImp pairing) {
+            row.setDbPairing(pairing);
+        }
     }
 
     @Override
     public KeyPairing getKeyPairingById(int pairingId) throws IOException {
         try {
-            SelectArg pairingIdArg = new SelectArg();
-            PreparedQuery<DbKeyPairingImp> query = keyPairingDao.queryBuilder()
-                .where()
-                .eq(DbKeyPairingImp.PAIRING_COLUMN, pairingIdArg)
-                .prepare();
-            pairingIdArg.setValue(pairingId);
-            final DbKeyPairingImp keyPairingImp = keyPairingDao.queryForFirst(query);
+            final DbKeyPairingImp keyPairingImp = byIdQuery.queryForFirst(pairingId);
 
             if (keyPairingImp != null) {
                 keyPairingImp.setDao(keyPairingDao);
@@ -71,34 +103,61 @@ public class DbKeyPairingAccessor implements KeyPairingAccessor {
         }
     }
 
+    // The full commitment is read from the service row already loaded, not a copied Service
+    @SuppressWarnings("deprecation")
     @Override
     public List<KeyPairing> getKeyPairingsByServiceCommitment(
         byte[] commitment) throws IOException {
         try {
-            // Build a query for all services with matching public key
-            // commitment
-            SelectArg commitArg = new SelectArg();
-            QueryBuilder<DbServiceImp, Integer> serviceQb =
-                serviceDao.queryBuilder();
-            serviceQb.where().eq(DbServiceImp.COMMITMENT_COLUMN, commitArg);
-
-            // Join this on a query for pairings
-            QueryBuilder<DbPairingImp, Integer> pairingQb =
-                pairingDao.queryBuilder().join(serviceQb);
-
-            // Join this on a query for key pairings
-            PreparedQuery<DbKeyPairingImp> query =
-                keyPairingDao.queryBuilder().join(pairingQb).prepare();
-
             // Execute the query
-            commitArg.setValue(DbServiceImp.stringifyCommitment(commitment));
-            List<DbKeyPairingImp> imps = keyPairingDao.query(query);
+            List<DbKeyPairingImp> imps =
+                byServiceCommitmentQuery.query(DbServiceImp.commitmentPrefix(commitment));
 
-            // Transform results
+            // Transform results, skipping services which only share the prefix
             List<KeyPairing> keyPairings = new ArrayList<KeyPairing>(imps.size());
             for (DbKeyPairingImp imp : imps) {
-                imp.setDao(keyPairingDao);
-                keyPairings.add(new KeyPairing(imp));
+                if (imp.getDbPairing().getDbService().hasCommitment(commitment)) {
+                    imp.setDao(keyPairingDao);
+                    keyPairings.add(new KeyPairing(imp));
+                }
+            }
+            return keyPairings;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Key pairings are looked up by service commitment prefix,
+     * {@link DbServiceImp#COMMITMENT_CHUNK_SIZE} at a time, so a lookup of <i>n</i> commitments
+     * takes <i>n</i> / 100 queries.
+     */
+    // As above, commitments are read from the loaded service rows
+    @SuppressWarnings("deprecation")
+    @Override
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        Collection<byte[]> commitments) throws IOException {
+        final Map<ByteBuffer, List<KeyPairing>> keyPairings =
+            new HashMap<ByteBuffer, List<KeyPairing>>();
+        for (byte[] commitment : commitments) {
+            final ByteBuffer key = ByteBuffer.wrap(commitment.clone());
+            if (!keyPairings.containsKey(key)) {
+                keyPairings.put(key, new ArrayList<KeyPairing>());
+            }
+        }
+        try {
+            for (Object[] prefixes : DbServiceImp.commitmentPrefixChunks(commitments)) {
+                for (DbKeyPairingImp imp : byServiceCommitmentsQuery.query(prefixes)) {
+                    // Skip services which only share the prefix
+                    final List<KeyPairing> matching = keyPairings.get(ByteBuffer.wrap(
+                        imp.getDbPairing().getDbService().getCommitment()));
+                    if (matching != null) {
+                        imp.setDao(keyPairingDao);
+                        matching.add(new KeyPairing(imp));
+                    }
+                }
             }
             return keyPairings;
         } catch (SQLException e) {
@@ -110,7 +169,7 @@ public class DbKeyPairingAccessor implements KeyPairingAccessor {
     public List<KeyPairing> getAllKeyPairings() throws IOException {
         List<DbKeyPairingImp> imps;
         try {
-            imps = keyPairingDao.queryForAll();
+            imps = allQuery.query();
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -123,4 +182,34 @@ public class DbKeyPairingAccessor implements KeyPairingAccessor {
         }
         return keyPairings;
     }
+
+    /**
+     * Enumerate all key pairings in the database, reading them from the database a page at a
+     * time rather than all at once. The cursor must be closed when no longer needed.
+     *
+     * @param pageSize the maximum number of key pairings to read with each query.
+     * @return cursor over all key pairings, in the order they were created.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     */
+    public DbCursor<KeyPairing> iterateKeyPairings(int pageSize) throws IOException {
+        try {
+            return new PagedCursor<DbKeyPairingImp, KeyPairing>(
+                keyPairingDao, DbKeyPairingImp.ID_COLUMN, pageSize) {
+                // Paging is by the key pairing row's own id, which only ORMLite's getter has
+                @SuppressWarnings("deprecation")
+                @Override
+                protected int getRowId(DbKeyPairingImp row) {
+                    return row.getKpId();
+                }
+
+                @Override
+                protected KeyPairing wrap(DbKeyPairingImp row) {
+                    row.setDao(keyPairingDao);
+                    return new KeyPairing(row);
+                }
+            };
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
 }
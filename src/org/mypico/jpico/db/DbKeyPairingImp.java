@@ -37,19 +37,20 @@ import org.mypico.jpico.data.service.Service;
 
 import com.google.common.base.Preconditions;
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 
 /**
  * A concrete {@link KeyPairing} class which persists pairings to a database using ORMLite object
- * relational mapping annotations. Public and private key fields are persisted using custom
- * persister classes.
+ * relational mapping annotations. Public and private keys are persisted in their encoded form and
+ * only decoded, once, when first requested, so that loading a pairing to read its name or service
+ * does not pay for key decoding.
  *
  * @author Graeme Jenkinson &lt;gcj21@cam.ac.uk&gt;
  * @author Max Spencer &lt;ms955@cl.cam.ac.uk&gt;
  * @see KeyPairing
- * @see PrivateKeyPersister
- * @see PublicKeyPersister
+ * @see KeyDecoder
  */
 // Extends DbPairingImp only to get the same type as it.
 @DatabaseTable(tableName = DbKeyPairingImp.KEY_PAIRINGS_TABLE)
@@ -89,16 +90,20 @@ public class DbKeyPairingImp implements KeyPairingImp {
 
     @DatabaseField(
         columnName = PRIVATE_KEY_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
         canBeNull = false,
-        useGetSet = true,
-        persisterClass = PrivateKeyPersister.class)
-    private PrivateKey privateKey;
+        useGetSet = true)
+    private byte[] privateKeyBytes;
 
     @DatabaseField(
         columnName = PUBLIC_KEY_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
         canBeNull = false,
-        useGetSet = true,
-        persisterClass = PublicKeyPersister.class)
+        useGetSet = true)
+    private byte[] publicKeyBytes;
+
+    // Decoded from the byte arrays above on first use
+    private PrivateKey privateKey;
     private PublicKey publicKey;
 
     @DatabaseField(
@@ -126,7 +131,9 @@ public class DbKeyPairingImp implements KeyPairingImp {
         final Dao<DbKeyPairingImp, Integer> keyPairingDao) {
         this.kpId = UNSAVED_KP_ID;
         this.dbPairing = new DbPairingImp(name, service, pairingDao);
+        this.publicKeyBytes = publicKey.getEncoded();
         this.publicKey = publicKey;
+        this.privateKeyBytes = privateKey.getEncoded();
         this.privateKey = privateKey;
         this.extraData = extraData;
         this.dao = keyPairingDao;
@@ -141,10 +148,11 @@ public class DbKeyPairingImp implements KeyPairingImp {
         Preconditions.checkNotNull(
             dao, "DbKeyPairingImp cannot be saved with null DAO");
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, kpId != UNSAVED_KP_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
+        DbChangeNotifier.pairingChanged(dao, getId(), dbPairing);
     }
 
     @Override
@@ -200,29 +208,75 @@ public class DbKeyPairingImp implements KeyPairingImp {
 
     /**
      * @param publicKey new public key value for this DbPairing.
-     * @deprecated required by ORMLite, but should not be used.
+     * @deprecated should not be used.
      */
     @Deprecated
     public void setPublicKey(final PublicKey publicKey) {
+        this.publicKeyBytes = publicKey.getEncoded();
         this.publicKey = publicKey;
     }
 
+    /**
+     * @param publicKeyBytes new X509 encoded public key value for this DbPairing.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public void setPublicKeyBytes(final byte[] publicKeyBytes) {
+        this.publicKeyBytes = publicKeyBytes;
+        this.publicKey = null;
+    }
+
+    /**
+     * @return the X509 encoded public key.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public byte[] getPublicKeyBytes() {
+        return publicKeyBytes;
+    }
+
     @Override
     public PublicKey getPublicKey() {
+        if (publicKey == null) {
+            publicKey = KeyDecoder.storedPublicKey(publicKeyBytes);
+        }
         return publicKey;
     }
 
     /**
      * @param privateKey new private key value for this DbPairing.
-     * @deprecated required by ORMLite, but should not be used.
+     * @deprecated should not be used.
      */
     @Deprecated
     public void setPrivateKey(final PrivateKey privateKey) {
+        this.privateKeyBytes = privateKey.getEncoded();
         this.privateKey = privateKey;
     }
 
+    /**
+     * @param privateKeyBytes new PKCS8 encoded private key value for this DbPairing.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public void setPrivateKeyBytes(final byte[] privateKeyBytes) {
+        this.privateKeyBytes = privateKeyBytes;
+        this.privateKey = null;
+    }
+
+    /**
+     * @return the PKCS8 encoded private key.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public byte[] getPrivateKeyBytes() {
+        return privateKeyBytes;
+    }
+
     @Override
     public PrivateKey getPrivateKey() {
+        if (privateKey == null) {
+            privateKey = KeyDecoder.storedPrivateKey(privateKeyBytes);
+        }
         return privateKey;
     }
 
@@ -241,8 +295,10 @@ public class DbKeyPairingImp implements KeyPairingImp {
         checkNotNull(dao, "cannot be saved with null dao");
         if (isSaved()) {
             try {
+                final int oldId = getId();
                 dao.delete(this);
                 kpId = UNSAVED_KP_ID;
+                DbChangeNotifier.pairingChanged(dao, oldId, dbPairing);
             } catch (SQLException e) {
                 throw new IOException(e);
             }
@@ -26,6 +26,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -33,19 +34,21 @@ import org.mypico.jpico.data.pairing.LensPairing;
 import org.mypico.jpico.data.pairing.LensPairingAccessor;
 
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.stmt.PreparedQuery;
-import com.j256.ormlite.stmt.QueryBuilder;
-import com.j256.ormlite.stmt.SelectArg;
 
 /**
  * Implementation of the {@link LensPairingAccessor} interface for accessing {@link LensPairing}s
- * stored in the database.
+ * stored in the database. Lens pairings are read together with their pairing and service in a
+ * single joined query.
  */
 public class DbLensPairingAccessor implements LensPairingAccessor {
 
     private final Dao<DbLensPairingImp, Integer> lensPairingDao;
     private final Dao<DbPairingImp, Integer> pairingDao;
     private final Dao<DbServiceImp, Integer> serviceDao;
+    private final GraphQuery<DbLensPairingImp> byIdQuery;
+    private final GraphQuery<DbLensPairingImp> byServiceCommitmentQuery;
+    private final GraphQuery<DbLensPairingImp> byServiceCommitmentAndCredentialsQuery;
+    private final GraphQuery<DbLensPairingImp> allQuery;
 
     /**
      * Constructor.
@@ -61,24 +64,39 @@ public class DbLensPairingAccessor implements LensPairingAccessor {
         this.lensPairingDao = checkNotNull(lensPairingDao);
         this.pairingDao = checkNotNull(pairingDao);
         this.serviceDao = checkNotNull(serviceDao);
+        byIdQuery = new LensPairingQuery(GraphQuery.column(
+            lensPairingDao, GraphQuery.ROW, DbLensPairingImp.PAIRING_COLUMN) + " = ?");
+        // All pairings whose service has a matching commitment prefix
+        final String byCommitment = GraphQuery.column(
+            lensPairingDao, GraphQuery.SERVICE, DbServiceImp.COMMITMENT_PREFIX_COLUMN) + " = ?";
+        byServiceCommitmentQuery = new LensPairingQuery(byCommitment);
+        // As above, but also matching the credentials fingerprint
+        byServiceCommitmentAndCredentialsQuery = new LensPairingQuery(
+            byCommitment + " AND " + GraphQuery.column(lensPairingDao, GraphQuery.ROW,
+                DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN) + " = ?");
+        allQuery = new LensPairingQuery(null);
+    }
+
+    private final class LensPairingQuery extends GraphQuery<DbLensPairingImp> {
+        LensPairingQuery(final String condition) {
+            super(lensPairingDao, pairingDao, serviceDao, DbLensPairingImp.PAIRING_COLUMN,
+                condition);
+        }
+
+        // setDbPairing is only deprecated to keep code outside ORMLite from relinking rows
+        @SuppressWarnings("deprecation")
+        @Override
+        protected void setPairing(final DbLensPairingImp row, final DbPairingImp pairing) {
+            row.setDbPairing(pairing);
+        }
     }
 
     @Override
     public LensPairing getLensPairingById(final int pairingId)
         throws IOException {
         try {
-            // Build query
-            final SelectArg pairingIdArg = new SelectArg();
-            final PreparedQuery<DbLensPairingImp> query =
-                lensPairingDao.queryBuilder()
-                    .where()
-                    .eq(DbKeyPairingImp.PAIRING_COLUMN, pairingIdArg)
-                    .prepare();
-
             // Execute query
-            pairingIdArg.setValue(pairingId);
-            final DbLensPairingImp imp =
-                lensPairingDao.queryForFirst(query);
+            final DbLensPairingImp imp = byIdQuery.queryForFirst(pairingId);
 
             // Prepare result
             if (imp != null) {
@@ -96,31 +114,11 @@ public class DbLensPairingAccessor implements LensPairingAccessor {
     public List<LensPairing> getLensPairingsByServiceCommitment(
         final byte[] commitment) throws IOException {
         try {
-            // Build a query for all services with matching uri
-            final SelectArg arg = new SelectArg();
-            final QueryBuilder<DbServiceImp, Integer> serviceQb = serviceDao.queryBuilder();
-            serviceQb.where().eq(DbServiceImp.COMMITMENT_COLUMN, arg);
-
-            // Join this on a query for pairings
-            final QueryBuilder<DbPairingImp, Integer> pairingQb =
-                pairingDao.queryBuilder().join(serviceQb);
-
-            // Join this on a query for lens pairings
-            final PreparedQuery<DbLensPairingImp> query =
-                lensPairingDao.queryBuilder().join(pairingQb).prepare();
-
             // Execute the query
-            arg.setValue(DbServiceImp.stringifyCommitment(commitment));
-            final List<DbLensPairingImp> imps = lensPairingDao.query(query);
+            final List<DbLensPairingImp> imps =
+                byServiceCommitmentQuery.query(DbServiceImp.commitmentPrefix(commitment));
 
-            // Transform results
-            final List<LensPairing> credentialPairings =
-                new ArrayList<LensPairing>(imps.size());
-            for (DbLensPairingImp imp : imps) {
-                imp.setDao(lensPairingDao);
-                credentialPairings.add(new LensPairing(imp));
-            }
-            return credentialPairings;
+            return toLensPairings(imps, commitment);
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -130,49 +128,47 @@ public class DbLensPairingAccessor implements LensPairingAccessor {
     public List<LensPairing> getLensPairingsByServiceCommitmentAndCredentials(
         final byte[] commitment, final Map<String, String> credentials) throws IOException {
         try {
-            // Build a query for all services with matching uri
-            final SelectArg argCommit = new SelectArg();
-            final QueryBuilder<DbServiceImp, Integer> serviceQb = serviceDao.queryBuilder();
-            serviceQb.where().eq(DbServiceImp.COMMITMENT_COLUMN, argCommit);
-
-            // Join this on a query for pairings
-
-            final QueryBuilder<DbPairingImp, Integer> pairingQb =
-                pairingDao.queryBuilder().join(serviceQb);
-
-            // Join this on a query for lens pairings
-            //final PreparedQuery<DbLensPairingImp> query =
-            //        lensPairingDao.queryBuilder().join(pairingQb).prepare();
-
-            final SelectArg argCred = new SelectArg();
-            final QueryBuilder<DbLensPairingImp, Integer> lensQb = lensPairingDao.queryBuilder();
-            lensQb.where().eq(DbLensPairingImp.CREDENTIALS_STRING_COLUMN, argCred);
-            final PreparedQuery<DbLensPairingImp> query =
-                lensQb.join(pairingQb).prepare();
-
             // Execute the query
-            argCommit.setValue(DbServiceImp.stringifyCommitment(commitment));
-            argCred.setValue(DbLensPairingImp.jsonifyCredentials(credentials));
-            final List<DbLensPairingImp> imps = lensPairingDao.query(query);
-
-            // Transform results
-            final List<LensPairing> credentialPairings =
-                new ArrayList<LensPairing>(imps.size());
-            for (DbLensPairingImp imp : imps) {
-                imp.setDao(lensPairingDao);
-                credentialPairings.add(new LensPairing(imp));
+            final List<DbLensPairingImp> imps = byServiceCommitmentAndCredentialsQuery.query(
+                DbServiceImp.commitmentPrefix(commitment),
+                DbLensPairingImp.credentialsFingerprint(credentials));
+
+            // Skip any which only share the fingerprint
+            final Iterator<DbLensPairingImp> i = imps.iterator();
+            while (i.hasNext()) {
+                if (!i.next().getCredentials().equals(credentials)) {
+                    i.remove();
+                }
             }
-            return credentialPairings;
+            return toLensPairings(imps, commitment);
         } catch (SQLException e) {
             throw new IOException(e);
         }
     }
 
+    /**
+     * Wrap the results of a query by service commitment prefix, skipping any whose service only
+     * shares the prefix.
+     */
+    // The full commitment is read from the service row already loaded, not a copied Service
+    @SuppressWarnings("deprecation")
+    private List<LensPairing> toLensPairings(
+        final List<DbLensPairingImp> imps, final byte[] commitment) {
+        final List<LensPairing> credentialPairings = new ArrayList<LensPairing>(imps.size());
+        for (DbLensPairingImp imp : imps) {
+            if (imp.getDbPairing().getDbService().hasCommitment(commitment)) {
+                imp.setDao(lensPairingDao);
+                credentialPairings.add(new LensPairing(imp));
+            }
+        }
+        return credentialPairings;
+    }
+
     @Override
     public List<LensPairing> getAllLensPairings() throws IOException {
         final List<DbLensPairingImp> imps;
         try {
-            imps = lensPairingDao.queryForAll();
+            imps = allQuery.query();
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -185,4 +181,34 @@ public class DbLensPairingAccessor implements LensPairingAccessor {
         }
         return lensPairings;
     }
-}
\ No newline at end of file
+
+    /**
+     * Enumerate all lens pairings in the database, reading them from the database a page at a
+     * time rather than all at once. The cursor must be closed when no longer needed.
+     *
+     * @param pageSize the maximum number of lens pairings to read with each query.
+     * @return cursor over all lens pairings, in the order they were created.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     */
+    public DbCursor<LensPairing> iterateLensPairings(final int pageSize) throws IOException {
+        try {
+            return new PagedCursor<DbLensPairingImp, LensPairing>(
+                lensPairingDao, DbLensPairingImp.ID_COLUMN, pageSize) {
+                // Paging is by the lens pairing row's own id, which only ORMLite's getter has
+                @SuppressWarnings("deprecation")
+                @Override
+                protected int getRowId(final DbLensPairingImp row) {
+                    return row.getCpId();
+                }
+
+                @Override
+                protected LensPairing wrap(final DbLensPairingImp row) {
+                    row.setDao(lensPairingDao);
+                    return new LensPairing(row);
+                }
+            };
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+}
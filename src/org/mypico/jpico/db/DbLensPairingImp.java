@@ -33,9 +33,15 @@ import com.j256.ormlite.table.DatabaseTable;
 
 import java.io.IOException;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Map;
+import java.util.TreeMap;
 
 import org.mypico.jpico.data.pairing.LensPairing;
 import org.mypico.jpico.data.pairing.LensPairingImp;
@@ -47,6 +53,12 @@ import java.util.List;
 /**
  * A concrete {@link LensPairing} class which persists pairings to a database using ORMLite object
  * relational mapping annotations.
+ * <p>
+ * The credentials and private fields are stored as JSON and only parsed, once, when first
+ * requested. The parsed values are shared between calls and so are returned unmodifiable.
+ * <p>
+ * The credentials are also stored as an indexed fingerprint, so that pairings can be looked up
+ * by their credentials without comparing the JSON of every pairing of a service.
  *
  * @author Graeme Jenkinson &lt;gcj21@cam.ac.uk&gt;
  * @author Max Spencer &lt;ms955@cl.cam.ac.uk&gt;
@@ -72,6 +84,9 @@ public class DbLensPairingImp implements LensPairingImp {
     static final String PAIRING_COLUMN = "pairing_id";
     static final String CREDENTIALS_STRING_COLUMN = "credentials_string";
     static final String PRIVATE_FIELDS_STRING_COLUMN = "private_fields_string";
+    static final String CREDENTIALS_FINGERPRINT_COLUMN = "credentials_fingerprint";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     /**
      * Initial value of a DbCredentialPairingImp's id, before it is saved to the database.
@@ -109,6 +124,17 @@ public class DbLensPairingImp implements LensPairingImp {
         useGetSet = true)
     private String privateFieldsString;
 
+    @DatabaseField(
+        columnName = CREDENTIALS_FINGERPRINT_COLUMN,
+        index = true,
+        canBeNull = false,
+        useGetSet = true)
+    private long credentialsFingerprint;
+
+    // Parsed from the JSON strings above on first use
+    private Map<String, String> credentials;
+    private List<String> privateFields;
+
     private Dao<DbLensPairingImp, Integer> dao;
 
     static String jsonifyCredentials(final Map<String, String> credentials) {
@@ -123,6 +149,48 @@ public class DbLensPairingImp implements LensPairingImp {
             credentialsString, CREDENTIALS_MAP_TYPE);
     }
 
+    /**
+     * Get the fingerprint of a set of credentials. This is the first eight bytes of the SHA-256
+     * hash of a canonical encoding of the credentials, read as a big-endian long. The encoding
+     * sorts the credentials by name and length-prefixes each name and value, so it does not
+     * depend on the iteration order of the map or on how the map is serialised as JSON.
+     * Different credentials may share a fingerprint, so pairings found by fingerprint must still
+     * be checked against the credentials themselves.
+     *
+     * @param credentials the credentials.
+     * @return the fingerprint stored in the {@link #CREDENTIALS_FINGERPRINT_COLUMN} column.
+     */
+    static long credentialsFingerprint(final Map<String, String> credentials) {
+        checkNotNull(credentials);
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("No SHA-256 algorithm available", e);
+        }
+        final ByteBuffer length = ByteBuffer.allocate(4);
+        for (Map.Entry<String, String> entry
+            : new TreeMap<String, String>(credentials).entrySet()) {
+            updateFingerprint(digest, length, entry.getKey());
+            updateFingerprint(digest, length, entry.getValue());
+        }
+        return DbServiceImp.commitmentPrefix(digest.digest());
+    }
+
+    private static void updateFingerprint(
+        final MessageDigest digest, final ByteBuffer length, final String str) {
+        length.clear();
+        if (str == null) {
+            length.putInt(-1);
+            digest.update(length.array());
+        } else {
+            final byte[] bytes = str.getBytes(UTF_8);
+            length.putInt(bytes.length);
+            digest.update(length.array());
+            digest.update(bytes);
+        }
+    }
+
     static String jsonifyPrivateFields(final List<String> fields) {
         checkNotNull(fields);
         return PRIVATE_FIELDS_GSON.toJson(
@@ -155,6 +223,7 @@ public class DbLensPairingImp implements LensPairingImp {
         this.cpId = UNSAVED_CP_ID;
         this.dbPairing = new DbPairingImp(name, service, pairingDao);
         this.credentialsString = jsonifyCredentials(credentials);
+        this.credentialsFingerprint = credentialsFingerprint(credentials);
         this.privateFieldsString = jsonifyPrivateFields(privateFields);
         this.dao = credentialPairingDao;
     }
@@ -167,11 +236,14 @@ public class DbLensPairingImp implements LensPairingImp {
     public void save() throws IOException {
         checkNotNull(
             dao, "DbCredentialPairingImp cannot be saved with null DAO");
+        // The credentials string may have been replaced since the fingerprint was taken
+        credentialsFingerprint = credentialsFingerprint(getCredentials());
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, cpId != UNSAVED_CP_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
+        DbChangeNotifier.pairingChanged(dao, getId(), dbPairing);
     }
 
     @Override
@@ -204,6 +276,7 @@ public class DbLensPairingImp implements LensPairingImp {
     public void setCredentialsString(String credentialsString) {
         // TODO validate
         this.credentialsString = credentialsString;
+        this.credentials = null;
     }
 
     @Deprecated
@@ -211,8 +284,28 @@ public class DbLensPairingImp implements LensPairingImp {
         return credentialsString;
     }
 
+    /**
+     * @param credentialsFingerprint The credentials fingerprint.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public void setCredentialsFingerprint(long credentialsFingerprint) {
+        this.credentialsFingerprint = credentialsFingerprint;
+    }
+
+    /**
+     * Get the indexed fingerprint of the credentials.
+     *
+     * @return the credentials fingerprint.
+     * @see #credentialsFingerprint(Map)
+     */
+    public long getCredentialsFingerprint() {
+        return credentialsFingerprint;
+    }
+
     public void setPrivateFieldsString(String privateFieldsString) {
         this.privateFieldsString = privateFieldsString;
+        this.privateFields = null;
     }
 
     public String getPrivateFieldsString() {
@@ -246,12 +339,19 @@ public class DbLensPairingImp implements LensPairingImp {
 
     @Override
     public Map<String, String> getCredentials() {
-        return unjsonifyCredentials(credentialsString);
+        if (credentials == null) {
+            credentials = Collections.unmodifiableMap(unjsonifyCredentials(credentialsString));
+        }
+        return credentials;
     }
 
     @Override
     public List<String> getPrivateFields() {
-        return unjsonifyPrivateFields(privateFieldsString);
+        if (privateFields == null) {
+            privateFields = Collections.unmodifiableList(
+                unjsonifyPrivateFields(privateFieldsString));
+        }
+        return privateFields;
     }
 
     @Override
@@ -259,8 +359,10 @@ public class DbLensPairingImp implements LensPairingImp {
         checkNotNull(dao, "cannot be saved with null dao");
         if (isSaved()) {
             try {
+                final int oldId = getId();
                 dao.delete(this);
                 cpId = UNSAVED_CP_ID;
+                DbChangeNotifier.pairingChanged(dao, oldId, dbPairing);
             } catch (SQLException e) {
                 throw new IOException(e);
             }
@@ -38,6 +38,7 @@ import com.j256.ormlite.stmt.SelectArg;
 public class DbPairingAccessor implements PairingAccessor {
 
     private final Dao<DbPairingImp, Integer> pairingDao;
+    private final CachedQuery<DbPairingImp> byIdQuery;
 
     /**
      * Constructor.
@@ -46,21 +47,22 @@ public class DbPairingAccessor implements PairingAccessor {
      */
     public DbPairingAccessor(final Dao<DbPairingImp, Integer> pairingDao) {
         this.pairingDao = pairingDao;
+        byIdQuery = new CachedQuery<DbPairingImp>(1) {
+            @Override
+            protected PreparedQuery<DbPairingImp> build(SelectArg[] args) throws SQLException {
+                return pairingDao.queryBuilder()
+                    .where()
+                    .eq(DbPairingImp.ID_COLUMN, args[0])
+                    .prepare();
+            }
+        };
     }
 
     @Override
     public Pairing getPairingById(int id) throws IOException {
         try {
-            // Build query
-            SelectArg idArg = new SelectArg();
-            PreparedQuery<DbPairingImp> query = pairingDao.queryBuilder()
-                .where()
-                .eq(DbPairingImp.ID_COLUMN, idArg)
-                .prepare();
-            idArg.setValue(id);
-
             // Execute query
-            final DbPairingImp pairingImp = pairingDao.queryForFirst(query);
+            final DbPairingImp pairingImp = pairingDao.queryForFirst(byIdQuery.bind(id));
 
             if (pairingImp != null) {
                 pairingImp.setDao(pairingDao);
@@ -123,10 +123,11 @@ public class DbPairingImp implements PairingImp {
         Preconditions.checkNotNull(
             dao, "DbPairingImp cannot be saved with null DAO");
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, id != UNSAVED_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
+        DbChangeNotifier.pairingChanged(dao, id, this);
     }
 
     @Override
@@ -219,8 +220,10 @@ public class DbPairingImp implements PairingImp {
         checkNotNull(dao, "cannot be saved with null dao");
         if (isSaved()) {
             try {
+                final int oldId = id;
                 dao.delete(this);
                 id = UNSAVED_ID;
+                DbChangeNotifier.pairingChanged(dao, oldId, this);
             } catch (SQLException e) {
                 throw new IOException(e);
             }
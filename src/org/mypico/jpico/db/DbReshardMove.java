@@ -0,0 +1,143 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.field.DatabaseField;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.DatabaseTable;
+import com.j256.ormlite.table.TableUtils;
+
+/**
+ * An entry in the journal {@link DbResharder} keeps in each shard it moves rows to, recording
+ * which row each copy was made from.
+ * <p>
+ * An entry is written in the same transaction as the copy it describes, so a copy left behind by
+ * an interrupted move can be found from the id of the row it was copied from, even when other
+ * rows share its commitment. Ids are unique across a set of {@link DbShards}, so the table and id
+ * of the source row identify it without naming its shard. The journal is only needed while rows
+ * are being moved, and is dropped once resharding finishes.
+ */
+@DatabaseTable(tableName = DbReshardMove.RESHARD_MOVES_TABLE)
+final class DbReshardMove {
+
+    static final String RESHARD_MOVES_TABLE = "reshard_moves";
+
+    static final String ID_COLUMN = "id";
+    static final String SOURCE_TABLE_COLUMN = "source_table";
+    static final String SOURCE_ID_COLUMN = "source_id";
+    static final String COPY_ID_COLUMN = "copy_id";
+
+    @DatabaseField(
+        columnName = ID_COLUMN,
+        generatedId = true)
+    private int id;
+
+    @DatabaseField(
+        columnName = SOURCE_TABLE_COLUMN,
+        uniqueCombo = true,
+        canBeNull = false)
+    private String sourceTable;
+
+    @DatabaseField(
+        columnName = SOURCE_ID_COLUMN,
+        uniqueCombo = true)
+    private int sourceId;
+
+    @DatabaseField(
+        columnName = COPY_ID_COLUMN)
+    private int copyId;
+
+    /**
+     * Required by ORMLite.
+     */
+    DbReshardMove() {
+    }
+
+    /**
+     * @param sourceTable the table the row was copied from.
+     * @param sourceId    the id of the row copied.
+     * @param copyId      the id of the copy.
+     */
+    DbReshardMove(final String sourceTable, final int sourceId, final int copyId) {
+        this.sourceTable = sourceTable;
+        this.sourceId = sourceId;
+        this.copyId = copyId;
+    }
+
+    /**
+     * @return the id of the copy.
+     */
+    int getCopyId() {
+        return copyId;
+    }
+
+    /**
+     * Get the DAO for the journal of a shard, creating the journal if the shard does not have
+     * one yet.
+     *
+     * @param connectionSource the connection source of the shard.
+     * @return the DAO.
+     * @throws SQLException thrown if the journal cannot be created.
+     */
+    static Dao<DbReshardMove, Integer> openJournal(final ConnectionSource connectionSource)
+        throws SQLException {
+        final Dao<DbReshardMove, Integer> dao =
+            DaoManager.createDao(connectionSource, DbReshardMove.class);
+        // Derby has no CREATE TABLE IF NOT EXISTS, so ORMLite's createTableIfNotExists won't do
+        if (!dao.isTableExists()) {
+            TableUtils.createTable(connectionSource, DbReshardMove.class);
+        }
+        return dao;
+    }
+
+    /**
+     * Drop the journal of a shard, if it has one.
+     *
+     * @param connectionSource the connection source of the shard.
+     * @throws SQLException thrown if the journal cannot be dropped.
+     */
+    static void dropJournal(final ConnectionSource connectionSource) throws SQLException {
+        // Errors, such as there being no journal, are ignored
+        TableUtils.dropTable(connectionSource, DbReshardMove.class, true);
+    }
+
+    /**
+     * Find the entry for a row copied to a shard.
+     *
+     * @param dao         the DAO for the journal of the shard.
+     * @param sourceTable the table the row was copied from.
+     * @param sourceId    the id of the row.
+     * @return the entry, or <code>null</code> if the row has not been copied to the shard.
+     * @throws SQLException thrown if the journal cannot be read.
+     */
+    static DbReshardMove find(final Dao<DbReshardMove, Integer> dao, final String sourceTable,
+                              final int sourceId) throws SQLException {
+        return dao.queryBuilder().where()
+            .eq(SOURCE_TABLE_COLUMN, sourceTable)
+            .and().eq(SOURCE_ID_COLUMN, sourceId)
+            .queryForFirst();
+    }
+}
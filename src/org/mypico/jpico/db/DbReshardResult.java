@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.util.MetricsSource;
+
+/**
+ * Summary of the rows moved between shards by {@link DbResharder#reshard()}.
+ */
+public final class DbReshardResult implements MetricsSource {
+
+    private final int servicesMoved;
+    private final int pairingsMoved;
+    private final int sessionsMoved;
+    private final int terminalsMoved;
+    private final long elapsedNanos;
+
+    DbReshardResult(
+        final int servicesMoved,
+        final int pairingsMoved,
+        final int sessionsMoved,
+        final int terminalsMoved,
+        final long elapsedNanos) {
+        this.servicesMoved = servicesMoved;
+        this.pairingsMoved = pairingsMoved;
+        this.sessionsMoved = sessionsMoved;
+        this.terminalsMoved = terminalsMoved;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the number of services moved to another shard.
+     */
+    public int getServicesMoved() {
+        return servicesMoved;
+    }
+
+    /**
+     * @return the number of pairings moved with their services.
+     */
+    public int getPairingsMoved() {
+        return pairingsMoved;
+    }
+
+    /**
+     * @return the number of sessions moved with their pairings.
+     */
+    public int getSessionsMoved() {
+        return sessionsMoved;
+    }
+
+    /**
+     * @return the number of terminals moved to another shard.
+     */
+    public int getTerminalsMoved() {
+        return terminalsMoved;
+    }
+
+    /**
+     * @param unit the unit to return the time in.
+     * @return the time taken to reshard.
+     */
+    public long getElapsed(final TimeUnit unit) {
+        return unit.convert(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("servicesMoved", servicesMoved);
+        metrics.put("pairingsMoved", pairingsMoved);
+        metrics.put("sessionsMoved", sessionsMoved);
+        metrics.put("terminalsMoved", terminalsMoved);
+        metrics.put("elapsedMillis", getElapsed(TimeUnit.MILLISECONDS));
+        return metrics;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%d services, %d pairings, %d sessions and %d terminals moved in %d ms",
+            servicesMoved, pairingsMoved, sessionsMoved, terminalsMoved,
+            getElapsed(TimeUnit.MILLISECONDS));
+    }
+}
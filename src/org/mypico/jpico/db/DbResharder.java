@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.DeleteBuilder;
+
+/**
+ * Moves data between shards when shards are added to or removed from a set of {@link DbShards}.
+ * <p>
+ * The new set must keep the databases the two sets have in common at the same positions, so
+ * shards can only be added or removed at the end. Every service which belongs in a different
+ * shard under the new set is copied there, with all its pairings and their sessions, in a single
+ * transaction on the new shard, and then deleted from the old shard in a single transaction.
+ * Terminals are moved in the same way. Because {@link DbShards} uses a consistent hash, only
+ * about 1/<i>n</i> of the services move when an <i>n</i>th shard is added.
+ * <p>
+ * Moved rows take ids from the range of their new shard, so ids of moved services, pairings,
+ * sessions and terminals change; commitments do not. Nothing else may use the shards while they
+ * are resharded. If resharding is interrupted it can be run again: each copy is recorded, in the
+ * same transaction, in a journal of {@link DbReshardMove}s in the new shard, so a copy left by an
+ * interrupted move is found from the id of the row it was copied from and replaced. Rows are
+ * never matched by commitment, since commitments need not be unique. The journals are dropped
+ * once resharding has finished.
+ */
+public final class DbResharder {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbResharder.class.getSimpleName());
+
+    /**
+     * Number of services read from a shard at a time while looking for ones to move.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    private final DbShards from;
+    private final DbShards to;
+
+    // The journal of each new shard, while resharding
+    private final List<Dao<DbReshardMove, Integer>> journals =
+        new ArrayList<Dao<DbReshardMove, Integer>>();
+
+    private int servicesMoved;
+    private int pairingsMoved;
+    private int sessionsMoved;
+    private int terminalsMoved;
+
+    /**
+     * Constructor.
+     *
+     * @param from the shards the data is currently spread across.
+     * @param to   the shards to spread the data across.
+     * @throws IllegalArgumentException if a database is at a different position in the two sets.
+     */
+    public DbResharder(final DbShards from, final DbShards to) {
+        this.from = checkNotNull(from, "from cannot be null");
+        this.to = checkNotNull(to, "to cannot be null");
+        for (int shard = 0; shard < Math.min(from.size(), to.size()); shard++) {
+            if (from.getConnectionSource(shard) != to.getConnectionSource(shard)) {
+                throw new IllegalArgumentException(
+                    "Shard " + shard + " must use the same connection source in both sets");
+            }
+        }
+    }
+
+    /**
+     * Move every service and terminal which belongs in a different shard under the new set of
+     * shards. Tables are first created in any new shards which do not have them yet.
+     *
+     * @return a summary of the rows moved.
+     * @throws IOException thrown if a row cannot be moved. Moves completed before the failure
+     *                     are kept.
+     */
+    public DbReshardResult reshard() throws IOException {
+        final long start = System.nanoTime();
+        servicesMoved = 0;
+        pairingsMoved = 0;
+        sessionsMoved = 0;
+        terminalsMoved = 0;
+        try {
+            to.createDatabase();
+            journals.clear();
+            for (int shard = 0; shard < to.size(); shard++) {
+                journals.add(DbReshardMove.openJournal(to.getConnectionSource(shard)));
+            }
+            for (int shard = 0; shard < from.size(); shard++) {
+                moveServices(shard);
+                moveTerminals(shard);
+                LOGGER.debug("Resharded shard {}", shard);
+            }
+            for (int shard = 0; shard < to.size(); shard++) {
+                DbReshardMove.dropJournal(to.getConnectionSource(shard));
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        final DbReshardResult result = new DbReshardResult(servicesMoved, pairingsMoved,
+            sessionsMoved, terminalsMoved, System.nanoTime() - start);
+        LOGGER.info("Resharded from {} to {} shards: {}", from.size(), to.size(), result);
+        return result;
+    }
+
+    private void moveServices(final int shard) throws SQLException {
+        final Dao<DbServiceImp, Integer> serviceDao = from.getDaos(shard).getServiceDao();
+        int lastId = 0;
+        List<DbServiceImp> page;
+        do {
+            page = serviceDao.queryBuilder()
+                .orderBy(DbServiceImp.ID_COLUMN, true)
+                .limit((long) PAGE_SIZE)
+                .where()
+                .gt(DbServiceImp.ID_COLUMN, lastId)
+                .query();
+            for (DbServiceImp service : page) {
+                lastId = service.getId();
+                final int target = to.shardForCommitment(service.getCommitment());
+                if (target != shard) {
+                    moveService(service, from.getDaos(shard), to.getDaos(target),
+                        journals.get(target));
+                }
+            }
+        } while (page.size() == PAGE_SIZE);
+    }
+
+    private void moveService(final DbServiceImp service, final DbDaos source,
+                             final DbDaos target, final Dao<DbReshardMove, Integer> journal)
+        throws SQLException {
+        final List<DbPairingImp> pairings = source.getPairingDao().queryForEq(
+            DbPairingImp.SERVICE_COLUMN, service);
+        final int[] counts = new int[1]; // sessions
+
+        TransactionManager.callInTransaction(target.getConnectionSource(),
+            new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // Remove the copy left by an interrupted move of this service
+                    final DbReshardMove previous = DbReshardMove.find(
+                        journal, DbServiceImp.SERVICES_TABLE, service.getId());
+                    if (previous != null) {
+                        final DbServiceImp copy =
+                            target.getServiceDao().queryForId(previous.getCopyId());
+                        if (copy != null) {
+                            deleteService(target, copy);
+                        }
+                        journal.delete(previous);
+                    }
+
+                    final DbServiceImp copy = new DbServiceImp(service.getName(),
+                        service.getAddress(), service.getCommitment(), target.getServiceDao());
+                    target.getServiceDao().create(copy);
+                    journal.create(new DbReshardMove(
+                        DbServiceImp.SERVICES_TABLE, service.getId(), copy.getId()));
+                    for (DbPairingImp pairing : pairings) {
+                        final DbPairingImp pairingCopy = copyPairing(pairing, copy, source,
+                            target);
+                        for (DbSessionImp session : source.getSessionDao().queryForEq(
+                            DbSessionImp.PAIRING_COLUMN, pairing)) {
+                            target.getSessionDao().create(new DbSessionImp(
+                                session.getRemoteId(),
+                                session.getSecretKey(),
+                                pairingCopy,
+                                null,
+                                session.getLastAuthDate(),
+                                session.getStatus(),
+                                session.getError(),
+                                target.getSessionDao()));
+                            counts[0]++;
+                        }
+                    }
+                    return null;
+                }
+            });
+
+        TransactionManager.callInTransaction(source.getConnectionSource(),
+            new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    deleteService(source, service);
+                    return null;
+                }
+            });
+        servicesMoved++;
+        pairingsMoved += pairings.size();
+        sessionsMoved += counts[0];
+    }
+
+    /**
+     * Copy a pairing, and its key pairing or lens pairing row if it has one, to another shard.
+     *
+     * @return the copy of the pairing row.
+     */
+    // Copies keep their creation date, which only ORMLite's setter can change
+    @SuppressWarnings("deprecation")
+    private static DbPairingImp copyPairing(final DbPairingImp pairing,
+                                            final DbServiceImp service,
+                                            final DbDaos source,
+                                            final DbDaos target) throws SQLException {
+        final DbPairingImp copy;
+        final List<DbKeyPairingImp> keyPairings = source.getKeyPairingDao().queryForEq(
+            DbKeyPairingImp.PAIRING_COLUMN, pairing);
+        final List<DbLensPairingImp> lensPairings = source.getLensPairingDao().queryForEq(
+            DbLensPairingImp.PAIRING_COLUMN, pairing);
+        if (!keyPairings.isEmpty()) {
+            final DbKeyPairingImp keyPairing = keyPairings.get(0);
+            final DbKeyPairingImp imp = new DbKeyPairingImp(
+                pairing.getName(),
+                service,
+                keyPairing.getPublicKey(),
+                keyPairing.getPrivateKey(),
+                keyPairing.getExtraData(),
+                target.getPairingDao(),
+                target.getKeyPairingDao());
+            copy = imp.getDbPairing();
+            copy.setDateCreated(pairing.getDateCreated());
+            target.getPairingDao().create(copy);
+            target.getKeyPairingDao().create(imp);
+        } else if (!lensPairings.isEmpty()) {
+            final DbLensPairingImp lensPairing = lensPairings.get(0);
+            final DbLensPairingImp imp = new DbLensPairingImp(
+                pairing.getName(),
+                service,
+                lensPairing.getCredentials(),
+                lensPairing.getPrivateFields(),
+                target.getPairingDao(),
+                target.getLensPairingDao());
+            copy = imp.getDbPairing();
+            copy.setDateCreated(pairing.getDateCreated());
+            target.getPairingDao().create(copy);
+            target.getLensPairingDao().create(imp);
+        } else {
+            copy = new DbPairingImp(pairing.getName(), service, target.getPairingDao());
+            copy.setDateCreated(pairing.getDateCreated());
+            target.getPairingDao().create(copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Delete a service, its pairings and their sessions from a shard.
+     */
+    private static void deleteService(final DbDaos daos, final DbServiceImp service)
+        throws SQLException {
+        for (DbPairingImp pairing : daos.getPairingDao().queryForEq(
+            DbPairingImp.SERVICE_COLUMN, service)) {
+            deleteWhere(daos.getSessionDao(), DbSessionImp.PAIRING_COLUMN, pairing);
+            deleteWhere(daos.getKeyPairingDao(), DbKeyPairingImp.PAIRING_COLUMN, pairing);
+            deleteWhere(daos.getLensPairingDao(), DbLensPairingImp.PAIRING_COLUMN, pairing);
+        }
+        deleteWhere(daos.getPairingDao(), DbPairingImp.SERVICE_COLUMN, service);
+        daos.getServiceDao().deleteById(service.getId());
+    }
+
+    private static <T> void deleteWhere(final Dao<T, Integer> dao, final String column,
+                                        final Object value) throws SQLException {
+        final DeleteBuilder<T, Integer> delete = dao.deleteBuilder();
+        delete.where().eq(column, value);
+        delete.delete();
+    }
+
+    private void moveTerminals(final int shard) throws SQLException {
+        final DbDaos source = from.getDaos(shard);
+        for (final DbTerminalImp terminal : source.getTerminalDao().queryForAll()) {
+            final int targetShard = to.shardForCommitment(terminal.getCommitment());
+            if (targetShard == shard) {
+                continue;
+            }
+            final DbDaos target = to.getDaos(targetShard);
+            final Dao<DbReshardMove, Integer> journal = journals.get(targetShard);
+            TransactionManager.callInTransaction(target.getConnectionSource(),
+                new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        // Remove the copy left by an interrupted move of this terminal
+                        final DbReshardMove previous = DbReshardMove.find(
+                            journal, DbTerminalImp.TERMINALS_TABLE, terminal.getId());
+                        if (previous != null) {
+                            target.getTerminalDao().deleteById(previous.getCopyId());
+                            journal.delete(previous);
+                        }
+                        final DbTerminalImp copy = new DbTerminalImp(
+                            terminal.getName(),
+                            terminal.getCommitment(),
+                            terminal.getPicoPublicKey(),
+                            terminal.getPicoPrivateKey(),
+                            target.getTerminalDao());
+                        target.getTerminalDao().create(copy);
+                        journal.create(new DbReshardMove(
+                            DbTerminalImp.TERMINALS_TABLE, terminal.getId(), copy.getId()));
+                        return null;
+                    }
+                });
+            source.getTerminalDao().delete(terminal);
+            terminalsMoved++;
+        }
+    }
+}
@@ -22,7 +22,14 @@
 package org.mypico.jpico.db;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.mypico.jpico.data.service.Service;
 import org.mypico.jpico.data.service.ServiceAccessor;
@@ -40,6 +47,9 @@ import com.j256.ormlite.stmt.SelectArg;
 public class DbServiceAccessor implements ServiceAccessor {
 
     private final Dao<DbServiceImp, Integer> serviceDao;
+    private final CachedQuery<DbServiceImp> byIdQuery;
+    private final CachedQuery<DbServiceImp> byCommitmentQuery;
+    private final CachedQuery<DbServiceImp> byCommitmentsQuery;
 
     /**
      * Constructor.
@@ -48,21 +58,40 @@ public class DbServiceAccessor implements ServiceAccessor {
      */
     public DbServiceAccessor(final Dao<DbServiceImp, Integer> serviceDao) {
         this.serviceDao = serviceDao;
+        byIdQuery = new CachedQuery<DbServiceImp>(1) {
+            @Override
+            protected PreparedQuery<DbServiceImp> build(SelectArg[] args) throws SQLException {
+                return serviceDao.queryBuilder()
+                    .where()
+                    .eq(DbServiceImp.ID_COLUMN, args[0])
+                    .prepare();
+            }
+        };
+        byCommitmentQuery = new CachedQuery<DbServiceImp>(1) {
+            @Override
+            protected PreparedQuery<DbServiceImp> build(SelectArg[] args) throws SQLException {
+                return serviceDao.queryBuilder()
+                    .where()
+                    .eq(DbServiceImp.COMMITMENT_PREFIX_COLUMN, args[0])
+                    .prepare();
+            }
+        };
+        byCommitmentsQuery = new CachedQuery<DbServiceImp>(DbServiceImp.COMMITMENT_CHUNK_SIZE) {
+            @Override
+            protected PreparedQuery<DbServiceImp> build(SelectArg[] args) throws SQLException {
+                return serviceDao.queryBuilder()
+                    .where()
+                    .in(DbServiceImp.COMMITMENT_PREFIX_COLUMN, (Object[]) args)
+                    .prepare();
+            }
+        };
     }
 
     @Override
     public Service getServiceById(int serviceId) throws IOException {
         try {
-            // Build query
-            SelectArg idArg = new SelectArg();
-            PreparedQuery<DbServiceImp> query = serviceDao.queryBuilder()
-                .where()
-                .eq(DbServiceImp.ID_COLUMN, idArg)
-                .prepare();
-            idArg.setValue(serviceId);
-
             // Execute query
-            final DbServiceImp serviceImp = serviceDao.queryForFirst(query);
+            final DbServiceImp serviceImp = serviceDao.queryForFirst(byIdQuery.bind(serviceId));
 
             if (serviceImp != null) {
                 serviceImp.setDao(serviceDao);
@@ -79,22 +108,47 @@ public class DbServiceAccessor implements ServiceAccessor {
     public Service getServiceByCommitment(byte[] commitment)
         throws IOException {
         try {
-            // Build query
-            SelectArg commitArg = new SelectArg();
-            PreparedQuery<DbServiceImp> query = serviceDao.queryBuilder()
-                .where()
-                .eq(DbServiceImp.COMMITMENT_COLUMN, commitArg)
-                .prepare();
-            commitArg.setValue(DbServiceImp.stringifyCommitment(commitment));
+            // Execute query, then discard any services which only share the prefix
+            final List<DbServiceImp> serviceImps = serviceDao.query(
+                byCommitmentQuery.bind(DbServiceImp.commitmentPrefix(commitment)));
+            for (DbServiceImp serviceImp : serviceImps) {
+                if (serviceImp.hasCommitment(commitment)) {
+                    serviceImp.setDao(serviceDao);
+                    return new Service(serviceImp);
+                }
+            }
+            return null;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
 
-            // Execute query
-            final DbServiceImp serviceImp = serviceDao.queryForFirst(query);
-            if (serviceImp != null) {
-                serviceImp.setDao(serviceDao);
-                return new Service(serviceImp);
-            } else {
-                return null;
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Services are looked up by commitment prefix, {@link DbServiceImp#COMMITMENT_CHUNK_SIZE} at
+     * a time, so a lookup of <i>n</i> commitments takes <i>n</i> / 100 queries.
+     */
+    @Override
+    public Map<ByteBuffer, Service> getServicesByCommitments(Collection<byte[]> commitments)
+        throws IOException {
+        final Set<ByteBuffer> wanted = new HashSet<ByteBuffer>();
+        for (byte[] commitment : commitments) {
+            wanted.add(ByteBuffer.wrap(commitment));
+        }
+        final Map<ByteBuffer, Service> services = new HashMap<ByteBuffer, Service>();
+        try {
+            for (Object[] prefixes : DbServiceImp.commitmentPrefixChunks(commitments)) {
+                for (DbServiceImp serviceImp : serviceDao.query(byCommitmentsQuery.bind(prefixes))) {
+                    // Discard any services which only share the prefix
+                    final ByteBuffer key = ByteBuffer.wrap(serviceImp.getCommitment());
+                    if (wanted.contains(key)) {
+                        serviceImp.setDao(serviceDao);
+                        services.put(key, new Service(serviceImp));
+                    }
+                }
             }
+            return services;
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -28,6 +28,12 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.mypico.jpico.comms.org.apache.commons.codec.binary.Base64;
 import org.mypico.jpico.crypto.CryptoRuntimeException;
@@ -36,6 +42,7 @@ import org.mypico.jpico.data.service.ServiceImp;
 
 import com.google.common.base.Preconditions;
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 
@@ -57,7 +64,13 @@ public class DbServiceImp implements ServiceImp {
     static final String ID_COLUMN = "id";
     static final String NAME_COLUMN = "name";
     static final String ADDRESS_STRING_COLUMN = "address";
-    static final String COMMITMENT_COLUMN = "commitment";
+    static final String COMMITMENT_PREFIX_COLUMN = "commitment_prefix";
+    static final String COMMITMENT_COLUMN = "commitment_hash";
+
+    /**
+     * Column which held the Base64 encoded commitment before database version 22.
+     */
+    static final String LEGACY_COMMITMENT_COLUMN = "commitment";
 
     /**
      * Initial value of a DbServiceImp's id, before it is saved to the database. DbServiceImps are
@@ -65,14 +78,66 @@ public class DbServiceImp implements ServiceImp {
      */
     public static final int UNSAVED_ID = 0;
 
-    static String stringifyCommitment(byte[] commitment) {
-        return Base64.encodeBase64String(commitment);
-    }
-
     static byte[] unstringifyCommitment(String commitmentString) {
         return Base64.decodeBase64(commitmentString);
     }
 
+    /**
+     * Get the indexed prefix of a commitment. This is the first eight bytes of the commitment
+     * read as a big-endian long. Different commitments may share a prefix, so rows found by
+     * prefix must still be checked against the full commitment.
+     *
+     * @param commitment the commitment.
+     * @return the prefix stored in the {@link #COMMITMENT_PREFIX_COLUMN} column.
+     */
+    static long commitmentPrefix(byte[] commitment) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix <<= 8;
+            if (i < commitment.length) {
+                prefix |= commitment[i] & 0xff;
+            }
+        }
+        return prefix;
+    }
+
+    /**
+     * Number of commitment prefixes looked up by each <code>IN (...)</code> query of a bulk
+     * lookup.
+     */
+    static final int COMMITMENT_CHUNK_SIZE = 100;
+
+    /**
+     * Split the distinct prefixes of a number of commitments into chunks of
+     * {@link #COMMITMENT_CHUNK_SIZE}, to be bound to a query with that many parameters. The last
+     * chunk is padded by repeating its final prefix, so that every chunk can use the same
+     * prepared statement.
+     *
+     * @param commitments the commitments.
+     * @return the chunks of prefixes, each an array of <code>Long</code>.
+     */
+    static List<Object[]> commitmentPrefixChunks(Collection<byte[]> commitments) {
+        final Set<Long> prefixes = new LinkedHashSet<Long>();
+        for (byte[] commitment : commitments) {
+            prefixes.add(commitmentPrefix(commitment));
+        }
+        final List<Object[]> chunks = new ArrayList<Object[]>();
+        Object[] chunk = null;
+        int i = 0;
+        for (Long prefix : prefixes) {
+            if (i == 0) {
+                chunk = new Object[COMMITMENT_CHUNK_SIZE];
+                chunks.add(chunk);
+            }
+            chunk[i] = prefix;
+            i = (i + 1) % COMMITMENT_CHUNK_SIZE;
+        }
+        if (i != 0) {
+            Arrays.fill(chunk, i, COMMITMENT_CHUNK_SIZE, chunk[i - 1]);
+        }
+        return chunks;
+    }
+
     @DatabaseField(
         columnName = ID_COLUMN,
         generatedId = true, // Primary key -- automatically generated on save
@@ -93,11 +158,18 @@ public class DbServiceImp implements ServiceImp {
     private String addressString;
 
     @DatabaseField(
-        columnName = COMMITMENT_COLUMN,
+        columnName = COMMITMENT_PREFIX_COLUMN,
         index = true,
         canBeNull = false,
         useGetSet = true)
-    private String commitmentString;
+    private long commitmentPrefix;
+
+    @DatabaseField(
+        columnName = COMMITMENT_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
+        canBeNull = false,
+        useGetSet = true)
+    private byte[] commitmentBytes;
 
     private Dao<DbServiceImp, Integer> dao;
 
@@ -116,7 +188,8 @@ public class DbServiceImp implements ServiceImp {
         this.id = UNSAVED_ID;
         this.name = name;
         this.addressString = address.toString();
-        this.commitmentString = stringifyCommitment(commitment);
+        this.commitmentPrefix = commitmentPrefix(commitment);
+        this.commitmentBytes = commitment.clone();
         this.dao = Preconditions.checkNotNull(
             dao, "Cannot construct DbServiceImp with null dao");
     }
@@ -131,10 +204,11 @@ public class DbServiceImp implements ServiceImp {
         Preconditions.checkNotNull(
             dao, "DbServiceImp cannot be saved with null DAO");
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, id != UNSAVED_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
+        DbChangeNotifier.serviceChanged(dao, this);
     }
 
     @Override
@@ -217,15 +291,37 @@ public class DbServiceImp implements ServiceImp {
         }
     }
 
+    /**
+     * Set the indexed prefix of the service commitment.
+     *
+     * @param commitmentPrefix The commitment prefix.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public void setCommitmentPrefix(final long commitmentPrefix) {
+        this.commitmentPrefix = commitmentPrefix;
+    }
+
+    /**
+     * Get the indexed prefix of the service commitment.
+     *
+     * @return The commitment prefix.
+     * @deprecated required by ORMLite, but should not be used.
+     */
+    @Deprecated
+    public long getCommitmentPrefix() {
+        return commitmentPrefix;
+    }
+
     /**
      * Set the commitment for the service.
      *
-     * @param commitmentString The commitment of the service.
+     * @param commitmentBytes The commitment of the service.
      * @deprecated required by ORMLite, but should not be used.
      */
     @Deprecated
-    public void setCommitmentString(final String commitmentString) {
-        this.commitmentString = commitmentString;
+    public void setCommitmentBytes(final byte[] commitmentBytes) {
+        this.commitmentBytes = commitmentBytes;
     }
 
     /**
@@ -235,13 +331,23 @@ public class DbServiceImp implements ServiceImp {
      * @deprecated required by ORMLite, but should not be used.
      */
     @Deprecated
-    public String getCommitmentString() {
-        return commitmentString;
+    public byte[] getCommitmentBytes() {
+        return commitmentBytes;
     }
 
     @Override
     public byte[] getCommitment() {
-        return unstringifyCommitment(commitmentString);
+        return commitmentBytes.clone();
+    }
+
+    /**
+     * Check whether this service has the given commitment, without copying it.
+     *
+     * @param commitment the commitment to compare against.
+     * @return <code>true</code> if the commitments are equal.
+     */
+    boolean hasCommitment(final byte[] commitment) {
+        return Arrays.equals(commitmentBytes, commitment);
     }
 
     /**
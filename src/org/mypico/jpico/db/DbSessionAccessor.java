@@ -25,21 +25,25 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.mypico.jpico.data.session.Session;
 import org.mypico.jpico.data.session.SessionAccessor;
 
 import com.j256.ormlite.dao.Dao;
-import com.j256.ormlite.stmt.PreparedQuery;
-import com.j256.ormlite.stmt.SelectArg;
 
 /**
  * Implementation of the {@link SessionAccessor} interface for accessing {@link Session}s
- * stored in the database.
+ * stored in the database. Sessions are read together with their pairing and service in a single
+ * joined query.
  */
 public class DbSessionAccessor implements SessionAccessor {
 
     private final Dao<DbSessionImp, Integer> sessionDao;
+    private final DbSessionWriteBehind writeBehind;
+    private final GraphQuery<DbSessionImp> byIdQuery;
+    private final GraphQuery<DbSessionImp> byStatusQuery;
 
     /**
      * Constructor.
@@ -48,33 +52,97 @@ public class DbSessionAccessor implements SessionAccessor {
      */
     public DbSessionAccessor(
         final Dao<DbSessionImp, Integer> sessionDao) {
+        this(sessionDao, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param sessionDao  The data access object for accessing sessions in the database.
+     * @param writeBehind Buffer holding queued session updates, or null if updates are written
+     *                    immediately. Sessions returned by this accessor queue their updates in
+     *                    the same buffer.
+     */
+    public DbSessionAccessor(
+        final Dao<DbSessionImp, Integer> sessionDao,
+        final DbSessionWriteBehind writeBehind) {
         this.sessionDao = checkNotNull(sessionDao);
+        this.writeBehind = writeBehind;
+        byIdQuery = new SessionQuery(sessionDao, GraphQuery.column(
+            sessionDao, GraphQuery.ROW, DbSessionImp.ID_COLUMN) + " = ?");
+        byStatusQuery = new SessionQuery(sessionDao, GraphQuery.column(
+            sessionDao, GraphQuery.ROW, DbSessionImp.STATUS_COLUMN) + " = ?");
+    }
+
+    private static final class SessionQuery extends GraphQuery<DbSessionImp> {
+        SessionQuery(final Dao<DbSessionImp, Integer> sessionDao, final String condition) {
+            super(sessionDao, null, null, DbSessionImp.PAIRING_COLUMN, condition);
+        }
+
+        // setDbPairing is only deprecated to keep code outside ORMLite from relinking rows
+        @SuppressWarnings("deprecation")
+        @Override
+        protected void setPairing(final DbSessionImp row, final DbPairingImp pairing) {
+            row.setDbPairing(pairing);
+        }
+    }
+
+    private Session getPendingSession(final int sessionId) {
+        if (writeBehind != null) {
+            // Queued updates are newer than the database
+            final DbSessionImp pending = writeBehind.getPending(sessionId);
+            if (pending != null) {
+                return new Session(pending);
+            }
+        }
+        return null;
+    }
+
+    private Session toSession(final DbSessionImp imp) {
+        final Session pending = getPendingSession(imp.getId());
+        if (pending != null) {
+            return pending;
+        }
+        imp.setDao(sessionDao);
+        imp.setWriteBehind(writeBehind);
+        return new Session(imp);
     }
 
     @Override
     public Session getSessionById(final int sessionId)
         throws IOException {
+        // Check for queued updates before reading the database, in case they are written between
+        final Session pending = getPendingSession(sessionId);
+        if (pending != null) {
+            return pending;
+        }
         try {
-            // Build query
-            final SelectArg sessionIdArg = new SelectArg();
-            final PreparedQuery<DbSessionImp> query =
-                sessionDao.queryBuilder()
-                    .where()
-                    .eq(DbSessionImp.ID_COLUMN, sessionIdArg)
-                    .prepare();
-
             // Execute query
-            sessionIdArg.setValue(sessionId);
-            final DbSessionImp imp =
-                sessionDao.queryForFirst(query);
+            final DbSessionImp imp = byIdQuery.queryForFirst(sessionId);
 
             // Prepare result
-            if (imp != null) {
-                imp.setDao(sessionDao);
-                return new Session(imp);
-            } else {
-                return null;
+            return (imp != null) ? toSession(imp) : null;
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get all sessions which had the given status when they were last written to the database.
+     * Where a session has a queued update, the queued version is returned in its place.
+     *
+     * @param status the status to match.
+     * @return the matching sessions, in the order they were created.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     */
+    public List<Session> getSessionsByStatus(final Session.Status status) throws IOException {
+        try {
+            final List<DbSessionImp> imps = byStatusQuery.query(status.name());
+            final List<Session> sessions = new ArrayList<Session>(imps.size());
+            for (DbSessionImp imp : imps) {
+                sessions.add(toSession(imp));
             }
+            return sessions;
         } catch (SQLException e) {
             throw new IOException(e);
         }
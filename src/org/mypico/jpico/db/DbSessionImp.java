@@ -61,6 +61,8 @@ final public class DbSessionImp implements SessionImp {
     static final String STATUS_COLUMN = "status";
     static final String ERROR_COLUMN = "error";
     static final String LAST_AUTH_DATE_COLUMN = "last_auth_date";
+    // Index on (pairing_id, last_auth_date), so the sessions of each pairing can be read in order
+    static final String PAIRING_DATE_INDEX = "sessions_pairing_date_idx";
 
     /**
      * Initial value of a DbSessionImp's id, before it is saved to the database. DbSessionImps are
@@ -91,6 +93,7 @@ final public class DbSessionImp implements SessionImp {
 
     @DatabaseField(
         columnName = PAIRING_COLUMN,
+        indexName = PAIRING_DATE_INDEX,
         foreign = true,
         foreignAutoRefresh = true,
         foreignAutoCreate = true,
@@ -112,6 +115,7 @@ final public class DbSessionImp implements SessionImp {
 
     @DatabaseField(
         columnName = LAST_AUTH_DATE_COLUMN,
+        indexName = PAIRING_DATE_INDEX,
         unique = true,
         canBeNull = false,
         useGetSet = true)
@@ -119,6 +123,7 @@ final public class DbSessionImp implements SessionImp {
 
     private AuthToken authToken;
     private Dao<DbSessionImp, Integer> dao;
+    private DbSessionWriteBehind writeBehind;
 
     /**
      * @deprecated required by ORMLite, but should not be used.
@@ -149,16 +154,50 @@ final public class DbSessionImp implements SessionImp {
         this.dao = dao;
     }
 
+    /**
+     * Make a copy of this session, sharing its DAO and write-behind buffer. The pairing, key and
+     * auth token are shared as well, since they are not changed once a session is created.
+     *
+     * @return the copy.
+     */
+    DbSessionImp copy() {
+        final DbSessionImp copy = new DbSessionImp(remoteId, secretKey, dbPairing, authToken,
+            (lastAuthDate != null) ? new Date(lastAuthDate.getTime()) : null, status, error, dao);
+        copy.id = id;
+        copy.writeBehind = writeBehind;
+        return copy;
+    }
+
     void setDao(final Dao<DbSessionImp, Integer> dao) {
         this.dao = dao;
     }
 
+    /**
+     * Queue updates to this session in a write-behind buffer rather than writing them
+     * immediately.
+     *
+     * @param writeBehind The buffer to use, or null to write every save immediately.
+     */
+    void setWriteBehind(final DbSessionWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Save the session. If the session has already been saved once and a write-behind buffer has
+     * been set, the update is queued and written later.
+     *
+     * @throws IOException thrown if there's an error writing to the database.
+     * @see DbSessionWriteBehind
+     */
     @Override
     public void save() throws IOException {
         Preconditions.checkNotNull(
             dao, "DbSessionImp cannot be saved with null DAO");
+        if (writeBehind != null && isSaved() && writeBehind.enqueue(this)) {
+            return;
+        }
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, id != UNSAVED_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -43,6 +43,7 @@ public class DbSessionImpFactory implements SessionImpFactory {
 
     Dao<DbSessionImp, Integer> sessionDao;
     private DbPairingImpFactory dbPairingImpFactory;
+    private DbSessionWriteBehind writeBehind;
 
     /**
      * Constructor.
@@ -57,6 +58,22 @@ public class DbSessionImpFactory implements SessionImpFactory {
         this.dbPairingImpFactory = dbPairingImpFactory;
     }
 
+    /**
+     * Constructor.
+     *
+     * @param sessionDao          Data access object for accessing the sessions in the database.
+     * @param dbPairingImpFactory Pairing factory for the database.
+     * @param writeBehind         Buffer for queueing session updates, or null to write each
+     *                            update immediately.
+     */
+    public DbSessionImpFactory(
+        final Dao<DbSessionImp, Integer> sessionDao,
+        final DbPairingImpFactory dbPairingImpFactory,
+        final DbSessionWriteBehind writeBehind) {
+        this(sessionDao, dbPairingImpFactory);
+        this.writeBehind = writeBehind;
+    }
+
     @Override
     public DbSessionImp getImp(
         String remoteId,
@@ -73,7 +90,7 @@ public class DbSessionImpFactory implements SessionImpFactory {
         } else {
             dbImp = dbPairingImpFactory.getImp(pairing);
         }
-        return new DbSessionImp(
+        final DbSessionImp sessionImp = new DbSessionImp(
             remoteId,
             secretKey,
             dbImp,
@@ -82,6 +99,8 @@ public class DbSessionImpFactory implements SessionImpFactory {
             status,
             error,
             sessionDao);
+        sessionImp.setWriteBehind(writeBehind);
+        return sessionImp;
     }
 
     @Override
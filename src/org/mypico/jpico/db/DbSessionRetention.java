@@ -0,0 +1,314 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.util.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.Where;
+
+/**
+ * Background job which removes finished sessions from the database according to a
+ * {@link SessionRetentionPolicy}.
+ * <p>
+ * Every login adds a row to the sessions table, and without this job closed and failed sessions
+ * are never removed. Each run first reads the ids of the sessions to remove, up to a maximum
+ * number per run, and then deletes them in batches. Each batch is a single short statement, so
+ * the job never holds locks on the sessions table for long and logins carry on between batches.
+ * Anything left over when a run reaches its maximum is removed by the following runs.
+ * <p>
+ * Runs are scheduled on the executor given to the constructor and can also be started directly
+ * with {@link #runOnce()}. Call {@link #close()} to stop scheduling runs.
+ *
+ * @see SessionRetentionPolicy
+ */
+public class DbSessionRetention implements Closeable, MetricsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbSessionRetention.class.getSimpleName());
+
+    /**
+     * Default number of sessions deleted by each statement.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    /**
+     * Default maximum number of sessions removed by each run.
+     */
+    public static final int DEFAULT_MAX_ROWS_PER_RUN = 10000;
+
+    private final Dao<DbSessionImp, Integer> sessionDao;
+    private final SessionRetentionPolicy policy;
+    private final int batchSize;
+    private final int maxRowsPerRun;
+    private final ScheduledFuture<?> scheduledRun;
+
+    // Metrics
+    private long runs = 0;
+    private long failedRuns = 0;
+    private long batches = 0;
+    private long rowsRemoved = 0;
+    private long lastRunRows = 0;
+    private long lastRunNanos = 0;
+    private long totalRunNanos = 0;
+
+    private final Runnable runTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                runOnce();
+            } catch (IOException e) {
+                // Tried again on the next run
+                LOGGER.error("Failed to remove expired sessions", e);
+            }
+        }
+    };
+
+    /**
+     * Constructor using the default batch size and maximum rows per run.
+     *
+     * @param daos      The data access objects of the database to use.
+     * @param policy    The rules deciding which sessions are removed.
+     * @param scheduler Executor used to run the job in the background.
+     * @param interval  Time in milliseconds between runs.
+     */
+    public DbSessionRetention(
+        final DbDaos daos,
+        final SessionRetentionPolicy policy,
+        final ScheduledExecutorService scheduler,
+        final long interval) {
+        this(daos, policy, scheduler, interval, DEFAULT_BATCH_SIZE, DEFAULT_MAX_ROWS_PER_RUN);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param daos          The data access objects of the database to use.
+     * @param policy        The rules deciding which sessions are removed.
+     * @param scheduler     Executor used to run the job in the background.
+     * @param interval      Time in milliseconds between runs.
+     * @param batchSize     Number of sessions deleted by each statement.
+     * @param maxRowsPerRun Maximum number of sessions removed by each run.
+     */
+    public DbSessionRetention(
+        final DbDaos daos,
+        final SessionRetentionPolicy policy,
+        final ScheduledExecutorService scheduler,
+        final long interval,
+        final int batchSize,
+        final int maxRowsPerRun) {
+        checkNotNull(daos, "daos cannot be null");
+        checkNotNull(scheduler, "scheduler cannot be null");
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        if (maxRowsPerRun <= 0) {
+            throw new IllegalArgumentException("maxRowsPerRun must be positive");
+        }
+        this.sessionDao = daos.getSessionDao();
+        this.policy = checkNotNull(policy, "policy cannot be null");
+        this.batchSize = batchSize;
+        this.maxRowsPerRun = maxRowsPerRun;
+        this.scheduledRun = scheduler.scheduleWithFixedDelay(
+            runTask, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the rules deciding which sessions are removed.
+     */
+    public SessionRetentionPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Remove sessions according to the policy now, rather than waiting for the next scheduled
+     * run. Runs never overlap.
+     *
+     * @return the number of sessions removed.
+     * @throws IOException if an <code>IOException</code> occurred whilst reading or deleting
+     *                     sessions. Batches deleted before the failure stay deleted.
+     */
+    public synchronized int runOnce() throws IOException {
+        if (policy.keepsEverything()) {
+            return 0;
+        }
+        final long start = System.nanoTime();
+        int removed = 0;
+        try {
+            final List<Integer> ids = findExpired(new Date());
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                final int to = Math.min(from + batchSize, ids.size());
+                removed += sessionDao.deleteIds(ids.subList(from, to));
+                batches++;
+            }
+        } catch (SQLException e) {
+            failedRuns++;
+            throw new IOException(e);
+        } finally {
+            final long elapsed = System.nanoTime() - start;
+            runs++;
+            rowsRemoved += removed;
+            lastRunRows = removed;
+            lastRunNanos = elapsed;
+            totalRunNanos += elapsed;
+        }
+        if (removed > 0) {
+            LOGGER.info("Removed {} sessions in {} ms", removed,
+                TimeUnit.NANOSECONDS.toMillis(lastRunNanos));
+        }
+        return removed;
+    }
+
+    /**
+     * Read the ids of up to {@link #maxRowsPerRun} sessions to remove.
+     * <p>
+     * Only the id, pairing and date columns are read, and the results are streamed so the query
+     * can stop as soon as enough sessions have been found. With only a maximum age, the query
+     * uses the index on the authentication date. Otherwise the finished sessions of each
+     * pairing are read together, oldest first, in the order of the index on pairing and date so
+     * the database doesn't have to sort them. Once all of a pairing's sessions have been read
+     * they can be counted, and all but the most recent are removed.
+     */
+    private List<Integer> findExpired(final Date now) throws SQLException {
+        final long maxAge = policy.getMaxAgeMillis();
+        final int maxPerPairing = policy.getMaxSessionsPerPairing();
+        final Date cutoff = (maxAge != SessionRetentionPolicy.NO_MAX_AGE)
+            ? new Date(now.getTime() - maxAge) : null;
+
+        final List<String> args = new ArrayList<String>();
+        final QueryBuilder<DbSessionImp, Integer> qb = sessionDao.queryBuilder();
+        qb.selectColumns(DbSessionImp.ID_COLUMN, DbSessionImp.PAIRING_COLUMN,
+            DbSessionImp.LAST_AUTH_DATE_COLUMN);
+        final Where<DbSessionImp, Integer> where = qb.where().in(
+            DbSessionImp.STATUS_COLUMN, new SelectArg(), new SelectArg());
+        args.add(Session.Status.CLOSED.name());
+        args.add(Session.Status.ERROR.name());
+        if (maxPerPairing == SessionRetentionPolicy.NO_MAX_SESSIONS) {
+            where.and().lt(DbSessionImp.LAST_AUTH_DATE_COLUMN, new SelectArg());
+            args.add(new Timestamp(cutoff.getTime()).toString());
+        } else {
+            qb.orderBy(DbSessionImp.PAIRING_COLUMN, true);
+        }
+        qb.orderBy(DbSessionImp.LAST_AUTH_DATE_COLUMN, true);
+
+        final List<Integer> ids = new ArrayList<Integer>();
+        final GenericRawResults<Object[]> results = sessionDao.queryRaw(
+            qb.prepareStatementString(),
+            new DataType[]{DataType.INTEGER_OBJ, DataType.INTEGER_OBJ, DataType.DATE},
+            args.toArray(new String[args.size()]));
+        try {
+            final CloseableIterator<Object[]> rows = results.closeableIterator();
+            if (maxPerPairing == SessionRetentionPolicy.NO_MAX_SESSIONS) {
+                while (ids.size() < maxRowsPerRun && rows.hasNext()) {
+                    ids.add((Integer) rows.next()[0]);
+                }
+            } else {
+                // The sessions of the pairing being read, oldest first
+                final List<Object[]> pairingRows = new ArrayList<Object[]>();
+                while (ids.size() < maxRowsPerRun && rows.hasNext()) {
+                    final Object[] row = rows.next();
+                    if (!pairingRows.isEmpty() && !row[1].equals(pairingRows.get(0)[1])) {
+                        addExpired(pairingRows, maxPerPairing, cutoff, ids);
+                        pairingRows.clear();
+                    }
+                    pairingRows.add(row);
+                }
+                // Unless the run is already full, the last pairing has been read completely
+                if (ids.size() < maxRowsPerRun) {
+                    addExpired(pairingRows, maxPerPairing, cutoff, ids);
+                }
+            }
+        } finally {
+            results.close();
+        }
+        return ids;
+    }
+
+    /**
+     * Add the ids of a pairing's sessions which are to be removed, up to {@link #maxRowsPerRun}
+     * in total: all but the <code>maxPerPairing</code> most recent, and any older than the
+     * cutoff.
+     *
+     * @param pairingRows   The id, pairing and date of each of the pairing's finished sessions,
+     *                      oldest first.
+     * @param maxPerPairing The number of sessions to keep.
+     * @param cutoff        The date before which sessions are removed, or null.
+     * @param ids           The list to add the ids to.
+     */
+    private void addExpired(final List<Object[]> pairingRows, final int maxPerPairing,
+                            final Date cutoff, final List<Integer> ids) {
+        final int excess = pairingRows.size() - maxPerPairing;
+        for (int i = 0; i < pairingRows.size() && ids.size() < maxRowsPerRun; i++) {
+            final Object[] row = pairingRows.get(i);
+            if (i < excess || (cutoff != null && ((Date) row[2]).before(cutoff))) {
+                ids.add((Integer) row[0]);
+            }
+        }
+    }
+
+    /**
+     * Stop scheduling runs. A run already in progress is allowed to finish.
+     */
+    @Override
+    public void close() {
+        scheduledRun.cancel(false);
+    }
+
+    @Override
+    public synchronized Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("runs", runs);
+        metrics.put("failedRuns", failedRuns);
+        metrics.put("batches", batches);
+        metrics.put("rowsRemoved", rowsRemoved);
+        metrics.put("lastRunRows", lastRunRows);
+        metrics.put("lastRunMillis", TimeUnit.NANOSECONDS.toMillis(lastRunNanos));
+        metrics.put("totalRunMillis", TimeUnit.NANOSECONDS.toMillis(totalRunNanos));
+        return metrics;
+    }
+}
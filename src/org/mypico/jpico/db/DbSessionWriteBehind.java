@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.util.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Write-behind buffer for session updates.
+ * <p>
+ * Continuous authentication updates a session's status, error and last authentication date on
+ * every tick, and saving each change individually means a separate small transaction for each.
+ * Sessions attached to a write-behind buffer instead queue their updates here when
+ * {@link DbSessionImp#save()} is called. Repeated saves of the same session are coalesced so that
+ * only its latest state is written, and the queued updates are written together in a single
+ * transaction when either:
+ * <ul>
+ * <li>the number of sessions waiting to be written reaches the batch size, or</li>
+ * <li>the flush interval elapses.</li>
+ * </ul>
+ * <p>
+ * The first save of a new session is always written immediately, since the database assigns its
+ * id. Reads through a {@link DbSessionAccessor} sharing the buffer see queued updates.
+ * <p>
+ * Call {@link #close()} on shutdown to write any remaining updates; sessions saved after the
+ * buffer is closed are written immediately. To use the buffer, pass it to
+ * {@link DbDataFactory#DbDataFactory(ConnectionSource, DbSessionWriteBehind)} and
+ * {@link DbDataAccessor#DbDataAccessor(ConnectionSource, DbSessionWriteBehind)}.
+ */
+public class DbSessionWriteBehind implements Closeable, MetricsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbSessionWriteBehind.class.getSimpleName());
+
+    /**
+     * Default number of queued sessions which triggers a flush.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * Default maximum time in milliseconds an update is held before being written.
+     */
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    private final Dao<DbSessionImp, Integer> sessionDao;
+    private final ScheduledExecutorService scheduler;
+    private final int batchSize;
+    private final Object flushLock = new Object();
+    private Map<Integer, DbSessionImp> pending = new LinkedHashMap<Integer, DbSessionImp>();
+    // Updates being written by the current flush, until it commits
+    private Map<Integer, DbSessionImp> flushing = new LinkedHashMap<Integer, DbSessionImp>();
+    private final ScheduledFuture<?> periodicFlush;
+    private boolean flushRequested = false;
+    private boolean isClosed = false;
+
+    // Metrics
+    private long queuedWrites = 0;
+    private long coalescedWrites = 0;
+    private long flushes = 0;
+    private long flushedWrites = 0;
+    private long failedFlushes = 0;
+    private long totalFlushNanos = 0;
+    private long lastFlushNanos = 0;
+    private long maxFlushNanos = 0;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (IOException e) {
+                // The updates are queued again and retried on the next flush
+                LOGGER.error("Failed to write queued session updates", e);
+            }
+        }
+    };
+
+    /**
+     * Constructor using the default batch size and flush interval.
+     *
+     * @param dbConnection The database connection to write to.
+     * @param scheduler    Executor used to run flushes in the background.
+     * @throws SQLException thrown if there's an error accessing the database.
+     */
+    public DbSessionWriteBehind(
+        final ConnectionSource dbConnection,
+        final ScheduledExecutorService scheduler) throws SQLException {
+        this(dbConnection, scheduler, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param dbConnection  The database connection to write to.
+     * @param scheduler     Executor used to run flushes in the background.
+     * @param batchSize     Number of queued sessions which triggers a flush.
+     * @param flushInterval Maximum time in milliseconds an update is held before being written.
+     * @throws SQLException thrown if there's an error accessing the database.
+     */
+    public DbSessionWriteBehind(
+        final ConnectionSource dbConnection,
+        final ScheduledExecutorService scheduler,
+        final int batchSize,
+        final long flushInterval) throws SQLException {
+        checkNotNull(dbConnection, "dbConnection cannot be null");
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("flushInterval must be positive");
+        }
+        this.sessionDao = DaoManager.createDao(dbConnection, DbSessionImp.class);
+        this.scheduler = checkNotNull(scheduler, "scheduler cannot be null");
+        this.batchSize = batchSize;
+        this.periodicFlush = scheduler.scheduleWithFixedDelay(
+            flushTask, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue a session to be written. A copy of the session is queued, so later changes to
+     * <code>imp</code> are not written until it is saved again.
+     *
+     * @param imp The session to write. It must already have been saved once.
+     * @return true if the session was queued, false if the buffer is closed and the caller must
+     * write the session itself.
+     */
+    synchronized boolean enqueue(final DbSessionImp imp) {
+        assert (imp.isSaved());
+        if (isClosed) {
+            return false;
+        }
+        queuedWrites++;
+        if (pending.put(imp.getId(), imp.copy()) != null) {
+            coalescedWrites++;
+        }
+        if (pending.size() >= batchSize && !flushRequested) {
+            flushRequested = true;
+            try {
+                scheduler.execute(flushTask);
+            } catch (RejectedExecutionException e) {
+                // Scheduler already shut down, leave the updates for close()
+                flushRequested = false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the queued state of a session, if there is one.
+     *
+     * @param id The session id.
+     * @return A fresh copy of the session waiting to be written, or null if there are no queued
+     * updates for it.
+     */
+    synchronized DbSessionImp getPending(final int id) {
+        DbSessionImp imp = pending.get(id);
+        if (imp == null) {
+            imp = flushing.get(id);
+        }
+        return (imp != null) ? imp.copy() : null;
+    }
+
+    /**
+     * Write all queued updates in a single transaction. Returns once the transaction has been
+     * committed. If the write fails, the updates are queued again.
+     *
+     * @throws IOException thrown if there's an error writing to the database.
+     */
+    public void flush() throws IOException {
+        synchronized (flushLock) {
+            final List<DbSessionImp> batch;
+            synchronized (this) {
+                flushRequested = false;
+                if (pending.isEmpty()) {
+                    return;
+                }
+                flushing = pending;
+                pending = new LinkedHashMap<Integer, DbSessionImp>();
+                batch = new ArrayList<DbSessionImp>(flushing.values());
+            }
+
+            final long start = System.nanoTime();
+            try {
+                sessionDao.callBatchTasks(new Callable<Void>() {
+                    @Override
+                    public Void call() throws SQLException {
+                        for (DbSessionImp imp : batch) {
+                            sessionDao.update(imp);
+                        }
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                synchronized (this) {
+                    failedFlushes++;
+                    // Requeue, without overwriting anything saved since
+                    for (DbSessionImp imp : batch) {
+                        if (!pending.containsKey(imp.getId())) {
+                            pending.put(imp.getId(), imp);
+                        }
+                    }
+                    flushing = new LinkedHashMap<Integer, DbSessionImp>();
+                }
+                throw new IOException(e);
+            }
+            final long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                flushing = new LinkedHashMap<Integer, DbSessionImp>();
+                flushes++;
+                flushedWrites += batch.size();
+                totalFlushNanos += elapsed;
+                lastFlushNanos = elapsed;
+                maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+            }
+            LOGGER.debug("Wrote {} queued session updates", batch.size());
+        }
+    }
+
+    /**
+     * Stop background flushing and write any queued updates. Sessions saved afterwards are
+     * written immediately.
+     *
+     * @throws IOException thrown if there's an error writing to the database.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            isClosed = true;
+        }
+        periodicFlush.cancel(false);
+        flush();
+    }
+
+    /**
+     * Get the number of sessions waiting to be written, including any being written by a flush
+     * which has not yet committed.
+     *
+     * @return the number of queued sessions.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size() + flushing.size();
+    }
+
+    @Override
+    public synchronized Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("pendingWrites", pending.size() + flushing.size());
+        metrics.put("queuedWrites", queuedWrites);
+        metrics.put("coalescedWrites", coalescedWrites);
+        metrics.put("flushes", flushes);
+        metrics.put("flushedWrites", flushedWrites);
+        metrics.put("failedFlushes", failedFlushes);
+        metrics.put("lastFlushMillis", lastFlushNanos / 1e6);
+        metrics.put("maxFlushMillis", maxFlushNanos / 1e6);
+        metrics.put("meanFlushMillis", (flushes == 0) ? 0.0 : totalFlushNanos / 1e6 / flushes);
+        return metrics;
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * A set of databases which services, and everything belonging to them, are spread across.
+ * <p>
+ * Each service is kept in the shard chosen by a stable hash of its commitment, and its pairings
+ * and their sessions are kept in the same shard, so the joins between them never leave a single
+ * database. Terminals are placed by a hash of their own commitment. The hash is a jump consistent
+ * hash of the CRC32 of the commitment, so it does not depend on the JVM, and when shards are
+ * added or removed at the end of the list only the services which have to move change shard (see
+ * {@link DbResharder}).
+ * <p>
+ * Every shard hands out ids from its own range of {@link #SHARD_ID_RANGE} ids, so the shard
+ * holding a row can be found from its id alone. The ranges are set when the shard's tables are
+ * created by {@link #createDatabase()}, by restarting the identity columns, and a check
+ * constraint on each id column makes creating a row fail once its shard's range is used up,
+ * rather than letting the row be given an id which belongs to the next shard. Restarting an
+ * identity column is Derby's syntax, so sharding is only supported on Derby, and
+ * {@link #createDatabase()} refuses any other database. At most {@link #MAX_SHARDS} shards are
+ * supported.
+ * <p>
+ * The order of the connection sources matters: the same database must always be given at the
+ * same position.
+ */
+public final class DbShards {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbShards.class.getSimpleName());
+
+    /**
+     * Number of ids reserved for each table in each shard. Shard <i>n</i> numbers its rows from
+     * <i>n</i> * SHARD_ID_RANGE + 1.
+     */
+    public static final int SHARD_ID_RANGE = 1 << 24;
+
+    /**
+     * Largest number of shards whose id ranges fit in an <code>int</code>.
+     */
+    public static final int MAX_SHARDS = Integer.MAX_VALUE / SHARD_ID_RANGE;
+
+    private final List<DbDaos> shards;
+
+    /**
+     * Constructor.
+     *
+     * @param connectionSources one connection source for each shard, in shard order.
+     * @throws SQLException thrown if there's an error creating the DAOs.
+     */
+    public DbShards(final List<? extends ConnectionSource> connectionSources)
+        throws SQLException {
+        checkNotNull(connectionSources, "connectionSources cannot be null");
+        if (connectionSources.isEmpty() || connectionSources.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException(
+                "Between 1 and " + MAX_SHARDS + " shards are supported");
+        }
+        final List<DbDaos> daos = new ArrayList<DbDaos>(connectionSources.size());
+        for (ConnectionSource connectionSource : connectionSources) {
+            daos.add(new DbDaos(connectionSource));
+        }
+        shards = Collections.unmodifiableList(daos);
+    }
+
+    /**
+     * @return the number of shards.
+     */
+    public int size() {
+        return shards.size();
+    }
+
+    /**
+     * @param shard the index of a shard.
+     * @return the data access objects for the shard.
+     */
+    public DbDaos getDaos(final int shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * @param shard the index of a shard.
+     * @return the connection source of the shard.
+     */
+    public ConnectionSource getConnectionSource(final int shard) {
+        return shards.get(shard).getConnectionSource();
+    }
+
+    /**
+     * @param commitment the commitment of a service or terminal.
+     * @return the index of the shard which holds the service or terminal.
+     */
+    public int shardForCommitment(final byte[] commitment) {
+        return shardForCommitment(commitment, shards.size());
+    }
+
+    /**
+     * Return the shard which holds the row with the given id, in any table.
+     *
+     * @param id the id of a row.
+     * @return the index of the shard, or -1 if the id does not belong to any shard.
+     */
+    public int shardForId(final int id) {
+        if (id <= 0) {
+            return -1;
+        }
+        final int shard = (id - 1) / SHARD_ID_RANGE;
+        return (shard < shards.size()) ? shard : -1;
+    }
+
+    /**
+     * @param commitment the commitment of a service or terminal.
+     * @param shards     the number of shards.
+     * @return the index of the shard which holds the service or terminal.
+     */
+    static int shardForCommitment(final byte[] commitment, final int shards) {
+        final CRC32 crc = new CRC32();
+        crc.update(commitment);
+        // Jump consistent hash (Lamping and Veach)
+        long key = crc.getValue();
+        long bucket = -1;
+        long next = 0;
+        while (next < shards) {
+            bucket = next;
+            key = key * 2862933555777941757L + 1;
+            next = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) bucket;
+    }
+
+    /**
+     * Create the tables in every shard which does not have them yet, and set the range of ids
+     * each new shard hands out. Shards which already have tables are left alone, so this can also
+     * be used to prepare shards added to an existing set.
+     *
+     * @throws SQLException thrown if a shard's tables cannot be created.
+     */
+    public void createDatabase() throws SQLException {
+        for (DbDaos daos : shards) {
+            final DatabaseType databaseType = daos.getConnectionSource().getDatabaseType();
+            if (!databaseType.getDatabaseName().startsWith("Derby")) {
+                throw new SQLException("Sharding is only supported on Derby, not "
+                    + databaseType.getDatabaseName());
+            }
+        }
+        for (int shard = 0; shard < shards.size(); shard++) {
+            final DbDaos daos = shards.get(shard);
+            if (daos.getServiceDao().isTableExists()) {
+                LOGGER.debug("Shard {} already has tables", shard);
+                continue;
+            }
+            DbVersioner.createDatabase(daos.getConnectionSource());
+            final int firstId = shard * SHARD_ID_RANGE + 1;
+            setIdRange(daos.getServiceDao(), DbServiceImp.SERVICES_TABLE, firstId);
+            setIdRange(daos.getPairingDao(), DbPairingImp.PAIRINGS_TABLE, firstId);
+            setIdRange(daos.getKeyPairingDao(), DbKeyPairingImp.KEY_PAIRINGS_TABLE, firstId);
+            setIdRange(daos.getLensPairingDao(), DbLensPairingImp.LENS_PAIRINGS_TABLE, firstId);
+            setIdRange(daos.getSessionDao(), DbSessionImp.SESSION_TABLE, firstId);
+            setIdRange(daos.getTerminalDao(), DbTerminalImp.TERMINALS_TABLE, firstId);
+            LOGGER.info("Created shard {} with ids from {}", shard, firstId);
+        }
+    }
+
+    /**
+     * Drop the tables in every shard, along with the journal of any interrupted
+     * {@link DbResharder}, whose entries refer to rows by ids which will be handed out again.
+     */
+    public void dropDatabase() {
+        for (DbDaos daos : shards) {
+            DbVersioner.dropDatabase(daos.getConnectionSource());
+            try {
+                DbReshardMove.dropJournal(daos.getConnectionSource());
+            } catch (SQLException e) {
+                LOGGER.warn("Could not drop resharding journal", e);
+            }
+        }
+    }
+
+    /**
+     * Make a table's identity column hand out ids from <code>firstId</code>, and refuse ids
+     * beyond the range of the shard. Derby only.
+     */
+    private static void setIdRange(final Dao<?, Integer> dao, final String table,
+                                   final int firstId) throws SQLException {
+        final DatabaseType databaseType = dao.getConnectionSource().getDatabaseType();
+        // ORMLite upper cases table names, but not column names, for some databases
+        final String tableName =
+            databaseType.isEntityNamesMustBeUpCase() ? table.toUpperCase() : table;
+        final StringBuilder escapedTable = new StringBuilder();
+        databaseType.appendEscapedEntityName(escapedTable, tableName);
+        // Every table's id column is called "id"
+        final StringBuilder escapedId = new StringBuilder();
+        databaseType.appendEscapedEntityName(escapedId, DbServiceImp.ID_COLUMN);
+        final StringBuilder constraint = new StringBuilder();
+        databaseType.appendEscapedEntityName(constraint, tableName + "_shard_ids");
+
+        dao.executeRaw("ALTER TABLE " + escapedTable + " ALTER COLUMN " + escapedId
+            + " RESTART WITH " + firstId);
+        dao.executeRaw("ALTER TABLE " + escapedTable + " ADD CONSTRAINT " + constraint
+            + " CHECK (" + escapedId + " BETWEEN " + firstId + " AND "
+            + (firstId + SHARD_ID_RANGE - 1) + ")");
+    }
+}
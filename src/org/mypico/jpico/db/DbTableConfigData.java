@@ -0,0 +1,263 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.j256.ormlite.field.DataType;
+import com.j256.ormlite.field.DatabaseFieldConfig;
+import com.j256.ormlite.table.DatabaseTableConfig;
+
+/**
+ * Builds the ORMLite configurations of every table. Written by {@link DbTableConfigs} from the
+ * annotations of the Db*Imp classes, do not edit.
+ */
+final class DbTableConfigData {
+
+    private DbTableConfigData() {
+        // No instances
+    }
+
+    static List<DatabaseTableConfig<?>> create() {
+        final List<DatabaseTableConfig<?>> tables = new ArrayList<DatabaseTableConfig<?>>();
+        List<DatabaseFieldConfig> fields;
+        DatabaseFieldConfig field;
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("id");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("name");
+        field.setColumnName("name");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("addressString");
+        field.setColumnName("address");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("commitmentPrefix");
+        field.setColumnName("commitment_prefix");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        field.setIndex(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("commitmentBytes");
+        field.setColumnName("commitment_hash");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbServiceImp>(
+            DbServiceImp.class, "services", fields));
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("id");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("name");
+        field.setColumnName("name");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        field.setIndex(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("dbService");
+        field.setColumnName("service_id");
+        field.setCanBeNull(false);
+        field.setForeign(true);
+        field.setUseGetSet(true);
+        field.setForeignAutoRefresh(true);
+        field.setForeignAutoCreate(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("dateCreated");
+        field.setColumnName("date_created");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbPairingImp>(
+            DbPairingImp.class, "pairings", fields));
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("kpId");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("dbPairing");
+        field.setColumnName("pairing_id");
+        field.setCanBeNull(false);
+        field.setForeign(true);
+        field.setUseGetSet(true);
+        field.setForeignAutoRefresh(true);
+        field.setColumnDefinition("integer references pairings(\"id\") on delete cascade");
+        field.setForeignAutoCreate(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("privateKeyBytes");
+        field.setColumnName("private_key");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("publicKeyBytes");
+        field.setColumnName("public_key");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("extraData");
+        field.setColumnName("extra_data");
+        field.setUseGetSet(true);
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbKeyPairingImp>(
+            DbKeyPairingImp.class, "key_pairings", fields));
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("cpId");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("dbPairing");
+        field.setColumnName("pairing_id");
+        field.setCanBeNull(false);
+        field.setForeign(true);
+        field.setUseGetSet(true);
+        field.setForeignAutoRefresh(true);
+        field.setColumnDefinition("integer references pairings(\"id\") on delete cascade");
+        field.setForeignAutoCreate(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("credentialsString");
+        field.setColumnName("credentials_string");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("privateFieldsString");
+        field.setColumnName("private_fields_string");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("credentialsFingerprint");
+        field.setColumnName("credentials_fingerprint");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        field.setIndex(true);
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbLensPairingImp>(
+            DbLensPairingImp.class, "lens_pairings", fields));
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("id");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("remoteId");
+        field.setColumnName("remote_id");
+        field.setUseGetSet(true);
+        field.setIndex(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("secretKey");
+        field.setColumnName("secret_key");
+        field.setUseGetSet(true);
+        field.setPersisterClass(org.mypico.jpico.db.SecretKeyPersister.class);
+        fields.add(field);
+        field = new DatabaseFieldConfig("dbPairing");
+        field.setColumnName("pairing_id");
+        field.setCanBeNull(false);
+        field.setForeign(true);
+        field.setUseGetSet(true);
+        field.setIndexName("sessions_pairing_date_idx");
+        field.setForeignAutoRefresh(true);
+        field.setForeignAutoCreate(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("status");
+        field.setColumnName("status");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("error");
+        field.setColumnName("error");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("lastAuthDate");
+        field.setColumnName("last_auth_date");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        field.setUnique(true);
+        field.setIndexName("sessions_pairing_date_idx");
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbSessionImp>(
+            DbSessionImp.class, "sessions", fields));
+
+        fields = new ArrayList<DatabaseFieldConfig>();
+        field = new DatabaseFieldConfig("id");
+        field.setColumnName("id");
+        field.setGeneratedId(true);
+        field.setUseGetSet(true);
+        field.setThrowIfNull(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("name");
+        field.setColumnName("name");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("commitmentPrefix");
+        field.setColumnName("commitment_prefix");
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        field.setIndex(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("commitmentBytes");
+        field.setColumnName("commitment_hash");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("picoPublicKeyBytes");
+        field.setColumnName("pico_public_key");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        field = new DatabaseFieldConfig("picoPrivateKeyBytes");
+        field.setColumnName("pico_private_key");
+        field.setDataPersister(DataType.BYTE_ARRAY.getDataPersister());
+        field.setCanBeNull(false);
+        field.setUseGetSet(true);
+        fields.add(field);
+        tables.add(new DatabaseTableConfig<DbTerminalImp>(
+            DbTerminalImp.class, "terminals", fields));
+        return tables;
+    }
+}
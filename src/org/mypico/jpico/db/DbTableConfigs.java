@@ -0,0 +1,356 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.db.DerbyEmbeddedDatabaseType;
+import com.j256.ormlite.field.DatabaseFieldConfig;
+import com.j256.ormlite.table.DatabaseTableConfig;
+import com.j256.ormlite.table.DatabaseTableConfigLoader;
+
+/**
+ * Pre-built ORMLite table configurations for every table, so that creating the DAOs does not
+ * need to read the annotations of the Db*Imp classes.
+ * <p>
+ * ORMLite normally builds a table's configuration by reflecting over the
+ * {@link com.j256.ormlite.field.DatabaseField} annotations of its class, which is a large part of
+ * the time taken to open a database, particularly on Android. Instead {@link DbTableConfigData}
+ * builds the same configurations in code. It is generated from the annotations by
+ * {@link #main(String[])}, or the <code>tableconfigs</code> Ant target, which must be run again
+ * after changing them; {@link #generate(DatabaseType)} and {@link #getConfig()} can be compared
+ * to check it is up to date.
+ * <p>
+ * ORMLite keeps the field types it works out for a table in its configuration, including which
+ * DAO foreign fields are read through, so configurations cannot be shared between connection
+ * sources. {@link #load(DatabaseType)} returns new ones each time it is called.
+ */
+public final class DbTableConfigs {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        DbTableConfigs.class.getSimpleName());
+
+    /**
+     * The classes of the rows of each table, in the order their DAOs can be created.
+     */
+    static final List<Class<?>> TABLES = Arrays.<Class<?>>asList(
+        DbServiceImp.class,
+        DbPairingImp.class,
+        DbKeyPairingImp.class,
+        DbLensPairingImp.class,
+        DbSessionImp.class,
+        DbTerminalImp.class);
+
+    private static final String INDEX_SUFFIX = "_idx";
+    private static final int MAX_LINE_LENGTH = 100;
+    private static final String TABLE_START = "# --table-start--";
+    private static final String FIELD_START = "# --field-start--";
+    private static final String FIELD_END = "# --field-end--";
+    private static final String TABLE_END = "# --table-end--";
+
+    // Header of the generated file
+    private static final String LICENSE = "/*\n"
+        + " * (C) Copyright Cambridge Authentication Ltd, 2017\n"
+        + " *\n"
+        + " * This file is part of jpico.\n"
+        + " *\n"
+        + " * jpico is free software: you can redistribute it and/or modify\n"
+        + " * it under the terms of the GNU Affero General Public License as\n"
+        + " * published by the Free Software Foundation, either version 3 of\n"
+        + " * the License, or (at your option) any later version.\n"
+        + " *\n"
+        + " * jpico is distributed in the hope that it will be useful,\n"
+        + " * but WITHOUT ANY WARRANTY; without even the implied warranty of\n"
+        + " * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the\n"
+        + " * GNU Affero General Public License for more details.\n"
+        + " *\n"
+        + " * You should have received a copy of the GNU Affero General Public\n"
+        + " * License along with jpico. If not, see\n"
+        + " * <http://www.gnu.org/licenses/>.\n"
+        + " */\n";
+
+    private DbTableConfigs() {
+        // No instances
+    }
+
+    /**
+     * Get the pre-built configurations.
+     *
+     * @param databaseType the type of the database they will be used with.
+     * @return a new configuration for each class in {@link #TABLES}, keyed by that class.
+     * @throws SQLException thrown if a configuration refers to a field that does not exist.
+     */
+    static Map<Class<?>, DatabaseTableConfig<?>> load(final DatabaseType databaseType)
+        throws SQLException {
+        final List<DatabaseTableConfig<?>> configs = DbTableConfigData.create();
+        final Map<Class<?>, DatabaseTableConfig<?>> byClass =
+            new HashMap<Class<?>, DatabaseTableConfig<?>>();
+        for (DatabaseTableConfig<?> config : configs) {
+            // As DatabaseTableConfig.fromClass does when reading the annotations
+            if (databaseType.isEntityNamesMustBeUpCase()) {
+                config.setTableName(config.getTableName().toUpperCase(Locale.ENGLISH));
+            }
+            byClass.put(config.getDataClass(), config);
+        }
+        // Foreign fields would otherwise have their DAOs created from the annotations
+        for (DatabaseTableConfig<?> config : configs) {
+            for (DatabaseFieldConfig fieldConfig : config.getFieldConfigs()) {
+                if (fieldConfig.isForeign()) {
+                    fieldConfig.setForeignTableConfig(byClass.get(
+                        fieldOf(config.getDataClass(), fieldConfig.getFieldName()).getType()));
+                }
+            }
+        }
+        return byClass;
+    }
+
+    /**
+     * Describe the pre-built configurations.
+     *
+     * @return the configurations in ORMLite's text format.
+     * @throws SQLException thrown if the configurations cannot be written.
+     */
+    public static String getConfig() throws SQLException {
+        return toText(DbTableConfigData.create());
+    }
+
+    /**
+     * Build the configurations from the annotations of the Db*Imp classes.
+     *
+     * @param databaseType the type of any database. The configurations do not depend on it.
+     * @return the configurations in ORMLite's text format, which matches {@link #getConfig()}
+     * if the pre-built configurations are up to date.
+     * @throws SQLException thrown if the annotations are not valid.
+     */
+    public static String generate(final DatabaseType databaseType) throws SQLException {
+        final List<DatabaseTableConfig<?>> configs = new ArrayList<DatabaseTableConfig<?>>();
+        for (Class<?> table : TABLES) {
+            configs.add(fromAnnotations(databaseType, table));
+        }
+        return toText(configs);
+    }
+
+    /**
+     * Write {@link DbTableConfigData} from the annotations of the Db*Imp classes.
+     *
+     * @param args the path of the file to write, which defaults to its place under the
+     *             <code>src</code> directory.
+     * @throws Exception thrown if the file cannot be written.
+     */
+    public static void main(final String[] args) throws Exception {
+        final File file = new File((args.length > 0) ? args[0]
+            : "src/org/mypico/jpico/db/DbTableConfigData.java");
+        final String source = toSource(generate(new DerbyEmbeddedDatabaseType()));
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(source);
+        } finally {
+            writer.close();
+        }
+        LOGGER.info("Wrote {}", file);
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private static <T> DatabaseTableConfig<T> fromAnnotations(final DatabaseType databaseType,
+                                                              final Class<T> table)
+        throws SQLException {
+        final String tableName = DatabaseTableConfig.extractTableName(table);
+        final List<DatabaseFieldConfig> fieldConfigs = new ArrayList<DatabaseFieldConfig>();
+        for (Class<?> c = table; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                final DatabaseFieldConfig fieldConfig =
+                    DatabaseFieldConfig.fromField(databaseType, tableName, field);
+                if (fieldConfig != null) {
+                    // Some database types upper case the name, but it must match the field
+                    fieldConfig.setFieldName(field.getName());
+                    fieldConfigs.add(fieldConfig);
+                }
+            }
+        }
+        return new DatabaseTableConfig<T>(table, tableName, fieldConfigs);
+    }
+
+    private static String toText(final List<DatabaseTableConfig<?>> configs)
+        throws SQLException {
+        final StringBuilder sb = new StringBuilder();
+        try {
+            for (DatabaseTableConfig<?> config : configs) {
+                final StringWriter text = new StringWriter();
+                final BufferedWriter writer = new BufferedWriter(text);
+                DatabaseTableConfigLoader.write(writer, config);
+                writer.flush();
+                // The writer names indexes after the table, but the name of the table in the
+                // database depends on its type, so leave ORMLite to name them when loading
+                final BufferedReader lines = new BufferedReader(new StringReader(text.toString()));
+                for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                    sb.append(defaultIndexNames(line, config)).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException(e);
+        }
+        return sb.toString();
+    }
+
+    private static String defaultIndexNames(final String line,
+                                            final DatabaseTableConfig<?> config) {
+        for (DatabaseFieldConfig fieldConfig : config.getFieldConfigs()) {
+            final String name =
+                config.getTableName() + "_" + fieldConfig.getColumnName() + INDEX_SUFFIX;
+            if (line.equals("indexName=" + name)) {
+                return "index=true";
+            } else if (line.equals("uniqueIndexName=" + name)) {
+                return "uniqueIndex=true";
+            }
+        }
+        return line;
+    }
+
+    private static Field fieldOf(final Class<?> table, final String name) throws SQLException {
+        for (Class<?> c = table; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getName().equals(name)) {
+                    return field;
+                }
+            }
+        }
+        throw new SQLException("No field " + name + " in " + table.getName());
+    }
+
+    /**
+     * Turn configurations in ORMLite's text format into the source of {@link DbTableConfigData},
+     * calling the {@link DatabaseFieldConfig} setter named after each property.
+     */
+    private static String toSource(final String config) {
+        final StringBuilder sb = new StringBuilder(LICENSE)
+            .append("\n\n")
+            .append("package org.mypico.jpico.db;\n\n")
+            .append("import java.util.ArrayList;\n")
+            .append("import java.util.List;\n\n")
+            .append("import com.j256.ormlite.field.DataType;\n")
+            .append("import com.j256.ormlite.field.DatabaseFieldConfig;\n")
+            .append("import com.j256.ormlite.table.DatabaseTableConfig;\n\n")
+            .append("/**\n")
+            .append(" * Builds the ORMLite configurations of every table. Written by")
+            .append(" {@link DbTableConfigs} from the\n")
+            .append(" * annotations of the Db*Imp classes, do not edit.\n")
+            .append(" */\n")
+            .append("final class DbTableConfigData {\n\n")
+            .append("    private DbTableConfigData() {\n")
+            .append("        // No instances\n")
+            .append("    }\n\n")
+            .append("    static List<DatabaseTableConfig<?>> create() {\n")
+            .append("        final List<DatabaseTableConfig<?>> tables =")
+            .append(" new ArrayList<DatabaseTableConfig<?>>();\n")
+            .append("        List<DatabaseFieldConfig> fields;\n")
+            .append("        DatabaseFieldConfig field;\n");
+        String dataClass = null;
+        String tableName = null;
+        for (String line : config.split("\n")) {
+            if (line.equals(TABLE_START)) {
+                sb.append("\n        fields = new ArrayList<DatabaseFieldConfig>();\n");
+            } else if (line.equals(TABLE_END)) {
+                final String simpleName = dataClass.substring(dataClass.lastIndexOf('.') + 1);
+                sb.append("        tables.add(new DatabaseTableConfig<").append(simpleName)
+                    .append(">(\n            ").append(simpleName).append(".class, ")
+                    .append(quote(tableName)).append(", fields));\n");
+            } else if (line.equals(FIELD_END)) {
+                sb.append("        fields.add(field);\n");
+            } else if (!line.startsWith("#")) {
+                final int equals = line.indexOf('=');
+                final String key = line.substring(0, equals);
+                final String value = line.substring(equals + 1);
+                if (key.equals("dataClass")) {
+                    dataClass = value;
+                } else if (key.equals("tableName")) {
+                    tableName = value;
+                } else if (key.equals("fieldName")) {
+                    sb.append("        field = new DatabaseFieldConfig(").append(quote(value))
+                        .append(");\n");
+                } else if (key.equals("dataPersister")) {
+                    // The reader's interpretation of the property
+                    sb.append("        field.setDataPersister(DataType.").append(value)
+                        .append(".getDataPersister());\n");
+                } else {
+                    final String call = "        field." + setter(key) + "(";
+                    final String argument = literal(key, value);
+                    sb.append(call)
+                        .append((call.length() + argument.length() + 2 > MAX_LINE_LENGTH)
+                            ? "\n            " : "")
+                        .append(argument).append(");\n");
+                }
+            } else if (!line.equals(FIELD_START) && !line.startsWith("# --table-fields")) {
+                throw new IllegalStateException("Unexpected configuration line: " + line);
+            }
+        }
+        sb.append("        return tables;\n")
+            .append("    }\n")
+            .append("}\n");
+        return sb.toString();
+    }
+
+    private static String setter(final String key) {
+        return "set" + Character.toUpperCase(key.charAt(0)) + key.substring(1);
+    }
+
+    private static String literal(final String key, final String value) {
+        for (Method method : DatabaseFieldConfig.class.getMethods()) {
+            if (method.getName().equals(setter(key)) && method.getParameterTypes().length == 1) {
+                final Class<?> type = method.getParameterTypes()[0];
+                if (type == String.class) {
+                    return quote(value);
+                } else if (type == boolean.class || type == int.class) {
+                    return value;
+                } else if (type == Class.class) {
+                    return value + ".class";
+                }
+            }
+        }
+        throw new IllegalStateException("Cannot write field property " + key);
+    }
+
+    private static String quote(final String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
@@ -39,6 +39,8 @@ import com.j256.ormlite.stmt.SelectArg;
 public class DbTerminalAccessor implements Terminal.Accessor {
 
     private final Dao<DbTerminalImp, Integer> dao;
+    private final CachedQuery<DbTerminalImp> byIdQuery;
+    private final CachedQuery<DbTerminalImp> byCommitmentQuery;
 
     /**
      * Constructor.
@@ -47,21 +49,31 @@ public class DbTerminalAccessor implements Terminal.Accessor {
      */
     public DbTerminalAccessor(final Dao<DbTerminalImp, Integer> dao) {
         this.dao = dao;
+        byIdQuery = new CachedQuery<DbTerminalImp>(1) {
+            @Override
+            protected PreparedQuery<DbTerminalImp> build(SelectArg[] args) throws SQLException {
+                return dao.queryBuilder()
+                    .where()
+                    .eq(DbTerminalImp.ID_COLUMN, args[0])
+                    .prepare();
+            }
+        };
+        byCommitmentQuery = new CachedQuery<DbTerminalImp>(1) {
+            @Override
+            protected PreparedQuery<DbTerminalImp> build(SelectArg[] args) throws SQLException {
+                return dao.queryBuilder()
+                    .where()
+                    .eq(DbTerminalImp.COMMITMENT_PREFIX_COLUMN, args[0])
+                    .prepare();
+            }
+        };
     }
 
     @Override
     public Terminal getTerminalById(int id) throws IOException {
         try {
-            // Build query
-            SelectArg idArg = new SelectArg();
-            PreparedQuery<DbTerminalImp> query = dao.queryBuilder()
-                .where()
-                .eq(DbTerminalImp.ID_COLUMN, idArg)
-                .prepare();
-            idArg.setValue(id);
-
             // Execute query
-            final DbTerminalImp imp = dao.queryForFirst(query);
+            final DbTerminalImp imp = dao.queryForFirst(byIdQuery.bind(id));
 
             if (imp != null) {
                 imp.setDao(dao);
@@ -78,22 +90,16 @@ public class DbTerminalAccessor implements Terminal.Accessor {
     public Terminal getTerminalByCommitment(byte[] commitment)
         throws IOException {
         try {
-            // Build query
-            SelectArg commitArg = new SelectArg();
-            PreparedQuery<DbTerminalImp> query = dao.queryBuilder()
-                .where()
-                .eq(DbServiceImp.COMMITMENT_COLUMN, commitArg)
-                .prepare();
-            commitArg.setValue(DbServiceImp.stringifyCommitment(commitment));
-
-            // Execute query
-            final DbTerminalImp imp = dao.queryForFirst(query);
-            if (imp != null) {
-                imp.setDao(dao);
-                return new Terminal(imp);
-            } else {
-                return null;
+            // Execute query, then discard any terminals which only share the prefix
+            final List<DbTerminalImp> imps = dao.query(
+                byCommitmentQuery.bind(DbServiceImp.commitmentPrefix(commitment)));
+            for (DbTerminalImp imp : imps) {
+                if (imp.hasCommitment(commitment)) {
+                    imp.setDao(dao);
+                    return new Terminal(imp);
+                }
             }
+            return null;
         } catch (SQLException e) {
             throw new IOException(e);
         }
@@ -113,4 +119,32 @@ public class DbTerminalAccessor implements Terminal.Accessor {
             throw new IOException(e);
         }
     }
+
+    /**
+     * Enumerate all terminals in the database, reading them from the database a page at a time
+     * rather than all at once. The cursor must be closed when no longer needed.
+     *
+     * @param pageSize the maximum number of terminals to read with each query.
+     * @return cursor over all terminals, in the order they were created.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying the database.
+     */
+    public DbCursor<Terminal> iterateTerminals(int pageSize) throws IOException {
+        try {
+            return new PagedCursor<DbTerminalImp, Terminal>(
+                dao, DbTerminalImp.ID_COLUMN, pageSize) {
+                @Override
+                protected int getRowId(DbTerminalImp row) {
+                    return row.getId();
+                }
+
+                @Override
+                protected Terminal wrap(DbTerminalImp row) {
+                    row.setDao(dao);
+                    return new Terminal(row);
+                }
+            };
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+    }
 }
@@ -27,19 +27,22 @@ import java.io.IOException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.sql.SQLException;
+import java.util.Arrays;
 
 import org.mypico.jpico.data.terminal.Terminal;
 
 import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.field.DataType;
 import com.j256.ormlite.field.DatabaseField;
 import com.j256.ormlite.table.DatabaseTable;
 
 /**
  * A concrete {@link Terminal} class which persists terminals to a database using ORMLite object
- * relational mapping annotations. Public key fields are persisted using a custom persister class.
+ * relational mapping annotations. Keys are persisted in their encoded form and only decoded, once,
+ * when first requested.
  *
  * @see Terminal
- * @see PublicKeyPersister
+ * @see KeyDecoder
  */
 @DatabaseTable(tableName = DbTerminalImp.TERMINALS_TABLE)
 public class DbTerminalImp implements Terminal.Imp {
@@ -48,7 +51,8 @@ public class DbTerminalImp implements Terminal.Imp {
 
     public static final String ID_COLUMN = "id";
     static final String NAME_COLUMN = "name";
-    static final String COMMITMENT_COLUMN = "commitment";
+    static final String COMMITMENT_PREFIX_COLUMN = DbServiceImp.COMMITMENT_PREFIX_COLUMN;
+    static final String COMMITMENT_COLUMN = DbServiceImp.COMMITMENT_COLUMN;
     static final String PICO_PUBLIC_KEY_COLUMN = "pico_public_key";
     static final String PICO_PRIVATE_KEY_COLUMN = "pico_private_key";
 
@@ -73,24 +77,35 @@ public class DbTerminalImp implements Terminal.Imp {
     private String name;
 
     @DatabaseField(
-        columnName = COMMITMENT_COLUMN,
+        columnName = COMMITMENT_PREFIX_COLUMN,
         index = true,
         canBeNull = false,
         useGetSet = true)
-    private String commitmentString;
+    private long commitmentPrefix;
+
+    @DatabaseField(
+        columnName = COMMITMENT_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
+        canBeNull = false,
+        useGetSet = true)
+    private byte[] commitmentBytes;
 
     @DatabaseField(
         columnName = PICO_PUBLIC_KEY_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
         canBeNull = false,
-        useGetSet = true,
-        persisterClass = PublicKeyPersister.class)
-    private PublicKey picoPublicKey;
+        useGetSet = true)
+    private byte[] picoPublicKeyBytes;
 
     @DatabaseField(
         columnName = PICO_PRIVATE_KEY_COLUMN,
+        dataType = DataType.BYTE_ARRAY,
         canBeNull = false,
-        useGetSet = true,
-        persisterClass = PrivateKeyPersister.class)
+        useGetSet = true)
+    private byte[] picoPrivateKeyBytes;
+
+    // Decoded from the byte arrays above on first use
+    private PublicKey picoPublicKey;
     private PrivateKey picoPrivateKey;
 
     private Dao<DbTerminalImp, Integer> dao;
@@ -110,8 +125,11 @@ public class DbTerminalImp implements Terminal.Imp {
         final Dao<DbTerminalImp, Integer> dao) {
         this.id = UNSAVED_ID;
         this.name = name;
-        this.commitmentString = DbServiceImp.stringifyCommitment(commitment);
+        this.commitmentPrefix = DbServiceImp.commitmentPrefix(commitment);
+        this.commitmentBytes = commitment.clone();
+        this.picoPublicKeyBytes = picoPublicKey.getEncoded();
         this.picoPublicKey = picoPublicKey;
+        this.picoPrivateKeyBytes = picoPrivateKey.getEncoded();
         this.picoPrivateKey = picoPrivateKey;
         this.dao = checkNotNull(dao, "dao cannot be null");
     }
@@ -124,10 +142,11 @@ public class DbTerminalImp implements Terminal.Imp {
     public void save() throws IOException {
         checkNotNull(dao, "cannot be saved with null dao");
         try {
-            dao.createOrUpdate(this);
+            DbDaos.createOrUpdate(dao, this, id != UNSAVED_ID);
         } catch (SQLException e) {
             throw new IOException(e);
         }
+        DbChangeNotifier.terminalChanged(dao, id, getCommitment());
     }
 
     @Override
@@ -140,8 +159,10 @@ public class DbTerminalImp implements Terminal.Imp {
         checkNotNull(dao, "cannot be saved with null dao");
         if (isSaved()) {
             try {
+                final int oldId = id;
                 dao.delete(this);
                 id = UNSAVED_ID;
+                DbChangeNotifier.terminalChanged(dao, oldId, getCommitment());
             } catch (SQLException e) {
                 throw new IOException(e);
             }
@@ -192,26 +213,48 @@ public class DbTerminalImp implements Terminal.Imp {
         return name;
     }
 
+    /**
+     * Set the indexed prefix of the terminal commitment.
+     *
+     * @param commitmentPrefix The commitment prefix.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public void setCommitmentPrefix(long commitmentPrefix) {
+        this.commitmentPrefix = commitmentPrefix;
+    }
+
+    /**
+     * Get the indexed prefix of the terminal commitment.
+     *
+     * @return The commitment prefix.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public long getCommitmentPrefix() {
+        return commitmentPrefix;
+    }
+
     /**
      * Set the commitment for the terminal.
      *
-     * @param commitmentString The terminal commitment.
+     * @param commitmentBytes The terminal commitment.
      * @deprecated Required by ORMLite, should not be used.
      */
     @Deprecated
-    public void setCommitmentString(String commitmentString) {
-        this.commitmentString = commitmentString;
+    public void setCommitmentBytes(byte[] commitmentBytes) {
+        this.commitmentBytes = commitmentBytes;
     }
 
     /**
-     * Get the terminal commitment as a string.
+     * Get the terminal commitment as stored in the database.
      *
      * @return The terminal commitment.
      * @deprecated Required by ORMLite, should not be used.
      */
     @Deprecated
-    public String getCommitmentString() {
-        return commitmentString;
+    public byte[] getCommitmentBytes() {
+        return commitmentBytes;
     }
 
     /**
@@ -221,27 +264,64 @@ public class DbTerminalImp implements Terminal.Imp {
      */
     @Override
     public byte[] getCommitment() {
-        return DbServiceImp.unstringifyCommitment(commitmentString);
+        return commitmentBytes.clone();
+    }
+
+    /**
+     * Check whether this terminal has the given commitment, without copying it.
+     *
+     * @param commitment the commitment to compare against.
+     * @return <code>true</code> if the commitments are equal.
+     */
+    boolean hasCommitment(final byte[] commitment) {
+        return Arrays.equals(commitmentBytes, commitment);
     }
 
     /**
      * Set the public key of the terminal.
      *
      * @param picoPublicKey The terminal public key.
-     * @deprecated Required by ORMLite, should not be used.
+     * @deprecated Should not be used.
      */
     @Deprecated
     public void setPicoPublicKey(PublicKey picoPublicKey) {
+        this.picoPublicKeyBytes = picoPublicKey.getEncoded();
         this.picoPublicKey = picoPublicKey;
     }
 
     /**
-     * Get the public key of the terminal.
+     * Set the X509 encoded public key of the terminal.
+     *
+     * @param picoPublicKeyBytes The encoded terminal public key.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public void setPicoPublicKeyBytes(byte[] picoPublicKeyBytes) {
+        this.picoPublicKeyBytes = picoPublicKeyBytes;
+        this.picoPublicKey = null;
+    }
+
+    /**
+     * Get the X509 encoded public key of the terminal.
+     *
+     * @return The encoded terminal public key.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public byte[] getPicoPublicKeyBytes() {
+        return picoPublicKeyBytes;
+    }
+
+    /**
+     * Get the public key of the terminal, decoding it on first use.
      *
      * @return The terminal public key.
      */
     @Override
     public PublicKey getPicoPublicKey() {
+        if (picoPublicKey == null) {
+            picoPublicKey = KeyDecoder.storedPublicKey(picoPublicKeyBytes);
+        }
         return picoPublicKey;
     }
 
@@ -249,20 +329,47 @@ public class DbTerminalImp implements Terminal.Imp {
      * Set the private key of the terminal.
      *
      * @param picoPrivateKey The terminal private key.
-     * @deprecated Required by ORMLite, should not be used.
+     * @deprecated Should not be used.
      */
     @Deprecated
     public void setPicoPrivateKey(PrivateKey picoPrivateKey) {
+        this.picoPrivateKeyBytes = picoPrivateKey.getEncoded();
         this.picoPrivateKey = picoPrivateKey;
     }
 
     /**
-     * Get the private key of the terminal.
+     * Set the PKCS8 encoded private key of the terminal.
+     *
+     * @param picoPrivateKeyBytes The encoded terminal private key.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public void setPicoPrivateKeyBytes(byte[] picoPrivateKeyBytes) {
+        this.picoPrivateKeyBytes = picoPrivateKeyBytes;
+        this.picoPrivateKey = null;
+    }
+
+    /**
+     * Get the PKCS8 encoded private key of the terminal.
+     *
+     * @return The encoded terminal private key.
+     * @deprecated Required by ORMLite, should not be used.
+     */
+    @Deprecated
+    public byte[] getPicoPrivateKeyBytes() {
+        return picoPrivateKeyBytes;
+    }
+
+    /**
+     * Get the private key of the terminal, decoding it on first use.
      *
      * @return The terminal private key.
      */
     @Override
     public PrivateKey getPicoPrivateKey() {
+        if (picoPrivateKey == null) {
+            picoPrivateKey = KeyDecoder.storedPrivateKey(picoPrivateKeyBytes);
+        }
         return picoPrivateKey;
     }
 }
@@ -21,12 +21,32 @@
 
 package org.mypico.jpico.db;
 
+import java.lang.reflect.Field;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
 
+import org.mypico.jpico.ProgressCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.field.DatabaseFieldConfig;
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.jdbc.JdbcDatabaseConnection;
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.stmt.PreparedUpdate;
+import com.j256.ormlite.stmt.QueryBuilder;
+import com.j256.ormlite.stmt.SelectArg;
+import com.j256.ormlite.stmt.UpdateBuilder;
 import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
 import com.j256.ormlite.table.TableUtils;
 
 /**
@@ -43,8 +63,19 @@ public class DbVersioner {
     /**
      * The current version of the database. This number should increase by 1 at
      * every change. For historical reasons are starting at 21.
+     * <ul>
+     * <li>22: service and terminal commitments stored as binary with an indexed 64-bit prefix,
+     * rather than as indexed Base64 strings.</li>
+     * <li>23: lens pairing credentials fingerprinted in an indexed column.</li>
+     * <li>24: sessions indexed by pairing and last authentication date.</li>
+     * </ul>
      */
-    public static final int CURRENT_VERSION = 21;
+    public static final int CURRENT_VERSION = 24;
+
+    /**
+     * Default number of rows converted in each transaction of a migration.
+     */
+    public static final int DEFAULT_MIGRATION_BATCH_SIZE = 1000;
 
     /**
      * Creates a database from scratch
@@ -54,6 +85,8 @@ public class DbVersioner {
      */
     public static void createDatabase(ConnectionSource connection) throws SQLException {
         LOGGER.debug("Creating database tables...");
+        // So that the tables are created from the pre-built configurations
+        DbDaos.registerDaos(connection);
         TableUtils.createTable(connection, DbServiceImp.class);
         TableUtils.createTable(connection, DbPairingImp.class);
         TableUtils.createTable(connection, DbKeyPairingImp.class);
@@ -91,16 +124,539 @@ public class DbVersioner {
      * @throws SQLException In case an error occurs during the upgrade process.
      */
     public static void upgradeDatabase(ConnectionSource connection, int oldVersion) throws SQLException {
+        upgradeDatabase(connection, oldVersion, DEFAULT_MIGRATION_BATCH_SIZE, null);
+    }
+
+    /**
+     * Updates the database connected from an old version to a new version, reporting progress as
+     * it goes.
+     * <p>
+     * Each migration step alters the schema in place and converts existing rows in batches of
+     * <code>batchSize</code>, each batch in its own transaction, so the database stays usable
+     * while a large table is converted and the work done so far is kept if the upgrade is
+     * interrupted. Calling this method again with the same <code>oldVersion</code> carries on
+     * from where the previous attempt stopped. Only databases older than version 21, which were
+     * not versioned, are dropped and recreated.
+     * <p>
+     * The callback is given a {@link ProgressCallback.Stage} after every batch, whose progress is
+     * the number of rows converted so far out of those the current step has to convert.
+     *
+     * @param connection A ConnectionSource to the database
+     * @param oldVersion Old version number
+     * @param batchSize  The number of rows to convert in each transaction.
+     * @param callback   Callback to report progress to, or <code>null</code>.
+     * @throws SQLException In case an error occurs during the upgrade process.
+     */
+    public static void upgradeDatabase(ConnectionSource connection, int oldVersion,
+                                       int batchSize, ProgressCallback callback)
+        throws SQLException {
         LOGGER.info("Upgrading database from version " + oldVersion + " to " + CURRENT_VERSION);
 
         assert (oldVersion <= CURRENT_VERSION); // Just for sanity
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
 
         if (oldVersion < 21) {
             // We were not doing version control on databases older than 21. In this case we can only delete
             // everything and recreate (This was the approach used by the Pico Android App in the past)
             dropDatabase(connection);
             createDatabase(connection);
+            return;
+        }
+        if (oldVersion < 22) {
+            migrateCommitments(connection, DbServiceImp.class, DbServiceImp.SERVICES_TABLE,
+                batchSize, callback);
+            migrateCommitments(connection, DbTerminalImp.class, DbTerminalImp.TERMINALS_TABLE,
+                batchSize, callback);
+        }
+        if (oldVersion < 23) {
+            migrateCredentialsFingerprints(connection, batchSize, callback);
+        }
+        if (oldVersion < 24) {
+            addSessionPairingDateIndex(connection);
+        }
+    }
+
+    /**
+     * Convert the Base64 commitment column of a table into a binary commitment column and an
+     * indexed prefix column, in place.
+     * <p>
+     * Derby recompiles every statement on a table while the transaction that altered it is still
+     * open, so the conversion is split into separate transactions: adding the new columns,
+     * filling them in batches, and then dropping the old column and indexing the new one. Each
+     * step checks what has already been done, so an interrupted migration can simply be run
+     * again. The new columns are added with the types ORMLite uses for the database. Where the
+     * database can't make a column <code>NOT NULL</code> or drop a column in place, as with
+     * SQLite, the last step rebuilds the table instead.
+     *
+     * @param connection The connection to the database source.
+     * @param clazz      The class persisted in the table.
+     * @param table      The name of the table.
+     * @param batchSize  The number of rows to convert in each transaction.
+     * @param callback   Callback to report progress to, or <code>null</code>.
+     * @throws SQLException in case of an error migrating the table.
+     */
+    private static <T> void migrateCommitments(
+        final ConnectionSource connection, final Class<T> clazz, final String table,
+        final int batchSize, final ProgressCallback callback) throws SQLException {
+        LOGGER.debug("Migrating commitments in {}...", table);
+        final Dao<T, Integer> dao = DaoManager.createDao(connection, clazz);
+        final DatabaseType databaseType = connection.getDatabaseType();
+        // ORMLite upper cases table names, but not column names, for some databases
+        final String tableName =
+            databaseType.isEntityNamesMustBeUpCase() ? table.toUpperCase() : table;
+        final String quotedTable = quote(databaseType, tableName);
+        final String prefixColumn = quote(databaseType, DbServiceImp.COMMITMENT_PREFIX_COLUMN);
+        final String commitmentColumn = quote(databaseType, DbServiceImp.COMMITMENT_COLUMN);
+        final String legacyColumn = quote(databaseType, DbServiceImp.LEGACY_COMMITMENT_COLUMN);
+
+        if (!columnExists(dao, quotedTable, legacyColumn)) {
+            LOGGER.info("Commitments in {} already migrated", table);
+            return;
+        }
+
+        if (!columnExists(dao, quotedTable, commitmentColumn)) {
+            final String prefixDefinition = nullableColumnDefinition(connection, clazz,
+                tableName, DbServiceImp.COMMITMENT_PREFIX_COLUMN);
+            final String commitmentDefinition = nullableColumnDefinition(connection, clazz,
+                tableName, DbServiceImp.COMMITMENT_COLUMN);
+            TransactionManager.callInTransaction(connection, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if (!columnExists(dao, quotedTable, prefixColumn)) {
+                        dao.executeRaw("ALTER TABLE " + quotedTable + " ADD COLUMN "
+                            + prefixDefinition);
+                    }
+                    dao.executeRaw("ALTER TABLE " + quotedTable + " ADD COLUMN "
+                        + commitmentDefinition);
+                    return null;
+                }
+            });
+        }
+
+        // Prepare the update once and bind each row's values to it
+        final SelectArg prefixArg = new SelectArg();
+        final SelectArg commitmentArg = new SelectArg();
+        final SelectArg idArg = new SelectArg();
+        final UpdateBuilder<T, Integer> update = dao.updateBuilder();
+        update.updateColumnValue(DbServiceImp.COMMITMENT_PREFIX_COLUMN, prefixArg);
+        update.updateColumnValue(DbServiceImp.COMMITMENT_COLUMN, commitmentArg);
+        update.where().eq(DbServiceImp.ID_COLUMN, idArg);
+        final PreparedUpdate<T> preparedUpdate = update.prepare();
+
+        final int count = backfill(connection, dao, DbServiceImp.ID_COLUMN, legacyColumn,
+            DbServiceImp.COMMITMENT_COLUMN, batchSize, "Converting commitments in " + table, callback,
+            new RowConverter() {
+                @Override
+                public void convert(int id, String value) throws SQLException {
+                    final byte[] commitment = DbServiceImp.unstringifyCommitment(value);
+                    prefixArg.setValue(DbServiceImp.commitmentPrefix(commitment));
+                    commitmentArg.setValue(commitment);
+                    idArg.setValue(id);
+                    dao.update(preparedUpdate);
+                }
+            });
+
+        if (isAlterColumnSupported(databaseType)) {
+            TransactionManager.callInTransaction(connection, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dao.executeRaw(notNullStatement(databaseType, quotedTable, prefixColumn));
+                    dao.executeRaw(notNullStatement(databaseType, quotedTable, commitmentColumn));
+                    dao.executeRaw("ALTER TABLE " + quotedTable + " DROP COLUMN "
+                        + legacyColumn);
+                    dao.executeRaw("CREATE INDEX "
+                        + quote(databaseType,
+                        tableName + "_" + DbServiceImp.COMMITMENT_PREFIX_COLUMN + "_idx")
+                        + " ON " + quotedTable + " (" + prefixColumn + ")");
+                    return null;
+                }
+            });
+        } else {
+            rebuildTable(connection, dao, clazz, tableName);
+        }
+        LOGGER.info("Migrated {} commitments in {}", count, table);
+    }
+
+    /**
+     * Add the indexed credentials fingerprint column to the lens pairings table and fill it in.
+     * <p>
+     * As with
+     * {@link #migrateCommitments(ConnectionSource, Class, String, int, ProgressCallback)} the
+     * column is added, filled in batches and then indexed in separate transactions, and an
+     * interrupted migration can be run again. Databases that can't alter the column in place have
+     * the table rebuilt instead.
+     *
+     * @param connection The connection to the database source.
+     * @param batchSize  The number of rows to convert in each transaction.
+     * @param callback   Callback to report progress to, or <code>null</code>.
+     * @throws SQLException in case of an error migrating the table.
+     */
+    private static void migrateCredentialsFingerprints(
+        final ConnectionSource connection, final int batchSize, final ProgressCallback callback)
+        throws SQLException {
+        LOGGER.debug("Adding credentials fingerprints...");
+        final Dao<DbLensPairingImp, Integer> dao =
+            DaoManager.createDao(connection, DbLensPairingImp.class);
+        final DatabaseType databaseType = connection.getDatabaseType();
+        final String table = DbLensPairingImp.LENS_PAIRINGS_TABLE;
+        final String tableName =
+            databaseType.isEntityNamesMustBeUpCase() ? table.toUpperCase() : table;
+        final String indexName =
+            tableName + "_" + DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN + "_idx";
+        final String quotedTable = quote(databaseType, tableName);
+        final String credentialsColumn =
+            quote(databaseType, DbLensPairingImp.CREDENTIALS_STRING_COLUMN);
+        final String fingerprintColumn =
+            quote(databaseType, DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN);
+
+        if (indexExists(connection, tableName, indexName)) {
+            LOGGER.info("Credentials fingerprints already added");
+            return;
         }
+
+        if (!columnExists(dao, quotedTable, fingerprintColumn)) {
+            final String fingerprintDefinition = nullableColumnDefinition(connection,
+                DbLensPairingImp.class, tableName, DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN);
+            TransactionManager.callInTransaction(connection, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dao.executeRaw("ALTER TABLE " + quotedTable + " ADD COLUMN "
+                        + fingerprintDefinition);
+                    return null;
+                }
+            });
+        }
+
+        final SelectArg fingerprintArg = new SelectArg();
+        final SelectArg idArg = new SelectArg();
+        final UpdateBuilder<DbLensPairingImp, Integer> update = dao.updateBuilder();
+        update.updateColumnValue(DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN, fingerprintArg);
+        update.where().eq(DbLensPairingImp.ID_COLUMN, idArg);
+        final PreparedUpdate<DbLensPairingImp> preparedUpdate = update.prepare();
+
+        final int count = backfill(connection, dao, DbLensPairingImp.ID_COLUMN, credentialsColumn,
+            DbLensPairingImp.CREDENTIALS_FINGERPRINT_COLUMN, batchSize, "Adding credentials fingerprints", callback,
+            new RowConverter() {
+                @Override
+                public void convert(int id, String value) throws SQLException {
+                    fingerprintArg.setValue(DbLensPairingImp.credentialsFingerprint(
+                        DbLensPairingImp.unjsonifyCredentials(value)));
+                    idArg.setValue(id);
+                    dao.update(preparedUpdate);
+                }
+            });
+
+        if (isAlterColumnSupported(databaseType)) {
+            TransactionManager.callInTransaction(connection, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    dao.executeRaw(notNullStatement(databaseType, quotedTable, fingerprintColumn));
+                    dao.executeRaw("CREATE INDEX " + quote(databaseType, indexName)
+                        + " ON " + quotedTable + " (" + fingerprintColumn + ")");
+                    return null;
+                }
+            });
+        } else {
+            rebuildTable(connection, dao, DbLensPairingImp.class, tableName);
+        }
+        LOGGER.info("Added {} credentials fingerprints", count);
+    }
+
+    /**
+     * Index the sessions table by pairing and last authentication date, which
+     * {@link DbSessionRetention} reads it in. No rows change, so the index is created in a
+     * single statement, unless it already exists.
+     *
+     * @param connection The connection to the database source.
+     * @throws SQLException in case of an error creating the index.
+     */
+    private static void addSessionPairingDateIndex(final ConnectionSource connection)
+        throws SQLException {
+        final Dao<DbSessionImp, Integer> dao =
+            DaoManager.createDao(connection, DbSessionImp.class);
+        final DatabaseType databaseType = connection.getDatabaseType();
+        final String table = DbSessionImp.SESSION_TABLE;
+        final String tableName =
+            databaseType.isEntityNamesMustBeUpCase() ? table.toUpperCase() : table;
+
+        if (indexExists(connection, tableName, DbSessionImp.PAIRING_DATE_INDEX)) {
+            LOGGER.info("Sessions already indexed by pairing and date");
+            return;
+        }
+        dao.executeRaw("CREATE INDEX " + quote(databaseType, DbSessionImp.PAIRING_DATE_INDEX)
+            + " ON " + quote(databaseType, tableName)
+            + " (" + quote(databaseType, DbSessionImp.PAIRING_COLUMN)
+            + ", " + quote(databaseType, DbSessionImp.LAST_AUTH_DATE_COLUMN) + ")");
+        LOGGER.info("Indexed sessions by pairing and date");
+    }
+
+    /**
+     * Converts one row of a table during a migration.
+     */
+    private interface RowConverter {
+        /**
+         * Fill in the new columns of a row.
+         *
+         * @param id    the id of the row.
+         * @param value the value of the column the new columns are derived from.
+         * @throws SQLException in case of an error updating the row.
+         */
+        void convert(int id, String value) throws SQLException;
+    }
+
+    /**
+     * Fill in a new column for every row in which it is still <code>NULL</code>, in batches.
+     * <p>
+     * Rows are visited in id order, each batch starting after the last id of the previous one, so
+     * every batch is a range scan of the primary key rather than a scan of the whole table. Each
+     * batch is committed on its own, so an interrupted backfill only has to redo the rows of the
+     * batch it was part way through.
+     * <p>
+     * Batches are limited with {@link QueryBuilder#limit(Long)}, and at most a batch of rows is
+     * read from the results, since ORMLite leaves the limit out of the SQL for databases, such as
+     * Derby, that have no <code>LIMIT</code> clause.
+     *
+     * @param connection   The connection to the database source.
+     * @param dao          A DAO for the table.
+     * @param idColumn     The name of the integer primary key column.
+     * @param sourceColumn The escaped name of the column the new values are derived from.
+     * @param targetColumn The name of the column being filled in, which must be a field of the
+     *                     DAO's class.
+     * @param batchSize    The number of rows to convert in each transaction.
+     * @param description  Description of the migration, for progress reports.
+     * @param callback     Callback to report progress to, or <code>null</code>.
+     * @param converter    Fills in the new values of a row.
+     * @return the number of rows converted.
+     * @throws SQLException in case of an error converting the rows.
+     */
+    private static <T> int backfill(
+        final ConnectionSource connection, final Dao<T, Integer> dao, final String idColumn,
+        final String sourceColumn, final String targetColumn, final int batchSize,
+        final String description, final ProgressCallback callback, final RowConverter converter)
+        throws SQLException {
+        final int total = (int) dao.queryBuilder().where().isNull(targetColumn).countOf();
+        final QueryBuilder<T, Integer> queryBuilder = dao.queryBuilder();
+        queryBuilder.selectRaw(quote(connection.getDatabaseType(), idColumn), sourceColumn);
+        queryBuilder.where().gt(idColumn, new SelectArg()).and().isNull(targetColumn);
+        queryBuilder.orderBy(idColumn, true).limit((long) batchSize);
+        final String query = queryBuilder.prepareStatementString();
+        reportProgress(callback, description, 0, total);
+
+        // The last id converted, updated by each batch
+        final int[] lastId = new int[]{Integer.MIN_VALUE};
+        int converted = 0;
+        while (true) {
+            final int batch = TransactionManager.callInTransaction(connection,
+                new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final GenericRawResults<String[]> results =
+                            dao.queryRaw(query, Integer.toString(lastId[0]));
+                        final List<String[]> rows = new ArrayList<String[]>();
+                        try {
+                            final Iterator<String[]> iterator = results.iterator();
+                            while (rows.size() < batchSize && iterator.hasNext()) {
+                                rows.add(iterator.next());
+                            }
+                        } finally {
+                            results.close();
+                        }
+                        for (String[] row : rows) {
+                            converter.convert(Integer.parseInt(row[0]), row[1]);
+                        }
+                        if (!rows.isEmpty()) {
+                            lastId[0] = Integer.parseInt(rows.get(rows.size() - 1)[0]);
+                        }
+                        return rows.size();
+                    }
+                });
+            if (batch == 0) {
+                break;
+            }
+            converted += batch;
+            LOGGER.debug("{}: {} of {} rows", description, converted, total);
+            reportProgress(callback, description, Math.min(converted, total), total);
+        }
+        return converted;
+    }
+
+    /**
+     * Report the progress of a migration step, if there is anyone to report it to.
+     */
+    private static void reportProgress(final ProgressCallback callback, final String description,
+                                       final int done, final int total) {
+        if (callback != null && total > 0) {
+            callback.onAuthProgress(DbVersioner.class, new ProgressCallback.Stage(
+                done, total + 1, description + ": " + done + " of " + total + " rows"));
+        }
+    }
+
+    /**
+     * Check whether a table has an index, using the JDBC metadata of the connection. Always
+     * <code>false</code> for connections that aren't JDBC connections, in which case the
+     * migration that checks for the index is repeated harmlessly.
+     */
+    private static boolean indexExists(
+        final ConnectionSource connection, final String tableName, final String indexName)
+        throws SQLException {
+        final DatabaseConnection databaseConnection = connection.getReadOnlyConnection();
+        try {
+            if (!(databaseConnection instanceof JdbcDatabaseConnection)) {
+                return false;
+            }
+            final ResultSet indexes = ((JdbcDatabaseConnection) databaseConnection)
+                .getInternalConnection().getMetaData()
+                .getIndexInfo(null, null, tableName, false, true);
+            try {
+                while (indexes.next()) {
+                    if (indexName.equalsIgnoreCase(indexes.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+                return false;
+            } finally {
+                indexes.close();
+            }
+        } finally {
+            connection.releaseConnection(databaseConnection);
+        }
+    }
+
+    /**
+     * Check whether the database can make a column <code>NOT NULL</code> and drop a column in
+     * place. ORMLite's name for the database is used, since the database types of other ORMLite
+     * modules, such as Android's, aren't available here.
+     */
+    private static boolean isAlterColumnSupported(final DatabaseType databaseType) {
+        final String name = databaseType.getDatabaseName();
+        return "Derby".equals(name) || "Derby Client/Server".equals(name) || "H2".equals(name)
+            || "HSQLdb".equals(name) || "Postgres".equals(name);
+    }
+
+    /**
+     * Get the statement making a column <code>NOT NULL</code>, for a database for which
+     * {@link #isAlterColumnSupported(DatabaseType)}.
+     */
+    private static String notNullStatement(final DatabaseType databaseType,
+                                           final String quotedTable,
+                                           final String quotedColumn) {
+        if (databaseType.getDatabaseName().startsWith("Derby")) {
+            return "ALTER TABLE " + quotedTable + " ALTER COLUMN " + quotedColumn + " NOT NULL";
+        } else {
+            return "ALTER TABLE " + quotedTable + " ALTER COLUMN " + quotedColumn
+                + " SET NOT NULL";
+        }
+    }
+
+    /**
+     * Get the definition ORMLite would give a column of the current layout, for adding it to an
+     * existing table. The column is left nullable and unindexed, since the table already has
+     * rows.
+     */
+    private static String nullableColumnDefinition(
+        final ConnectionSource connection, final Class<?> clazz, final String tableName,
+        final String columnName) throws SQLException {
+        final DatabaseType databaseType = connection.getDatabaseType();
+        for (Field field : clazz.getDeclaredFields()) {
+            final DatabaseFieldConfig config =
+                DatabaseFieldConfig.fromField(databaseType, tableName, field);
+            if (config != null && columnName.equalsIgnoreCase(config.getColumnName())) {
+                config.setFieldName(field.getName());
+                config.setColumnName(columnName);
+                config.setCanBeNull(true);
+                config.setIndex(false);
+                final FieldType fieldType =
+                    new FieldType(connection, tableName, field, config, clazz);
+                final StringBuilder sb = new StringBuilder();
+                final List<String> ignored = new ArrayList<String>();
+                databaseType.appendColumnArg(tableName, sb, fieldType, ignored, ignored, ignored,
+                    ignored);
+                return sb.toString();
+            }
+        }
+        throw new SQLException("No column " + columnName + " in " + clazz.getSimpleName());
+    }
+
+    /**
+     * Rebuild a table in the current layout, for databases which can't alter or drop a column in
+     * place. The rows are copied into a temporary table, and the table is dropped and created
+     * again, with its indexes, before the rows are copied back. Only the columns of the current
+     * layout are kept, so every row must already have a value in each of them.
+     * <p>
+     * The rebuild is done in a single transaction, relying on the database supporting
+     * transactional DDL, as SQLite does. Ids are copied as they are, and SQLite carries on
+     * generating ids after the largest.
+     *
+     * @param connection The connection to the database source.
+     * @param dao        A DAO for the table.
+     * @param clazz      The class persisted in the table.
+     * @param tableName  The name of the table, as ORMLite names it.
+     * @throws SQLException in case of an error rebuilding the table.
+     */
+    private static <T> void rebuildTable(
+        final ConnectionSource connection, final Dao<T, Integer> dao, final Class<T> clazz,
+        final String tableName) throws SQLException {
+        LOGGER.debug("Rebuilding {}...", tableName);
+        final DatabaseType databaseType = connection.getDatabaseType();
+        final String quotedTable = quote(databaseType, tableName);
+        final String quotedTemp = quote(databaseType, tableName + "_rebuild");
+
+        final StringBuilder columns = new StringBuilder();
+        final StringBuilder definitions = new StringBuilder();
+        final List<String> ignored = new ArrayList<String>();
+        for (FieldType fieldType : GraphQuery.tableInfo(dao).getFieldTypes()) {
+            if (fieldType.isForeignCollection()) {
+                continue;
+            }
+            if (columns.length() > 0) {
+                columns.append(", ");
+                definitions.append(", ");
+            }
+            columns.append(quote(databaseType, fieldType.getColumnName()));
+            databaseType.appendColumnArg(tableName, definitions, fieldType, ignored, ignored,
+                ignored, ignored);
+        }
+
+        TransactionManager.callInTransaction(connection, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                dao.executeRaw("CREATE TABLE " + quotedTemp + " (" + definitions + ")");
+                dao.executeRaw("INSERT INTO " + quotedTemp + " (" + columns + ") SELECT "
+                    + columns + " FROM " + quotedTable);
+                dao.executeRaw("DROP TABLE " + quotedTable);
+                TableUtils.createTable(connection, clazz);
+                dao.executeRaw("INSERT INTO " + quotedTable + " (" + columns + ") SELECT "
+                    + columns + " FROM " + quotedTemp);
+                dao.executeRaw("DROP TABLE " + quotedTemp);
+                return null;
+            }
+        });
+        LOGGER.info("Rebuilt {}", tableName);
+    }
+
+    /**
+     * Check whether a table has a column, by selecting it.
+     */
+    private static boolean columnExists(
+        final Dao<?, Integer> dao, final String quotedTable, final String quotedColumn) {
+        try {
+            dao.queryRaw("SELECT " + quotedColumn + " FROM " + quotedTable + " WHERE 1 = 0")
+                .close();
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Escape a table, column or index name in the same way as ORMLite.
+     */
+    private static String quote(final DatabaseType databaseType, final String name) {
+        final StringBuilder sb = new StringBuilder();
+        databaseType.appendEscapedEntityName(sb, name);
+        return sb.toString();
     }
 
 }
@@ -0,0 +1,327 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.j256.ormlite.dao.BaseDaoImpl;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.field.SqlType;
+import com.j256.ormlite.stmt.StatementBuilder.StatementType;
+import com.j256.ormlite.support.CompiledStatement;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.j256.ormlite.support.DatabaseResults;
+import com.j256.ormlite.table.TableInfo;
+
+/**
+ * A query which reads rows that refer to a pairing together with the pairing and its service, in
+ * a single joined <code>SELECT</code>.
+ * <p>
+ * Sessions and pairings refer to their pairing and service through ORMLite foreign fields with
+ * <code>foreignAutoRefresh</code> set, so reading them through their DAO issues two further
+ * queries for each row. Here the three tables are joined instead, and every row of the result is
+ * hydrated into linked objects using ORMLite's own column mappings. Rows sharing a pairing or a
+ * service share the same instance of it.
+ * <p>
+ * Subclasses supply the link from a row to its pairing in {@link #setPairing}. Conditions are
+ * written in SQL against the aliases {@link #ROW}, {@link #PAIRING} and {@link #SERVICE}, using
+ * {@link #column(String, String)} to name columns.
+ *
+ * @param <T> the type of row read, such as {@link DbSessionImp} or {@link DbKeyPairingImp}.
+ */
+abstract class GraphQuery<T> {
+
+    static final String ROW = "r";
+    static final String PAIRING = "p";
+    static final String SERVICE = "s";
+
+    private static final FieldType[] NO_ARG_TYPES = new FieldType[0];
+
+    /**
+     * The columns of one table within the joined result.
+     */
+    private static final class Table<E> {
+        final TableInfo<E, Integer> info;
+        final List<FieldType> fields = new ArrayList<FieldType>();
+        final Map<String, Integer> positions = new HashMap<String, Integer>();
+
+        Table(final TableInfo<E, Integer> info, final int offset) {
+            this.info = info;
+            for (FieldType field : info.getFieldTypes()) {
+                if (!field.isForeign()) {
+                    positions.put(field.getColumnName(), offset + fields.size());
+                    fields.add(field);
+                }
+            }
+        }
+
+        E read(final DatabaseResults results) throws SQLException {
+            final E row = info.createObject();
+            for (FieldType field : fields) {
+                field.assignField(row, field.resultToJava(results, positions), false, null);
+            }
+            return row;
+        }
+
+        int getId(final DatabaseResults results) throws SQLException {
+            return results.getInt(positions.get(info.getIdField().getColumnName()));
+        }
+    }
+
+    private final ConnectionSource connectionSource;
+    private final Dao<T, Integer> rowDao;
+    private final String pairingColumn;
+    private final String condition;
+    private Dao<DbPairingImp, Integer> pairingDao;
+    private Dao<DbServiceImp, Integer> serviceDao;
+    private Table<T> rows;
+    private Table<DbPairingImp> pairings;
+    private Table<DbServiceImp> services;
+    private String sql;
+
+    /**
+     * Constructor.
+     *
+     * @param rowDao        the data access object for the rows to read.
+     * @param pairingDao    the data access object for pairings, or <code>null</code> to look it up
+     *                      from the {@link DaoManager}.
+     * @param serviceDao    the data access object for services, or <code>null</code> to look it up
+     *                      from the {@link DaoManager}.
+     * @param pairingColumn the column of the row table which refers to the pairing.
+     * @param condition     the SQL <code>WHERE</code> condition selecting the rows, with a
+     *                      <code>?</code> for each argument, or <code>null</code> to read every
+     *                      row.
+     */
+    GraphQuery(final Dao<T, Integer> rowDao,
+               final Dao<DbPairingImp, Integer> pairingDao,
+               final Dao<DbServiceImp, Integer> serviceDao,
+               final String pairingColumn,
+               final String condition) {
+        this.connectionSource = rowDao.getConnectionSource();
+        this.rowDao = rowDao;
+        this.pairingDao = pairingDao;
+        this.serviceDao = serviceDao;
+        this.pairingColumn = pairingColumn;
+        this.condition = condition;
+    }
+
+    /**
+     * Quote a column name for use in a condition.
+     *
+     * @param databaseType the type of the database.
+     * @param alias        one of {@link #ROW}, {@link #PAIRING} or {@link #SERVICE}.
+     * @param column       the name of the column.
+     * @return the qualified column name.
+     */
+    static String column(final DatabaseType databaseType, final String alias, final String column) {
+        final StringBuilder sb = new StringBuilder(alias).append('.');
+        databaseType.appendEscapedEntityName(sb, column);
+        return sb.toString();
+    }
+
+    /**
+     * Quote a column name for use in a condition.
+     *
+     * @param dao    any data access object for the database.
+     * @param alias  one of {@link #ROW}, {@link #PAIRING} or {@link #SERVICE}.
+     * @param column the name of the column.
+     * @return the qualified column name.
+     */
+    static String column(final Dao<?, ?> dao, final String alias, final String column) {
+        return column(dao.getConnectionSource().getDatabaseType(), alias, column);
+    }
+
+    /**
+     * Link a row to the pairing it refers to.
+     *
+     * @param row     the row.
+     * @param pairing the pairing read with it.
+     */
+    protected abstract void setPairing(T row, DbPairingImp pairing);
+
+    /**
+     * Run the query.
+     *
+     * @param args the arguments for the condition, in order. Integers, longs, strings and byte
+     *             arrays are supported.
+     * @return the rows read, each linked to its pairing and service.
+     * @throws SQLException thrown if the query fails.
+     */
+    List<T> query(final Object... args) throws SQLException {
+        final DbInstrumentation.Call call = DbInstrumentation.begin(rowDao, "graphQuery");
+        List<T> result = null;
+        try {
+            result = run(args);
+            return result;
+        } finally {
+            call.end(result, result == null);
+        }
+    }
+
+    // Pairings are linked to their services with ORMLite's setter, as ORMLite itself would
+    @SuppressWarnings("deprecation")
+    private List<T> run(final Object[] args) throws SQLException {
+        prepare();
+        final List<T> result = new ArrayList<T>();
+        final Map<Integer, DbPairingImp> pairingsById = new HashMap<Integer, DbPairingImp>();
+        final Map<Integer, DbServiceImp> servicesById = new HashMap<Integer, DbServiceImp>();
+
+        final DatabaseConnection connection = connectionSource.getReadOnlyConnection();
+        try {
+            final CompiledStatement statement = connection.compileStatement(
+                sql, StatementType.SELECT, NO_ARG_TYPES, DatabaseConnection.DEFAULT_RESULT_FLAGS);
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    statement.setObject(i, args[i], sqlTypeOf(args[i]));
+                }
+                final DatabaseResults results = statement.runQuery(null);
+                while (results.next()) {
+                    final int serviceId = services.getId(results);
+                    DbServiceImp service = servicesById.get(serviceId);
+                    if (service == null) {
+                        service = services.read(results);
+                        service.setDao(serviceDao);
+                        servicesById.put(serviceId, service);
+                    }
+
+                    final int pairingId = pairings.getId(results);
+                    DbPairingImp pairing = pairingsById.get(pairingId);
+                    if (pairing == null) {
+                        pairing = pairings.read(results);
+                        pairing.setDbService(service);
+                        pairing.setDao(pairingDao);
+                        pairingsById.put(pairingId, pairing);
+                    }
+
+                    final T row = rows.read(results);
+                    setPairing(row, pairing);
+                    result.add(row);
+                }
+            } finally {
+                statement.closeQuietly();
+            }
+        } finally {
+            connectionSource.releaseConnection(connection);
+        }
+        return result;
+    }
+
+    /**
+     * Run the query, returning the first row.
+     *
+     * @param args the arguments for the condition.
+     * @return the first row, or <code>null</code> if there were none.
+     * @throws SQLException thrown if the query fails.
+     */
+    T queryForFirst(final Object... args) throws SQLException {
+        final List<T> result = query(args);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    private synchronized void prepare() throws SQLException {
+        if (sql != null) {
+            return;
+        }
+        if (pairingDao == null) {
+            pairingDao = DaoManager.createDao(connectionSource, DbPairingImp.class);
+        }
+        if (serviceDao == null) {
+            serviceDao = DaoManager.createDao(connectionSource, DbServiceImp.class);
+        }
+        rows = new Table<T>(tableInfo(rowDao), 0);
+        pairings = new Table<DbPairingImp>(tableInfo(pairingDao), rows.fields.size());
+        services = new Table<DbServiceImp>(
+            tableInfo(serviceDao), rows.fields.size() + pairings.fields.size());
+
+        final DatabaseType databaseType = connectionSource.getDatabaseType();
+        final StringBuilder sb = new StringBuilder("SELECT ");
+        appendColumns(sb, databaseType, ROW, rows);
+        sb.append(", ");
+        appendColumns(sb, databaseType, PAIRING, pairings);
+        sb.append(", ");
+        appendColumns(sb, databaseType, SERVICE, services);
+        sb.append(" FROM ");
+        databaseType.appendEscapedEntityName(sb, rows.info.getTableName());
+        sb.append(' ').append(ROW).append(" JOIN ");
+        databaseType.appendEscapedEntityName(sb, pairings.info.getTableName());
+        sb.append(' ').append(PAIRING).append(" ON ")
+            .append(column(databaseType, ROW, pairingColumn)).append(" = ")
+            .append(column(databaseType, PAIRING, DbPairingImp.ID_COLUMN))
+            .append(" JOIN ");
+        databaseType.appendEscapedEntityName(sb, services.info.getTableName());
+        sb.append(' ').append(SERVICE).append(" ON ")
+            .append(column(databaseType, PAIRING, DbPairingImp.SERVICE_COLUMN)).append(" = ")
+            .append(column(databaseType, SERVICE, DbServiceImp.ID_COLUMN));
+        if (condition != null) {
+            sb.append(" WHERE ").append(condition);
+        }
+        sb.append(" ORDER BY ")
+            .append(column(databaseType, ROW, rows.info.getIdField().getColumnName()));
+        sql = sb.toString();
+    }
+
+    private static void appendColumns(final StringBuilder sb, final DatabaseType databaseType,
+                                      final String alias, final Table<?> table) {
+        boolean first = true;
+        for (FieldType field : table.fields) {
+            if (!first) {
+                sb.append(", ");
+            }
+            sb.append(column(databaseType, alias, field.getColumnName()));
+            first = false;
+        }
+    }
+
+    /**
+     * Get ORMLite's description of the table a DAO reads, looking through instrumentation.
+     */
+    static <E> TableInfo<E, Integer> tableInfo(final Dao<E, Integer> dao) {
+        final Dao<E, Integer> unwrapped = DbInstrumentation.unwrap(dao);
+        if (!(unwrapped instanceof BaseDaoImpl)) {
+            throw new IllegalArgumentException("Joined queries need ORMLite's own DAOs");
+        }
+        return ((BaseDaoImpl<E, Integer>) unwrapped).getTableInfo();
+    }
+
+    private static SqlType sqlTypeOf(final Object arg) {
+        if (arg instanceof Integer) {
+            return SqlType.INTEGER;
+        } else if (arg instanceof Long) {
+            return SqlType.LONG;
+        } else if (arg instanceof String) {
+            return SqlType.STRING;
+        } else if (arg instanceof byte[]) {
+            return SqlType.BYTE_ARRAY;
+        } else {
+            throw new IllegalArgumentException("Unsupported argument type: " + arg);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.j256.ormlite.dao.ObjectCache;
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.field.SqlType;
+import com.j256.ormlite.stmt.GenericRowMapper;
+import com.j256.ormlite.stmt.StatementBuilder.StatementType;
+import com.j256.ormlite.support.CompiledStatement;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+import com.j256.ormlite.support.DatabaseResults;
+import com.j256.ormlite.support.GeneratedKeyHolder;
+
+/**
+ * A {@link ConnectionSource} which reports every statement run through it to registered
+ * {@link StatementListener}s.
+ * <p>
+ * Wrap the connection source before creating any factories or accessors from it, so that their
+ * DAOs use the wrapper. This includes the queries ORMLite makes by itself, such as refreshing
+ * foreign fields, which makes it possible to check how many statements an operation needs.
+ */
+public class InstrumentedConnectionSource implements ConnectionSource {
+
+    private final ConnectionSource delegate;
+    private final List<StatementListener> listeners =
+        new CopyOnWriteArrayList<StatementListener>();
+
+    /**
+     * Constructor.
+     *
+     * @param delegate the connection source to instrument.
+     */
+    public InstrumentedConnectionSource(final ConnectionSource delegate) {
+        if (delegate == null) {
+            throw new NullPointerException();
+        }
+        this.delegate = delegate;
+    }
+
+    /**
+     * Register a listener.
+     *
+     * @param listener the listener to register.
+     */
+    public void addListener(final StatementListener listener) {
+        if (listener == null) {
+            throw new NullPointerException();
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     *
+     * @param listener the listener to remove.
+     */
+    public void removeListener(final StatementListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the connection source being instrumented.
+     */
+    public ConnectionSource getDelegate() {
+        return delegate;
+    }
+
+    private void executed(final String statement, final long start) {
+        final long elapsed = System.nanoTime() - start;
+        for (StatementListener listener : listeners) {
+            listener.statementExecuted(statement, elapsed);
+        }
+    }
+
+    private DatabaseConnection wrap(final DatabaseConnection connection) {
+        return (connection == null) ? null : new Connection(connection);
+    }
+
+    private static DatabaseConnection unwrap(final DatabaseConnection connection) {
+        return (connection instanceof Connection)
+            ? ((Connection) connection).connection : connection;
+    }
+
+    /* *************** ConnectionSource *************** */
+
+    @Override
+    public DatabaseConnection getReadOnlyConnection() throws SQLException {
+        return wrap(delegate.getReadOnlyConnection());
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        return wrap(delegate.getReadWriteConnection());
+    }
+
+    @Override
+    public void releaseConnection(final DatabaseConnection connection) throws SQLException {
+        delegate.releaseConnection(unwrap(connection));
+    }
+
+    @Override
+    public boolean saveSpecialConnection(final DatabaseConnection connection)
+        throws SQLException {
+        return delegate.saveSpecialConnection(unwrap(connection));
+    }
+
+    @Override
+    public void clearSpecialConnection(final DatabaseConnection connection) {
+        delegate.clearSpecialConnection(unwrap(connection));
+    }
+
+    @Override
+    public DatabaseConnection getSpecialConnection() {
+        return wrap(delegate.getSpecialConnection());
+    }
+
+    @Override
+    public void close() throws SQLException {
+        delegate.close();
+    }
+
+    @Override
+    public void closeQuietly() {
+        delegate.closeQuietly();
+    }
+
+    @Override
+    public DatabaseType getDatabaseType() {
+        return delegate.getDatabaseType();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return delegate.isOpen();
+    }
+
+    /* *************** Wrappers *************** */
+
+    private final class Connection implements DatabaseConnection {
+
+        final DatabaseConnection connection;
+
+        Connection(final DatabaseConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public boolean isAutoCommitSupported() throws SQLException {
+            return connection.isAutoCommitSupported();
+        }
+
+        @Override
+        public boolean isAutoCommit() throws SQLException {
+            return connection.isAutoCommit();
+        }
+
+        @Override
+        public void setAutoCommit(final boolean autoCommit) throws SQLException {
+            connection.setAutoCommit(autoCommit);
+        }
+
+        @Override
+        public Savepoint setSavePoint(final String name) throws SQLException {
+            return connection.setSavePoint(name);
+        }
+
+        @Override
+        public void commit(final Savepoint savePoint) throws SQLException {
+            connection.commit(savePoint);
+        }
+
+        @Override
+        public void rollback(final Savepoint savePoint) throws SQLException {
+            connection.rollback(savePoint);
+        }
+
+        @Override
+        public int executeStatement(final String statement, final int resultFlags)
+            throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.executeStatement(statement, resultFlags);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public CompiledStatement compileStatement(final String statement,
+                                                  final StatementType type,
+                                                  final FieldType[] argFieldTypes)
+            throws SQLException {
+            return new Statement(
+                statement, connection.compileStatement(statement, type, argFieldTypes));
+        }
+
+        @Override
+        public CompiledStatement compileStatement(final String statement,
+                                                  final StatementType type,
+                                                  final FieldType[] argFieldTypes,
+                                                  final int resultFlags)
+            throws SQLException {
+            return new Statement(statement,
+                connection.compileStatement(statement, type, argFieldTypes, resultFlags));
+        }
+
+        @Override
+        public int insert(final String statement, final Object[] args,
+                          final FieldType[] argFieldTypes, final GeneratedKeyHolder keyHolder)
+            throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.insert(statement, args, argFieldTypes, keyHolder);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public int update(final String statement, final Object[] args,
+                          final FieldType[] argFieldTypes) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.update(statement, args, argFieldTypes);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public int delete(final String statement, final Object[] args,
+                          final FieldType[] argFieldTypes) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.delete(statement, args, argFieldTypes);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public <T> Object queryForOne(final String statement, final Object[] args,
+                                      final FieldType[] argFieldTypes,
+                                      final GenericRowMapper<T> rowMapper,
+                                      final ObjectCache objectCache) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.queryForOne(
+                    statement, args, argFieldTypes, rowMapper, objectCache);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public long queryForLong(final String statement) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.queryForLong(statement);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public long queryForLong(final String statement, final Object[] args,
+                                 final FieldType[] argFieldTypes) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return connection.queryForLong(statement, args, argFieldTypes);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            connection.close();
+        }
+
+        @Override
+        public void closeQuietly() {
+            connection.closeQuietly();
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return connection.isClosed();
+        }
+
+        @Override
+        public boolean isTableExists(final String tableName) throws SQLException {
+            return connection.isTableExists(tableName);
+        }
+    }
+
+    private final class Statement implements CompiledStatement {
+
+        private final String statement;
+        private final CompiledStatement compiled;
+
+        Statement(final String statement, final CompiledStatement compiled) {
+            this.statement = statement;
+            this.compiled = compiled;
+        }
+
+        @Override
+        public int getColumnCount() throws SQLException {
+            return compiled.getColumnCount();
+        }
+
+        @Override
+        public String getColumnName(final int column) throws SQLException {
+            return compiled.getColumnName(column);
+        }
+
+        @Override
+        public int runUpdate() throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return compiled.runUpdate();
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public DatabaseResults runQuery(final ObjectCache objectCache) throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return compiled.runQuery(objectCache);
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public int runExecute() throws SQLException {
+            final long start = System.nanoTime();
+            try {
+                return compiled.runExecute();
+            } finally {
+                executed(statement, start);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            compiled.close();
+        }
+
+        @Override
+        public void closeQuietly() {
+            compiled.closeQuietly();
+        }
+
+        @Override
+        public void setObject(final int parameterIndex, final Object obj, final SqlType sqlType)
+            throws SQLException {
+            compiled.setObject(parameterIndex, obj, sqlType);
+        }
+
+        @Override
+        public void setMaxRows(final int max) throws SQLException {
+            compiled.setMaxRows(max);
+        }
+
+        @Override
+        public void setQueryTimeout(final long millis) throws SQLException {
+            compiled.setQueryTimeout(millis);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Decodes the Elliptic Curve keys stored in the database.
+ * <p>
+ * Looking up a {@link KeyFactory} walks the registered security providers, which costs far more
+ * than decoding a single key. Instances are not guaranteed to be thread safe, so each thread
+ * looks up its own factory once and then reuses it.
+ *
+ * @see PublicKeyPersister
+ * @see PrivateKeyPersister
+ */
+final class KeyDecoder {
+
+    private static final ThreadLocal<KeyFactory> EC_KEY_FACTORY = new ThreadLocal<KeyFactory>() {
+        @Override
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance("EC");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("No EC key factory available", e);
+            }
+        }
+    };
+
+    private KeyDecoder() {
+        // Static methods only
+    }
+
+    /**
+     * Decode an X509 encoded public key.
+     *
+     * @param encoded the encoded key.
+     * @return the public key.
+     * @throws InvalidKeySpecException thrown if the bytes are not a valid EC public key.
+     */
+    static PublicKey decodePublicKey(final byte[] encoded) throws InvalidKeySpecException {
+        return EC_KEY_FACTORY.get().generatePublic(new X509EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Decode a PKCS8 encoded private key.
+     *
+     * @param encoded the encoded key.
+     * @return the private key.
+     * @throws InvalidKeySpecException thrown if the bytes are not a valid EC private key.
+     */
+    static PrivateKey decodePrivateKey(final byte[] encoded) throws InvalidKeySpecException {
+        return EC_KEY_FACTORY.get().generatePrivate(new PKCS8EncodedKeySpec(encoded));
+    }
+
+    /**
+     * Decode a stored public key, for use where the bytes have already been read from the
+     * database and a checked exception cannot be thrown.
+     *
+     * @param encoded the encoded key.
+     * @return the public key.
+     * @throws IllegalStateException thrown if the stored bytes are not a valid key.
+     */
+    static PublicKey storedPublicKey(final byte[] encoded) {
+        try {
+            return decodePublicKey(encoded);
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("Stored public key is invalid", e);
+        }
+    }
+
+    /**
+     * Decode a stored private key, for use where the bytes have already been read from the
+     * database and a checked exception cannot be thrown.
+     *
+     * @param encoded the encoded key.
+     * @return the private key.
+     * @throws IllegalStateException thrown if the stored bytes are not a valid key.
+     */
+    static PrivateKey storedPrivateKey(final byte[] encoded) {
+        try {
+            return decodePrivateKey(encoded);
+        } catch (InvalidKeySpecException e) {
+            throw new IllegalStateException("Stored private key is invalid", e);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+
+import com.j256.ormlite.dao.CloseableIterator;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.stmt.PreparedQuery;
+import com.j256.ormlite.stmt.SelectArg;
+
+/**
+ * A {@link DbCursor} which reads a table in pages of rows ordered by id.
+ * <p>
+ * Each page is fetched with a separate query for the rows whose id follows the last one
+ * returned, and streamed with an ORMLite {@link CloseableIterator}. The database cursor is
+ * therefore only held open while a page is being read, and rows saved or deleted during the
+ * enumeration do not disturb it.
+ *
+ * @param <I> the type of row read from the database.
+ * @param <T> the type of object returned by the cursor.
+ */
+abstract class PagedCursor<I, T> implements DbCursor<T> {
+
+    private final Dao<I, Integer> dao;
+    private final long pageSize;
+    private final SelectArg lastIdArg = new SelectArg();
+    private final PreparedQuery<I> pageQuery;
+    private CloseableIterator<I> page;
+    private int rowsInPage = 0;
+    private int lastId = 0;
+    private boolean isFinished = false;
+
+    /**
+     * Constructor.
+     *
+     * @param dao      the data access object for the table.
+     * @param idColumn the name of the table's id column.
+     * @param pageSize the maximum number of rows to read with each query.
+     * @throws SQLException thrown if the query cannot be prepared.
+     */
+    PagedCursor(final Dao<I, Integer> dao, final String idColumn, final int pageSize)
+        throws SQLException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        this.dao = dao;
+        this.pageSize = pageSize;
+        pageQuery = dao.queryBuilder()
+            .orderBy(idColumn, true)
+            .limit(this.pageSize)
+            .where()
+            .gt(idColumn, lastIdArg)
+            .prepare();
+    }
+
+    /**
+     * Get the id of a row, which must be the value of the id column given to the constructor.
+     *
+     * @param row the row.
+     * @return the row's id.
+     */
+    protected abstract int getRowId(I row);
+
+    /**
+     * Convert a row into the object returned by the cursor.
+     *
+     * @param row the row.
+     * @return the object to return.
+     */
+    protected abstract T wrap(I row);
+
+    @Override
+    public boolean hasNext() {
+        while (!isFinished) {
+            if (page != null) {
+                if (page.hasNext()) {
+                    return true;
+                }
+                closePage();
+                if (rowsInPage < pageSize) {
+                    // A short page is the last one
+                    isFinished = true;
+                    break;
+                }
+            }
+            try {
+                lastIdArg.setValue(lastId);
+                page = dao.iterator(pageQuery);
+                rowsInPage = 0;
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Could not read next page", e);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final I row = page.next();
+        rowsInPage++;
+        lastId = getRowId(row);
+        return wrap(row);
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        closePage();
+        isFinished = true;
+    }
+
+    private void closePage() {
+        if (page != null) {
+            page.closeQuietly();
+            page = null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mypico.jpico.util.MetricsSource;
+
+import com.j256.ormlite.jdbc.JdbcPooledConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * A pool of JDBC connections of bounded size, so that several threads can use the database at
+ * once rather than queueing on a single connection.
+ * <p>
+ * {@link JdbcPooledConnectionSource} opens a new connection whenever none is free and only limits
+ * how many idle connections it keeps. This class also limits how many connections are in use at
+ * once: a thread asking for a connection when all of them are taken waits until one is released.
+ * A thread which already holds a connection, for example inside a transaction, is never made to
+ * wait for another, so nested calls cannot deadlock however small the pool is. A connection may
+ * be released by a different thread from the one that obtained it, such as a worker closing a
+ * cursor, and a thread gives up waiting after {@link #getAcquireTimeout()} milliseconds.
+ * <p>
+ * The DAOs created for a pooled connection source are best shared between threads using a
+ * single {@link DbDaos} instance.
+ */
+public class PooledConnectionSource extends JdbcPooledConnectionSource implements MetricsSource {
+
+    /**
+     * Default maximum number of connections in use at once.
+     */
+    public static final int DEFAULT_POOL_SIZE = 8;
+
+    /**
+     * Default time in milliseconds to wait for a connection before giving up.
+     */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+    private final int poolSize;
+    private final Semaphore permits;
+    private volatile long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    // Number of connections handed out to each thread and not yet released. A thread holds one
+    // permit for as long as this is non-zero.
+    private final Map<Thread, Integer> heldByThread = new HashMap<Thread, Integer>();
+    // The thread each connection was handed out to, once for each time it was handed out
+    private final Map<DatabaseConnection, Owner> owners =
+        new IdentityHashMap<DatabaseConnection, Owner>();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+
+    /**
+     * Constructor using the default pool size.
+     *
+     * @param url the JDBC URL of the database.
+     * @throws SQLException thrown if the database cannot be opened.
+     */
+    public PooledConnectionSource(final String url) throws SQLException {
+        this(url, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param url      the JDBC URL of the database.
+     * @param poolSize the maximum number of connections in use at once.
+     * @throws SQLException thrown if the database cannot be opened.
+     */
+    public PooledConnectionSource(final String url, final int poolSize) throws SQLException {
+        super(url);
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
+        this.poolSize = poolSize;
+        this.permits = new Semaphore(poolSize, true);
+        setMaxConnectionsFree(poolSize);
+    }
+
+    /**
+     * Get the maximum number of connections in use at once.
+     *
+     * @return the pool size.
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Get the time to wait for a connection when all of them are in use.
+     *
+     * @return the timeout in milliseconds.
+     */
+    public long getAcquireTimeout() {
+        return acquireTimeout;
+    }
+
+    /**
+     * Set the time to wait for a connection when all of them are in use. A thread still waiting
+     * when the timeout expires gets an {@link SQLException}.
+     *
+     * @param acquireTimeout the timeout in milliseconds.
+     */
+    public void setAcquireTimeout(final long acquireTimeout) {
+        if (acquireTimeout < 0) {
+            throw new IllegalArgumentException("acquireTimeout cannot be negative");
+        }
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * Get the number of connections currently in use.
+     *
+     * @return the number of connections handed out and not yet released.
+     */
+    public int getConnectionsInUse() {
+        return poolSize - permits.availablePermits();
+    }
+
+    // JdbcPooledConnectionSource hands out read-only connections from getReadWriteConnection
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        final Thread thread = Thread.currentThread();
+        acquire(thread);
+        boolean ok = false;
+        try {
+            final DatabaseConnection connection = super.getReadWriteConnection();
+            synchronized (owners) {
+                Owner owner = owners.get(connection);
+                if (owner == null) {
+                    owner = new Owner(thread);
+                    owners.put(connection, owner);
+                }
+                owner.count++;
+            }
+            ok = true;
+            return connection;
+        } finally {
+            if (!ok) {
+                release(thread);
+            }
+        }
+    }
+
+    @Override
+    public void releaseConnection(final DatabaseConnection connection) throws SQLException {
+        // Charge the release to the thread the connection was handed out to, which need not be
+        // the one releasing it. This is done before the connection goes back to the pool, where
+        // another thread could pick it up.
+        final Thread thread;
+        synchronized (owners) {
+            final Owner owner = owners.get(connection);
+            if (owner == null) {
+                thread = null;
+            } else {
+                thread = owner.thread;
+                if (--owner.count == 0) {
+                    owners.remove(connection);
+                }
+            }
+        }
+        try {
+            super.releaseConnection(connection);
+        } finally {
+            if (thread != null) {
+                release(thread);
+            }
+        }
+    }
+
+    private void acquire(final Thread thread) throws SQLException {
+        synchronized (heldByThread) {
+            final Integer count = heldByThread.get(thread);
+            if (count != null) {
+                // Already holds a permit
+                heldByThread.put(thread, count + 1);
+                return;
+            }
+        }
+        acquisitions.incrementAndGet();
+        if (!permits.tryAcquire()) {
+            waits.incrementAndGet();
+            final boolean acquired;
+            try {
+                acquired = permits.tryAcquire(acquireTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted waiting for a database connection", e);
+            }
+            if (!acquired) {
+                throw new SQLException("timed out after " + acquireTimeout
+                    + "ms waiting for a database connection");
+            }
+        }
+        synchronized (heldByThread) {
+            heldByThread.put(thread, 1);
+        }
+    }
+
+    private void release(final Thread thread) {
+        synchronized (heldByThread) {
+            final Integer count = heldByThread.get(thread);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                heldByThread.put(thread, count - 1);
+                return;
+            }
+            heldByThread.remove(thread);
+        }
+        permits.release();
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("poolSize", poolSize);
+        metrics.put("connectionsInUse", getConnectionsInUse());
+        metrics.put("connectionsOpen", getCurrentConnectionsManaged());
+        metrics.put("connectionsFree", getCurrentConnectionsFree());
+        metrics.put("maxConnectionsUsed", getMaxConnectionsEverUsed());
+        metrics.put("acquisitions", acquisitions.get());
+        metrics.put("waits", waits.get());
+        return metrics;
+    }
+
+    /**
+     * The thread a connection was handed out to, and how many times it is currently handed out.
+     * Within a transaction the same connection is returned for each nested call.
+     */
+    private static class Owner {
+        final Thread thread;
+        int count = 0;
+
+        Owner(final Thread thread) {
+            this.thread = thread;
+        }
+    }
+}
@@ -29,11 +29,8 @@ import com.j256.ormlite.field.types.BaseDataType;
 import com.j256.ormlite.misc.SqlExceptionUtil;
 import com.j256.ormlite.support.DatabaseResults;
 
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.sql.SQLException;
 
 /**
@@ -101,11 +98,8 @@ public class PrivateKeyPersister extends BaseDataType {
     public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos)
         throws SQLException {
         try {
-            PrivateKey privateKey = KeyFactory.getInstance("EC").generatePrivate(
-                new PKCS8EncodedKeySpec((byte[]) sqlArg));
+            PrivateKey privateKey = KeyDecoder.decodePrivateKey((byte[]) sqlArg);
             return privateKey;
-        } catch (NoSuchAlgorithmException e) {
-            throw SqlExceptionUtil.create("No such algorithm", e);
         } catch (InvalidKeySpecException e) {
             throw SqlExceptionUtil.create("Invalid key spec", e);
         }
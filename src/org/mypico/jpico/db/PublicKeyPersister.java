@@ -29,11 +29,8 @@ import com.j256.ormlite.field.types.BaseDataType;
 import com.j256.ormlite.misc.SqlExceptionUtil;
 import com.j256.ormlite.support.DatabaseResults;
 
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 import java.sql.SQLException;
 
 /**
@@ -101,11 +98,8 @@ public class PublicKeyPersister extends BaseDataType {
     public Object sqlArgToJava(FieldType fieldType, Object sqlArg, int columnPos)
         throws SQLException {
         try {
-            PublicKey publicKey = KeyFactory.getInstance("EC").generatePublic(
-                new X509EncodedKeySpec(((byte[]) sqlArg)));
+            PublicKey publicKey = KeyDecoder.decodePublicKey((byte[]) sqlArg);
             return publicKey;
-        } catch (NoSuchAlgorithmException e) {
-            throw SqlExceptionUtil.create("No such algorithm", e);
         } catch (InvalidKeySpecException e) {
             throw SqlExceptionUtil.create("Invalid key spec", e);
         }
@@ -0,0 +1,317 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.mypico.jpico.util.MetricsSource;
+
+import com.j256.ormlite.db.DatabaseType;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.support.DatabaseConnection;
+
+/**
+ * A {@link ConnectionSource} which sends writes to a primary database and spreads reads across
+ * read-only replicas of it.
+ * <p>
+ * ORMLite asks for a read-write connection for every insert, update and delete, including those
+ * made by <code>save()</code> and <code>delete()</code>, and for every transaction, and for a
+ * read-only connection for every query. Read-write connections always come from the primary.
+ * Read-only connections come from a replica, taking them in turn, unless that could hide a write
+ * the same thread has made: each thread reads its own writes. A thread therefore reads from the
+ * primary while it holds a read-write connection or is in a transaction, and afterwards until a
+ * replica has been refreshed from a copy of the primary taken after its last write. Other threads
+ * may see data as old as the replica they read from.
+ * <p>
+ * How replicas are kept up to date is up to the caller, which must report each refresh with
+ * {@link #replicaRefreshed(int, long)}. Until it has been refreshed once a replica is not used.
+ * Wrap the connection sources before creating any factories or accessors from them, so that
+ * their DAOs use the wrapper.
+ */
+public class ReplicatedConnectionSource implements ConnectionSource, MetricsSource {
+
+    /**
+     * What a thread has done with the primary.
+     */
+    private static final class ThreadState {
+        // Primary connections currently held
+        int primaryHeld = 0;
+        // Whether a read-write connection has been taken since the thread last held none
+        boolean writing = false;
+        // System.nanoTime() when the thread last released a connection it may have written with
+        long lastWrite = Long.MIN_VALUE;
+    }
+
+    private final ConnectionSource primary;
+    private final List<ConnectionSource> replicas;
+    // System.nanoTime() when the copy each replica was last refreshed from was taken
+    private final AtomicLongArray refreshedAt;
+    // The source each connection handed out came from, and how many times it is held
+    private final Map<DatabaseConnection, ConnectionSource> owners =
+        new IdentityHashMap<DatabaseConnection, ConnectionSource>();
+    private final Map<DatabaseConnection, int[]> holds =
+        new IdentityHashMap<DatabaseConnection, int[]>();
+    private final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
+        @Override
+        protected ThreadState initialValue() {
+            return new ThreadState();
+        }
+    };
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicLong primaryReads = new AtomicLong();
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong ownWriteReads = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param primary  the connection source of the primary database.
+     * @param replicas the connection sources of the replicas, which may be empty.
+     */
+    public ReplicatedConnectionSource(final ConnectionSource primary,
+                                      final List<? extends ConnectionSource> replicas) {
+        if (primary == null || replicas == null) {
+            throw new NullPointerException();
+        }
+        this.primary = primary;
+        this.replicas = Collections.unmodifiableList(new ArrayList<ConnectionSource>(replicas));
+        refreshedAt = new AtomicLongArray(replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            refreshedAt.set(i, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * @return the connection source of the primary database.
+     */
+    public ConnectionSource getPrimary() {
+        return primary;
+    }
+
+    /**
+     * @return the connection sources of the replicas.
+     */
+    public List<ConnectionSource> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Report that a replica has been refreshed. Threads which wrote to the primary before the
+     * copy was taken may now read from the replica.
+     *
+     * @param replica      the index of the replica in {@link #getReplicas()}.
+     * @param copyStarted  the value of {@link System#nanoTime()} when the copy of the primary the
+     *                     replica now holds was started. It must include every write committed
+     *                     before then.
+     */
+    public void replicaRefreshed(final int replica, final long copyStarted) {
+        refreshedAt.set(replica, copyStarted);
+    }
+
+    /**
+     * Stop reading from a replica, for example while it is being refreshed, until
+     * {@link #replicaRefreshed(int, long)} is next called for it.
+     *
+     * @param replica the index of the replica in {@link #getReplicas()}.
+     */
+    public void replicaUnavailable(final int replica) {
+        refreshedAt.set(replica, Long.MIN_VALUE);
+    }
+
+    /**
+     * Choose the replica to read from, taking them in turn.
+     *
+     * @return the replica's connection source, or null if the primary must be read from.
+     */
+    private ConnectionSource chooseReplica(final ThreadState state) {
+        final int count = replicas.size();
+        final int start = nextReplica.getAndIncrement();
+        for (int i = 0; i < count; i++) {
+            final int replica = ((start + i) % count + count) % count;
+            final long refreshed = refreshedAt.get(replica);
+            if (refreshed != Long.MIN_VALUE && (state.lastWrite == Long.MIN_VALUE
+                || refreshed - state.lastWrite >= 0)) {
+                return replicas.get(replica);
+            }
+        }
+        return null;
+    }
+
+    private boolean isReplicaAvailable() {
+        for (int i = 0; i < replicas.size(); i++) {
+            if (refreshedAt.get(i) != Long.MIN_VALUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private DatabaseConnection held(final ConnectionSource source,
+                                    final DatabaseConnection connection) {
+        synchronized (owners) {
+            owners.put(connection, source);
+            final int[] count = holds.get(connection);
+            if (count == null) {
+                holds.put(connection, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+        return connection;
+    }
+
+    /* *************** ConnectionSource *************** */
+
+    @Override
+    public DatabaseConnection getReadOnlyConnection() throws SQLException {
+        final ThreadState state = threadState.get();
+        if (state.writing || primary.getSpecialConnection() != null) {
+            ownWriteReads.incrementAndGet();
+        } else {
+            final ConnectionSource replica = chooseReplica(state);
+            if (replica != null) {
+                replicaReads.incrementAndGet();
+                return held(replica, replica.getReadOnlyConnection());
+            } else if (state.lastWrite != Long.MIN_VALUE && isReplicaAvailable()) {
+                ownWriteReads.incrementAndGet();
+            }
+        }
+        primaryReads.incrementAndGet();
+        final DatabaseConnection connection = primary.getReadOnlyConnection();
+        state.primaryHeld++;
+        return held(primary, connection);
+    }
+
+    @Override
+    public DatabaseConnection getReadWriteConnection() throws SQLException {
+        final ThreadState state = threadState.get();
+        writes.incrementAndGet();
+        final DatabaseConnection connection = primary.getReadWriteConnection();
+        state.primaryHeld++;
+        state.writing = true;
+        return held(primary, connection);
+    }
+
+    @Override
+    public void releaseConnection(final DatabaseConnection connection) throws SQLException {
+        final ConnectionSource owner;
+        synchronized (owners) {
+            owner = owners.get(connection);
+            final int[] count = holds.get(connection);
+            if (count != null && --count[0] == 0) {
+                holds.remove(connection);
+                owners.remove(connection);
+            }
+        }
+        if (owner == null) {
+            throw new SQLException("Connection was not handed out by this connection source");
+        }
+        try {
+            owner.releaseConnection(connection);
+        } finally {
+            if (owner == primary) {
+                final ThreadState state = threadState.get();
+                if (state.writing) {
+                    // Anything written has been committed by now, unless in a transaction
+                    // which will release this or another primary connection when it ends
+                    state.lastWrite = System.nanoTime();
+                }
+                if (state.primaryHeld > 0 && --state.primaryHeld == 0) {
+                    state.writing = false;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean saveSpecialConnection(final DatabaseConnection connection)
+        throws SQLException {
+        return primary.saveSpecialConnection(connection);
+    }
+
+    @Override
+    public void clearSpecialConnection(final DatabaseConnection connection) {
+        primary.clearSpecialConnection(connection);
+    }
+
+    @Override
+    public DatabaseConnection getSpecialConnection() {
+        return primary.getSpecialConnection();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            primary.close();
+        } finally {
+            for (ConnectionSource replica : replicas) {
+                replica.closeQuietly();
+            }
+        }
+    }
+
+    @Override
+    public void closeQuietly() {
+        primary.closeQuietly();
+        for (ConnectionSource replica : replicas) {
+            replica.closeQuietly();
+        }
+    }
+
+    @Override
+    public DatabaseType getDatabaseType() {
+        return primary.getDatabaseType();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return primary.isOpen();
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        int available = 0;
+        for (int i = 0; i < replicas.size(); i++) {
+            if (refreshedAt.get(i) != Long.MIN_VALUE) {
+                available++;
+            }
+        }
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("replicas", replicas.size());
+        metrics.put("replicasAvailable", available);
+        metrics.put("replicaReads", replicaReads.get());
+        metrics.put("primaryReads", primaryReads.get());
+        metrics.put("ownWriteReads", ownWriteReads.get());
+        metrics.put("writes", writes.get());
+        return metrics;
+    }
+}
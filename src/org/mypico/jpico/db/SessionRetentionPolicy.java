@@ -0,0 +1,135 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.data.session.Session;
+
+/**
+ * Rules deciding which finished sessions {@link DbSessionRetention} removes from the database.
+ * <p>
+ * Only sessions whose status is {@link Session.Status#CLOSED} or {@link Session.Status#ERROR}
+ * are ever removed. A finished session is removed if either:
+ * <ul>
+ * <li>it was last authenticated longer ago than the maximum age, or</li>
+ * <li>its pairing has more than the maximum number of finished sessions, and it is not one of
+ * the most recently authenticated of them.</li>
+ * </ul>
+ * Either rule can be turned off. Instances are immutable.
+ */
+public final class SessionRetentionPolicy {
+
+    /**
+     * Value of the maximum age which keeps finished sessions however old they are.
+     */
+    public static final long NO_MAX_AGE = 0;
+
+    /**
+     * Value of the maximum sessions per pairing which keeps any number of finished sessions.
+     */
+    public static final int NO_MAX_SESSIONS = 0;
+
+    private final long maxAgeMillis;
+    private final int maxSessionsPerPairing;
+
+    /**
+     * Constructor.
+     *
+     * @param maxAge                the maximum age of a finished session, or
+     *                              {@link #NO_MAX_AGE}.
+     * @param unit                  the unit of <code>maxAge</code>.
+     * @param maxSessionsPerPairing the maximum number of finished sessions to keep for each
+     *                              pairing, or {@link #NO_MAX_SESSIONS}.
+     * @throws IllegalArgumentException if either limit is negative.
+     */
+    public SessionRetentionPolicy(
+        final long maxAge, final TimeUnit unit, final int maxSessionsPerPairing) {
+        if (maxAge < 0) {
+            throw new IllegalArgumentException("maxAge cannot be negative");
+        }
+        if (maxSessionsPerPairing < 0) {
+            throw new IllegalArgumentException("maxSessionsPerPairing cannot be negative");
+        }
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        this.maxSessionsPerPairing = maxSessionsPerPairing;
+    }
+
+    /**
+     * Create a policy which removes finished sessions older than a given age.
+     *
+     * @param maxAge the maximum age of a finished session.
+     * @param unit   the unit of <code>maxAge</code>.
+     * @return the new policy.
+     */
+    public static SessionRetentionPolicy maxAge(final long maxAge, final TimeUnit unit) {
+        return new SessionRetentionPolicy(maxAge, unit, NO_MAX_SESSIONS);
+    }
+
+    /**
+     * Create a policy which keeps only the most recent finished sessions of each pairing.
+     *
+     * @param maxSessionsPerPairing the number of finished sessions to keep for each pairing.
+     * @return the new policy.
+     */
+    public static SessionRetentionPolicy maxSessionsPerPairing(final int maxSessionsPerPairing) {
+        return new SessionRetentionPolicy(
+            NO_MAX_AGE, TimeUnit.MILLISECONDS, maxSessionsPerPairing);
+    }
+
+    /**
+     * Create a policy which keeps only the latest finished session of each pairing.
+     *
+     * @return the new policy.
+     */
+    public static SessionRetentionPolicy keepLatestClosed() {
+        return maxSessionsPerPairing(1);
+    }
+
+    /**
+     * @return the maximum age of a finished session in milliseconds, or {@link #NO_MAX_AGE}.
+     */
+    public long getMaxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    /**
+     * @return the maximum number of finished sessions kept for each pairing, or
+     * {@link #NO_MAX_SESSIONS}.
+     */
+    public int getMaxSessionsPerPairing() {
+        return maxSessionsPerPairing;
+    }
+
+    /**
+     * @return <code>true</code> if this policy never removes any sessions.
+     */
+    public boolean keepsEverything() {
+        return maxAgeMillis == NO_MAX_AGE && maxSessionsPerPairing == NO_MAX_SESSIONS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<SessionRetentionPolicy maxAge=%d ms maxSessionsPerPairing=%d>",
+            maxAgeMillis, maxSessionsPerPairing);
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.mypico.jpico.data.DataAccessor;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Implementation of the {@link DataAccessor} interface for data spread across a set of
+ * {@link DbShards}.
+ * <p>
+ * Lookups by id go straight to the shard whose id range holds the id, and lookups by commitment
+ * to the shard chosen by the commitment, so each of them queries a single database. Bulk lookups
+ * query each shard holding any of the commitments, and the <code>getAll*</code> methods query
+ * every shard; in both cases the shards are queried in parallel and the results merged, in shard
+ * order. The threads used to do so are stopped by {@link #close()}.
+ */
+public class ShardedDbDataAccessor implements DataAccessor, Closeable {
+
+    /**
+     * A query made against a single shard.
+     */
+    private interface ShardQuery<T> {
+        T query(DbDataAccessor accessor, int shard) throws IOException;
+    }
+
+    /**
+     * A bulk lookup by commitment made against a single shard.
+     */
+    private interface BulkLookup<V> {
+        Map<ByteBuffer, V> lookup(DbDataAccessor accessor, List<byte[]> commitments)
+            throws IOException;
+    }
+
+    private final DbShards shards;
+    private final List<DbDataAccessor> accessors;
+    private final ExecutorService executor;
+
+    /**
+     * Constructor.
+     *
+     * @param shards The shards to read from.
+     */
+    public ShardedDbDataAccessor(final DbShards shards) {
+        this.shards = checkNotNull(shards, "shards cannot be null");
+        accessors = new ArrayList<DbDataAccessor>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            accessors.add(new DbDataAccessor(shards.getDaos(shard)));
+        }
+        executor = Executors.newFixedThreadPool(shards.size(), new ThreadFactoryBuilder()
+            .setNameFormat("jpico-shard-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Stop the threads used to query shards in parallel. Queries already running are allowed to
+     * finish, but no more may be made.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * @return the accessor for the shard whose id range holds the id, or <code>null</code> if no
+     * shard's does.
+     */
+    private DbDataAccessor forId(final int id) {
+        final int shard = shards.shardForId(id);
+        return (shard < 0) ? null : accessors.get(shard);
+    }
+
+    private DbDataAccessor forCommitment(final byte[] commitment) {
+        return accessors.get(shards.shardForCommitment(commitment));
+    }
+
+    /**
+     * Run a query against each of the given shards in parallel, and return the results in the
+     * same order.
+     */
+    private <T> List<T> fanOut(final List<Integer> shardIndices, final ShardQuery<T> query)
+        throws IOException {
+        final List<Future<T>> futures = new ArrayList<Future<T>>(shardIndices.size());
+        // The first shard is queried by this thread
+        for (final int shard : shardIndices.subList(1, shardIndices.size())) {
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() throws IOException {
+                    return query.query(accessors.get(shard), shard);
+                }
+            }));
+        }
+        final List<T> results = new ArrayList<T>(shardIndices.size());
+        try {
+            final int first = shardIndices.get(0);
+            results.add(query.query(accessors.get(first), first));
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst querying shards");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            // Don't leave other shards' queries running after a failure
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Run a query against every shard in parallel, and concatenate the results.
+     */
+    private <T> List<T> fanOutAll(final ShardQuery<List<T>> query) throws IOException {
+        final List<Integer> all = new ArrayList<Integer>(accessors.size());
+        for (int shard = 0; shard < accessors.size(); shard++) {
+            all.add(shard);
+        }
+        final List<T> merged = new ArrayList<T>();
+        for (List<T> result : fanOut(all, query)) {
+            merged.addAll(result);
+        }
+        return merged;
+    }
+
+    /**
+     * Split commitments between the shards holding them, run a bulk lookup against each of
+     * those shards in parallel, and merge the results.
+     */
+    private <V> Map<ByteBuffer, V> fanOutByCommitment(
+        final Collection<byte[]> commitments, final BulkLookup<V> lookup) throws IOException {
+        final Map<Integer, List<byte[]>> byShard = new TreeMap<Integer, List<byte[]>>();
+        for (byte[] commitment : commitments) {
+            final int shard = shards.shardForCommitment(commitment);
+            List<byte[]> list = byShard.get(shard);
+            if (list == null) {
+                list = new ArrayList<byte[]>();
+                byShard.put(shard, list);
+            }
+            list.add(commitment);
+        }
+        final Map<ByteBuffer, V> merged = new HashMap<ByteBuffer, V>();
+        if (byShard.isEmpty()) {
+            return merged;
+        }
+        final List<Map<ByteBuffer, V>> results = fanOut(new ArrayList<Integer>(byShard.keySet()),
+            new ShardQuery<Map<ByteBuffer, V>>() {
+                @Override
+                public Map<ByteBuffer, V> query(DbDataAccessor accessor, int shard)
+                    throws IOException {
+                    return lookup.lookup(accessor, byShard.get(shard));
+                }
+            });
+        for (Map<ByteBuffer, V> result : results) {
+            merged.putAll(result);
+        }
+        return merged;
+    }
+
+    @Override
+    public Pairing getPairingById(int id) throws IOException {
+        final DbDataAccessor accessor = forId(id);
+        return (accessor == null) ? null : accessor.getPairingById(id);
+    }
+
+    @Override
+    public LensPairing getLensPairingById(int pairingId) throws IOException {
+        final DbDataAccessor accessor = forId(pairingId);
+        return (accessor == null) ? null : accessor.getLensPairingById(pairingId);
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitment(byte[] commitment)
+        throws IOException {
+        return forCommitment(commitment).getLensPairingsByServiceCommitment(commitment);
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitmentAndCredentials(
+        byte[] commitment, Map<String, String> credentials) throws IOException {
+        return forCommitment(commitment).getLensPairingsByServiceCommitmentAndCredentials(
+            commitment, credentials);
+    }
+
+    @Override
+    public List<LensPairing> getAllLensPairings() throws IOException {
+        return fanOutAll(new ShardQuery<List<LensPairing>>() {
+            @Override
+            public List<LensPairing> query(DbDataAccessor accessor, int shard)
+                throws IOException {
+                return accessor.getAllLensPairings();
+            }
+        });
+    }
+
+    @Override
+    public KeyPairing getKeyPairingById(int pairingId) throws IOException {
+        final DbDataAccessor accessor = forId(pairingId);
+        return (accessor == null) ? null : accessor.getKeyPairingById(pairingId);
+    }
+
+    @Override
+    public List<KeyPairing> getKeyPairingsByServiceCommitment(byte[] commitment)
+        throws IOException {
+        return forCommitment(commitment).getKeyPairingsByServiceCommitment(commitment);
+    }
+
+    @Override
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        Collection<byte[]> commitments) throws IOException {
+        return fanOutByCommitment(commitments, new BulkLookup<List<KeyPairing>>() {
+            @Override
+            public Map<ByteBuffer, List<KeyPairing>> lookup(DbDataAccessor accessor,
+                                                            List<byte[]> commitments)
+                throws IOException {
+                return accessor.getKeyPairingsByServiceCommitments(commitments);
+            }
+        });
+    }
+
+    @Override
+    public List<KeyPairing> getAllKeyPairings() throws IOException {
+        return fanOutAll(new ShardQuery<List<KeyPairing>>() {
+            @Override
+            public List<KeyPairing> query(DbDataAccessor accessor, int shard)
+                throws IOException {
+                return accessor.getAllKeyPairings();
+            }
+        });
+    }
+
+    @Override
+    public Service getServiceById(int serviceId) throws IOException {
+        final DbDataAccessor accessor = forId(serviceId);
+        return (accessor == null) ? null : accessor.getServiceById(serviceId);
+    }
+
+    @Override
+    public Service getServiceByCommitment(byte[] commitment) throws IOException {
+        return forCommitment(commitment).getServiceByCommitment(commitment);
+    }
+
+    @Override
+    public Map<ByteBuffer, Service> getServicesByCommitments(Collection<byte[]> commitments)
+        throws IOException {
+        return fanOutByCommitment(commitments, new BulkLookup<Service>() {
+            @Override
+            public Map<ByteBuffer, Service> lookup(DbDataAccessor accessor,
+                                                   List<byte[]> commitments)
+                throws IOException {
+                return accessor.getServicesByCommitments(commitments);
+            }
+        });
+    }
+
+    @Override
+    public Terminal getTerminalById(int id) throws IOException {
+        final DbDataAccessor accessor = forId(id);
+        return (accessor == null) ? null : accessor.getTerminalById(id);
+    }
+
+    @Override
+    public Terminal getTerminalByCommitment(byte[] commitment) throws IOException {
+        return forCommitment(commitment).getTerminalByCommitment(commitment);
+    }
+
+    @Override
+    public List<Terminal> getAllTerminals() throws IOException {
+        return fanOutAll(new ShardQuery<List<Terminal>>() {
+            @Override
+            public List<Terminal> query(DbDataAccessor accessor, int shard)
+                throws IOException {
+                return accessor.getAllTerminals();
+            }
+        });
+    }
+
+    @Override
+    public Session getSessionById(int sessionId) throws IOException {
+        final DbDataAccessor accessor = forId(sessionId);
+        return (accessor == null) ? null : accessor.getSessionById(sessionId);
+    }
+
+    /**
+     * Get all sessions with the given status, from every shard.
+     *
+     * @param status the status to match.
+     * @return the matching sessions.
+     * @throws IOException if an <code>IOException</code> occurred whilst querying a shard.
+     * @see DbDataAccessor#getSessionsByStatus(Session.Status)
+     */
+    public List<Session> getSessionsByStatus(final Session.Status status) throws IOException {
+        return fanOutAll(new ShardQuery<List<Session>>() {
+            @Override
+            public List<Session> query(DbDataAccessor accessor, int shard)
+                throws IOException {
+                return accessor.getSessionsByStatus(status);
+            }
+        });
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.db;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import org.mypico.jpico.crypto.AuthToken;
+import org.mypico.jpico.data.DataFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.service.ServiceImp;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.Session.Error;
+import org.mypico.jpico.data.session.Session.Status;
+import org.mypico.jpico.data.terminal.Terminal;
+
+/**
+ * Implementation of the {@link DataFactory} interface which creates each object in one of a set
+ * of {@link DbShards}. Services are created in the shard chosen by their commitment, and
+ * pairings and sessions in the shard of their service, so that they are always stored together.
+ */
+public class ShardedDbDataFactory implements DataFactory {
+
+    private final DbShards shards;
+    private final List<DbDataFactory> factories;
+
+    /**
+     * Constructor.
+     *
+     * @param shards The shards to create objects in.
+     */
+    public ShardedDbDataFactory(final DbShards shards) {
+        this.shards = checkNotNull(shards, "shards cannot be null");
+        factories = new ArrayList<DbDataFactory>(shards.size());
+        for (int shard = 0; shard < shards.size(); shard++) {
+            factories.add(new DbDataFactory(shards.getDaos(shard)));
+        }
+    }
+
+    /**
+     * @param commitment the commitment of a service or terminal.
+     * @return the factory for the shard which holds the service or terminal.
+     */
+    private DbDataFactory forCommitment(final byte[] commitment) {
+        return factories.get(shards.shardForCommitment(commitment));
+    }
+
+    @Override
+    public ServiceImp getImp(String name, URI address, byte[] commitment) {
+        return forCommitment(commitment).getImp(name, address, commitment);
+    }
+
+    @Override
+    public DbServiceImp getImp(Service service) {
+        return forCommitment(service.getCommitment()).getImp(service);
+    }
+
+    @Override
+    public DbPairingImp getImp(String name, Service service) {
+        return forCommitment(service.getCommitment()).getImp(name, service);
+    }
+
+    @Override
+    public DbPairingImp getImp(Pairing pairing) {
+        return forCommitment(pairing.getService().getCommitment()).getImp(pairing);
+    }
+
+    @Override
+    public DbSessionImp getImp(
+        String remoteId,
+        SecretKey secretKey,
+        Pairing pairing,
+        AuthToken authToken,
+        Date lastAuthDate,
+        Status status,
+        Error error) {
+        return forCommitment(pairing.getService().getCommitment()).getImp(
+            remoteId,
+            secretKey,
+            pairing,
+            authToken,
+            lastAuthDate,
+            status,
+            error);
+    }
+
+    @Override
+    public DbSessionImp getImp(Session session) {
+        return forCommitment(session.getPairing().getService().getCommitment()).getImp(session);
+    }
+
+    @Override
+    public DbKeyPairingImp getImp(
+        String name,
+        Service service,
+        PublicKey publicKey,
+        PrivateKey privateKey,
+        String extraData) {
+        return forCommitment(service.getCommitment()).getImp(
+            name, service, publicKey, privateKey, extraData);
+    }
+
+    @Override
+    public DbKeyPairingImp getImp(
+        String name, Service service, KeyPair keyPair, String extraData) {
+        return forCommitment(service.getCommitment()).getImp(name, service, keyPair, extraData);
+    }
+
+    @Override
+    public DbKeyPairingImp getImp(KeyPairing keyPairing) {
+        return forCommitment(keyPairing.getService().getCommitment()).getImp(keyPairing);
+    }
+
+    @Override
+    public DbLensPairingImp getImp(String name, Service service, Map<String, String> credentials,
+                                   List<String> privateFields) {
+        return forCommitment(service.getCommitment()).getImp(
+            name, service, credentials, privateFields);
+    }
+
+    @Override
+    public DbLensPairingImp getImp(LensPairing lensPairing) {
+        return forCommitment(lensPairing.getService().getCommitment()).getImp(lensPairing);
+    }
+
+    @Override
+    public Terminal.Imp getImp(
+        String name, byte[] commitment, PublicKey picoPublicKey, PrivateKey picoPrivateKey) {
+        return forCommitment(commitment).getImp(name, commitment, picoPublicKey, picoPrivateKey);
+    }
+
+    @Override
+    public Terminal.Imp getImp(Terminal terminal) {
+        return forCommitment(terminal.getCommitment()).getImp(terminal);
+    }
+}
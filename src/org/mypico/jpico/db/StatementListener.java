@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+
+package org.mypico.jpico.db;
+
+/**
+ * Notified of every SQL statement run through an {@link InstrumentedConnectionSource}.
+ * <p>
+ * Callbacks are made on the thread that ran the statement, once it has finished, and should
+ * return quickly.
+ */
+public interface StatementListener {
+
+    /**
+     * Called after a statement has been run.
+     *
+     * @param statement    the SQL text of the statement.
+     * @param elapsedNanos the time taken to run the statement, in nanoseconds. For queries this
+     *                     covers executing the query but not reading its results.
+     */
+    void statementExecuted(String statement, long elapsedNanos);
+}
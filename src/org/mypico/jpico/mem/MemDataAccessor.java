@@ -0,0 +1,207 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mypico.jpico.data.DataAccessor;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+
+/**
+ * {@link DataAccessor} reading from a {@link MemDataStore}.
+ * <p>
+ * Lookups by id and by commitment are single hash lookups and never block, even while other
+ * threads are saving. Every call returns new instances, so changes made to them are not seen by
+ * other readers until they are saved.
+ *
+ * @see MemDataFactory
+ */
+public class MemDataAccessor implements DataAccessor {
+
+    private final MemDataStore store;
+
+    /**
+     * Constructor.
+     *
+     * @param store the store to read from.
+     */
+    public MemDataAccessor(final MemDataStore store) {
+        this.store = checkNotNull(store, "store cannot be null");
+    }
+
+    @Override
+    public Terminal getTerminalById(int id) throws IOException {
+        final MemTerminalImp imp = store.getTerminal(id);
+        return (imp != null) ? new Terminal(imp) : null;
+    }
+
+    @Override
+    public Terminal getTerminalByCommitment(byte[] commitment) throws IOException {
+        final MemTerminalImp imp = store.getTerminalByCommitment(commitment);
+        return (imp != null) ? new Terminal(imp) : null;
+    }
+
+    @Override
+    public List<Terminal> getAllTerminals() throws IOException {
+        final List<Terminal> terminals = new ArrayList<Terminal>();
+        for (MemTerminalImp imp : store.getAllTerminals()) {
+            terminals.add(new Terminal(imp));
+        }
+        return terminals;
+    }
+
+    @Override
+    public KeyPairing getKeyPairingById(int pairingId) throws IOException {
+        final MemPairingImp imp = store.getPairing(pairingId);
+        return (imp instanceof MemKeyPairingImp) ? new KeyPairing((MemKeyPairingImp) imp) : null;
+    }
+
+    @Override
+    public List<KeyPairing> getKeyPairingsByServiceCommitment(byte[] commitment)
+        throws IOException {
+        return keyPairings(store.getPairingsByServiceCommitment(commitment));
+    }
+
+    @Override
+    public Map<ByteBuffer, List<KeyPairing>> getKeyPairingsByServiceCommitments(
+        Collection<byte[]> commitments) throws IOException {
+        // Every lookup is a map lookup, so there is nothing to gain by batching
+        final Map<ByteBuffer, List<KeyPairing>> pairings =
+            new HashMap<ByteBuffer, List<KeyPairing>>();
+        for (byte[] commitment : commitments) {
+            pairings.put(ByteBuffer.wrap(commitment.clone()),
+                getKeyPairingsByServiceCommitment(commitment));
+        }
+        return pairings;
+    }
+
+    @Override
+    public List<KeyPairing> getAllKeyPairings() throws IOException {
+        return keyPairings(store.getAllPairings());
+    }
+
+    private static List<KeyPairing> keyPairings(final List<MemPairingImp> imps) {
+        final List<KeyPairing> pairings = new ArrayList<KeyPairing>();
+        for (MemPairingImp imp : imps) {
+            if (imp instanceof MemKeyPairingImp) {
+                pairings.add(new KeyPairing((MemKeyPairingImp) imp));
+            }
+        }
+        return pairings;
+    }
+
+    @Override
+    public LensPairing getLensPairingById(int pairingId) throws IOException {
+        final MemPairingImp imp = store.getPairing(pairingId);
+        return (imp instanceof MemLensPairingImp)
+            ? new LensPairing((MemLensPairingImp) imp) : null;
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitment(byte[] serviceLoginAction)
+        throws IOException {
+        return lensPairings(store.getPairingsByServiceCommitment(serviceLoginAction), null);
+    }
+
+    @Override
+    public List<LensPairing> getLensPairingsByServiceCommitmentAndCredentials(
+        byte[] serviceLoginAction, Map<String, String> credentials) throws IOException {
+        checkNotNull(credentials, "credentials cannot be null");
+        return lensPairings(
+            store.getPairingsByServiceCommitment(serviceLoginAction), credentials);
+    }
+
+    @Override
+    public List<LensPairing> getAllLensPairings() throws IOException {
+        return lensPairings(store.getAllPairings(), null);
+    }
+
+    /**
+     * Pick out the lens pairings from a list of pairings.
+     *
+     * @param imps        the pairings.
+     * @param credentials if not <code>null</code>, only pairings with exactly these credentials
+     *                    are picked.
+     * @return the lens pairings.
+     */
+    private static List<LensPairing> lensPairings(
+        final List<MemPairingImp> imps, final Map<String, String> credentials) {
+        final List<LensPairing> pairings = new ArrayList<LensPairing>();
+        for (MemPairingImp imp : imps) {
+            if (imp instanceof MemLensPairingImp && (credentials == null
+                || ((MemLensPairingImp) imp).getCredentials().equals(credentials))) {
+                pairings.add(new LensPairing((MemLensPairingImp) imp));
+            }
+        }
+        return pairings;
+    }
+
+    @Override
+    public Pairing getPairingById(int id) throws IOException {
+        final MemPairingImp imp = store.getPairing(id);
+        return (imp != null) ? new Pairing(imp) : null;
+    }
+
+    @Override
+    public Service getServiceById(int id) throws IOException {
+        final MemServiceImp imp = store.getService(id);
+        return (imp != null) ? new Service(imp) : null;
+    }
+
+    @Override
+    public Map<ByteBuffer, Service> getServicesByCommitments(Collection<byte[]> commitments)
+        throws IOException {
+        final Map<ByteBuffer, Service> services = new HashMap<ByteBuffer, Service>();
+        for (byte[] commitment : commitments) {
+            final Service service = getServiceByCommitment(commitment);
+            if (service != null) {
+                services.put(ByteBuffer.wrap(commitment.clone()), service);
+            }
+        }
+        return services;
+    }
+
+    @Override
+    public Service getServiceByCommitment(byte[] commitment) throws IOException {
+        final MemServiceImp imp = store.getServiceByCommitment(commitment);
+        return (imp != null) ? new Service(imp) : null;
+    }
+
+    @Override
+    public Session getSessionById(int sessionId) throws IOException {
+        final MemSessionImp imp = store.getSession(sessionId);
+        return (imp != null) ? new Session(imp) : null;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+
+import org.mypico.jpico.crypto.AuthToken;
+import org.mypico.jpico.data.DataFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.pairing.PairingImp;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.service.ServiceImp;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+
+/**
+ * {@link DataFactory} creating entities which are saved to a {@link MemDataStore}.
+ * <p>
+ * As with {@link org.mypico.jpico.db.DbDataFactory}, services and pairings which do not already
+ * belong to the store are copied, and saving an entity first saves any unsaved entity it refers
+ * to.
+ *
+ * @see MemDataAccessor
+ */
+public class MemDataFactory implements DataFactory {
+
+    private final MemDataStore store;
+
+    /**
+     * Constructor.
+     *
+     * @param store the store to save entities to.
+     */
+    public MemDataFactory(final MemDataStore store) {
+        this.store = checkNotNull(store, "store cannot be null");
+    }
+
+    private MemServiceImp memService(final Service service) {
+        final ServiceImp imp = service.getImp();
+        if (imp instanceof MemServiceImp && ((MemServiceImp) imp).getStore() == store) {
+            return (MemServiceImp) imp;
+        } else {
+            return getImp(service);
+        }
+    }
+
+    private MemPairingImp memPairing(final Pairing pairing) {
+        final PairingImp imp = pairing.getImp();
+        if (imp instanceof MemPairingImp && ((MemPairingImp) imp).getStore() == store) {
+            return (MemPairingImp) imp;
+        } else {
+            return getImp(pairing);
+        }
+    }
+
+    @Override
+    public MemServiceImp getImp(String name, URI address, byte[] commitment) {
+        return new MemServiceImp(store, name, address, commitment);
+    }
+
+    @Override
+    public MemServiceImp getImp(Service service) {
+        return getImp(service.getName(), service.getAddress(), service.getCommitment());
+    }
+
+    @Override
+    public MemPairingImp getImp(String name, Service service) {
+        return new MemPairingImp(store, name, memService(service));
+    }
+
+    @Override
+    public MemPairingImp getImp(Pairing pairing) {
+        return getImp(pairing.getName(), pairing.getService());
+    }
+
+    @Override
+    public MemSessionImp getImp(
+        String remoteId,
+        SecretKey secretKey,
+        Pairing pairing,
+        AuthToken authToken,
+        Date lastAuthDate,
+        Session.Status status,
+        Session.Error error) {
+        return new MemSessionImp(
+            store,
+            remoteId,
+            secretKey,
+            memPairing(pairing),
+            authToken,
+            lastAuthDate,
+            status,
+            error);
+    }
+
+    @Override
+    public MemSessionImp getImp(Session session) {
+        return getImp(
+            session.getRemoteId(),
+            session.getSecretKey(),
+            session.getPairing(),
+            session.hasAuthToken() ? session.getAuthToken() : null,
+            session.getLastAuthDate(),
+            session.getStatus(),
+            session.getError());
+    }
+
+    @Override
+    public MemKeyPairingImp getImp(
+        String name,
+        Service service,
+        PublicKey publicKey,
+        PrivateKey privateKey,
+        String extraData) {
+        return new MemKeyPairingImp(
+            store, name, memService(service), MemKeys.of(publicKey, privateKey), extraData);
+    }
+
+    @Override
+    public MemKeyPairingImp getImp(
+        String name, Service service, KeyPair keyPair, String extraData) {
+        return getImp(name, service, keyPair.getPublic(), keyPair.getPrivate(), extraData);
+    }
+
+    @Override
+    public MemKeyPairingImp getImp(KeyPairing keyPairing) {
+        return getImp(
+            keyPairing.getName(),
+            keyPairing.getService(),
+            keyPairing.getPublicKey(),
+            keyPairing.getPrivateKey(),
+            keyPairing.getExtraData());
+    }
+
+    @Override
+    public MemLensPairingImp getImp(String name,
+                                    Service service,
+                                    Map<String, String> credentials,
+                                    List<String> privateFields) {
+        return new MemLensPairingImp(
+            store, name, memService(service), credentials, privateFields);
+    }
+
+    @Override
+    public MemLensPairingImp getImp(LensPairing credentialPairing) {
+        return getImp(
+            credentialPairing.getName(),
+            credentialPairing.getService(),
+            credentialPairing.getCredentials(),
+            credentialPairing.getPrivateFields());
+    }
+
+    @Override
+    public Terminal.Imp getImp(
+        String name, byte[] commitment, PublicKey picoPublicKey, PrivateKey picoPrivateKey) {
+        return new MemTerminalImp(
+            store,
+            MemTerminalImp.UNSAVED_ID,
+            name,
+            commitment.clone(),
+            MemKeys.of(picoPublicKey, picoPrivateKey));
+    }
+
+    @Override
+    public Terminal.Imp getImp(Terminal terminal) {
+        return getImp(
+            terminal.getName(),
+            terminal.getCommitment(),
+            terminal.getPicoPublicKey(),
+            terminal.getPicoPrivateKey());
+    }
+}
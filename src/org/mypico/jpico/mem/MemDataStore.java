@@ -0,0 +1,565 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.mypico.jpico.util.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory data store backing {@link MemDataFactory} and {@link MemDataAccessor}, for
+ * deployments where the whole data set fits in memory and lookups must not wait on a database.
+ * <p>
+ * Entities are held in concurrent hash maps keyed on id, with further hash indexes on service and
+ * terminal commitments and on the pairings belonging to each service. The store keeps its own
+ * copy of every saved entity and never modifies or hands out that copy, so reads need no locks:
+ * they look the entity up and return a fresh copy of it. Saves and deletes replace the stored
+ * copy and update the indexes under the store's lock, so they are serialised with each other.
+ * As with the database implementation, pairings, sessions and terminals refer to each other by
+ * id and are always read back with the latest saved version of the entities they refer to.
+ * <p>
+ * If a snapshot file is given, the store is loaded from it on construction and
+ * {@link #snapshot()} writes the current contents back to it. Snapshots are written to a
+ * temporary file which then replaces the old snapshot, so a crash part way through never leaves
+ * a truncated snapshot behind. Changes made since the last snapshot are lost if the process
+ * stops without calling {@link #close()}, which writes a final snapshot.
+ *
+ * @see MemSnapshot
+ */
+public final class MemDataStore implements Closeable, MetricsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        MemDataStore.class.getSimpleName());
+
+    private static final Comparator<MemPairingImp> BY_PAIRING_ID =
+        new Comparator<MemPairingImp>() {
+            @Override
+            public int compare(final MemPairingImp a, final MemPairingImp b) {
+                return (a.getId() < b.getId()) ? -1 : ((a.getId() == b.getId()) ? 0 : 1);
+            }
+        };
+
+    private static final Comparator<MemTerminalImp> BY_TERMINAL_ID =
+        new Comparator<MemTerminalImp>() {
+            @Override
+            public int compare(final MemTerminalImp a, final MemTerminalImp b) {
+                return (a.getId() < b.getId()) ? -1 : ((a.getId() == b.getId()) ? 0 : 1);
+            }
+        };
+
+    private final ConcurrentMap<Integer, MemServiceImp> services =
+        new ConcurrentHashMap<Integer, MemServiceImp>();
+    private final ConcurrentMap<ByteBuffer, NavigableSet<Integer>> serviceIdsByCommitment =
+        new ConcurrentHashMap<ByteBuffer, NavigableSet<Integer>>();
+    private final ConcurrentMap<Integer, MemPairingImp> pairings =
+        new ConcurrentHashMap<Integer, MemPairingImp>();
+    private final ConcurrentMap<Integer, NavigableSet<Integer>> pairingIdsByService =
+        new ConcurrentHashMap<Integer, NavigableSet<Integer>>();
+    private final ConcurrentMap<Integer, MemSessionImp> sessions =
+        new ConcurrentHashMap<Integer, MemSessionImp>();
+    private final ConcurrentMap<Integer, MemTerminalImp> terminals =
+        new ConcurrentHashMap<Integer, MemTerminalImp>();
+    private final ConcurrentMap<ByteBuffer, NavigableSet<Integer>> terminalIdsByCommitment =
+        new ConcurrentHashMap<ByteBuffer, NavigableSet<Integer>>();
+
+    // Guarded by this. Key pairings and lens pairings share the pairing id space.
+    private int lastServiceId = 0;
+    private int lastPairingId = 0;
+    private int lastSessionId = 0;
+    private int lastTerminalId = 0;
+    private long modifications = 0;
+    private long snapshotModifications = 0;
+
+    private final File snapshotFile;
+    private final Object snapshotLock = new Object();
+    private ScheduledFuture<?> scheduledSnapshot;
+
+    // Metrics, guarded by snapshotLock
+    private long snapshots = 0;
+    private long failedSnapshots = 0;
+    private long lastSnapshotBytes = 0;
+    private long lastSnapshotNanos = 0;
+    private final long loadNanos;
+
+    private final Runnable snapshotTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                // Tried again on the next run
+                LOGGER.error("Failed to write data store snapshot", e);
+            }
+        }
+    };
+
+    /**
+     * Constructor for a store which is never persisted.
+     */
+    public MemDataStore() {
+        this.snapshotFile = null;
+        this.loadNanos = 0;
+    }
+
+    /**
+     * Constructor for a store persisted to a snapshot file. If the file exists the store is loaded
+     * from it, otherwise the store starts empty and the file is created by the first snapshot.
+     *
+     * @param snapshotFile the snapshot file.
+     * @throws IOException if the snapshot file exists but cannot be read.
+     */
+    public MemDataStore(final File snapshotFile) throws IOException {
+        this.snapshotFile = checkNotNull(snapshotFile, "snapshotFile cannot be null");
+        final long start = System.nanoTime();
+        if (snapshotFile.exists()) {
+            final FileInputStream in = new FileInputStream(snapshotFile);
+            try {
+                install(MemSnapshot.readFrom(in, snapshotFile.length(), this));
+            } finally {
+                in.close();
+            }
+            LOGGER.info("Loaded {} pairings and {} sessions from {}",
+                pairings.size(), sessions.size(), snapshotFile);
+        }
+        this.loadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Constructor for a store persisted to a snapshot file which is rewritten periodically. Only
+     * snapshots of a store which has changed since the last one are written.
+     *
+     * @param snapshotFile the snapshot file.
+     * @param scheduler    executor used to write snapshots in the background.
+     * @param interval     time in milliseconds between snapshots.
+     * @throws IOException if the snapshot file exists but cannot be read.
+     */
+    public MemDataStore(
+        final File snapshotFile,
+        final ScheduledExecutorService scheduler,
+        final long interval) throws IOException {
+        this(snapshotFile);
+        checkNotNull(scheduler, "scheduler cannot be null");
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.scheduledSnapshot = scheduler.scheduleWithFixedDelay(
+            snapshotTask, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the file the store is persisted to, or <code>null</code> if it is never persisted.
+     */
+    public File getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    /* *************** Writes *************** */
+
+    synchronized void saveService(final MemServiceImp service) {
+        if (!service.isSaved()) {
+            service.setId(++lastServiceId);
+        }
+        final MemServiceImp stored = service.copy();
+        services.put(stored.getId(), stored);
+        addToIndex(serviceIdsByCommitment, ByteBuffer.wrap(stored.commitment()), stored.getId());
+        modifications++;
+    }
+
+    synchronized void savePairing(final MemPairingImp pairing) {
+        final MemServiceImp service = pairing.getMemService();
+        if (!service.isSaved() || !services.containsKey(service.getId())) {
+            saveService(service);
+        }
+        if (!pairing.isSaved()) {
+            pairing.setId(++lastPairingId);
+        }
+        if (pairing.getDateCreated() == null) {
+            pairing.setDateCreated(new Date());
+        }
+        final MemPairingImp stored = pairing.copy(services.get(service.getId()));
+        final MemPairingImp previous = pairings.put(stored.getId(), stored);
+        if (previous != null && previous.getMemService().getId() != service.getId()) {
+            unindexPairing(previous);
+        }
+        indexPairing(stored);
+        modifications++;
+    }
+
+    private void indexPairing(final MemPairingImp stored) {
+        addToIndex(pairingIdsByService, stored.getMemService().getId(), stored.getId());
+    }
+
+    /**
+     * Delete a pairing along with all of its sessions.
+     *
+     * @param pairing the pairing to delete.
+     */
+    synchronized void deletePairing(final MemPairingImp pairing) {
+        final MemPairingImp previous = pairings.remove(pairing.getId());
+        if (previous == null) {
+            return;
+        }
+        unindexPairing(previous);
+        final Iterator<MemSessionImp> i = sessions.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().getMemPairing().getId() == previous.getId()) {
+                i.remove();
+            }
+        }
+        modifications++;
+    }
+
+    private void unindexPairing(final MemPairingImp stored) {
+        removeFromIndex(pairingIdsByService, stored.getMemService().getId(), stored.getId());
+    }
+
+    synchronized void saveSession(final MemSessionImp session) {
+        final MemPairingImp pairing = session.getMemPairing();
+        if (!pairing.isSaved() || !pairings.containsKey(pairing.getId())) {
+            savePairing(pairing);
+        }
+        if (!session.isSaved()) {
+            session.setId(++lastSessionId);
+        }
+        sessions.put(session.getId(), session.copy(pairings.get(pairing.getId())));
+        modifications++;
+    }
+
+    synchronized void saveTerminal(final MemTerminalImp terminal) {
+        if (!terminal.isSaved()) {
+            terminal.setId(++lastTerminalId);
+        }
+        final MemTerminalImp stored = terminal.copy();
+        terminals.put(stored.getId(), stored);
+        addToIndex(terminalIdsByCommitment, ByteBuffer.wrap(stored.commitment()), stored.getId());
+        modifications++;
+    }
+
+    synchronized void deleteTerminal(final MemTerminalImp terminal) {
+        final MemTerminalImp previous = terminals.remove(terminal.getId());
+        if (previous == null) {
+            return;
+        }
+        removeFromIndex(
+            terminalIdsByCommitment, ByteBuffer.wrap(previous.commitment()), previous.getId());
+        modifications++;
+    }
+
+    /**
+     * Add an id to the set of ids stored under a key in an index.
+     *
+     * @param index the index.
+     * @param key   the key, which must not be modified afterwards.
+     * @param id    the id to add.
+     */
+    private static <K> void addToIndex(
+        final ConcurrentMap<K, NavigableSet<Integer>> index, final K key, final int id) {
+        NavigableSet<Integer> ids = index.get(key);
+        if (ids == null) {
+            ids = new ConcurrentSkipListSet<Integer>();
+            index.put(key, ids);
+        }
+        ids.add(id);
+    }
+
+    private static <K> void removeFromIndex(
+        final ConcurrentMap<K, NavigableSet<Integer>> index, final K key, final int id) {
+        final NavigableSet<Integer> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /* *************** Reads *************** */
+
+    MemServiceImp getService(final int id) {
+        final MemServiceImp stored = services.get(id);
+        return (stored != null) ? stored.copy() : null;
+    }
+
+    MemServiceImp getServiceByCommitment(final byte[] commitment) {
+        return getService(first(serviceIdsByCommitment.get(ByteBuffer.wrap(commitment))));
+    }
+
+    /**
+     * @param ids set of ids from an index, or <code>null</code>.
+     * @return the lowest id in the set, or an id which is never used if there is none.
+     */
+    private static int first(final NavigableSet<Integer> ids) {
+        if (ids != null) {
+            // Another thread may empty the set between the two calls
+            final Iterator<Integer> i = ids.iterator();
+            if (i.hasNext()) {
+                return i.next();
+            }
+        }
+        return MemServiceImp.UNSAVED_ID;
+    }
+
+    MemPairingImp getPairing(final int id) {
+        final MemPairingImp stored = pairings.get(id);
+        return (stored != null) ? readPairing(stored) : null;
+    }
+
+    /**
+     * Get all the pairings belonging to services with a given commitment, in the order they were
+     * created.
+     *
+     * @param commitment the commitment of the service.
+     * @return the pairings, or an empty list if there is no such service.
+     */
+    List<MemPairingImp> getPairingsByServiceCommitment(final byte[] commitment) {
+        final NavigableSet<Integer> serviceIds =
+            serviceIdsByCommitment.get(ByteBuffer.wrap(commitment));
+        if (serviceIds == null) {
+            return Collections.emptyList();
+        }
+        final List<MemPairingImp> result = new ArrayList<MemPairingImp>();
+        for (Integer serviceId : serviceIds) {
+            final NavigableSet<Integer> ids = pairingIdsByService.get(serviceId);
+            if (ids != null) {
+                final MemServiceImp service = services.get(serviceId);
+                for (Integer id : ids) {
+                    final MemPairingImp stored = pairings.get(id);
+                    if (stored != null) {
+                        result.add(stored.copy(service.copy()));
+                    }
+                }
+            }
+        }
+        if (serviceIds.size() > 1) {
+            Collections.sort(result, BY_PAIRING_ID);
+        }
+        return result;
+    }
+
+    /**
+     * @return every pairing in the store, in the order they were created.
+     */
+    List<MemPairingImp> getAllPairings() {
+        final List<MemPairingImp> stored = new ArrayList<MemPairingImp>(pairings.values());
+        Collections.sort(stored, BY_PAIRING_ID);
+        final List<MemPairingImp> result = new ArrayList<MemPairingImp>(stored.size());
+        for (MemPairingImp pairing : stored) {
+            result.add(readPairing(pairing));
+        }
+        return result;
+    }
+
+    private MemPairingImp readPairing(final MemPairingImp stored) {
+        return stored.copy(getService(stored.getMemService().getId()));
+    }
+
+    MemSessionImp getSession(final int id) {
+        final MemSessionImp stored = sessions.get(id);
+        if (stored == null) {
+            return null;
+        }
+        final MemPairingImp pairing = getPairing(stored.getMemPairing().getId());
+        // The pairing may have been deleted, along with the session, since the lookup above
+        return (pairing != null) ? stored.copy(pairing) : null;
+    }
+
+    MemTerminalImp getTerminal(final int id) {
+        final MemTerminalImp stored = terminals.get(id);
+        return (stored != null) ? stored.copy() : null;
+    }
+
+    MemTerminalImp getTerminalByCommitment(final byte[] commitment) {
+        return getTerminal(first(terminalIdsByCommitment.get(ByteBuffer.wrap(commitment))));
+    }
+
+    /**
+     * @return every terminal in the store, in the order they were created.
+     */
+    List<MemTerminalImp> getAllTerminals() {
+        final List<MemTerminalImp> result = new ArrayList<MemTerminalImp>(terminals.size());
+        for (MemTerminalImp terminal : terminals.values()) {
+            result.add(terminal.copy());
+        }
+        Collections.sort(result, BY_TERMINAL_ID);
+        return result;
+    }
+
+    /* *************** Snapshots *************** */
+
+    /**
+     * Write the contents of the store to the snapshot file, unless nothing has changed since the
+     * last snapshot. Saves carry on while the snapshot is written; those which start after this
+     * method is called are left for the next snapshot.
+     *
+     * @return <code>true</code> if a snapshot was written or <code>false</code> if the store was
+     * unchanged.
+     * @throws IllegalStateException if the store has no snapshot file.
+     * @throws IOException           if an <code>IOException</code> occurred whilst writing the
+     *                               snapshot. The previous snapshot is left in place.
+     */
+    public boolean snapshot() throws IOException {
+        if (snapshotFile == null) {
+            throw new IllegalStateException("store has no snapshot file");
+        }
+        synchronized (snapshotLock) {
+            final MemSnapshot snapshot;
+            final long captured;
+            synchronized (this) {
+                if (modifications == snapshotModifications && snapshotFile.exists()) {
+                    return false;
+                }
+                // Stored entities are never modified, so copying the references is enough
+                snapshot = new MemSnapshot(
+                    lastServiceId, lastPairingId, lastSessionId, lastTerminalId,
+                    new ArrayList<MemServiceImp>(services.values()),
+                    new ArrayList<MemPairingImp>(pairings.values()),
+                    new ArrayList<MemSessionImp>(sessions.values()),
+                    new ArrayList<MemTerminalImp>(terminals.values()));
+                captured = modifications;
+            }
+
+            final long start = System.nanoTime();
+            try {
+                lastSnapshotBytes = write(snapshot);
+            } catch (IOException e) {
+                failedSnapshots++;
+                throw e;
+            }
+            lastSnapshotNanos = System.nanoTime() - start;
+            snapshots++;
+            synchronized (this) {
+                snapshotModifications = captured;
+            }
+            return true;
+        }
+    }
+
+    private long write(final MemSnapshot snapshot) throws IOException {
+        final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        final long size;
+        final FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            size = snapshot.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(snapshotFile)) {
+            // Some platforms will not rename over an existing file
+            if (!snapshotFile.delete() || !tempFile.renameTo(snapshotFile)) {
+                throw new IOException("could not replace snapshot file " + snapshotFile);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Fill the empty store with the contents of a snapshot which has just been loaded. The
+     * snapshot's entities are not shared with anything else, so they are stored as they are.
+     *
+     * @param snapshot the loaded snapshot.
+     */
+    private synchronized void install(final MemSnapshot snapshot) {
+        lastServiceId = snapshot.lastServiceId;
+        lastPairingId = snapshot.lastPairingId;
+        lastSessionId = snapshot.lastSessionId;
+        lastTerminalId = snapshot.lastTerminalId;
+        for (MemServiceImp service : snapshot.services) {
+            services.put(service.getId(), service);
+            addToIndex(
+                serviceIdsByCommitment, ByteBuffer.wrap(service.commitment()), service.getId());
+        }
+        for (MemPairingImp pairing : snapshot.pairings) {
+            pairings.put(pairing.getId(), pairing);
+            indexPairing(pairing);
+        }
+        for (MemSessionImp session : snapshot.sessions) {
+            sessions.put(session.getId(), session);
+        }
+        for (MemTerminalImp terminal : snapshot.terminals) {
+            terminals.put(terminal.getId(), terminal);
+            addToIndex(
+                terminalIdsByCommitment, ByteBuffer.wrap(terminal.commitment()), terminal.getId());
+        }
+    }
+
+    /**
+     * Stop writing periodic snapshots and write a final one if the store has changed since the
+     * last. The store can still be used afterwards but is no longer persisted automatically.
+     *
+     * @throws IOException if an <code>IOException</code> occurred whilst writing the final
+     *                     snapshot.
+     */
+    @Override
+    public void close() throws IOException {
+        if (scheduledSnapshot != null) {
+            scheduledSnapshot.cancel(false);
+        }
+        if (snapshotFile != null) {
+            snapshot();
+        }
+    }
+
+    @Override
+    public Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("services", services.size());
+        metrics.put("pairings", pairings.size());
+        metrics.put("sessions", sessions.size());
+        metrics.put("terminals", terminals.size());
+        synchronized (this) {
+            metrics.put("unsavedModifications", modifications - snapshotModifications);
+        }
+        synchronized (snapshotLock) {
+            metrics.put("snapshots", snapshots);
+            metrics.put("failedSnapshots", failedSnapshots);
+            metrics.put("lastSnapshotBytes", lastSnapshotBytes);
+            metrics.put("lastSnapshotMillis", TimeUnit.NANOSECONDS.toMillis(lastSnapshotNanos));
+        }
+        metrics.put("loadMillis", TimeUnit.NANOSECONDS.toMillis(loadNanos));
+        return metrics;
+    }
+}
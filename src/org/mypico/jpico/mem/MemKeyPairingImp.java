@@ -0,0 +1,78 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import org.mypico.jpico.data.pairing.KeyPairingImp;
+
+/**
+ * {@link KeyPairingImp} held by a {@link MemDataStore}.
+ */
+final class MemKeyPairingImp extends MemPairingImp implements KeyPairingImp {
+
+    private final MemKeys keys;
+    private final String extraData;
+
+    MemKeyPairingImp(
+        final MemDataStore store,
+        final String name,
+        final MemServiceImp service,
+        final MemKeys keys,
+        final String extraData) {
+        super(store, name, service);
+        this.keys = keys;
+        this.extraData = extraData;
+    }
+
+    private MemKeyPairingImp(final MemKeyPairingImp other, final MemServiceImp service) {
+        super(other, service);
+        // Immutable, so shared between copies
+        this.keys = other.keys;
+        this.extraData = other.extraData;
+    }
+
+    @Override
+    MemKeyPairingImp copy(final MemServiceImp service) {
+        return new MemKeyPairingImp(this, service);
+    }
+
+    MemKeys getKeys() {
+        return keys;
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return keys.getPublicKey();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey() {
+        return keys.getPrivateKey();
+    }
+
+    @Override
+    public String getExtraData() {
+        return extraData;
+    }
+}
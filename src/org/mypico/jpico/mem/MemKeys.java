@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import org.mypico.jpico.crypto.CryptoFactory;
+
+/**
+ * Elliptic Curve key pair held in its encoded form and decoded on first use.
+ * <p>
+ * Decoding keys is by far the most expensive part of loading a snapshot, and most pairings are
+ * never used between one restart and the next, so loading only reads the encoded bytes. Instances
+ * are immutable apart from the cached keys and are shared between every copy of the entity which
+ * owns them, so each key pair is decoded at most once.
+ */
+final class MemKeys {
+
+    private final byte[] publicKeyBytes;
+    private final byte[] privateKeyBytes;
+
+    // Decoded from the byte arrays above on first use
+    private volatile PublicKey publicKey;
+    private volatile PrivateKey privateKey;
+
+    private MemKeys(final byte[] publicKeyBytes, final byte[] privateKeyBytes) {
+        this.publicKeyBytes = publicKeyBytes;
+        this.privateKeyBytes = privateKeyBytes;
+    }
+
+    /**
+     * Create an instance from decoded keys.
+     *
+     * @param publicKey  the public key.
+     * @param privateKey the private key.
+     * @return key pair holding the keys and their encodings.
+     */
+    static MemKeys of(final PublicKey publicKey, final PrivateKey privateKey) {
+        final MemKeys keys = new MemKeys(publicKey.getEncoded(), privateKey.getEncoded());
+        keys.publicKey = publicKey;
+        keys.privateKey = privateKey;
+        return keys;
+    }
+
+    /**
+     * Create an instance from encoded keys read from a snapshot.
+     *
+     * @param publicKeyBytes  X509 encoded public key.
+     * @param privateKeyBytes PKCS8 encoded private key.
+     * @return key pair which decodes the keys on first use.
+     */
+    static MemKeys fromEncoded(final byte[] publicKeyBytes, final byte[] privateKeyBytes) {
+        return new MemKeys(publicKeyBytes, privateKeyBytes);
+    }
+
+    /**
+     * @return the X509 encoded public key. The array must not be modified.
+     */
+    byte[] getPublicKeyBytes() {
+        return publicKeyBytes;
+    }
+
+    /**
+     * @return the PKCS8 encoded private key. The array must not be modified.
+     */
+    byte[] getPrivateKeyBytes() {
+        return privateKeyBytes;
+    }
+
+    PublicKey getPublicKey() {
+        PublicKey key = publicKey;
+        if (key == null) {
+            try {
+                key = CryptoFactory.INSTANCE.ecKeyFactory().generatePublic(
+                    new X509EncodedKeySpec(publicKeyBytes));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Stored public key is invalid", e);
+            }
+            publicKey = key;
+        }
+        return key;
+    }
+
+    PrivateKey getPrivateKey() {
+        PrivateKey key = privateKey;
+        if (key == null) {
+            try {
+                key = CryptoFactory.INSTANCE.ecKeyFactory().generatePrivate(
+                    new PKCS8EncodedKeySpec(privateKeyBytes));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Stored private key is invalid", e);
+            }
+            privateKey = key;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mypico.jpico.data.pairing.LensPairingImp;
+
+/**
+ * {@link LensPairingImp} held by a {@link MemDataStore}.
+ * <p>
+ * The credentials and private fields are copied on construction and are unmodifiable, so they
+ * are shared between copies of the pairing.
+ */
+final class MemLensPairingImp extends MemPairingImp implements LensPairingImp {
+
+    private final Map<String, String> credentials;
+    private final List<String> privateFields;
+
+    MemLensPairingImp(
+        final MemDataStore store,
+        final String name,
+        final MemServiceImp service,
+        final Map<String, String> credentials,
+        final List<String> privateFields) {
+        super(store, name, service);
+        this.credentials = Collections.unmodifiableMap(
+            new HashMap<String, String>(credentials));
+        this.privateFields = Collections.unmodifiableList(
+            (privateFields != null)
+                ? new ArrayList<String>(privateFields) : new ArrayList<String>());
+    }
+
+    private MemLensPairingImp(final MemLensPairingImp other, final MemServiceImp service) {
+        super(other, service);
+        this.credentials = other.credentials;
+        this.privateFields = other.privateFields;
+    }
+
+    @Override
+    MemLensPairingImp copy(final MemServiceImp service) {
+        return new MemLensPairingImp(this, service);
+    }
+
+    @Override
+    public Map<String, String> getCredentials() {
+        return credentials;
+    }
+
+    @Override
+    public List<String> getPrivateFields() {
+        return privateFields;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.io.IOException;
+import java.util.Date;
+
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.pairing.PairingImp;
+import org.mypico.jpico.data.service.Service;
+
+/**
+ * {@link PairingImp} held by a {@link MemDataStore}.
+ * <p>
+ * Subclasses must override {@link #copy(MemServiceImp)} so that the store can take and hand out
+ * copies without knowing which kind of pairing it has.
+ */
+class MemPairingImp implements PairingImp {
+
+    static final int UNSAVED_ID = 0;
+
+    private final MemDataStore store;
+    private int id;
+    private String name;
+    private MemServiceImp service;
+    private Date dateCreated;
+
+    MemPairingImp(final MemDataStore store, final String name, final MemServiceImp service) {
+        Pairing.checkName(name);
+        assert (service != null);
+
+        this.store = store;
+        this.id = UNSAVED_ID;
+        this.name = name;
+        this.service = service;
+    }
+
+    /**
+     * Copy constructor.
+     *
+     * @param other   the pairing to copy.
+     * @param service the service the copy belongs to.
+     */
+    MemPairingImp(final MemPairingImp other, final MemServiceImp service) {
+        this.store = other.store;
+        this.id = other.id;
+        this.name = other.name;
+        this.service = service;
+        this.dateCreated = (other.dateCreated != null)
+            ? new Date(other.dateCreated.getTime()) : null;
+    }
+
+    /**
+     * Make a copy of this pairing which shares nothing mutable with it.
+     *
+     * @param service the service the copy belongs to.
+     * @return the copy.
+     */
+    MemPairingImp copy(final MemServiceImp service) {
+        return new MemPairingImp(this, service);
+    }
+
+    MemDataStore getStore() {
+        return store;
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    MemServiceImp getMemService() {
+        return service;
+    }
+
+    void setMemService(final MemServiceImp service) {
+        this.service = service;
+    }
+
+    void setDateCreated(final Date dateCreated) {
+        this.dateCreated = dateCreated;
+    }
+
+    @Override
+    public void save() throws IOException {
+        store.savePairing(this);
+    }
+
+    @Override
+    public boolean isSaved() {
+        return (id != UNSAVED_ID);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public Service getService() {
+        return new Service(service);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = Pairing.checkName(name);
+    }
+
+    @Override
+    public Date getDateCreated() {
+        return dateCreated;
+    }
+
+    @Override
+    public void delete() throws IOException {
+        if (isSaved()) {
+            store.deletePairing(this);
+            id = UNSAVED_ID;
+        } else {
+            throw new IllegalStateException("cannot delete an unsaved pairing");
+        }
+    }
+}
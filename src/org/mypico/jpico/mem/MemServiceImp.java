@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.mypico.jpico.data.service.ServiceImp;
+
+/**
+ * {@link ServiceImp} held by a {@link MemDataStore}.
+ * <p>
+ * The store keeps its own copy of each saved service and hands out further copies, so changes
+ * made to an instance are only seen by other readers once it has been saved.
+ */
+final class MemServiceImp implements ServiceImp {
+
+    static final int UNSAVED_ID = 0;
+
+    private final MemDataStore store;
+    private int id;
+    private final String name;
+    private URI address;
+    private final byte[] commitment;
+
+    MemServiceImp(
+        final MemDataStore store,
+        final String name,
+        final URI address,
+        final byte[] commitment) {
+        this(store, UNSAVED_ID, name, address, commitment.clone());
+    }
+
+    MemServiceImp(
+        final MemDataStore store,
+        final int id,
+        final String name,
+        final URI address,
+        final byte[] commitment) {
+        this.store = store;
+        this.id = id;
+        this.name = name;
+        this.address = address;
+        this.commitment = commitment;
+    }
+
+    /**
+     * @return a copy of this service which shares nothing mutable with it.
+     */
+    MemServiceImp copy() {
+        // The commitment is never modified after construction so can be shared
+        return new MemServiceImp(store, id, name, address, commitment);
+    }
+
+    MemDataStore getStore() {
+        return store;
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the commitment without copying it. The array must not be modified.
+     */
+    byte[] commitment() {
+        return commitment;
+    }
+
+    @Override
+    public void save() throws IOException {
+        store.saveService(this);
+    }
+
+    @Override
+    public boolean isSaved() {
+        return (id != UNSAVED_ID);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public URI getAddress() {
+        return address;
+    }
+
+    @Override
+    public byte[] getCommitment() {
+        return commitment.clone();
+    }
+
+    @Override
+    public void setAddress(final URI address) {
+        this.address = address;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.crypto.SecretKey;
+
+import org.mypico.jpico.crypto.AuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.SessionImp;
+
+/**
+ * {@link SessionImp} held by a {@link MemDataStore}.
+ * <p>
+ * As with the database implementation, the auth token is not stored, so sessions read back from
+ * the store never have one.
+ */
+final class MemSessionImp implements SessionImp {
+
+    static final int UNSAVED_ID = 0;
+
+    private final MemDataStore store;
+    private int id;
+    private final String remoteId;
+    private final SecretKey secretKey;
+    private MemPairingImp pairing;
+    private AuthToken authToken;
+    private Date lastAuthDate;
+    private Session.Status status;
+    private Session.Error error;
+
+    MemSessionImp(
+        final MemDataStore store,
+        final String remoteId,
+        final SecretKey secretKey,
+        final MemPairingImp pairing,
+        final AuthToken authToken,
+        final Date lastAuthDate,
+        final Session.Status status,
+        final Session.Error error) {
+        assert (pairing != null);
+
+        this.store = store;
+        this.id = UNSAVED_ID;
+        this.remoteId = remoteId;
+        this.secretKey = secretKey;
+        this.pairing = pairing;
+        this.authToken = authToken;
+        this.lastAuthDate = lastAuthDate;
+        this.status = status;
+        this.error = error;
+    }
+
+    /**
+     * Copy constructor. The auth token is not copied.
+     *
+     * @param other   the session to copy.
+     * @param pairing the pairing the copy belongs to.
+     */
+    private MemSessionImp(final MemSessionImp other, final MemPairingImp pairing) {
+        this.store = other.store;
+        this.id = other.id;
+        this.remoteId = other.remoteId;
+        this.secretKey = other.secretKey;
+        this.pairing = pairing;
+        this.lastAuthDate = (other.lastAuthDate != null)
+            ? new Date(other.lastAuthDate.getTime()) : null;
+        this.status = other.status;
+        this.error = other.error;
+    }
+
+    /**
+     * Make a copy of this session which shares nothing mutable with it.
+     *
+     * @param pairing the pairing the copy belongs to.
+     * @return the copy, without an auth token.
+     */
+    MemSessionImp copy(final MemPairingImp pairing) {
+        return new MemSessionImp(this, pairing);
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    MemPairingImp getMemPairing() {
+        return pairing;
+    }
+
+    void setMemPairing(final MemPairingImp pairing) {
+        this.pairing = pairing;
+    }
+
+    @Override
+    public void save() throws IOException {
+        store.saveSession(this);
+    }
+
+    @Override
+    public boolean isSaved() {
+        return (id != UNSAVED_ID);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    @Override
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    @Override
+    public Pairing getPairing() {
+        return new Pairing(pairing);
+    }
+
+    @Override
+    public void setStatus(final Session.Status status) {
+        this.status = status;
+    }
+
+    @Override
+    public Session.Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public void setError(final Session.Error error) {
+        this.error = error;
+    }
+
+    @Override
+    public Session.Error getError() {
+        return error;
+    }
+
+    @Override
+    public void setLastAuthDate(final Date lastAuthDate) {
+        Session.checkLastAuthDate(lastAuthDate);
+        this.lastAuthDate = lastAuthDate;
+    }
+
+    @Override
+    public Date getLastAuthDate() {
+        return lastAuthDate;
+    }
+
+    @Override
+    public boolean hasAuthToken() {
+        return (authToken != null);
+    }
+
+    @Override
+    public AuthToken getAuthToken() {
+        return authToken;
+    }
+
+    @Override
+    public void clearAuthToken() {
+        authToken = null;
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mypico.jpico.data.session.Session;
+
+/**
+ * Point-in-time copy of the contents of a {@link MemDataStore}, and the binary file format used
+ * to persist it.
+ * <p>
+ * A snapshot file is a header, followed by the services, pairings, sessions and terminals in
+ * that order, followed by a CRC32 of everything before it. Each section starts with the number of
+ * entries in it. Strings are written as a length and UTF-8 bytes, with a length of -1 for
+ * <code>null</code>, and byte arrays are written in the same way. Entities refer to each other by
+ * id, so a snapshot is loaded in a single pass and keys are not decoded until they are used.
+ * <p>
+ * The entity lists hold the store's own copies, which are never modified once stored, so a
+ * snapshot can be written without holding the store's lock.
+ */
+final class MemSnapshot {
+
+    /**
+     * "JPMS" in ASCII.
+     */
+    static final int MAGIC = 0x4a504d53;
+
+    static final int VERSION = 1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte PLAIN_PAIRING = 0;
+    private static final byte KEY_PAIRING = 1;
+    private static final byte LENS_PAIRING = 2;
+
+    // The fewest bytes each kind of entry can take, used to reject counts which could not fit in
+    // the rest of a snapshot before anything is allocated for them
+    private static final int MIN_SERVICE_BYTES = 4 + 3 * 4;
+    private static final int MIN_PAIRING_BYTES = 1 + 4 + 4 + 4 + 8;
+    private static final int MIN_SESSION_BYTES = 4 + 4 + 3 * 4 + 8 + 2 * 4;
+    private static final int MIN_TERMINAL_BYTES = 4 + 4 * 4;
+    private static final int MIN_CREDENTIAL_BYTES = 2 * 4;
+    private static final int MIN_FIELD_BYTES = 4;
+
+    final int lastServiceId;
+    final int lastPairingId;
+    final int lastSessionId;
+    final int lastTerminalId;
+    final List<MemServiceImp> services;
+    final List<MemPairingImp> pairings;
+    final List<MemSessionImp> sessions;
+    final List<MemTerminalImp> terminals;
+
+    MemSnapshot(
+        final int lastServiceId,
+        final int lastPairingId,
+        final int lastSessionId,
+        final int lastTerminalId,
+        final List<MemServiceImp> services,
+        final List<MemPairingImp> pairings,
+        final List<MemSessionImp> sessions,
+        final List<MemTerminalImp> terminals) {
+        this.lastServiceId = lastServiceId;
+        this.lastPairingId = lastPairingId;
+        this.lastSessionId = lastSessionId;
+        this.lastTerminalId = lastTerminalId;
+        this.services = services;
+        this.pairings = pairings;
+        this.sessions = sessions;
+        this.terminals = terminals;
+    }
+
+    /* *************** Writing *************** */
+
+    /**
+     * Write the snapshot. The stream is flushed but not closed.
+     *
+     * @param out stream to write to.
+     * @return the number of bytes written.
+     * @throws IOException if an <code>IOException</code> occurs whilst writing.
+     */
+    long writeTo(final OutputStream out) throws IOException {
+        final CountingOutputStream counter = new CountingOutputStream(out);
+        final CheckedOutputStream checked = new CheckedOutputStream(
+            new BufferedOutputStream(counter, BUFFER_SIZE), new CRC32());
+        final DataOutputStream dos = new DataOutputStream(checked);
+
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(lastServiceId);
+        dos.writeInt(lastPairingId);
+        dos.writeInt(lastSessionId);
+        dos.writeInt(lastTerminalId);
+
+        dos.writeInt(services.size());
+        for (MemServiceImp service : services) {
+            dos.writeInt(service.getId());
+            writeString(dos, service.getName());
+            writeString(dos, (service.getAddress() != null)
+                ? service.getAddress().toString() : null);
+            writeBytes(dos, service.commitment());
+        }
+
+        dos.writeInt(pairings.size());
+        for (MemPairingImp pairing : pairings) {
+            writePairing(dos, pairing);
+        }
+
+        dos.writeInt(sessions.size());
+        for (MemSessionImp session : sessions) {
+            dos.writeInt(session.getId());
+            dos.writeInt(session.getMemPairing().getId());
+            writeString(dos, session.getRemoteId());
+            final SecretKey key = session.getSecretKey();
+            writeString(dos, (key != null) ? key.getAlgorithm() : null);
+            writeBytes(dos, (key != null) ? key.getEncoded() : null);
+            dos.writeLong((session.getLastAuthDate() != null)
+                ? session.getLastAuthDate().getTime() : -1);
+            writeString(dos, (session.getStatus() != null)
+                ? session.getStatus().name() : null);
+            writeString(dos, (session.getError() != null)
+                ? session.getError().name() : null);
+        }
+
+        dos.writeInt(terminals.size());
+        for (MemTerminalImp terminal : terminals) {
+            dos.writeInt(terminal.getId());
+            writeString(dos, terminal.getName());
+            writeBytes(dos, terminal.commitment());
+            writeBytes(dos, terminal.getKeys().getPublicKeyBytes());
+            writeBytes(dos, terminal.getKeys().getPrivateKeyBytes());
+        }
+
+        // The checksum itself is not part of the checksum
+        dos.flush();
+        new DataOutputStream(counter).writeLong(checked.getChecksum().getValue());
+        counter.flush();
+        return counter.count;
+    }
+
+    private static void writePairing(final DataOutputStream dos, final MemPairingImp pairing)
+        throws IOException {
+        if (pairing instanceof MemKeyPairingImp) {
+            dos.writeByte(KEY_PAIRING);
+        } else if (pairing instanceof MemLensPairingImp) {
+            dos.writeByte(LENS_PAIRING);
+        } else {
+            dos.writeByte(PLAIN_PAIRING);
+        }
+        dos.writeInt(pairing.getId());
+        dos.writeInt(pairing.getMemService().getId());
+        writeString(dos, pairing.getName());
+        dos.writeLong((pairing.getDateCreated() != null)
+            ? pairing.getDateCreated().getTime() : -1);
+
+        if (pairing instanceof MemKeyPairingImp) {
+            final MemKeyPairingImp keyPairing = (MemKeyPairingImp) pairing;
+            writeBytes(dos, keyPairing.getKeys().getPublicKeyBytes());
+            writeBytes(dos, keyPairing.getKeys().getPrivateKeyBytes());
+            writeString(dos, keyPairing.getExtraData());
+        } else if (pairing instanceof MemLensPairingImp) {
+            final MemLensPairingImp lensPairing = (MemLensPairingImp) pairing;
+            dos.writeInt(lensPairing.getCredentials().size());
+            for (Map.Entry<String, String> entry : lensPairing.getCredentials().entrySet()) {
+                writeString(dos, entry.getKey());
+                writeString(dos, entry.getValue());
+            }
+            dos.writeInt(lensPairing.getPrivateFields().size());
+            for (String field : lensPairing.getPrivateFields()) {
+                writeString(dos, field);
+            }
+        }
+    }
+
+    private static void writeString(final DataOutputStream dos, final String s)
+        throws IOException {
+        writeBytes(dos, (s != null) ? s.getBytes(UTF_8) : null);
+    }
+
+    private static void writeBytes(final DataOutputStream dos, final byte[] bytes)
+        throws IOException {
+        if (bytes == null) {
+            dos.writeInt(-1);
+        } else {
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    /* *************** Reading *************** */
+
+    /**
+     * Read a snapshot written by {@link #writeTo(OutputStream)}.
+     * <p>
+     * The checksum can only be verified once the whole snapshot has been read, so every count and
+     * length is first checked against the number of bytes left, so that a corrupt snapshot can't
+     * make the reader allocate more than the size of the snapshot.
+     *
+     * @param in    stream to read from. It is not closed.
+     * @param size  the size of the snapshot in bytes.
+     * @param store the store the entities read will belong to.
+     * @return the snapshot.
+     * @throws IOException if an <code>IOException</code> occurs whilst reading, or the snapshot is
+     *                     corrupt or in an unknown format.
+     */
+    static MemSnapshot readFrom(final InputStream in, final long size, final MemDataStore store)
+        throws IOException {
+        final BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+        final CheckedInputStream checked = new CheckedInputStream(buffered, new CRC32());
+        final SnapshotInputStream dis = new SnapshotInputStream(checked, size);
+
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("not a data store snapshot");
+        }
+        final int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version " + version);
+        }
+        final int lastServiceId = dis.readInt();
+        final int lastPairingId = dis.readInt();
+        final int lastSessionId = dis.readInt();
+        final int lastTerminalId = dis.readInt();
+
+        int count = readCount(dis, MIN_SERVICE_BYTES);
+        final Map<Integer, MemServiceImp> services = new HashMap<Integer, MemServiceImp>(count);
+        final List<MemServiceImp> serviceList = new ArrayList<MemServiceImp>(count);
+        for (int i = 0; i < count; i++) {
+            final int id = dis.readInt();
+            final String name = readString(dis);
+            final String address = readString(dis);
+            final byte[] commitment = readBytes(dis);
+            final MemServiceImp service;
+            try {
+                service = new MemServiceImp(store, id, name,
+                    (address != null) ? new URI(address) : null, commitment);
+            } catch (URISyntaxException e) {
+                throw new IOException("invalid service address in snapshot", e);
+            }
+            services.put(id, service);
+            serviceList.add(service);
+        }
+
+        count = readCount(dis, MIN_PAIRING_BYTES);
+        final Map<Integer, MemPairingImp> pairings = new HashMap<Integer, MemPairingImp>(count);
+        final List<MemPairingImp> pairingList = new ArrayList<MemPairingImp>(count);
+        for (int i = 0; i < count; i++) {
+            final MemPairingImp pairing = readPairing(dis, store, services);
+            pairings.put(pairing.getId(), pairing);
+            pairingList.add(pairing);
+        }
+
+        count = readCount(dis, MIN_SESSION_BYTES);
+        final List<MemSessionImp> sessionList = new ArrayList<MemSessionImp>(count);
+        for (int i = 0; i < count; i++) {
+            final int id = dis.readInt();
+            final MemPairingImp pairing = pairings.get(dis.readInt());
+            final String remoteId = readString(dis);
+            final String algorithm = readString(dis);
+            final byte[] key = readBytes(dis);
+            final long lastAuthDate = dis.readLong();
+            final String status = readString(dis);
+            final String error = readString(dis);
+            if (pairing == null) {
+                throw new IOException("session " + id + " refers to a missing pairing");
+            }
+            final SecretKey secretKey;
+            try {
+                secretKey = (key != null) ? new SecretKeySpec(key, algorithm) : null;
+            } catch (IllegalArgumentException e) {
+                throw new IOException("invalid key for session " + id + " in snapshot", e);
+            }
+            final MemSessionImp session = new MemSessionImp(
+                store,
+                remoteId,
+                secretKey,
+                pairing,
+                null,
+                (lastAuthDate != -1) ? new Date(lastAuthDate) : null,
+                readEnum(Session.Status.class, status),
+                readEnum(Session.Error.class, error));
+            session.setId(id);
+            sessionList.add(session);
+        }
+
+        count = readCount(dis, MIN_TERMINAL_BYTES);
+        final List<MemTerminalImp> terminalList = new ArrayList<MemTerminalImp>(count);
+        for (int i = 0; i < count; i++) {
+            final int id = dis.readInt();
+            final String name = readString(dis);
+            final byte[] commitment = readBytes(dis);
+            final MemKeys keys = MemKeys.fromEncoded(readBytes(dis), readBytes(dis));
+            terminalList.add(new MemTerminalImp(store, id, name, commitment, keys));
+        }
+
+        final long expected = checked.getChecksum().getValue();
+        if (new DataInputStream(buffered).readLong() != expected) {
+            throw new IOException("snapshot checksum does not match");
+        }
+
+        return new MemSnapshot(
+            lastServiceId, lastPairingId, lastSessionId, lastTerminalId,
+            serviceList, pairingList, sessionList, terminalList);
+    }
+
+    private static MemPairingImp readPairing(
+        final SnapshotInputStream dis,
+        final MemDataStore store,
+        final Map<Integer, MemServiceImp> services) throws IOException {
+        final byte type = dis.readByte();
+        final int id = dis.readInt();
+        final int serviceId = dis.readInt();
+        final String name = readString(dis);
+        final long dateCreated = dis.readLong();
+        final MemServiceImp service = services.get(serviceId);
+        if (service == null) {
+            throw new IOException("pairing " + id + " refers to a missing service");
+        }
+
+        final MemPairingImp pairing;
+        switch (type) {
+            case PLAIN_PAIRING:
+                pairing = new MemPairingImp(store, name, service);
+                break;
+            case KEY_PAIRING:
+                final MemKeys keys = MemKeys.fromEncoded(readBytes(dis), readBytes(dis));
+                pairing = new MemKeyPairingImp(store, name, service, keys, readString(dis));
+                break;
+            case LENS_PAIRING:
+                int count = readCount(dis, MIN_CREDENTIAL_BYTES);
+                final Map<String, String> credentials = new HashMap<String, String>(count);
+                for (int i = 0; i < count; i++) {
+                    credentials.put(readString(dis), readString(dis));
+                }
+                count = readCount(dis, MIN_FIELD_BYTES);
+                final List<String> privateFields = new ArrayList<String>(count);
+                for (int i = 0; i < count; i++) {
+                    privateFields.add(readString(dis));
+                }
+                pairing = new MemLensPairingImp(store, name, service, credentials, privateFields);
+                break;
+            default:
+                throw new IOException("unknown pairing type " + type + " in snapshot");
+        }
+        pairing.setId(id);
+        if (dateCreated != -1) {
+            pairing.setDateCreated(new Date(dateCreated));
+        }
+        return pairing;
+    }
+
+    private static int readCount(final SnapshotInputStream dis, final int minEntryBytes)
+        throws IOException {
+        final int count = dis.readInt();
+        if (count < 0 || count > dis.remaining() / minEntryBytes) {
+            throw new IOException("invalid entry count " + count + " in snapshot");
+        }
+        return count;
+    }
+
+    private static <E extends Enum<E>> E readEnum(final Class<E> type, final String name)
+        throws IOException {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, name);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("unknown " + type.getSimpleName() + " " + name + " in snapshot",
+                e);
+        }
+    }
+
+    private static String readString(final SnapshotInputStream dis) throws IOException {
+        final byte[] bytes = readBytes(dis);
+        return (bytes != null) ? new String(bytes, UTF_8) : null;
+    }
+
+    private static byte[] readBytes(final SnapshotInputStream dis) throws IOException {
+        final int length = dis.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > dis.remaining()) {
+            throw new IOException("invalid length " + length + " in snapshot");
+        }
+        final byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * Keeps track of how many bytes of a snapshot are left to read.
+     */
+    private static final class SnapshotInputStream extends DataInputStream {
+
+        private final CountingInputStream counter;
+        private final long size;
+
+        SnapshotInputStream(final InputStream in, final long size) {
+            this(new CountingInputStream(in), size);
+        }
+
+        private SnapshotInputStream(final CountingInputStream counter, final long size) {
+            super(counter);
+            this.counter = counter;
+            this.size = size;
+        }
+
+        /**
+         * @return the number of bytes of the snapshot after those read so far.
+         */
+        long remaining() {
+            return size - counter.count;
+        }
+    }
+
+    /**
+     * Counts the bytes read through it.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count = 0;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Counts the bytes written through it, so the size of a snapshot can be reported.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+
+        long count = 0;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
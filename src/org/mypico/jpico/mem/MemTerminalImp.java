@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.mem;
+
+import java.io.IOException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+import org.mypico.jpico.data.terminal.Terminal;
+
+/**
+ * {@link Terminal.Imp} held by a {@link MemDataStore}.
+ */
+final class MemTerminalImp implements Terminal.Imp {
+
+    static final int UNSAVED_ID = 0;
+
+    private final MemDataStore store;
+    private int id;
+    private final String name;
+    private final byte[] commitment;
+    private final MemKeys keys;
+
+    MemTerminalImp(
+        final MemDataStore store,
+        final int id,
+        final String name,
+        final byte[] commitment,
+        final MemKeys keys) {
+        this.store = store;
+        this.id = id;
+        this.name = name;
+        this.commitment = commitment;
+        this.keys = keys;
+    }
+
+    /**
+     * @return a copy of this terminal which shares nothing mutable with it.
+     */
+    MemTerminalImp copy() {
+        // Everything but the id is immutable, so can be shared
+        return new MemTerminalImp(store, id, name, commitment, keys);
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the commitment without copying it. The array must not be modified.
+     */
+    byte[] commitment() {
+        return commitment;
+    }
+
+    MemKeys getKeys() {
+        return keys;
+    }
+
+    @Override
+    public void save() throws IOException {
+        store.saveTerminal(this);
+    }
+
+    @Override
+    public boolean isSaved() {
+        return (id != UNSAVED_ID);
+    }
+
+    @Override
+    public void delete() throws IOException {
+        if (isSaved()) {
+            store.deleteTerminal(this);
+            id = UNSAVED_ID;
+        } else {
+            throw new IllegalStateException("cannot delete an unsaved terminal");
+        }
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] getCommitment() {
+        return commitment.clone();
+    }
+
+    @Override
+    public PublicKey getPicoPublicKey() {
+        return keys.getPublicKey();
+    }
+
+    @Override
+    public PrivateKey getPicoPrivateKey() {
+        return keys.getPrivateKey();
+    }
+}
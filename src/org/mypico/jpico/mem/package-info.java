@@ -0,0 +1,30 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Concrete implementation of the Pico data API which holds everything in memory and persists it
+ * by periodically writing a snapshot file. This package provides concrete implementations of the
+ * <code>*Imp</code>, <code>*ImpFactory</code> and <code>*Accessor</code> interfaces declared in
+ * {@link org.mypico.jpico.data}.
+ *
+ * @see org.mypico.jpico.mem.MemDataStore
+ */
+package org.mypico.jpico.mem;
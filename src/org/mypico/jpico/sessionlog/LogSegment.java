@@ -0,0 +1,189 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.sessionlog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * One fixed-size file of a {@link SessionLog}, mapped into memory.
+ * <p>
+ * Segment files are created at their full size, so the unwritten part of a segment reads as
+ * zeroes. Records are only ever appended. The mapped buffer's own position is never used;
+ * readers and writers each work on a duplicate of it, so reads need no locking.
+ */
+final class LogSegment {
+
+    private static final String PREFIX = "sessions-";
+    private static final String SUFFIX = ".log";
+
+    private final long sequence;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+
+    // Guarded by the log
+    private int writePosition = 0;
+    private long liveBytes = 0;
+
+    private LogSegment(final long sequence, final File file, final RandomAccessFile raf)
+        throws IOException {
+        this.sequence = sequence;
+        this.file = file;
+        this.raf = raf;
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    /**
+     * Create a new, empty segment file.
+     *
+     * @param directory the log directory.
+     * @param sequence  the sequence number of the new segment.
+     * @param size      the size of the segment in bytes.
+     * @return the segment.
+     * @throws IOException if the file already exists or cannot be created.
+     */
+    static LogSegment create(final File directory, final long sequence, final int size)
+        throws IOException {
+        final File file = new File(directory, fileName(sequence));
+        if (!file.createNewFile()) {
+            throw new IOException("segment " + file + " already exists");
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+            return new LogSegment(sequence, file, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open an existing segment file.
+     *
+     * @param file the segment file.
+     * @return the segment.
+     * @throws IOException if the file cannot be opened or its name is not a segment name.
+     */
+    static LogSegment open(final File file) throws IOException {
+        final long sequence = sequenceOf(file.getName());
+        if (sequence < 0) {
+            throw new IOException(file + " is not a session log segment");
+        }
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            return new LogSegment(sequence, file, raf);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the file name used for the segment with a given sequence number. Names sort in
+     * sequence order.
+     *
+     * @param sequence the sequence number.
+     * @return the file name.
+     */
+    static String fileName(final long sequence) {
+        return String.format("%s%016d%s", PREFIX, sequence, SUFFIX);
+    }
+
+    /**
+     * Get the sequence number from a segment file name.
+     *
+     * @param name the file name.
+     * @return the sequence number, or -1 if the name is not a segment file name.
+     */
+    static long sequenceOf(final String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getSize() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return a view of the whole segment with its own position and limit.
+     */
+    ByteBuffer view() {
+        return buffer.duplicate();
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    void setWritePosition(final int writePosition) {
+        this.writePosition = writePosition;
+    }
+
+    int getRemaining() {
+        return buffer.capacity() - writePosition;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    void addLiveBytes(final long bytes) {
+        liveBytes += bytes;
+    }
+
+    /**
+     * Write any changes to the segment out to the storage device.
+     */
+    void force() {
+        buffer.force();
+    }
+
+    /**
+     * Close the segment file. The mapping stays valid until the buffer is garbage collected, so
+     * readers which looked up a record in this segment beforehand can still read it.
+     *
+     * @throws IOException if the file cannot be closed.
+     */
+    void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.sessionlog;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.IOException;
+
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.pairing.PairingAccessor;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.SessionAccessor;
+
+/**
+ * {@link SessionAccessor} reading sessions from a {@link SessionLog}. The log only holds each
+ * session's pairing id, so the pairing is read from the given {@link PairingAccessor}.
+ *
+ * @see LogSessionImpFactory
+ */
+public class LogSessionAccessor implements SessionAccessor {
+
+    private final SessionLog log;
+    private final PairingAccessor pairingAccessor;
+
+    /**
+     * Constructor.
+     *
+     * @param log             the log to read sessions from.
+     * @param pairingAccessor accessor for the pairings the sessions belong to.
+     */
+    public LogSessionAccessor(final SessionLog log, final PairingAccessor pairingAccessor) {
+        this.log = checkNotNull(log, "log cannot be null");
+        this.pairingAccessor = checkNotNull(pairingAccessor, "pairingAccessor cannot be null");
+    }
+
+    /**
+     * Get a session from the log.
+     *
+     * @param sessionId ID to query for.
+     * @return the session, or <code>null</code> if there is no session with the given id or its
+     * pairing no longer exists.
+     * @throws IOException if an <code>IOException</code> occurred whilst reading the pairing.
+     */
+    @Override
+    public Session getSessionById(int sessionId) throws IOException {
+        final SessionLog.Record record = log.read(sessionId);
+        if (record == null) {
+            return null;
+        }
+        final Pairing pairing = pairingAccessor.getPairingById(record.pairingId);
+        if (pairing == null) {
+            return null;
+        }
+        return new Session(new LogSessionImp(
+            log,
+            record.id,
+            record.remoteId,
+            record.secretKey,
+            pairing,
+            null,
+            record.lastAuthDate,
+            record.status,
+            record.error));
+    }
+}
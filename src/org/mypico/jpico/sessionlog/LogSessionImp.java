@@ -0,0 +1,160 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.sessionlog;
+
+import java.io.IOException;
+import java.util.Date;
+
+import javax.crypto.SecretKey;
+
+import org.mypico.jpico.crypto.AuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.SessionImp;
+
+/**
+ * {@link SessionImp} stored in a {@link SessionLog}. Each save appends the whole session to the
+ * log.
+ * <p>
+ * As with the database implementation, the auth token is not stored, so sessions read back from
+ * the log never have one.
+ */
+final class LogSessionImp implements SessionImp {
+
+    static final int UNSAVED_ID = 0;
+
+    private final SessionLog log;
+    private int id;
+    private final String remoteId;
+    private final SecretKey secretKey;
+    private final Pairing pairing;
+    private AuthToken authToken;
+    private Date lastAuthDate;
+    private Session.Status status;
+    private Session.Error error;
+
+    LogSessionImp(
+        final SessionLog log,
+        final int id,
+        final String remoteId,
+        final SecretKey secretKey,
+        final Pairing pairing,
+        final AuthToken authToken,
+        final Date lastAuthDate,
+        final Session.Status status,
+        final Session.Error error) {
+        assert (pairing != null);
+
+        this.log = log;
+        this.id = id;
+        this.remoteId = remoteId;
+        this.secretKey = secretKey;
+        this.pairing = pairing;
+        this.authToken = authToken;
+        this.lastAuthDate = lastAuthDate;
+        this.status = status;
+        this.error = error;
+    }
+
+    void setId(final int id) {
+        this.id = id;
+    }
+
+    @Override
+    public void save() throws IOException {
+        if (!pairing.isSaved()) {
+            pairing.save();
+        }
+        log.append(this);
+    }
+
+    @Override
+    public boolean isSaved() {
+        return (id != UNSAVED_ID);
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    @Override
+    public SecretKey getSecretKey() {
+        return secretKey;
+    }
+
+    @Override
+    public Pairing getPairing() {
+        return pairing;
+    }
+
+    @Override
+    public void setStatus(final Session.Status status) {
+        this.status = status;
+    }
+
+    @Override
+    public Session.Status getStatus() {
+        return status;
+    }
+
+    @Override
+    public void setError(final Session.Error error) {
+        this.error = error;
+    }
+
+    @Override
+    public Session.Error getError() {
+        return error;
+    }
+
+    @Override
+    public void setLastAuthDate(final Date lastAuthDate) {
+        Session.checkLastAuthDate(lastAuthDate);
+        this.lastAuthDate = lastAuthDate;
+    }
+
+    @Override
+    public Date getLastAuthDate() {
+        return lastAuthDate;
+    }
+
+    @Override
+    public boolean hasAuthToken() {
+        return (authToken != null);
+    }
+
+    @Override
+    public AuthToken getAuthToken() {
+        return authToken;
+    }
+
+    @Override
+    public void clearAuthToken() {
+        authToken = null;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.sessionlog;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Date;
+
+import javax.crypto.SecretKey;
+
+import org.mypico.jpico.crypto.AuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.SessionImpFactory;
+
+/**
+ * {@link SessionImpFactory} creating sessions which are saved to a {@link SessionLog}. Saving a
+ * session whose pairing has not been saved saves the pairing first, to whichever data store it
+ * belongs to.
+ *
+ * @see LogSessionAccessor
+ */
+public class LogSessionImpFactory implements SessionImpFactory {
+
+    private final SessionLog log;
+
+    /**
+     * Constructor.
+     *
+     * @param log the log to save sessions to.
+     */
+    public LogSessionImpFactory(final SessionLog log) {
+        this.log = checkNotNull(log, "log cannot be null");
+    }
+
+    @Override
+    public LogSessionImp getImp(
+        String remoteId,
+        SecretKey secretKey,
+        Pairing pairing,
+        AuthToken authToken,
+        Date lastAuthDate,
+        Session.Status status,
+        Session.Error error) {
+        return new LogSessionImp(
+            log,
+            LogSessionImp.UNSAVED_ID,
+            remoteId,
+            secretKey,
+            pairing,
+            authToken,
+            lastAuthDate,
+            status,
+            error);
+    }
+
+    @Override
+    public LogSessionImp getImp(Session session) {
+        return getImp(
+            session.getRemoteId(),
+            session.getSecretKey(),
+            session.getPairing(),
+            session.hasAuthToken() ? session.getAuthToken() : null,
+            session.getLastAuthDate(),
+            session.getStatus(),
+            session.getError());
+    }
+}
@@ -0,0 +1,641 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.sessionlog;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.util.MetricsSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only, log-structured store for sessions.
+ * <p>
+ * Session writes are small, frequent and only ever replace the whole session, so rather than
+ * updating rows in place every save appends a record holding the complete session to the end of
+ * the log, and an in-memory index maps each session id to its latest record. The log is a
+ * directory of fixed-size segment files which are mapped into memory, so an append is a copy into
+ * the page cache with no system call. When the active segment is full a new one is started.
+ * <p>
+ * Each record is its payload length, a CRC32 of the payload and the payload itself. On opening,
+ * the segments are replayed in order to rebuild the index. Replay of a segment stops at the first
+ * record which is incomplete or fails its checksum, which is where a crash part way through an
+ * append leaves the end of the log, and appends carry on from there.
+ * <p>
+ * Records which have been superseded are garbage. {@link #compact()} reclaims it by copying the
+ * live records of the oldest segment to the end of the log and deleting the segment, one segment
+ * at a time, for as long as the proportion of garbage in the full segments is above the
+ * threshold. Compacting oldest first means a deleted session's tombstone is only dropped once no
+ * older record of the session remains.
+ * <p>
+ * Records reach the operating system as soon as they are appended, so they survive the process
+ * crashing. They are only guaranteed to have reached the storage device after {@link #sync()},
+ * which happens when a segment fills up, on every background run and on {@link #close()}. Only
+ * one <code>SessionLog</code> may have a directory open at a time.
+ *
+ * @see LogSessionImpFactory
+ * @see LogSessionAccessor
+ */
+public class SessionLog implements Closeable, MetricsSource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(
+        SessionLog.class.getSimpleName());
+
+    /**
+     * Default size of each segment file in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Default proportion of garbage in the full segments above which they are compacted.
+     */
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final int HEADER_SIZE = 8;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final FilenameFilter SEGMENT_FILTER = new FilenameFilter() {
+        @Override
+        public boolean accept(final File dir, final String name) {
+            return LogSegment.sequenceOf(name) >= 0;
+        }
+    };
+
+    /**
+     * Location of the latest record of a session.
+     */
+    private static final class Location {
+        final LogSegment segment;
+        final int offset;
+        final int length;
+
+        Location(final LogSegment segment, final int offset, final int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The contents of a session record.
+     */
+    static final class Record {
+        final int id;
+        final int pairingId;
+        final String remoteId;
+        final SecretKey secretKey;
+        final Date lastAuthDate;
+        final Session.Status status;
+        final Session.Error error;
+
+        Record(final int id, final int pairingId, final String remoteId,
+               final SecretKey secretKey, final Date lastAuthDate, final Session.Status status,
+               final Session.Error error) {
+            this.id = id;
+            this.pairingId = pairingId;
+            this.remoteId = remoteId;
+            this.secretKey = secretKey;
+            this.lastAuthDate = lastAuthDate;
+            this.status = status;
+            this.error = error;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final double compactionThreshold;
+    private final ConcurrentMap<Integer, Location> index =
+        new ConcurrentHashMap<Integer, Location>();
+    private final CRC32 crc = new CRC32();
+    private ScheduledFuture<?> scheduledRun;
+
+    // Guarded by this. The last segment is the active one.
+    private final List<LogSegment> segments = new ArrayList<LogSegment>();
+    private int lastId = 0;
+    private boolean closed = false;
+
+    // Metrics, guarded by this
+    private long appends = 0;
+    private long appendedBytes = 0;
+    private long rolls = 0;
+    private long compactedSegments = 0;
+    private long reclaimedBytes = 0;
+    private long recoveredRecords = 0;
+    private long recoveryNanos = 0;
+
+    private final Runnable backgroundTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                sync();
+                compact();
+            } catch (IOException e) {
+                // Tried again on the next run
+                LOGGER.error("Failed to compact session log", e);
+            }
+        }
+    };
+
+    /**
+     * Constructor using the default segment size. Segments are only compacted when
+     * {@link #compact()} is called.
+     *
+     * @param directory the directory holding the log, which is created if necessary.
+     * @throws IOException if the log cannot be opened or recovered.
+     */
+    public SessionLog(final File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Constructor. Segments are only compacted when {@link #compact()} is called.
+     *
+     * @param directory           the directory holding the log, which is created if necessary.
+     * @param segmentSize         the size of each new segment file in bytes. This is also the
+     *                            largest record which can be stored.
+     * @param compactionThreshold the proportion of garbage in the full segments above which they
+     *                            are compacted, between 0 and 1.
+     * @throws IOException if the log cannot be opened or recovered.
+     */
+    public SessionLog(
+        final File directory,
+        final int segmentSize,
+        final double compactionThreshold) throws IOException {
+        checkNotNull(directory, "directory cannot be null");
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        }
+        if (compactionThreshold < 0 || compactionThreshold > 1) {
+            throw new IllegalArgumentException("compactionThreshold must be between 0 and 1");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create session log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactionThreshold = compactionThreshold;
+        recover();
+    }
+
+    /**
+     * Constructor for a log which is synced and compacted periodically in the background.
+     *
+     * @param directory           the directory holding the log, which is created if necessary.
+     * @param segmentSize         the size of each new segment file in bytes.
+     * @param compactionThreshold the proportion of garbage in the full segments above which they
+     *                            are compacted, between 0 and 1.
+     * @param scheduler           executor used to run background work.
+     * @param interval            time in milliseconds between background runs.
+     * @throws IOException if the log cannot be opened or recovered.
+     */
+    public SessionLog(
+        final File directory,
+        final int segmentSize,
+        final double compactionThreshold,
+        final ScheduledExecutorService scheduler,
+        final long interval) throws IOException {
+        this(directory, segmentSize, compactionThreshold);
+        checkNotNull(scheduler, "scheduler cannot be null");
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.scheduledRun = scheduler.scheduleWithFixedDelay(
+            backgroundTask, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the directory holding the log.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the number of sessions in the log.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /* *************** Recovery *************** */
+
+    private synchronized void recover() throws IOException {
+        final long start = System.nanoTime();
+        final File[] files = directory.listFiles(SEGMENT_FILTER);
+        Arrays.sort(files);
+        for (File file : files) {
+            final LogSegment segment = LogSegment.open(file);
+            segments.add(segment);
+            replay(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(LogSegment.create(directory, 0, segmentSize));
+        }
+        recoveryNanos = System.nanoTime() - start;
+        if (recoveredRecords > 0) {
+            LOGGER.info("Recovered {} sessions from {} records in {}",
+                index.size(), recoveredRecords, directory);
+        }
+    }
+
+    private void replay(final LogSegment segment) {
+        final ByteBuffer view = segment.view();
+        final byte[] header = new byte[HEADER_SIZE];
+        int position = 0;
+        while (position + HEADER_SIZE <= view.capacity()) {
+            view.position(position);
+            final int length = view.getInt();
+            final int checksum = view.getInt();
+            if (length <= 0 || length > view.capacity() - position - HEADER_SIZE) {
+                break;
+            }
+            final byte[] payload = new byte[length];
+            view.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            apply(ByteBuffer.wrap(payload), segment, position, HEADER_SIZE + length);
+            recoveredRecords++;
+            position += HEADER_SIZE + length;
+        }
+        segment.setWritePosition(position);
+
+        // Clear whatever a torn append left behind, so later appends are not followed by it
+        view.position(position);
+        view.get(header, 0, Math.min(HEADER_SIZE, view.remaining()));
+        if (view.position() > position && !Arrays.equals(header, new byte[HEADER_SIZE])) {
+            LOGGER.warn("Discarding torn record at offset {} of {}", position, segment.getFile());
+            view.position(position);
+            while (view.hasRemaining()) {
+                view.put((byte) 0);
+            }
+        }
+    }
+
+    /**
+     * Update the index for a record found at a given location.
+     */
+    private void apply(final ByteBuffer payload, final LogSegment segment, final int offset,
+                       final int length) {
+        final byte type = payload.get();
+        final int id = payload.getInt();
+        lastId = Math.max(lastId, id);
+        final Location previous;
+        if (type == PUT) {
+            previous = index.put(id, new Location(segment, offset, length));
+            segment.addLiveBytes(length);
+        } else {
+            previous = index.remove(id);
+        }
+        if (previous != null) {
+            previous.segment.addLiveBytes(-previous.length);
+        }
+    }
+
+    /* *************** Writes *************** */
+
+    /**
+     * Append a session to the log, giving it an id if it does not have one.
+     *
+     * @param session the session, whose pairing must have been saved.
+     * @throws IOException if the session is too large for a segment or a new segment cannot be
+     *                     created.
+     */
+    synchronized void append(final LogSessionImp session) throws IOException {
+        checkOpen();
+        if (!session.isSaved()) {
+            session.setId(++lastId);
+        }
+        final byte[] payload = encode(session);
+        append(payload);
+    }
+
+    /**
+     * Remove a session from the log.
+     *
+     * @param id the id of the session.
+     * @return <code>true</code> if the session was removed or <code>false</code> if there is no
+     * such session.
+     * @throws IOException if a new segment cannot be created.
+     */
+    public synchronized boolean delete(final int id) throws IOException {
+        checkOpen();
+        if (!index.containsKey(id)) {
+            return false;
+        }
+        final ByteBuffer payload = ByteBuffer.allocate(5);
+        payload.put(DELETE).putInt(id);
+        append(payload.array());
+        return true;
+    }
+
+    private void append(final byte[] payload) throws IOException {
+        final int length = HEADER_SIZE + payload.length;
+        if (length > segmentSize) {
+            throw new IOException(
+                "session record of " + length + " bytes is larger than a segment");
+        }
+        if (activeSegment().getRemaining() < length) {
+            roll();
+        }
+        crc.reset();
+        crc.update(payload);
+        final LogSegment segment = activeSegment();
+        final int offset = segment.getWritePosition();
+        final ByteBuffer view = segment.view();
+        view.position(offset);
+        view.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        segment.setWritePosition(offset + length);
+        apply(ByteBuffer.wrap(payload), segment, offset, length);
+        appends++;
+        appendedBytes += length;
+    }
+
+    /**
+     * Copy an existing record, header included, to the end of the log.
+     */
+    private void appendRaw(final byte[] record) throws IOException {
+        if (activeSegment().getRemaining() < record.length) {
+            roll();
+        }
+        final LogSegment segment = activeSegment();
+        final int offset = segment.getWritePosition();
+        final ByteBuffer view = segment.view();
+        view.position(offset);
+        view.put(record);
+        segment.setWritePosition(offset + record.length);
+        apply(ByteBuffer.wrap(record, HEADER_SIZE, record.length - HEADER_SIZE), segment,
+            offset, record.length);
+    }
+
+    private LogSegment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private void roll() throws IOException {
+        final LogSegment full = activeSegment();
+        full.force();
+        segments.add(LogSegment.create(directory, full.getSequence() + 1, segmentSize));
+        rolls++;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("session log is closed");
+        }
+    }
+
+    /* *************** Reads *************** */
+
+    /**
+     * Read the latest record of a session.
+     *
+     * @param id the id of the session.
+     * @return the record, or <code>null</code> if there is no such session.
+     */
+    Record read(final int id) {
+        final Location location = index.get(id);
+        if (location == null) {
+            return null;
+        }
+        final ByteBuffer view = location.segment.view();
+        view.position(location.offset + HEADER_SIZE);
+        view.limit(location.offset + location.length);
+        return decode(view.slice());
+    }
+
+    /* *************** Encoding *************** */
+
+    private static byte[] encode(final LogSessionImp session) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        final DataOutputStream dos = new DataOutputStream(bytes);
+        dos.writeByte(PUT);
+        dos.writeInt(session.getId());
+        dos.writeInt(session.getPairing().getId());
+        writeString(dos, session.getRemoteId());
+        final SecretKey key = session.getSecretKey();
+        writeString(dos, (key != null) ? key.getAlgorithm() : null);
+        writeBytes(dos, (key != null) ? key.getEncoded() : null);
+        dos.writeLong((session.getLastAuthDate() != null)
+            ? session.getLastAuthDate().getTime() : -1);
+        writeString(dos, (session.getStatus() != null) ? session.getStatus().name() : null);
+        writeString(dos, (session.getError() != null) ? session.getError().name() : null);
+        dos.flush();
+        return bytes.toByteArray();
+    }
+
+    private static Record decode(final ByteBuffer payload) {
+        payload.get();
+        final int id = payload.getInt();
+        final int pairingId = payload.getInt();
+        final String remoteId = readString(payload);
+        final String algorithm = readString(payload);
+        final byte[] key = readBytes(payload);
+        final long lastAuthDate = payload.getLong();
+        final String status = readString(payload);
+        final String error = readString(payload);
+        return new Record(
+            id,
+            pairingId,
+            remoteId,
+            (key != null) ? new SecretKeySpec(key, algorithm) : null,
+            (lastAuthDate != -1) ? new Date(lastAuthDate) : null,
+            (status != null) ? Session.Status.valueOf(status) : null,
+            (error != null) ? Session.Error.valueOf(error) : null);
+    }
+
+    private static void writeString(final DataOutputStream dos, final String s)
+        throws IOException {
+        writeBytes(dos, (s != null) ? s.getBytes(UTF_8) : null);
+    }
+
+    private static void writeBytes(final DataOutputStream dos, final byte[] bytes)
+        throws IOException {
+        if (bytes == null) {
+            dos.writeInt(-1);
+        } else {
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+    }
+
+    private static String readString(final ByteBuffer buffer) {
+        final byte[] bytes = readBytes(buffer);
+        return (bytes != null) ? new String(bytes, UTF_8) : null;
+    }
+
+    private static byte[] readBytes(final ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /* *************** Maintenance *************** */
+
+    /**
+     * Write all appended records out to the storage device.
+     */
+    public synchronized void sync() {
+        if (!closed) {
+            activeSegment().force();
+        }
+    }
+
+    /**
+     * Compact the oldest full segments for as long as the proportion of garbage in the full
+     * segments is above the threshold. Appends wait while each segment is compacted.
+     *
+     * @return the number of segments compacted.
+     * @throws IOException if a segment could not be compacted. Segments compacted before the
+     *                     failure stay compacted.
+     */
+    public int compact() throws IOException {
+        int compacted = 0;
+        while (compactOldest()) {
+            compacted++;
+        }
+        return compacted;
+    }
+
+    private synchronized boolean compactOldest() throws IOException {
+        if (closed || segments.size() < 2 || garbageRatio() <= compactionThreshold) {
+            return false;
+        }
+        final LogSegment oldest = segments.get(0);
+        final ByteBuffer view = oldest.view();
+        int position = 0;
+        long copied = 0;
+        while (position < oldest.getWritePosition()) {
+            view.position(position);
+            final int length = HEADER_SIZE + view.getInt();
+            view.getInt();
+            final byte type = view.get();
+            final int id = view.getInt();
+            final Location location = index.get(id);
+            // The tombstone of the highest id is kept so that ids are not reused after a restart
+            if ((location != null && location.segment == oldest && location.offset == position)
+                || (type == DELETE && id == lastId)) {
+                final byte[] record = new byte[length];
+                view.position(position);
+                view.get(record);
+                appendRaw(record);
+                copied += length;
+            }
+            position += length;
+        }
+
+        // The copies must be on disk before the only other copy of the records is deleted
+        activeSegment().force();
+        segments.remove(0);
+        oldest.close();
+        if (!oldest.getFile().delete()) {
+            LOGGER.warn("Could not delete compacted segment {}", oldest.getFile());
+        }
+        compactedSegments++;
+        reclaimedBytes += oldest.getWritePosition() - copied;
+        return true;
+    }
+
+    /**
+     * @return the proportion of the bytes in the full segments which are garbage.
+     */
+    private double garbageRatio() {
+        long written = 0;
+        long live = 0;
+        for (int i = 0; i < segments.size() - 1; i++) {
+            written += segments.get(i).getWritePosition();
+            live += segments.get(i).getLiveBytes();
+        }
+        return (written > 0) ? (double) (written - live) / written : 0;
+    }
+
+    /**
+     * Stop background work, sync the log and close its segment files. Sessions can no longer be
+     * saved or read afterwards.
+     *
+     * @throws IOException if a segment file cannot be closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (scheduledRun != null) {
+            scheduledRun.cancel(false);
+        }
+        if (closed) {
+            return;
+        }
+        activeSegment().force();
+        closed = true;
+        index.clear();
+        for (LogSegment segment : segments) {
+            segment.close();
+        }
+    }
+
+    @Override
+    public synchronized Map<String, Number> getMetrics() {
+        final Map<String, Number> metrics = new HashMap<String, Number>();
+        metrics.put("sessions", index.size());
+        metrics.put("segments", segments.size());
+        metrics.put("garbageRatio", garbageRatio());
+        metrics.put("appends", appends);
+        metrics.put("appendedBytes", appendedBytes);
+        metrics.put("rolls", rolls);
+        metrics.put("compactedSegments", compactedSegments);
+        metrics.put("reclaimedBytes", reclaimedBytes);
+        metrics.put("recoveredRecords", recoveredRecords);
+        metrics.put("recoveryMillis", TimeUnit.NANOSECONDS.toMillis(recoveryNanos));
+        return metrics;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Session store which appends session records to memory-mapped log segments instead of writing
+ * them to the database. This package provides concrete implementations of the
+ * {@link org.mypico.jpico.data.session.SessionImpFactory} and
+ * {@link org.mypico.jpico.data.session.SessionAccessor} interfaces; pairings are still read from
+ * another data store.
+ *
+ * @see org.mypico.jpico.sessionlog.SessionLog
+ */
+package org.mypico.jpico.sessionlog;
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.util;
+
+/**
+ * Records durations and reports their distribution.
+ * <p>
+ * Durations are counted in buckets whose width grows with their value, eight to each power of
+ * two, so recording is cheap and memory use fixed however many durations are recorded, while
+ * percentiles are within about twelve percent of the exact value. Instances of this class are
+ * thread safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count = 0;
+    private long total = 0;
+    private long max = 0;
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos the duration in nanoseconds. Negative durations are recorded as zero.
+     */
+    public synchronized void record(final long nanos) {
+        final long value = Math.max(nanos, 0);
+        buckets[bucketOf(value)]++;
+        count++;
+        total += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return the number of durations recorded.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the sum of the durations recorded, in nanoseconds.
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the longest duration recorded in nanoseconds, or zero if there are none.
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the mean duration in nanoseconds, or zero if none have been recorded.
+     */
+    public synchronized double getMean() {
+        return (count == 0) ? 0 : (double) total / count;
+    }
+
+    /**
+     * Get a percentile of the durations recorded.
+     *
+     * @param percentile the percentile, between 0 and 100.
+     * @return the duration in nanoseconds which that percentage of the durations recorded did
+     * not exceed, or zero if none have been recorded.
+     */
+    public synchronized long getPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max((long) Math.ceil(count * percentile / 100), 1);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(highestValueIn(i), max);
+            }
+        }
+        return max;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueIn(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.util;
+
+import java.util.Map;
+
+/**
+ * Implemented by components that expose runtime statistics, such as hit rates, queue lengths or
+ * message rates.
+ * <p>
+ * Metrics are reported as a snapshot keyed by a short camel-case name. Counters and gauges are
+ * both represented as {@link Number}s; callers that want to export them elsewhere can simply
+ * iterate over the map.
+ */
+public interface MetricsSource {
+
+    /**
+     * Take a snapshot of the current metric values.
+     *
+     * @return a new map from metric name to value. Changes to the map do not affect the source.
+     */
+    Map<String, Number> getMetrics();
+}
@@ -0,0 +1,137 @@
+/*
+ * (C) Copyright Cambridge Authentication Ltd, 2017
+ *
+ * This file is part of jpico.
+ *
+ * jpico is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * jpico is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with jpico. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.mypico.jpico.util;
+
+/**
+ * Counts events and reports the rate at which they occurred over a sliding window.
+ * <p>
+ * The window is divided into a fixed number of buckets, so recording an event and reading the
+ * rate are both cheap regardless of how many events occur. Instances of this class are thread
+ * safe.
+ */
+public final class RateCounter {
+
+    /**
+     * Default number of buckets in the window.
+     */
+    public static final int DEFAULT_BUCKETS = 10;
+
+    /**
+     * Default width of each bucket in milliseconds.
+     */
+    public static final long DEFAULT_BUCKET_MILLIS = 1000;
+
+    private final long[] buckets;
+    private final long bucketMillis;
+    private final long startTime;
+    private long currentBucket;
+    private long total = 0;
+
+    /**
+     * Constructor giving a ten second window.
+     */
+    public RateCounter() {
+        this(DEFAULT_BUCKETS, DEFAULT_BUCKET_MILLIS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param buckets      number of buckets in the window.
+     * @param bucketMillis width of each bucket in milliseconds.
+     */
+    public RateCounter(final int buckets, final long bucketMillis) {
+        if (buckets <= 0) {
+            throw new IllegalArgumentException("buckets must be positive");
+        }
+        if (bucketMillis <= 0) {
+            throw new IllegalArgumentException("bucketMillis must be positive");
+        }
+        this.buckets = new long[buckets];
+        this.bucketMillis = bucketMillis;
+        this.startTime = System.currentTimeMillis();
+        this.currentBucket = startTime / bucketMillis;
+    }
+
+    /**
+     * Record a single event.
+     */
+    public void mark() {
+        mark(1);
+    }
+
+    /**
+     * Record a number of events.
+     *
+     * @param events the number of events that occurred.
+     */
+    public synchronized void mark(final long events) {
+        advance(System.currentTimeMillis());
+        buckets[(int) (currentBucket % buckets.length)] += events;
+        total += events;
+    }
+
+    /**
+     * Get the number of events recorded since the counter was created.
+     *
+     * @return the total event count.
+     */
+    public synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * Get the event rate over the window. While the counter is younger than the window the rate
+     * is averaged over its lifetime instead.
+     *
+     * @return events per second.
+     */
+    public synchronized double getRate() {
+        final long now = System.currentTimeMillis();
+        advance(now);
+        long events = 0;
+        for (long bucket : buckets) {
+            events += bucket;
+        }
+        final long window = buckets.length * bucketMillis;
+        final long elapsed = Math.max(Math.min(now - startTime, window), bucketMillis);
+        return events * 1000.0 / elapsed;
+    }
+
+    /* *************** Helper Methods *************** */
+
+    private void advance(final long now) {
+        final long bucket = now / bucketMillis;
+        if (bucket - currentBucket >= buckets.length) {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = 0;
+            }
+        } else {
+            for (long b = currentBucket + 1; b <= bucket; b++) {
+                buckets[(int) (b % buckets.length)] = 0;
+            }
+        }
+        if (bucket > currentBucket) {
+            currentBucket = bucket;
+        }
+    }
+}
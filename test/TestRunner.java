@@ -41,7 +41,30 @@ public class TestRunner {
 			org.mypico.jpico.test.gson.VisualCodeGsonTest.class,
 			org.mypico.jpico.test.crypto.CookieTest.class,
 			org.mypico.jpico.test.gson.VisualCodeGsonTest.class, 
-			org.mypico.jpico.test.util.PicoCookieManagerTest.class 
+			org.mypico.jpico.test.util.PicoCookieManagerTest.class,
+			org.mypico.jpico.test.crypto.KeyVaultTest.class,
+			org.mypico.jpico.test.crypto.ContinuousProverManagerTest.class,
+			org.mypico.jpico.test.crypto.AdaptiveReauthTimeoutPolicyTest.class,
+			org.mypico.jpico.test.crypto.ContinuousPipelineTest.class,
+			org.mypico.jpico.test.db.DbSessionWriteBehindTest.class,
+			org.mypico.jpico.test.db.CachingDataAccessorTest.class,
+			org.mypico.jpico.test.db.DbCursorTest.class,
+			org.mypico.jpico.test.db.DbImportTest.class,
+			org.mypico.jpico.test.db.DbJoinFetchTest.class,
+			org.mypico.jpico.test.db.PooledConnectionSourceTest.class,
+			org.mypico.jpico.test.db.DbSessionRetentionTest.class,
+			org.mypico.jpico.test.mem.MemServiceAccessorTest.class,
+			org.mypico.jpico.test.mem.MemPairingAccessorTest.class,
+			org.mypico.jpico.test.mem.MemKeyPairingAccessorTest.class,
+			org.mypico.jpico.test.mem.MemLensPairingAccessorTest.class,
+			org.mypico.jpico.test.mem.MemTerminalAccessorTest.class,
+			org.mypico.jpico.test.mem.MemDataStoreTest.class,
+			org.mypico.jpico.test.sessionlog.SessionLogTest.class,
+			org.mypico.jpico.test.data.AsyncDataAccessorTest.class,
+			org.mypico.jpico.test.db.ShardedDbDataAccessorTest.class,
+			org.mypico.jpico.test.db.ReplicatedConnectionSourceTest.class,
+			org.mypico.jpico.test.db.DbInstrumentationTest.class,
+			org.mypico.jpico.test.db.DbTableConfigsTest.class
 		);
  		
 		for (Failure failure : result.getFailures()) {
@@ -7,6 +7,7 @@ import org.mypico.jpico.backup.BackupKey;
 import org.mypico.jpico.backup.BackupKeyInvalidException;
 import org.mypico.jpico.backup.BackupKeyInvalidLengthException;
 import org.mypico.jpico.backup.EncBackupFile;
+import org.mypico.jpico.gson.EncBackupFileGson;
 import org.mypico.jpico.test.util.UsesCryptoTest;
 
 import com.google.common.base.Charsets;
@@ -17,7 +18,9 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 public class BackupFileTest extends UsesCryptoTest {
 	public static class ConcreteBackupKey extends BackupKey {
@@ -117,4 +120,156 @@ public class BackupFileTest extends UsesCryptoTest {
 		} catch (BackupFileDecryptionException e) {
 		}
 	}
+	
+	// Chunked backups written with CHUNK byte chunks have a 44 byte header followed by
+	// chunks of CHUNK bytes of ciphertext and a 16 byte tag
+	private static final int CHUNK = 100;
+	private static final int HEADER = 44;
+	private static final int SEALED = CHUNK + 16;
+	
+	private static File writeDatabase(byte[] data) throws IOException {
+		File dbFile = File.createTempFile("database", ".db");
+		Files.write(data, dbFile);
+		return dbFile;
+	}
+	
+	private static byte[] randomData(int length) {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		return data;
+	}
+	
+	private static void assertRestoreFails(File encFile, BackupKey backupKey) throws IOException, BackupKeyInvalidException {
+		File restored = File.createTempFile("restored", ".db");
+		Files.write("existing".getBytes("utf-8"), restored);
+		try {
+			EncBackupFile.restoreBackupFile(encFile, restored, backupKey);
+			fail();
+		} catch (BackupFileDecryptionException e) {
+		}
+		// The database being restored over is left alone
+		assertEquals("existing", new String(Files.toByteArray(restored), "utf-8"));
+	}
+	
+	@Test
+	public void chunkedEncDecTest() throws IOException, BackupKeyInvalidException, BackupFileDecryptionException, BackupKeyInvalidLengthException {
+		BackupKey backupKey = ConcreteBackupKey.newInstance(null);
+		for (int length : new int[]{0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 1000}) {
+			byte[] data = randomData(length);
+			File encFile = File.createTempFile("backup", ".enc");
+			BackupFile.newInstance(writeDatabase(data)).writeEncBackupFile(backupKey, encFile, CHUNK);
+			
+			int chunks = Math.max(1, (length + CHUNK - 1) / CHUNK);
+			if (length % CHUNK == 0 && length > 0) {
+				// The final chunk may be full
+				assertEquals(HEADER + chunks * SEALED, encFile.length());
+			} else {
+				assertEquals(HEADER + length + chunks * 16, encFile.length());
+			}
+			
+			File restoredFile = File.createTempFile("restored", ".db");
+			BackupFile restored = EncBackupFile.restoreBackupFile(encFile, restoredFile, backupKey);
+			assertEquals(restoredFile, restored.getDbFile());
+			assertTrue(Arrays.equals(data, Files.toByteArray(restoredFile)));
+		}
+	}
+	
+	@Test
+	public void chunkedDefaultChunkSize() throws IOException, BackupKeyInvalidException, BackupFileDecryptionException, BackupKeyInvalidLengthException {
+		BackupKey backupKey = ConcreteBackupKey.newInstance(null);
+		byte[] data = randomData(200 * 1024);
+		File encFile = File.createTempFile("backup", ".enc");
+		BackupFile.newInstance(writeDatabase(data)).writeEncBackupFile(backupKey, encFile);
+		
+		File restoredFile = new File(File.createTempFile("restored", "").getPath() + ".dir", "restored.db");
+		EncBackupFile.restoreBackupFile(encFile, restoredFile, backupKey);
+		assertTrue(Arrays.equals(data, Files.toByteArray(restoredFile)));
+	}
+	
+	@Test
+	public void chunkedReplacesExisting() throws IOException, BackupKeyInvalidException, BackupFileDecryptionException, BackupKeyInvalidLengthException {
+		BackupKey backupKey = ConcreteBackupKey.newInstance(null);
+		byte[] data = randomData(250);
+		File encFile = File.createTempFile("backup", ".enc");
+		BackupFile.newInstance(writeDatabase(data)).writeEncBackupFile(backupKey, encFile, CHUNK);
+		
+		File dir = new File(File.createTempFile("restored", "").getPath() + ".dir");
+		assertTrue(dir.mkdirs());
+		File restoredFile = new File(dir, "restored.db");
+		Files.write("existing".getBytes("utf-8"), restoredFile);
+		EncBackupFile.restoreBackupFile(encFile, restoredFile, backupKey);
+		assertTrue(Arrays.equals(data, Files.toByteArray(restoredFile)));
+		
+		// Neither the restored copy nor the old database is left behind
+		assertEquals(Arrays.asList("restored.db"), Arrays.asList(dir.list()));
+	}
+	
+	@Test
+	public void chunkedWrongKey() throws IOException, BackupKeyInvalidException, BackupKeyInvalidLengthException {
+		File encFile = File.createTempFile("backup", ".enc");
+		BackupFile.newInstance(writeDatabase(randomData(250))).writeEncBackupFile(ConcreteBackupKey.newInstance(null), encFile, CHUNK);
+		assertRestoreFails(encFile, ConcreteBackupKey.newInstance(null));
+	}
+	
+	@Test
+	public void chunkedTampering() throws IOException, BackupKeyInvalidException, BackupKeyInvalidLengthException {
+		BackupKey backupKey = ConcreteBackupKey.newInstance(null);
+		File encFile = File.createTempFile("backup", ".enc");
+		BackupFile.newInstance(writeDatabase(randomData(350))).writeEncBackupFile(backupKey, encFile, CHUNK);
+		byte[] enc = Files.toByteArray(encFile);
+		File tampered = File.createTempFile("tampered", ".enc");
+		
+		// Truncated at a chunk boundary, so the last chunk read is not flagged as final
+		Files.write(Arrays.copyOf(enc, HEADER + 2 * SEALED), tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Truncated part way through the final chunk
+		Files.write(Arrays.copyOf(enc, enc.length - 1), tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Only the header
+		Files.write(Arrays.copyOf(enc, HEADER), tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Ciphertext modified
+		byte[] modified = enc.clone();
+		modified[HEADER + SEALED + 5] ^= 0x01;
+		Files.write(modified, tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Chunks reordered
+		byte[] reordered = enc.clone();
+		System.arraycopy(enc, HEADER, reordered, HEADER + SEALED, SEALED);
+		System.arraycopy(enc, HEADER + SEALED, reordered, HEADER, SEALED);
+		Files.write(reordered, tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Salt in the authenticated header modified
+		modified = enc.clone();
+		modified[HEADER - 1] ^= 0x01;
+		Files.write(modified, tampered);
+		assertRestoreFails(tampered, backupKey);
+		
+		// Unknown version
+		modified = enc.clone();
+		modified[7] = 2;
+		Files.write(modified, tampered);
+		assertRestoreFails(tampered, backupKey);
+	}
+	
+	@Test
+	public void legacyFormatRestored() throws IOException, BackupKeyInvalidException, BackupFileDecryptionException, BackupKeyInvalidLengthException {
+		BackupKey backupKey = ConcreteBackupKey.newInstance(null);
+		byte[] data = randomData(1000);
+		EncBackupFile encryptedFile = BackupFile.newInstance(writeDatabase(data)).createEncBackupFile(backupKey);
+		File encFile = File.createTempFile("backup", ".json");
+		Files.write(EncBackupFileGson.gson.toJson(encryptedFile), encFile, Charsets.UTF_8);
+		
+		File restoredFile = File.createTempFile("restored", ".db");
+		EncBackupFile.restoreBackupFile(encFile, restoredFile, backupKey);
+		assertTrue(Arrays.equals(data, Files.toByteArray(restoredFile)));
+		
+		Files.write("not a backup", encFile, Charsets.UTF_8);
+		assertRestoreFails(encFile, backupKey);
+	}
 }
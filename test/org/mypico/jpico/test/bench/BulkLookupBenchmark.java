@@ -0,0 +1,140 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare reconciling a set of services one commitment at a time against the bulk lookups
+ * {@link DbDataAccessor#getServicesByCommitments} and
+ * {@link DbDataAccessor#getKeyPairingsByServiceCommitments}, which query a chunk of commitments
+ * at a time.
+ * <p>
+ * The first argument is the number of services to create, each with one key pairing (default
+ * 2000), the second the number of them to reconcile in each round (default 500), the third the
+ * number of rounds and the fourth the JDBC URL of an embedded Derby database, which defaults to
+ * an in-memory database.
+ */
+public class BulkLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int services = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        final int batch = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        final int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+        final String url = (args.length > 3) ? args[3] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final DbDataFactory factory = new DbDataFactory(connection);
+            final DbDataAccessor accessor = new DbDataAccessor(connection);
+
+            final Random random = new Random(0);
+            final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+            final List<byte[]> commitments = new ArrayList<byte[]>(services);
+            for (int i = 0; i < services; i++) {
+                final byte[] commitment = new byte[32];
+                random.nextBytes(commitment);
+                commitments.add(commitment);
+                final Service service = new Service(factory, "service " + i,
+                    URI.create("http://service" + i + ".example.com"), commitment);
+                new KeyPairing(factory, "user " + i, service, keyPair, "").save();
+            }
+
+            // Warm up both paths
+            run(accessor, commitments, batch, rounds / 4 + 1, random);
+            final long[] nanos = run(accessor, commitments, batch, rounds, random);
+            report("services, one at a time", nanos[0], batch, rounds);
+            report("services, bulk", nanos[1], batch, rounds);
+            report("key pairings, one at a time", nanos[2], batch, rounds);
+            report("key pairings, bulk", nanos[3], batch, rounds);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+    }
+
+    private static long[] run(final DbDataAccessor accessor, final List<byte[]> commitments,
+                              final int batch, final int rounds, final Random random)
+        throws Exception {
+        final long[] nanos = new long[4];
+        for (int round = 0; round < rounds; round++) {
+            final List<byte[]> wanted = new ArrayList<byte[]>(batch);
+            for (int i = 0; i < batch; i++) {
+                wanted.add(commitments.get(random.nextInt(commitments.size())));
+            }
+
+            long start = System.nanoTime();
+            int found = 0;
+            for (byte[] commitment : wanted) {
+                if (accessor.getServiceByCommitment(commitment) != null) {
+                    found++;
+                }
+            }
+            nanos[0] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final Map<ByteBuffer, Service> services = accessor.getServicesByCommitments(wanted);
+            nanos[1] += System.nanoTime() - start;
+            check(found, services.size(), wanted);
+
+            start = System.nanoTime();
+            found = 0;
+            for (byte[] commitment : wanted) {
+                found += accessor.getKeyPairingsByServiceCommitment(commitment).isEmpty() ? 0 : 1;
+            }
+            nanos[2] += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            final Map<ByteBuffer, List<KeyPairing>> pairings =
+                accessor.getKeyPairingsByServiceCommitments(wanted);
+            nanos[3] += System.nanoTime() - start;
+            int bulkFound = 0;
+            for (List<KeyPairing> list : pairings.values()) {
+                bulkFound += list.isEmpty() ? 0 : 1;
+            }
+            check(found, bulkFound, wanted);
+        }
+        return nanos;
+    }
+
+    /**
+     * Check the bulk lookup found every distinct commitment found one at a time.
+     */
+    private static void check(final int found, final int bulkFound, final List<byte[]> wanted) {
+        final List<ByteBuffer> distinct = new ArrayList<ByteBuffer>();
+        for (byte[] commitment : wanted) {
+            if (!distinct.contains(ByteBuffer.wrap(commitment))) {
+                distinct.add(ByteBuffer.wrap(commitment));
+            }
+        }
+        if (found != wanted.size() || bulkFound != distinct.size()) {
+            throw new IllegalStateException("lookups disagree");
+        }
+    }
+
+    private static void report(final String name, final long nanos, final int batch,
+                               final int rounds) {
+        System.out.println(String.format("%-28s batch=%d mean=%.1f ms per batch, %.1f us per"
+                + " commitment", name, batch, nanos / 1e6 / rounds,
+            nanos / 1e3 / rounds / batch));
+    }
+}
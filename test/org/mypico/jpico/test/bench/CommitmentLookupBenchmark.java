@@ -0,0 +1,200 @@
+package org.mypico.jpico.test.bench;
+
+import java.security.Security;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.comms.org.apache.commons.codec.binary.Base64;
+import org.mypico.jpico.db.DbServiceAccessor;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare service lookups by commitment before and after the version 22 schema change, which
+ * replaced the indexed Base64 commitment column with a binary commitment and an indexed 64-bit
+ * prefix. A services table in the version 21 layout is filled, measured, migrated in place with
+ * {@link DbVersioner#upgradeDatabase(ConnectionSource, int)} and measured again.
+ * <p>
+ * The first argument is the number of services to create (default 100000), the second the
+ * number of lookups to time and the third the JDBC URL of an embedded Derby database, which
+ * defaults to an in-memory database.
+ */
+public class CommitmentLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int services = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 50000;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final Dao<DbServiceImp, Integer> dao =
+                DaoManager.createDao(connection, DbServiceImp.class);
+            final byte[][] commitments = populateVersion21(dao, services);
+
+            final Random random = new Random(1);
+            final Lookup legacy = new Lookup() {
+                @Override
+                public boolean find(byte[] commitment) throws SQLException {
+                    return queryForId(dao, "SELECT \"id\" FROM SERVICES WHERE \"commitment\" = ?",
+                        Base64.encodeBase64String(commitment));
+                }
+            };
+            run(legacy, commitments, lookups / 10, random);
+            report("version 21, Base64 string", run(legacy, commitments, lookups, random),
+                lookups, indexPages(dao));
+
+            long start = System.nanoTime();
+            DbVersioner.upgradeDatabase(connection, 21);
+            System.out.println(String.format("migrated %d services in %d ms",
+                services, (System.nanoTime() - start) / 1000000));
+
+            final Lookup prefix = new Lookup() {
+                @Override
+                public boolean find(byte[] commitment) throws SQLException {
+                    return queryForId(dao,
+                        "SELECT \"id\" FROM SERVICES WHERE \"commitment_prefix\" = ?",
+                        prefixOf(commitment));
+                }
+            };
+            final DbServiceAccessor accessor = new DbServiceAccessor(dao);
+            final Lookup accessorLookup = new Lookup() {
+                @Override
+                public boolean find(byte[] commitment) throws Exception {
+                    return accessor.getServiceByCommitment(commitment) != null;
+                }
+            };
+            run(prefix, commitments, lookups / 10, random);
+            run(accessorLookup, commitments, lookups / 10, random);
+            final String[] indexes = indexPages(dao);
+            report("version 22, prefix only", run(prefix, commitments, lookups, random),
+                lookups, indexes);
+            report("version 22, accessor", run(accessorLookup, commitments, lookups, random),
+                lookups, indexes);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+    }
+
+    private interface Lookup {
+        /**
+         * Look up a service, returning whether it was found.
+         */
+        boolean find(byte[] commitment) throws Exception;
+    }
+
+    /**
+     * Replace the services and terminals tables with ones in the version 21 layout and fill
+     * the services table.
+     */
+    private static byte[][] populateVersion21(final Dao<DbServiceImp, Integer> dao,
+                                              final int services) throws Exception {
+        dao.executeRaw("DROP TABLE SERVICES");
+        dao.executeRaw("CREATE TABLE SERVICES (\"id\" INTEGER GENERATED BY DEFAULT AS IDENTITY,"
+            + " \"name\" VARCHAR(255) NOT NULL, \"address\" VARCHAR(255) NOT NULL,"
+            + " \"commitment\" VARCHAR(255) NOT NULL, PRIMARY KEY (\"id\"))");
+        dao.executeRaw("CREATE INDEX \"SERVICES_commitment_idx\" ON SERVICES (\"commitment\")");
+        // The migration converts terminals too, so they have to be in the old layout as well
+        dao.executeRaw("DROP TABLE TERMINALS");
+        dao.executeRaw("CREATE TABLE TERMINALS (\"id\" INTEGER GENERATED BY DEFAULT AS IDENTITY,"
+            + " \"name\" VARCHAR(255) NOT NULL, \"commitment\" VARCHAR(255) NOT NULL,"
+            + " \"pico_public_key\" LONG VARCHAR FOR BIT DATA NOT NULL,"
+            + " \"pico_private_key\" LONG VARCHAR FOR BIT DATA NOT NULL, PRIMARY KEY (\"id\"))");
+
+        final byte[][] commitments = new byte[services][];
+        final Random random = new Random(0);
+        final long start = System.nanoTime();
+        dao.callBatchTasks(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (int i = 0; i < services; i++) {
+                    commitments[i] = new byte[32];
+                    random.nextBytes(commitments[i]);
+                    dao.updateRaw("INSERT INTO SERVICES (\"name\", \"address\", \"commitment\")"
+                            + " VALUES (?, ?, ?)", "service " + i,
+                        "http://service" + i + ".example.com",
+                        Base64.encodeBase64String(commitments[i]));
+                }
+                return null;
+            }
+        });
+        System.out.println(String.format("created %d services in %d ms",
+            services, (System.nanoTime() - start) / 1000000));
+        return commitments;
+    }
+
+    private static boolean queryForId(final Dao<DbServiceImp, Integer> dao, final String sql,
+                                      final String arg) throws SQLException {
+        final GenericRawResults<String[]> results = dao.queryRaw(sql, arg);
+        try {
+            return results.getFirstResult() != null;
+        } finally {
+            results.close();
+        }
+    }
+
+    private static String prefixOf(final byte[] commitment) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (commitment[i] & 0xff);
+        }
+        return Long.toString(prefix);
+    }
+
+    /**
+     * Describe the size of each index on the services table, as reported by Derby.
+     */
+    private static String[] indexPages(final Dao<DbServiceImp, Integer> dao)
+        throws SQLException {
+        final GenericRawResults<String[]> results = dao.queryRaw(
+            "SELECT CONGLOMERATENAME, NUMALLOCATEDPAGES, PAGESIZE"
+                + " FROM TABLE (SYSCS_DIAG.SPACE_TABLE('APP', 'SERVICES')) T WHERE ISINDEX = 1");
+        try {
+            final List<String[]> rows = results.getResults();
+            final String[] indexes = new String[rows.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                final String[] row = rows.get(i);
+                indexes[i] = String.format("%s=%d KiB", row[0],
+                    Long.parseLong(row[1]) * Long.parseLong(row[2]) / 1024);
+            }
+            return indexes;
+        } finally {
+            results.close();
+        }
+    }
+
+    private static long run(final Lookup lookup, final byte[][] commitments, final int lookups,
+                            final Random random) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (!lookup.find(commitments[random.nextInt(commitments.length)])) {
+                throw new SQLException("service not found");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(final String name, final long nanos, final int lookups,
+                               final String[] indexes) {
+        final StringBuilder sb = new StringBuilder();
+        for (String index : indexes) {
+            sb.append(' ').append(index);
+        }
+        System.out.println(String.format("%-26s lookups=%d mean=%.1f us throughput=%.0f/s"
+                + " indexes:%s",
+            name, lookups, nanos / 1e3 / lookups, lookups * 1e9 / nanos, sb));
+    }
+}
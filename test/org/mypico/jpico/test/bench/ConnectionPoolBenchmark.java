@@ -0,0 +1,180 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.KeyGenerator;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.PooledConnectionSource;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Measure how concurrent reads and writes scale with the number of connections, comparing a
+ * single {@link JdbcConnectionSource} shared by every thread against a
+ * {@link PooledConnectionSource} of increasing size. Reads look up key pairings by id with their
+ * service; writes change the status of a session and save it.
+ * <p>
+ * The first argument is the number of threads (default 8), the second the number of seconds to
+ * run each measurement for (default 3) and the third the JDBC URL of an embedded Derby database,
+ * which defaults to an in-memory database. Writes to an on-disk database wait for the log to be
+ * flushed, so that is where extra connections help most.
+ */
+public class ConnectionPoolBenchmark {
+
+    private static final int PAIRINGS = 1000;
+    private static final int SERVICES = 100;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        final int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource setup = new JdbcConnectionSource(url);
+        final int[] ids;
+        try {
+            DbVersioner.dropDatabase(setup);
+            DbVersioner.createDatabase(setup);
+            ids = populate(new DbDataFactory(setup));
+        } finally {
+            setup.close();
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            run("single connection", new JdbcConnectionSource(url), executor, threads, seconds,
+                ids);
+            for (int poolSize = 1; poolSize <= threads; poolSize *= 2) {
+                run("pool of " + poolSize, new PooledConnectionSource(url, poolSize), executor,
+                    threads, seconds, ids);
+            }
+        } finally {
+            executor.shutdown();
+            final ConnectionSource teardown = new JdbcConnectionSource(url);
+            DbVersioner.dropDatabase(teardown);
+            teardown.close();
+        }
+    }
+
+    /**
+     * Create the key pairings and a session for each. Returns the pairing and session ids.
+     */
+    private static int[] populate(final DbDataFactory factory) throws Exception {
+        final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        final KeyGenerator keyGenerator = CryptoFactory.INSTANCE.aes256Kg();
+        final List<Service> services = new ArrayList<Service>(SERVICES);
+        for (int i = 0; i < SERVICES; i++) {
+            services.add(new Service(factory, "service " + i,
+                URI.create("http://service" + i + ".example.com"),
+                new byte[]{(byte) (i >> 8), (byte) i}));
+        }
+        final List<KeyPairing> pairings = new ArrayList<KeyPairing>(PAIRINGS);
+        for (int i = 0; i < PAIRINGS; i++) {
+            final KeyPairing pairing = new KeyPairing(
+                factory, "user " + i, services.get(i % SERVICES), keyPair, "");
+            pairing.save();
+            pairings.add(pairing);
+        }
+
+        // Pairing ids first, then session ids
+        final int[] ids = new int[2 * PAIRINGS];
+        final long base = System.currentTimeMillis() - PAIRINGS;
+        for (int i = 0; i < PAIRINGS; i++) {
+            final Session session = new Session(factory.getImp("remote " + i,
+                keyGenerator.generateKey(), pairings.get(i), new SimpleAuthToken("token"),
+                new Date(base + i), Session.Status.ACTIVE, Session.Error.NONE));
+            session.save();
+            ids[i] = pairings.get(i).getId();
+            ids[PAIRINGS + i] = session.getId();
+        }
+        return ids;
+    }
+
+    private static void run(final String name, final ConnectionSource connection,
+                            final ExecutorService executor, final int threads,
+                            final int seconds, final int[] ids) throws Exception {
+        try {
+            final DbDaos daos = new DbDaos(connection);
+            final DbDataAccessor accessor = new DbDataAccessor(daos);
+            final DbDataFactory factory = new DbDataFactory(daos);
+
+            // Warm up, then measure
+            measure(executor, threads, 1, accessor, factory, ids, false);
+            final double reads = measure(executor, threads, seconds, accessor, factory, ids,
+                false);
+            final double writes = measure(executor, threads, seconds, accessor, factory, ids,
+                true);
+            System.out.println(String.format(
+                "%-18s threads=%d reads=%.0f/s writes=%.0f/s", name, threads, reads, writes));
+            if (connection instanceof PooledConnectionSource) {
+                System.out.println("  " + ((PooledConnectionSource) connection).getMetrics());
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Run reads or writes on every thread for the given time and return the total rate.
+     */
+    private static double measure(final ExecutorService executor, final int threads,
+                                  final int seconds, final DbDataAccessor accessor,
+                                  final DbDataFactory factory, final int[] ids,
+                                  final boolean write) throws Exception {
+        final long end = System.nanoTime() + seconds * 1000000000L;
+        final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    final Random random = new Random(thread);
+                    int ops = 0;
+                    while (System.nanoTime() < end) {
+                        if (write) {
+                            // Each thread updates its own sessions, so writers never conflict
+                            final int i = thread + threads * random.nextInt(PAIRINGS / threads);
+                            final Session session = accessor.getSessionById(ids[PAIRINGS + i]);
+                            session.setStatus((ops % 2 == 0)
+                                ? Session.Status.PAUSED : Session.Status.ACTIVE);
+                            session.save();
+                        } else {
+                            if (accessor.getKeyPairingById(
+                                ids[random.nextInt(PAIRINGS)]) == null) {
+                                throw new IllegalStateException("pairing not found");
+                            }
+                        }
+                        ops++;
+                    }
+                    return ops;
+                }
+            }));
+        }
+        long ops = 0;
+        for (Future<Integer> result : results) {
+            ops += result.get();
+        }
+        return ops / (double) seconds;
+    }
+}
@@ -0,0 +1,160 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.security.Security;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbLensPairingImp;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.google.gson.Gson;
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare lens pairing lookups by service and credentials before and after the version 23 schema
+ * change, which added an indexed credentials fingerprint. The lens pairings table is filled,
+ * put back into the version 22 layout and measured, then migrated in place with
+ * {@link DbVersioner#upgradeDatabase(ConnectionSource, int)} and measured again.
+ * <p>
+ * The first argument is the number of lens pairings to create (default 100000), the second the
+ * number of services they are spread across (default 20), the third the number of lookups to
+ * time and the fourth the JDBC URL of an embedded Derby database, which defaults to an in-memory
+ * database.
+ */
+public class CredentialLookupBenchmark {
+
+    private static final String LEGACY_QUERY = "SELECT r.\"id\" FROM LENS_PAIRINGS r"
+        + " JOIN PAIRINGS p ON r.\"pairing_id\" = p.\"id\""
+        + " JOIN SERVICES s ON p.\"service_id\" = s.\"id\""
+        + " WHERE s.\"commitment_prefix\" = ? AND r.\"credentials_string\" = ?";
+
+    public static void main(String[] args) throws Exception {
+        final int pairings = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int services = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        final int lookups = (args.length > 2) ? Integer.parseInt(args[2]) : 2000;
+        final String url = (args.length > 3) ? args[3] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final DbDataFactory factory = new DbDataFactory(connection);
+            final List<LensPairing> list = newPairings(factory, pairings, services);
+            long start = System.nanoTime();
+            factory.importPairings(list);
+            System.out.println(String.format("created %d lens pairings in %d ms",
+                pairings, (System.nanoTime() - start) / 1000000));
+
+            final Dao<DbLensPairingImp, Integer> dao =
+                DaoManager.createDao(connection, DbLensPairingImp.class);
+            dao.executeRaw("DROP INDEX \"LENS_PAIRINGS_credentials_fingerprint_idx\"");
+            dao.executeRaw("ALTER TABLE LENS_PAIRINGS DROP COLUMN \"credentials_fingerprint\"");
+
+            final Random random = new Random(1);
+            final Gson gson = new Gson();
+            final Lookup legacy = new Lookup() {
+                @Override
+                public boolean find(LensPairing pairing) throws SQLException {
+                    final GenericRawResults<String[]> results = dao.queryRaw(LEGACY_QUERY,
+                        prefixOf(pairing.getService().getCommitment()),
+                        gson.toJson(pairing.getCredentials()));
+                    try {
+                        return results.getFirstResult() != null;
+                    } finally {
+                        results.close();
+                    }
+                }
+            };
+            run(legacy, list, lookups / 10, random);
+            report("version 22, JSON string", run(legacy, list, lookups, random), lookups);
+
+            start = System.nanoTime();
+            DbVersioner.upgradeDatabase(connection, 22);
+            System.out.println(String.format("migrated %d lens pairings in %d ms",
+                pairings, (System.nanoTime() - start) / 1000000));
+
+            final DbDataAccessor accessor = new DbDataAccessor(connection);
+            final Lookup fingerprint = new Lookup() {
+                @Override
+                public boolean find(LensPairing pairing) throws Exception {
+                    return !accessor.getLensPairingsByServiceCommitmentAndCredentials(
+                        pairing.getService().getCommitment(), pairing.getCredentials())
+                        .isEmpty();
+                }
+            };
+            run(fingerprint, list, lookups / 10, random);
+            report("version 23, fingerprint", run(fingerprint, list, lookups, random), lookups);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+    }
+
+    private interface Lookup {
+        /**
+         * Look up a lens pairing, returning whether it was found.
+         */
+        boolean find(LensPairing pairing) throws Exception;
+    }
+
+    private static List<LensPairing> newPairings(
+        final DbDataFactory factory, final int pairings, final int services) {
+        final Random random = new Random(0);
+        final List<Service> serviceList = new ArrayList<Service>(services);
+        for (int i = 0; i < services; i++) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            serviceList.add(new Service(factory, "service " + i,
+                URI.create("http://service" + i + ".example.com"), commitment));
+        }
+        final List<LensPairing> list = new ArrayList<LensPairing>(pairings);
+        for (int i = 0; i < pairings; i++) {
+            final Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("username", "user" + i + "@example.com");
+            credentials.put("password", Long.toHexString(random.nextLong()));
+            list.add(new LensPairing(factory, "user " + i, serviceList.get(i % services),
+                credentials, Collections.<String>emptyList()));
+        }
+        return list;
+    }
+
+    private static String prefixOf(final byte[] commitment) {
+        long prefix = 0;
+        for (int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (commitment[i] & 0xff);
+        }
+        return Long.toString(prefix);
+    }
+
+    private static long run(final Lookup lookup, final List<LensPairing> list, final int lookups,
+                            final Random random) throws Exception {
+        final long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (!lookup.find(list.get(random.nextInt(list.size())))) {
+                throw new SQLException("lens pairing not found");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(final String name, final long nanos, final int lookups) {
+        System.out.println(String.format("%-24s lookups=%d mean=%.1f us throughput=%.0f/s",
+            name, lookups, nanos / 1e3 / lookups, lookups * 1e9 / nanos));
+    }
+}
@@ -0,0 +1,173 @@
+package org.mypico.jpico.test.bench;
+
+import java.io.File;
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.DataAccessor;
+import org.mypico.jpico.data.DataFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare the in-memory data store against Derby for the operations on the authentication path:
+ * looking up key pairings by id and by service commitment, looking up sessions by id and saving
+ * changes to sessions. The in-memory store is then written to a snapshot file and loaded back, to
+ * show how long a restart takes.
+ * <p>
+ * The first argument is the number of key pairings to create (default 5000), each of which gets
+ * one session, the second the number of services they are spread across (default 250), the third
+ * the number of operations to time and the fourth the JDBC URL of an embedded Derby database,
+ * which defaults to an in-memory database.
+ */
+public class InMemoryStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int pairings = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        final int services = (args.length > 1) ? Integer.parseInt(args[1]) : 250;
+        final int operations = (args.length > 2) ? Integer.parseInt(args[2]) : 5000;
+        final String url = (args.length > 3) ? args[3] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final DbDataFactory factory = new DbDataFactory(connection);
+            run("derby", factory, new DbDataAccessor(connection), pairings, services, operations);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+
+        final File snapshotFile = File.createTempFile("store", ".snapshot");
+        snapshotFile.delete();
+        try {
+            MemDataStore store = new MemDataStore(snapshotFile);
+            run("in-memory", new MemDataFactory(store), new MemDataAccessor(store), pairings,
+                services, operations);
+
+            long start = System.nanoTime();
+            store.close();
+            System.out.println(String.format("snapshot written in %d ms, %d KiB",
+                (System.nanoTime() - start) / 1000000, snapshotFile.length() / 1024));
+
+            start = System.nanoTime();
+            store = new MemDataStore(snapshotFile);
+            final Map<String, Number> metrics = store.getMetrics();
+            System.out.println(String.format("snapshot loaded in %d ms, %s pairings, %s sessions",
+                (System.nanoTime() - start) / 1000000, metrics.get("pairings"),
+                metrics.get("sessions")));
+            store.close();
+        } finally {
+            snapshotFile.delete();
+        }
+    }
+
+    private interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    private static void run(final String name, final DataFactory factory,
+                            final DataAccessor accessor, final int pairings,
+                            final int services, final int operations) throws Exception {
+        final Random random = new Random(0);
+        final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        final List<byte[]> commitments = new ArrayList<byte[]>(services);
+        final List<Service> serviceList = new ArrayList<Service>(services);
+        for (int i = 0; i < services; i++) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            commitments.add(commitment);
+            serviceList.add(new Service(factory, "service " + i,
+                URI.create("http://service" + i + ".example.com"), commitment));
+        }
+
+        final int[] pairingIds = new int[pairings];
+        final int[] sessionIds = new int[pairings];
+        long start = System.nanoTime();
+        for (int i = 0; i < pairings; i++) {
+            final KeyPairing pairing = new KeyPairing(
+                factory, "user " + i, serviceList.get(i % services), keyPair, "");
+            pairing.save();
+            pairingIds[i] = pairing.getId();
+            // Dates must be unique in the database
+            final Session session = Session.newInstanceClosed(factory, "remote " + i, pairing,
+                null);
+            session.setLastAuthDate(new Date(i * 1000L + 1000));
+            session.save();
+            sessionIds[i] = session.getId();
+        }
+        System.out.println(String.format("%-10s created %d pairings and sessions in %d ms",
+            name, pairings, (System.nanoTime() - start) / 1000000));
+
+        time(name, "key pairing by id", operations, random, new Operation() {
+            @Override
+            public void run(int i) throws Exception {
+                if (accessor.getKeyPairingById(pairingIds[i % pairings]) == null) {
+                    throw new IllegalStateException("pairing not found");
+                }
+            }
+        });
+        time(name, "pairings by commitment", operations, random, new Operation() {
+            @Override
+            public void run(int i) throws Exception {
+                if (accessor.getKeyPairingsByServiceCommitment(
+                    commitments.get(i % services)).isEmpty()) {
+                    throw new IllegalStateException("pairings not found");
+                }
+            }
+        });
+        time(name, "session by id", operations, random, new Operation() {
+            @Override
+            public void run(int i) throws Exception {
+                if (accessor.getSessionById(sessionIds[i % pairings]) == null) {
+                    throw new IllegalStateException("session not found");
+                }
+            }
+        });
+        time(name, "session save", operations, random, new Operation() {
+            @Override
+            public void run(int i) throws Exception {
+                final Session session = accessor.getSessionById(sessionIds[i % pairings]);
+                session.setStatus((session.getStatus() == Session.Status.CLOSED)
+                    ? Session.Status.ERROR : Session.Status.CLOSED);
+                session.save();
+            }
+        });
+    }
+
+    private static void time(final String name, final String operation, final int operations,
+                             final Random random, final Operation op) throws Exception {
+        // Warm up
+        for (int i = 0; i < operations / 10; i++) {
+            op.run(random.nextInt(Integer.MAX_VALUE));
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            op.run(random.nextInt(Integer.MAX_VALUE));
+        }
+        final long nanos = System.nanoTime() - start;
+        System.out.println(String.format("%-10s %-24s ops=%d mean=%.1f us throughput=%.0f/s",
+            name, operation, operations, nanos / 1e3 / operations, operations * 1e9 / nanos));
+    }
+}
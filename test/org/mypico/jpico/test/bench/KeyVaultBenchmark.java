@@ -0,0 +1,116 @@
+package org.mypico.jpico.test.bench;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.mypico.jpico.crypto.util.KeyVault;
+import org.mypico.jpico.crypto.util.VaultSecretKey;
+
+/**
+ * Compare heap usage and garbage collection activity of long-lived session keys held as
+ * {@link SecretKeySpec} instances against keys held in a {@link KeyVault}.
+ * <p>
+ * Run with a fixed heap, for example <code>-Xms256m -Xmx256m</code>, so the results are
+ * comparable between runs. The first argument is the number of sessions to simulate.
+ */
+public class KeyVaultBenchmark {
+
+    private static final int ROUNDS = 20;
+
+    public static void main(String[] args) {
+        final int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+
+        // Warm up both paths
+        run(false, sessions / 10);
+        run(true, sessions / 10);
+
+        report("SecretKeySpec", run(false, sessions), sessions);
+        report("KeyVault", run(true, sessions), sessions);
+    }
+
+    private static long[] run(boolean useVault, int sessions) {
+        final SecureRandom random = new SecureRandom();
+        final byte[] keyBytes = new byte[16];
+        final KeyVault vault = new KeyVault(16, 4096);
+        final List<SecretKey> live = new ArrayList<SecretKey>(sessions);
+
+        settle();
+        final long heapBefore = usedHeap();
+        final long gcBefore = gcCount();
+        final long gcTimeBefore = gcTime();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            // Replace every session key, as happens when sessions are re-established
+            for (int i = 0; i < sessions; i++) {
+                random.nextBytes(keyBytes);
+                SecretKey key = useVault
+                    ? vault.store(keyBytes, "AES") : new SecretKeySpec(keyBytes, "AES");
+                if (live.size() < sessions) {
+                    live.add(key);
+                } else {
+                    SecretKey old = live.set(i, key);
+                    if (useVault) {
+                        ((VaultSecretKey) old).destroy();
+                    }
+                }
+            }
+        }
+
+        settle();
+        final long[] result = new long[]{
+            usedHeap() - heapBefore,
+            gcCount() - gcBefore,
+            gcTime() - gcTimeBefore,
+            vault.getOffHeapBytes()
+        };
+        vault.destroy();
+        live.clear();
+        return result;
+    }
+
+    private static void report(String name, long[] result, int sessions) {
+        System.out.println(String.format(
+            "%-14s sessions=%d retained heap=%d KiB (%.1f B/key) collections=%d gc time=%d ms"
+                + " off-heap=%d KiB",
+            name, sessions, result[0] / 1024, (double) result[0] / sessions, result[1],
+            result[2], result[3] / 1024));
+    }
+
+    private static void settle() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(gc.getCollectionCount(), 0);
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(gc.getCollectionTime(), 0);
+        }
+        return time;
+    }
+}
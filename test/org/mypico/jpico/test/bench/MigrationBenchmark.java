@@ -0,0 +1,179 @@
+package org.mypico.jpico.test.bench;
+
+import java.security.Security;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.ProgressCallback;
+import org.mypico.jpico.comms.org.apache.commons.codec.binary.Base64;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.dao.GenericRawResults;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Measure an in-place upgrade from version 21 of a large services table, and how it affects
+ * readers using the table at the same time. The upgrade is run once converting rows in batches
+ * of {@link DbVersioner#DEFAULT_MIGRATION_BATCH_SIZE} and once converting every row in a single
+ * transaction, while another connection looks up services by id. Readers have to wait for the
+ * transaction converting the row they want to commit, so the longest wait shows how long the
+ * table was effectively offline.
+ * <p>
+ * The first argument is the number of services to create (default 2000000) and the second the
+ * JDBC URL of an embedded Derby database, which defaults to an in-memory database.
+ */
+public class MigrationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int services = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        final String url = (args.length > 1) ? args[1] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        final ConnectionSource readerConnection = new JdbcConnectionSource(url);
+        try {
+            run("batched", connection, readerConnection, services,
+                DbVersioner.DEFAULT_MIGRATION_BATCH_SIZE);
+            run("single transaction", connection, readerConnection, services,
+                Integer.MAX_VALUE);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            readerConnection.close();
+            connection.close();
+        }
+    }
+
+    private static void run(final String name, final ConnectionSource connection,
+                            final ConnectionSource readerConnection, final int services,
+                            final int batchSize) throws Exception {
+        DbVersioner.dropDatabase(connection);
+        DbVersioner.createDatabase(connection);
+        final Dao<DbServiceImp, Integer> serviceDao =
+            DaoManager.createDao(connection, DbServiceImp.class);
+        populateVersion21(serviceDao, services);
+
+        final Dao<DbServiceImp, Integer> readerDao =
+            DaoManager.createDao(readerConnection, DbServiceImp.class);
+        final Reader reader = new Reader(readerDao, services);
+        final Thread readerThread = new Thread(reader);
+        readerThread.start();
+
+        final int[] reports = new int[1];
+        final long start = System.nanoTime();
+        DbVersioner.upgradeDatabase(connection, 21, batchSize, new ProgressCallback() {
+            @Override
+            public void onAuthProgress(Object caller, Stage currentStage) {
+                reports[0]++;
+            }
+        });
+        final long millis = (System.nanoTime() - start) / 1000000;
+        reader.stop.set(true);
+        readerThread.join();
+
+        final long[] latencies = Arrays.copyOf(reader.latencies, reader.count);
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-18s migrated %d services in %d ms (%.0f rows/s),"
+                + " %d progress reports", name, services, millis, services * 1000.0 / millis,
+            reports[0]));
+        if (latencies.length > 0) {
+            System.out.println(String.format("%-18s concurrent reads=%d failed=%d"
+                    + " median=%.1f ms p99=%.1f ms max=%.1f ms", name, latencies.length,
+                reader.failures, latencies[latencies.length / 2] / 1e6,
+                latencies[(int) (latencies.length * 0.99)] / 1e6,
+                latencies[latencies.length - 1] / 1e6));
+        }
+    }
+
+    /**
+     * Looks up random services by id until stopped, recording how long each lookup took.
+     */
+    private static class Reader implements Runnable {
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        final Dao<DbServiceImp, Integer> dao;
+        final int services;
+        long[] latencies = new long[1024];
+        int count = 0;
+        int failures = 0;
+
+        Reader(final Dao<DbServiceImp, Integer> dao, final int services) {
+            this.dao = dao;
+            this.services = services;
+        }
+
+        @Override
+        public void run() {
+            final Random random = new Random(1);
+            while (!stop.get()) {
+                final long start = System.nanoTime();
+                try {
+                    final GenericRawResults<String[]> results = dao.queryRaw(
+                        "SELECT \"name\" FROM SERVICES WHERE \"id\" = ?",
+                        Integer.toString(random.nextInt(services) + 1));
+                    try {
+                        results.getFirstResult();
+                    } finally {
+                        results.close();
+                    }
+                } catch (SQLException e) {
+                    // Lock timeouts, or the table being altered
+                    failures++;
+                }
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, count * 2);
+                }
+                latencies[count++] = System.nanoTime() - start;
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Replace the services and terminals tables with ones in the version 21 layout and fill
+     * the services table.
+     */
+    private static void populateVersion21(final Dao<DbServiceImp, Integer> dao,
+                                          final int services) throws Exception {
+        dao.executeRaw("DROP TABLE SERVICES");
+        dao.executeRaw("CREATE TABLE SERVICES (\"id\" INTEGER GENERATED BY DEFAULT AS IDENTITY,"
+            + " \"name\" VARCHAR(255) NOT NULL, \"address\" VARCHAR(255) NOT NULL,"
+            + " \"commitment\" VARCHAR(255) NOT NULL, PRIMARY KEY (\"id\"))");
+        dao.executeRaw("CREATE INDEX \"SERVICES_commitment_idx\" ON SERVICES (\"commitment\")");
+        dao.executeRaw("DROP TABLE TERMINALS");
+        dao.executeRaw("CREATE TABLE TERMINALS (\"id\" INTEGER GENERATED BY DEFAULT AS IDENTITY,"
+            + " \"name\" VARCHAR(255) NOT NULL, \"commitment\" VARCHAR(255) NOT NULL,"
+            + " \"pico_public_key\" LONG VARCHAR FOR BIT DATA NOT NULL,"
+            + " \"pico_private_key\" LONG VARCHAR FOR BIT DATA NOT NULL, PRIMARY KEY (\"id\"))");
+
+        final Random random = new Random(0);
+        final byte[] commitment = new byte[32];
+        final long start = System.nanoTime();
+        // Commit every so often to keep the transaction log small
+        for (int from = 0; from < services; from += 10000) {
+            final int first = from;
+            dao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = first; i < Math.min(first + 10000, services); i++) {
+                        random.nextBytes(commitment);
+                        dao.updateRaw("INSERT INTO SERVICES (\"name\", \"address\", \"commitment\")"
+                                + " VALUES (?, ?, ?)", "service " + i,
+                            "http://service" + i + ".example.com",
+                            Base64.encodeBase64String(commitment));
+                    }
+                    return null;
+                }
+            });
+        }
+        System.out.println(String.format("created %d version 21 services in %d ms",
+            services, (System.nanoTime() - start) / 1000000));
+    }
+}
@@ -0,0 +1,99 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbImportResult;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare provisioning key pairings by saving each one in turn against writing them all with
+ * {@link DbDataFactory#importPairings(Iterable)}.
+ * <p>
+ * The first argument is the number of pairings to write (default 20000), the second the number
+ * of distinct services they are spread across (default 100) and the third the JDBC URL of the
+ * database, which defaults to an in-memory Derby database.
+ */
+public class PairingImportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int pairings = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        final int services = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            final DbDataFactory factory = new DbDataFactory(connection);
+            final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+
+            // Warm up both paths
+            saveEach(connection, newPairings(factory, keyPair, pairings / 10, services));
+            importAll(connection, factory, newPairings(factory, keyPair, pairings / 10, services));
+
+            final long saved = saveEach(
+                connection, newPairings(factory, keyPair, pairings, services));
+            report("save each pairing", saved, pairings);
+            final DbImportResult imported = importAll(
+                connection, factory, newPairings(factory, keyPair, pairings, services));
+            report("importPairings", imported.getElapsed(
+                TimeUnit.NANOSECONDS), pairings);
+            System.out.println(imported);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+    }
+
+    private static List<KeyPairing> newPairings(
+        final DbDataFactory factory, final KeyPair keyPair, final int pairings, final int services) {
+        final List<Service> serviceList = new ArrayList<Service>(services);
+        for (int i = 0; i < services; i++) {
+            serviceList.add(new Service(factory, "service " + i,
+                URI.create("http://service" + i + ".example.com"),
+                new byte[]{(byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i}));
+        }
+        final List<KeyPairing> list = new ArrayList<KeyPairing>(pairings);
+        for (int i = 0; i < pairings; i++) {
+            list.add(new KeyPairing(
+                factory, "user " + i, serviceList.get(i % services), keyPair, ""));
+        }
+        return list;
+    }
+
+    private static long saveEach(final ConnectionSource connection, final List<KeyPairing> list)
+        throws Exception {
+        DbVersioner.dropDatabase(connection);
+        DbVersioner.createDatabase(connection);
+        final long start = System.nanoTime();
+        for (KeyPairing pairing : list) {
+            pairing.save();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static DbImportResult importAll(final ConnectionSource connection,
+                                            final DbDataFactory factory,
+                                            final List<KeyPairing> list) throws Exception {
+        DbVersioner.dropDatabase(connection);
+        DbVersioner.createDatabase(connection);
+        return factory.importPairings(list);
+    }
+
+    private static void report(final String name, final long nanos, final int pairings) {
+        System.out.println(String.format("%-18s pairings=%d total=%d ms throughput=%.0f/s",
+            name, pairings, nanos / 1000000, pairings * 1e9 / nanos));
+    }
+}
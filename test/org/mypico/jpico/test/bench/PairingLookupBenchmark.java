@@ -0,0 +1,162 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbKeyPairingAccessor;
+import org.mypico.jpico.db.DbKeyPairingImp;
+import org.mypico.jpico.db.DbPairingImp;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbVersioner;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Measure key pairing lookup throughput against an embedded Derby database, comparing queries
+ * built and prepared on every lookup with the cached queries used by {@link DbDataAccessor}. The
+ * uncached case uses a fresh {@link DbKeyPairingAccessor} for every lookup.
+ * <p>
+ * The first argument is the number of pairings to create (default 100000), the second the
+ * number of lookups to time for each method and the third the JDBC URL of the database, which
+ * defaults to an in-memory Derby database.
+ */
+public class PairingLookupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int pairings = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final byte[][] commitments = populate(connection, pairings);
+
+            final DbDataAccessor accessor = new DbDataAccessor(connection);
+            final Dao<DbKeyPairingImp, Integer> keyPairingDao =
+                DaoManager.createDao(connection, DbKeyPairingImp.class);
+            final Dao<DbPairingImp, Integer> pairingDao =
+                DaoManager.createDao(connection, DbPairingImp.class);
+            final Dao<DbServiceImp, Integer> serviceDao =
+                DaoManager.createDao(connection, DbServiceImp.class);
+
+            final Lookup uncached = new Lookup() {
+                @Override
+                public int find(int i) throws Exception {
+                    // A fresh accessor has to build and prepare its query again
+                    return new DbKeyPairingAccessor(keyPairingDao, pairingDao, serviceDao)
+                        .getKeyPairingsByServiceCommitment(commitments[i]).size();
+                }
+            };
+            final Lookup cached = new Lookup() {
+                @Override
+                public int find(int i) throws Exception {
+                    return accessor.getKeyPairingsByServiceCommitment(commitments[i]).size();
+                }
+            };
+
+            final Lookup uncachedById = new Lookup() {
+                @Override
+                public int find(int i) throws Exception {
+                    return (new DbKeyPairingAccessor(keyPairingDao, pairingDao, serviceDao)
+                        .getKeyPairingById(i + 1) != null) ? 1 : 0;
+                }
+            };
+            final Lookup cachedById = new Lookup() {
+                @Override
+                public int find(int i) throws Exception {
+                    return (accessor.getKeyPairingById(i + 1) != null) ? 1 : 0;
+                }
+            };
+
+            // Warm up all paths
+            run(uncached, pairings, lookups / 10);
+            run(cached, pairings, lookups / 10);
+            run(uncachedById, pairings, lookups / 10);
+            run(cachedById, pairings, lookups / 10);
+
+            report("by commitment, prepare per lookup",
+                run(uncached, pairings, lookups), lookups);
+            report("by commitment, cached query", run(cached, pairings, lookups), lookups);
+            report("by id, prepare per lookup", run(uncachedById, pairings, lookups), lookups);
+            report("by id, cached query", run(cachedById, pairings, lookups), lookups);
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+        }
+    }
+
+    private interface Lookup {
+        /**
+         * Look up the pairing with the given index, returning the number of matches.
+         */
+        int find(int i) throws Exception;
+    }
+
+    private static byte[][] populate(final ConnectionSource connection, final int pairings)
+        throws Exception {
+        final DbDataFactory factory = new DbDataFactory(connection);
+        final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        final byte[][] commitments = new byte[pairings][];
+        final Random random = new Random(0);
+        final Dao<DbServiceImp, Integer> serviceDao =
+            DaoManager.createDao(connection, DbServiceImp.class);
+
+        final long start = System.nanoTime();
+        final int batch = 1000;
+        for (int offset = 0; offset < pairings; offset += batch) {
+            final int first = offset;
+            final int last = Math.min(offset + batch, pairings);
+            serviceDao.callBatchTasks(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (int i = first; i < last; i++) {
+                        commitments[i] = new byte[32];
+                        random.nextBytes(commitments[i]);
+                        Service service = new Service(factory, "service " + i,
+                            URI.create("http://service" + i + ".example.com"), commitments[i]);
+                        service.save();
+                        new KeyPairing(factory, "pairing " + i, service, keyPair, "").save();
+                    }
+                    return null;
+                }
+            });
+        }
+        System.out.println(String.format("created %d pairings in %d ms",
+            pairings, (System.nanoTime() - start) / 1000000));
+        return commitments;
+    }
+
+    private static long run(final Lookup lookup, final int pairings, final int lookups)
+        throws Exception {
+        final Random random = new Random(1);
+        final long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (lookup.find(random.nextInt(pairings)) != 1) {
+                throw new SQLException("lookup did not return exactly one pairing");
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(final String name, final long nanos, final int lookups) {
+        System.out.println(String.format("%-34s lookups=%d total=%d ms throughput=%.0f/s"
+                + " mean=%.1f us",
+            name, lookups, nanos / 1000000, lookups * 1e9 / nanos, nanos / 1e3 / lookups));
+    }
+}
@@ -0,0 +1,127 @@
+package org.mypico.jpico.test.bench;
+
+import java.io.File;
+import java.net.URI;
+import java.security.Security;
+import java.util.Date;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.session.SessionAccessor;
+import org.mypico.jpico.data.session.SessionImpFactory;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.sessionlog.LogSessionAccessor;
+import org.mypico.jpico.sessionlog.LogSessionImpFactory;
+import org.mypico.jpico.sessionlog.SessionLog;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare session write throughput of the session log against {@link DbDataFactory} sessions
+ * stored in Derby. Sessions are created, then have their status flipped and saved again, as
+ * happens on every authentication. Pairings and services are kept in Derby for both. The log is
+ * then closed and opened again to show how long recovery takes.
+ * <p>
+ * The first argument is the number of sessions to create (default 5000), the second the number
+ * of status changes to save (default 20000) and the third the JDBC URL of an embedded Derby
+ * database, which defaults to an in-memory database.
+ */
+public class SessionLogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        final int updates = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+
+        Security.addProvider(new BouncyCastleProvider());
+
+        final File directory = File.createTempFile("sessions", "");
+        directory.delete();
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            DbVersioner.dropDatabase(connection);
+            DbVersioner.createDatabase(connection);
+            final DbDataFactory factory = new DbDataFactory(connection);
+            final DbDataAccessor accessor = new DbDataAccessor(connection);
+            final Pairing pairing = new Pairing(factory, "pairing",
+                new Service(factory, "service", URI.create("http://service.example.com"),
+                    new byte[]{1, 2, 3}));
+            pairing.save();
+
+            run("derby", factory, accessor, pairing, sessions, updates);
+
+            SessionLog log = new SessionLog(directory);
+            run("log", new LogSessionImpFactory(log), new LogSessionAccessor(log, accessor),
+                pairing, sessions, updates);
+            long start = System.nanoTime();
+            log.close();
+            System.out.println(String.format("log closed in %d ms",
+                (System.nanoTime() - start) / 1000000));
+
+            start = System.nanoTime();
+            log = new SessionLog(directory);
+            final Map<String, Number> metrics = log.getMetrics();
+            System.out.println(String.format(
+                "log recovered in %d ms, %s records replayed, %s sessions, %s segments",
+                (System.nanoTime() - start) / 1000000, metrics.get("recoveredRecords"),
+                metrics.get("sessions"), metrics.get("segments")));
+            log.close();
+        } finally {
+            DbVersioner.dropDatabase(connection);
+            connection.close();
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(final String name, final SessionImpFactory factory,
+                            final SessionAccessor accessor, final Pairing pairing,
+                            final int sessions, final int updates) throws Exception {
+        final Random random = new Random(0);
+        final Session[] created = new Session[sessions];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            created[i] = Session.newInstanceClosed(factory, "remote " + i, pairing, null);
+            // Dates must be unique in the database
+            created[i].setLastAuthDate(new Date(i * 1000L + 1000));
+            created[i].save();
+        }
+        report(name, "session create", sessions, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            final Session session = created[random.nextInt(sessions)];
+            session.setStatus((session.getStatus() == Session.Status.CLOSED)
+                ? Session.Status.ERROR : Session.Status.CLOSED);
+            session.save();
+        }
+        report(name, "status change save", updates, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < updates; i++) {
+            if (accessor.getSessionById(created[random.nextInt(sessions)].getId()) == null) {
+                throw new IllegalStateException("session not found");
+            }
+        }
+        report(name, "session by id", updates, System.nanoTime() - start);
+    }
+
+    private static void report(final String name, final String operation, final int operations,
+                               final long nanos) {
+        System.out.println(String.format("%-6s %-20s ops=%d mean=%.1f us throughput=%.0f/s",
+            name, operation, operations, nanos / 1e3 / operations, operations * 1e9 / nanos));
+    }
+}
@@ -0,0 +1,122 @@
+package org.mypico.jpico.test.bench;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbShards;
+import org.mypico.jpico.db.PooledConnectionSource;
+import org.mypico.jpico.db.ShardedDbDataAccessor;
+import org.mypico.jpico.db.ShardedDbDataFactory;
+
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Compare writing and enumerating key pairings in a single Derby database against spreading
+ * them across several databases with {@link ShardedDbDataFactory} and
+ * {@link ShardedDbDataAccessor}. Several threads create services, each with one key pairing, at
+ * the same time, then every key pairing is read back with
+ * {@link ShardedDbDataAccessor#getAllKeyPairings()}.
+ * <p>
+ * The first argument is the number of services to create (default 4000), the second the number
+ * of shards (default 4), the third the number of writing threads (default 4) and the fourth the
+ * JDBC URL prefix of the embedded Derby databases, to which the shard number is appended, which
+ * defaults to in-memory databases.
+ * <p>
+ * Each shard has a pool of one connection per writing thread. A single JDBC connection shared by
+ * the threads would interleave their transactions, so one thread rolling back could undo another
+ * thread's inserts.
+ */
+public class ShardingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int services = (args.length > 0) ? Integer.parseInt(args[0]) : 4000;
+        final int shardCount = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        final int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+        final String url = (args.length > 3) ? args[3] : "jdbc:derby:memory:benchShard";
+
+        Security.addProvider(new BouncyCastleProvider());
+        final List<ConnectionSource> connections = new ArrayList<ConnectionSource>();
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                connections.add(new PooledConnectionSource(url + i + ";create=true", threads));
+            }
+            run("1 shard", new DbShards(connections.subList(0, 1)), services, threads);
+            run(shardCount + " shards", new DbShards(connections), services, threads);
+        } finally {
+            for (ConnectionSource connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private static void run(final String name, final DbShards shards, final int services,
+                            final int threads) throws Exception {
+        shards.dropDatabase();
+        shards.createDatabase();
+        final ShardedDbDataFactory factory = new ShardedDbDataFactory(shards);
+        final ShardedDbDataAccessor accessor = new ShardedDbDataAccessor(shards);
+        final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+        try {
+            final List<Thread> writers = new ArrayList<Thread>();
+            for (int t = 0; t < threads; t++) {
+                final Random random = new Random(t);
+                writers.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        int i;
+                        while ((i = next.getAndIncrement()) < services) {
+                            final byte[] commitment = new byte[32];
+                            random.nextBytes(commitment);
+                            try {
+                                new KeyPairing(factory, "user " + i, new Service(factory,
+                                    "service " + i, URI.create("http://service" + i
+                                    + ".example.com"), commitment), keyPair, "").save();
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                                firstFailure.compareAndSet(null, e);
+                            }
+                        }
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread writer : writers) {
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format("%-9s created %d key pairings with %d threads in"
+                    + " %d ms (%.0f/s), %d failed", name, services, threads, nanos / 1000000,
+                services * 1e9 / nanos, failures.get()));
+            if (firstFailure.get() != null) {
+                firstFailure.get().printStackTrace();
+            }
+
+            // Warm up, then time
+            accessor.getAllKeyPairings();
+            start = System.nanoTime();
+            final int found = accessor.getAllKeyPairings().size();
+            nanos = System.nanoTime() - start;
+            System.out.println(String.format("%-9s read all %d key pairings in %.1f ms",
+                name, found, nanos / 1e6));
+        } finally {
+            accessor.close();
+            shards.dropDatabase();
+        }
+    }
+}
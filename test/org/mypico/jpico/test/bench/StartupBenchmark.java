@@ -0,0 +1,71 @@
+package org.mypico.jpico.test.bench;
+
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbKeyPairingImp;
+import org.mypico.jpico.db.DbLensPairingImp;
+import org.mypico.jpico.db.DbPairingImp;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbSessionImp;
+import org.mypico.jpico.db.DbTerminalImp;
+
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+
+/**
+ * Measure how long it takes to open the database layer, that is to create a
+ * {@link DbDataFactory} and a {@link DbDataAccessor} sharing one set of DAOs, when the DAOs are
+ * created from the annotations of the Db*Imp classes and when they are created from the
+ * pre-built table configurations. DAOs are only created once per connection source, so each
+ * measurement uses a new one.
+ * <p>
+ * The first time in a JVM is much slower than the rest, as classes are loaded and compiled, so
+ * run the benchmark once with <code>annotations</code> and once with <code>configs</code> as the
+ * first argument to compare cold starts. The first measurement is reported separately from the
+ * mean of the remaining ones. The second argument is the number of measurements (default 200)
+ * and the third the JDBC URL of an embedded Derby database, which defaults to an in-memory
+ * database. No tables are needed.
+ */
+public class StartupBenchmark {
+
+    private static final Class<?>[] TABLES = new Class<?>[]{
+        DbServiceImp.class, DbPairingImp.class, DbKeyPairingImp.class, DbLensPairingImp.class,
+        DbSessionImp.class, DbTerminalImp.class};
+
+    public static void main(String[] args) throws Exception {
+        final boolean annotations = (args.length > 0) && args[0].equals("annotations");
+        final int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        final String url = (args.length > 2) ? args[2] : "jdbc:derby:memory:benchDB;create=true";
+        final String name = annotations ? "annotations" : "configs";
+
+        final long first = open(url, annotations);
+        long total = 0;
+        for (int i = 1; i < rounds; i++) {
+            total += open(url, annotations);
+        }
+        System.out.println(String.format("%-11s first=%.1f ms mean of next %d=%.2f ms", name,
+            first / 1e6, rounds - 1, total / 1e6 / Math.max(rounds - 1, 1)));
+    }
+
+    private static long open(final String url, final boolean annotations) throws Exception {
+        final ConnectionSource connection = new JdbcConnectionSource(url);
+        try {
+            final long start = System.nanoTime();
+            if (annotations) {
+                // As the DAOs were created before they had pre-built configurations
+                for (Class<?> table : TABLES) {
+                    DaoManager.createDao(connection, table);
+                }
+            }
+            final DbDaos daos = new DbDaos(connection);
+            new DbDataFactory(daos);
+            new DbDataAccessor(daos);
+            return System.nanoTime() - start;
+        } finally {
+            DaoManager.clearCache();
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.mypico.jpico.test.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.AdaptiveReauthTimeoutPolicy;
+import org.mypico.jpico.crypto.AdaptiveReauthTimeoutPolicy.LoadIndicator;
+import org.mypico.jpico.crypto.ContinuousVerifier;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.FixedReauthTimeoutPolicy;
+import org.mypico.jpico.crypto.IContinuousVerifier;
+import org.mypico.jpico.crypto.messages.ReauthState;
+import org.mypico.jpico.crypto.messages.SequenceNumber;
+import org.mypico.jpico.crypto.messages.ServiceReauthMessage;
+import org.mypico.jpico.test.crypto.messages.MessageTest;
+
+public class AdaptiveReauthTimeoutPolicyTest extends MessageTest {
+
+    private static class FakeLoad implements LoadIndicator {
+        double load = 0;
+
+        @Override
+        public double getLoad() {
+            return load;
+        }
+    }
+
+    private static class NullClient implements IContinuousVerifier.Client {
+        @Override
+        public void onPause(PublicKey picoPublicKey) {
+        }
+
+        @Override
+        public void onStop(PublicKey picoPublicKey) {
+        }
+
+        @Override
+        public void onResume(PublicKey picoPublicKey) {
+        }
+    }
+
+    private FakeLoad fakeLoad;
+    private AdaptiveReauthTimeoutPolicy policy;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        MessageTest.setUpBeforeClass();
+    }
+
+    @Before
+    public void setUp() {
+        fakeLoad = new FakeLoad();
+        policy = new AdaptiveReauthTimeoutPolicy(5000, 30000, 20000, 120000, 0)
+            .addIndicator(fakeLoad);
+    }
+
+    @Test
+    public void testDefaultPolicy() {
+        assertEquals(ContinuousVerifier.activeTimeout,
+            FixedReauthTimeoutPolicy.DEFAULT.getActiveTimeout());
+        assertEquals(ContinuousVerifier.pausedTimeout,
+            FixedReauthTimeoutPolicy.DEFAULT.getPausedTimeout());
+    }
+
+    @Test
+    public void testIdleUsesMinimum() {
+        fakeLoad.load = 0;
+        assertEquals(5000, policy.getActiveTimeout());
+        assertEquals(20000, policy.getPausedTimeout());
+    }
+
+    @Test
+    public void testNominalLoadUsesStandardTimeouts() {
+        fakeLoad.load = 1;
+        assertEquals(ContinuousVerifier.activeTimeout, policy.getActiveTimeout());
+        assertEquals(ContinuousVerifier.pausedTimeout, policy.getPausedTimeout());
+    }
+
+    @Test
+    public void testInterpolation() {
+        fakeLoad.load = 0.5;
+        assertEquals(7500, policy.getActiveTimeout());
+        fakeLoad.load = 1.5;
+        assertEquals(20000, policy.getActiveTimeout());
+        assertEquals(85000, policy.getPausedTimeout());
+    }
+
+    @Test
+    public void testOverloadCappedAtMaximum() {
+        fakeLoad.load = 50;
+        assertEquals(30000, policy.getActiveTimeout());
+        assertEquals(120000, policy.getPausedTimeout());
+    }
+
+    @Test
+    public void testHighestIndicatorWins() {
+        List<Object> queue = new ArrayList<Object>();
+        policy.addIndicator(AdaptiveReauthTimeoutPolicy.queueDepth(queue, 10));
+        fakeLoad.load = 0;
+        for (int i = 0; i < 20; i++) {
+            queue.add(i);
+        }
+        assertEquals(30000, policy.getActiveTimeout());
+        queue.clear();
+        assertEquals(5000, policy.getActiveTimeout());
+    }
+
+    @Test
+    public void testLoadSampledPerInterval() {
+        policy = new AdaptiveReauthTimeoutPolicy(5000, 30000, 20000, 120000, 60000)
+            .addIndicator(fakeLoad);
+        fakeLoad.load = 0;
+        assertEquals(5000, policy.getActiveTimeout());
+        fakeLoad.load = 2;
+        assertEquals(5000, policy.getActiveTimeout());
+    }
+
+    @Test
+    public void testSessionEstimate() {
+        // Each session heartbeats once per timeout, so at the minimum timeout a burst of
+        // heartbeats looks like a large number of sessions
+        policy.setNominalSessions(1);
+        fakeLoad.load = 0;
+        for (int i = 0; i < 10; i++) {
+            policy.getActiveTimeout();
+        }
+        assertEquals(30000, policy.getActiveTimeout());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBounds() {
+        new AdaptiveReauthTimeoutPolicy(10000, 5000, 20000, 120000);
+    }
+
+    @Test
+    public void testVerifierSendsPolicyTimeout() throws Exception {
+        SecretKey key = encKg.generateKey();
+        PublicKey picoPublicKey = CryptoFactory.INSTANCE.ecKpg().generateKeyPair().getPublic();
+        ContinuousVerifier verifier = new ContinuousVerifier(
+            key, SequenceNumber.getRandomInstance(), new NullClient(), picoPublicKey, policy);
+
+        fakeLoad.load = 2;
+        ServiceReauthMessage msg = verifier.getServiceReauth().decrypt(key);
+        assertEquals(ReauthState.CONTINUE, msg.getReauthState());
+        assertEquals(30000, msg.getTimeout());
+
+        fakeLoad.load = 0;
+        msg = verifier.getServiceReauth().decrypt(key);
+        assertEquals(5000, msg.getTimeout());
+
+        assertEquals(2L, policy.getMetrics().get("heartbeats"));
+        assertEquals(5000, policy.getMetrics().get("activeTimeout"));
+    }
+}
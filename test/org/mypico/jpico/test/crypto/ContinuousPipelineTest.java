@@ -0,0 +1,492 @@
+package org.mypico.jpico.test.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.comms.JsonMessageSerializer;
+import org.mypico.jpico.comms.SocketContinuousHandler;
+import org.mypico.jpico.crypto.ContinuousProver;
+import org.mypico.jpico.crypto.ContinuousProver.ProverStateChangeNotificationInterface;
+import org.mypico.jpico.crypto.ContinuousProver.SchedulerInterface;
+import org.mypico.jpico.crypto.ContinuousVerifier;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.HashUtils;
+import org.mypico.jpico.crypto.IContinuousVerifier;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.crypto.messages.EncPicoReauthMessage;
+import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
+import org.mypico.jpico.crypto.messages.PicoReauthMessage;
+import org.mypico.jpico.crypto.messages.ReauthState;
+import org.mypico.jpico.crypto.messages.SequenceNumber;
+import org.mypico.jpico.crypto.messages.ServiceReauthMessage;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.test.crypto.messages.MessageTest;
+import org.mypico.jpico.test.data.TestDataFactory;
+import org.mypico.jpico.test.util.TestClientInterface;
+
+public class ContinuousPipelineTest extends MessageTest {
+
+    /**
+     * Verifier stand-in which records the reauths it is sent and hands back whatever
+     * acknowledgements the test queues up.
+     */
+    private static class QueueVerifier implements IContinuousVerifier {
+
+        final List<EncPicoReauthMessage> received = new ArrayList<EncPicoReauthMessage>();
+        final BlockingQueue<EncServiceReauthMessage> replies =
+            new LinkedBlockingQueue<EncServiceReauthMessage>();
+
+        @Override
+        public State getState() {
+            return State.ACTIVE;
+        }
+
+        @Override
+        public synchronized void reauth(EncPicoReauthMessage msg) {
+            received.add(msg);
+        }
+
+        synchronized int receivedCount() {
+            return received.size();
+        }
+
+        @Override
+        public EncServiceReauthMessage getServiceReauth() throws IOException {
+            try {
+                return replies.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+    }
+
+    private static class NullScheduler implements SchedulerInterface {
+        @Override
+        public void setTimer(int milliseconds, ContinuousProver prover) {
+        }
+
+        @Override
+        public void clearTimer(ContinuousProver prover) {
+        }
+    }
+
+    private static class Notifications implements ProverStateChangeNotificationInterface {
+        final BlockingQueue<String> ticks = new LinkedBlockingQueue<String>();
+        final AtomicInteger errors = new AtomicInteger();
+
+        @Override
+        public void sessionPaused(Session session) {
+        }
+
+        @Override
+        public void sessionContinued(Session session) {
+        }
+
+        @Override
+        public void sessionStopped(Session session) {
+        }
+
+        @Override
+        public void sessionError(Session session) {
+            errors.incrementAndGet();
+            ticks.add("error");
+        }
+
+        @Override
+        public void tick(Session session) {
+            ticks.add("tick");
+        }
+    }
+
+    private KeyPair picoID;
+    private SecretKey key;
+    private Session session;
+    private QueueVerifier verifier;
+    private Notifications notifications;
+    private SequenceNumber initialSequenceNumber;
+    private ExecutorService executor;
+    private ContinuousProver prover;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        MessageTest.setUpBeforeClass();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TestDataFactory factory = new TestDataFactory();
+        picoID = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        KeyPair serviceID = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        Service service = new Service(
+            factory,
+            "test service",
+            new URI("http://testservice.com"),
+            HashUtils.sha256Key(serviceID.getPublic()));
+        KeyPairing pairing = new KeyPairing(factory, "test pairing", service, picoID, "");
+        key = encKg.generateKey();
+        session = Session.newInstanceActive(
+            factory, "1", key, pairing, new SimpleAuthToken("auth token"));
+
+        verifier = new QueueVerifier();
+        notifications = new Notifications();
+        initialSequenceNumber = SequenceNumber.getRandomInstance();
+        executor = Executors.newSingleThreadExecutor();
+        prover = new ContinuousProver(session, verifier, notifications, new NullScheduler(),
+            initialSequenceNumber, executor);
+        prover.setPipelineWindow(2);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The sequence number with which the verifier acknowledges the n-th reauth.
+     */
+    private SequenceNumber ackFor(int n) {
+        SequenceNumber s = initialSequenceNumber;
+        for (int i = 0; i < n; i++) {
+            s = s.getResponse();
+        }
+        return s.getResponse();
+    }
+
+    private void acknowledge(int n, ReauthState state) throws Exception {
+        verifier.replies.add(new ServiceReauthMessage(1, state, 10000, ackFor(n)).encrypt(key));
+        assertEquals("tick", notifications.ticks.poll(10, TimeUnit.SECONDS));
+    }
+
+    private PicoReauthMessage received(int n) throws Exception {
+        synchronized (verifier) {
+            return verifier.received.get(n).decrypt(key);
+        }
+    }
+
+    @Test
+    public void testWindowDefersLatestState() throws Exception {
+        prover.updateVerifier();
+        prover.pause();
+        assertEquals(2, verifier.receivedCount());
+
+        // Window full: the resume and the following pause are held back
+        prover.resume();
+        prover.pause();
+        prover.resume();
+        assertEquals(2, verifier.receivedCount());
+
+        // Acknowledging both sends only the latest state. The service's reply to the pause is
+        // stale and must not pause the prover again.
+        acknowledge(1, ReauthState.PAUSE);
+        assertEquals(3, verifier.receivedCount());
+        assertEquals(ReauthState.CONTINUE, received(0).getReauthState());
+        assertEquals(ReauthState.PAUSE, received(1).getReauthState());
+        assertEquals(ReauthState.CONTINUE, received(2).getReauthState());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(ackFor(i), received(i).getSequenceNumber().getResponse());
+        }
+
+        acknowledge(2, ReauthState.CONTINUE);
+        assertEquals(0, notifications.errors.get());
+    }
+
+    @Test
+    public void testIndividualAcknowledgements() throws Exception {
+        prover.updateVerifier();
+        prover.pause();
+
+        // A lock-step verifier answers each reauth in turn
+        acknowledge(0, ReauthState.CONTINUE);
+        acknowledge(1, ReauthState.PAUSE);
+        assertEquals(0, notifications.errors.get());
+        assertEquals(2, verifier.receivedCount());
+    }
+
+    @Test
+    public void testUnknownAcknowledgement() throws Exception {
+        prover.updateVerifier();
+        verifier.replies.add(
+            new ServiceReauthMessage(1, ReauthState.CONTINUE, 10000, ackFor(5)).encrypt(key));
+        assertEquals("error", notifications.ticks.poll(10, TimeUnit.SECONDS));
+        assertEquals(1, notifications.errors.get());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWindowFixedOnceStarted() {
+        prover.updateVerifier();
+        prover.setPipelineWindow(4);
+    }
+
+    /**
+     * Verifier stand-in for the socket handler, which counts reauths and stops after a fixed
+     * number of them.
+     */
+    private static class CountingVerifier implements IContinuousVerifier {
+        final int limit;
+        int reauths = 0;
+        int replies = 0;
+
+        CountingVerifier(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public synchronized State getState() {
+            return reauths < limit ? State.ACTIVE : State.STOPPED;
+        }
+
+        @Override
+        public synchronized void reauth(EncPicoReauthMessage msg) {
+            reauths++;
+        }
+
+        @Override
+        public synchronized EncServiceReauthMessage getServiceReauth() {
+            replies++;
+            return new EncServiceReauthMessage(replies, new byte[16], new byte[12]);
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+    }
+
+    @Test
+    public void testHandlerAcknowledgesCumulatively() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        Socket client = new Socket("localhost", server.getLocalPort());
+        Socket accepted = server.accept();
+        JsonMessageSerializer serializer = new JsonMessageSerializer();
+        ExecutorService handlerExecutor = Executors.newSingleThreadExecutor();
+        try {
+            byte[] bytes = serializer.serialize(
+                new PicoReauthMessage(1, ReauthState.CONTINUE, initialSequenceNumber, new byte[0])
+                    .encrypt(key), EncPicoReauthMessage.class);
+
+            // Three reauths are already waiting when the handler starts
+            DataOutputStream dos = new DataOutputStream(client.getOutputStream());
+            for (int i = 0; i < 3; i++) {
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+            dos.flush();
+            Thread.sleep(50);
+
+            CountingVerifier counting = new CountingVerifier(5);
+            Future<Void> handler = handlerExecutor.submit(
+                new SocketContinuousHandler(accepted, serializer, counting, 8));
+
+            DataInputStream dis = new DataInputStream(client.getInputStream());
+            byte[] reply = new byte[dis.readInt()];
+            dis.readFully(reply);
+            assertEquals(1, serializer.deserialize(
+                reply, EncServiceReauthMessage.class).getSessionId());
+            assertEquals(3, counting.reauths);
+
+            // Two more, sent one at a time, are answered individually
+            for (int i = 0; i < 2; i++) {
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+                dos.flush();
+                reply = new byte[dis.readInt()];
+                dis.readFully(reply);
+            }
+            handler.get(10, TimeUnit.SECONDS);
+            assertEquals(5, counting.reauths);
+            assertEquals(3, counting.replies);
+        } finally {
+            handlerExecutor.shutdownNow();
+            client.close();
+            accepted.close();
+            server.close();
+        }
+    }
+
+    /**
+     * Pico end of the socket used by {@link SocketContinuousHandler}. Reauths can be dropped, or
+     * held back and sent after the next one, to simulate a lossy or reordering channel.
+     */
+    private static class SocketVerifierProxy implements IContinuousVerifier {
+        final DataOutputStream dos;
+        final DataInputStream dis;
+        final JsonMessageSerializer serializer;
+        int drop = -1;
+        int holdBack = -1;
+        int sent = 0;
+        byte[] held = null;
+
+        SocketVerifierProxy(Socket socket, JsonMessageSerializer serializer) throws IOException {
+            dos = new DataOutputStream(socket.getOutputStream());
+            dis = new DataInputStream(socket.getInputStream());
+            this.serializer = serializer;
+        }
+
+        @Override
+        public State getState() {
+            return State.ACTIVE;
+        }
+
+        @Override
+        public void reauth(EncPicoReauthMessage msg) throws IOException {
+            byte[] bytes = serializer.serialize(msg, EncPicoReauthMessage.class);
+            int n = sent++;
+            if (n == drop) {
+                return;
+            }
+            if (n == holdBack) {
+                held = bytes;
+                return;
+            }
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+            if (held != null) {
+                dos.writeInt(held.length);
+                dos.write(held);
+                held = null;
+            }
+            dos.flush();
+        }
+
+        @Override
+        public EncServiceReauthMessage getServiceReauth() throws IOException {
+            byte[] reply = new byte[dis.readInt()];
+            dis.readFully(reply);
+            return serializer.deserialize(reply, EncServiceReauthMessage.class);
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+    }
+
+    private ServerSocket server;
+    private Socket client;
+    private Socket accepted;
+    private ContinuousVerifier realVerifier;
+    private ExecutorService handlerExecutor;
+    private ExecutorService pollExecutor;
+    private SocketVerifierProxy proxy;
+
+    /**
+     * Connect a prover to a real {@link ContinuousVerifier} through a socket handler which
+     * acknowledges up to two reauths at a time.
+     */
+    private void connect() throws Exception {
+        server = new ServerSocket(0);
+        client = new Socket("localhost", server.getLocalPort());
+        accepted = server.accept();
+        JsonMessageSerializer serializer = new JsonMessageSerializer();
+        realVerifier = new ContinuousVerifier(
+            key, initialSequenceNumber, new TestClientInterface("t"), picoID.getPublic());
+        handlerExecutor = Executors.newSingleThreadExecutor();
+        pollExecutor = Executors.newSingleThreadExecutor();
+        proxy = new SocketVerifierProxy(client, serializer);
+        prover = new ContinuousProver(session, proxy, notifications, new NullScheduler(),
+            initialSequenceNumber, pollExecutor);
+        prover.setPipelineWindow(2);
+    }
+
+    private Future<Void> startHandler() {
+        return handlerExecutor.submit(new SocketContinuousHandler(
+            accepted, new JsonMessageSerializer(), realVerifier, 2));
+    }
+
+    private void disconnect() throws IOException {
+        handlerExecutor.shutdownNow();
+        pollExecutor.shutdownNow();
+        client.close();
+        accepted.close();
+        server.close();
+    }
+
+    @Test
+    public void testRealVerifierOverSocket() throws Exception {
+        connect();
+        try {
+            // Both reauths are waiting when the handler starts, so one reply acknowledges both
+            prover.updateVerifier();
+            prover.pause();
+            Thread.sleep(50);
+            Future<Void> handler = startHandler();
+            assertEquals("tick", notifications.ticks.poll(10, TimeUnit.SECONDS));
+
+            prover.resume();
+            assertEquals("tick", notifications.ticks.poll(10, TimeUnit.SECONDS));
+            assertEquals(0, notifications.errors.get());
+
+            // The handler closes the socket once the verifier has stopped
+            prover.stop();
+            assertEquals("tick", notifications.ticks.poll(10, TimeUnit.SECONDS));
+            handler.get(10, TimeUnit.SECONDS);
+            assertEquals(IContinuousVerifier.State.STOPPED, realVerifier.getState());
+        } finally {
+            disconnect();
+        }
+    }
+
+    @Test
+    public void testRealVerifierDroppedReauth() throws Exception {
+        connect();
+        try {
+            Future<Void> handler = startHandler();
+            proxy.drop = 1;
+            prover.updateVerifier();
+            prover.pause();
+            // Window full: sent once the first reauth is acknowledged, after the lost one
+            prover.resume();
+
+            assertEquals("tick", notifications.ticks.poll(10, TimeUnit.SECONDS));
+            assertEquals("error", notifications.ticks.poll(10, TimeUnit.SECONDS));
+            handler.get(10, TimeUnit.SECONDS);
+            assertEquals(IContinuousVerifier.State.ERROR, realVerifier.getState());
+        } finally {
+            disconnect();
+        }
+    }
+
+    @Test
+    public void testRealVerifierReorderedReauth() throws Exception {
+        connect();
+        try {
+            Future<Void> handler = startHandler();
+            proxy.holdBack = 0;
+            prover.updateVerifier();
+            prover.pause();
+
+            assertEquals("error", notifications.ticks.poll(10, TimeUnit.SECONDS));
+            handler.get(10, TimeUnit.SECONDS);
+            assertEquals(IContinuousVerifier.State.ERROR, realVerifier.getState());
+        } finally {
+            disconnect();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.mypico.jpico.test.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.comms.JsonMessageSerializer;
+import org.mypico.jpico.comms.SocketCombinedProxy;
+import org.mypico.jpico.crypto.ContinuousProver;
+import org.mypico.jpico.crypto.ContinuousProver.ProverStateChangeNotificationInterface;
+import org.mypico.jpico.crypto.ContinuousProverManager;
+import org.mypico.jpico.crypto.ContinuousVerifier;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.HashUtils;
+import org.mypico.jpico.crypto.IContinuousVerifier;
+import org.mypico.jpico.crypto.IPollableContinuousVerifier;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.crypto.messages.EncPicoReauthMessage;
+import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
+import org.mypico.jpico.crypto.messages.EncryptedMessage.FieldDeserializationException;
+import org.mypico.jpico.crypto.messages.PicoReauthMessage;
+import org.mypico.jpico.crypto.messages.ReauthState;
+import org.mypico.jpico.crypto.messages.SequenceNumber;
+import org.mypico.jpico.crypto.messages.ServiceReauthMessage;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.test.crypto.messages.MessageTest;
+import org.mypico.jpico.test.data.TestDataFactory;
+
+public class ContinuousProverManagerTest extends MessageTest {
+
+    private static final int SESSIONS = 20;
+    private static final int REAUTH_INTERVAL = 20;
+
+    /**
+     * In-memory stand-in for a non-blocking connection to a continuous verifier. Each reauth
+     * from the prover is checked and answered with a reply mirroring the requested state.
+     */
+    private static class LoopbackVerifier implements IPollableContinuousVerifier {
+
+        private final SecretKey key;
+        private final ConcurrentLinkedQueue<EncServiceReauthMessage> replies =
+            new ConcurrentLinkedQueue<EncServiceReauthMessage>();
+        private SequenceNumber expectedPicoSequenceNumber;
+        private SequenceNumber serviceSequenceNumber = SequenceNumber.getRandomInstance();
+        private volatile State state = State.ACTIVE;
+
+        LoopbackVerifier(SecretKey key, SequenceNumber picoSequenceNumber) {
+            this.key = key;
+            this.expectedPicoSequenceNumber = picoSequenceNumber;
+        }
+
+        @Override
+        public State getState() {
+            return state;
+        }
+
+        @Override
+        public synchronized void reauth(EncPicoReauthMessage msg) throws IOException {
+            try {
+                PicoReauthMessage m = msg.decrypt(key);
+                if (!m.getSequenceNumber().equals(expectedPicoSequenceNumber)) {
+                    state = State.ERROR;
+                }
+                expectedPicoSequenceNumber = expectedPicoSequenceNumber.getResponse();
+                ReauthState reauthState = (state == State.ERROR)
+                    ? ReauthState.ERROR : m.getReauthState();
+                switch (reauthState) {
+                    case CONTINUE:
+                        state = State.ACTIVE;
+                        break;
+                    case PAUSE:
+                        state = State.PAUSED;
+                        break;
+                    case STOP:
+                        state = State.STOPPED;
+                        break;
+                    default:
+                        state = State.ERROR;
+                        break;
+                }
+                serviceSequenceNumber = serviceSequenceNumber.getResponse();
+                replies.add(new ServiceReauthMessage(
+                    msg.getSessionId(), reauthState, ContinuousVerifier.activeTimeout,
+                    serviceSequenceNumber).encrypt(key));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            } catch (FieldDeserializationException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public EncServiceReauthMessage getServiceReauth() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public EncServiceReauthMessage pollServiceReauth() {
+            return replies.poll();
+        }
+
+        @Override
+        public void setTimeout(int timeout) {
+        }
+    }
+
+    private static class CountingNotifications implements ProverStateChangeNotificationInterface {
+
+        final CountDownLatch ticks;
+        final AtomicInteger paused = new AtomicInteger();
+        final AtomicInteger stopped = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+
+        CountingNotifications(int expectedTicks) {
+            ticks = new CountDownLatch(expectedTicks);
+        }
+
+        @Override
+        public void sessionPaused(Session session) {
+            paused.incrementAndGet();
+        }
+
+        @Override
+        public void sessionContinued(Session session) {
+        }
+
+        @Override
+        public void sessionStopped(Session session) {
+            stopped.incrementAndGet();
+        }
+
+        @Override
+        public void sessionError(Session session) {
+            errors.incrementAndGet();
+        }
+
+        @Override
+        public void tick(Session session) {
+            ticks.countDown();
+        }
+    }
+
+    private TestDataFactory factory;
+    private KeyPairing pairing;
+    private ScheduledExecutorService scheduler;
+    private ContinuousProverManager manager;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        MessageTest.setUpBeforeClass();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        factory = new TestDataFactory();
+        KeyPair picoID = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        KeyPair serviceID = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        Service service = new Service(
+            factory,
+            "test service",
+            new URI("http://testservice.com"),
+            HashUtils.sha256Key(serviceID.getPublic()));
+        pairing = new KeyPairing(factory, "test pairing", service, picoID, "");
+
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        manager = new ContinuousProverManager(scheduler, 5);
+        // Reauth every few milliseconds rather than every few seconds
+        manager.setTimeoutLeeway(ContinuousVerifier.activeTimeout - REAUTH_INTERVAL);
+    }
+
+    @After
+    public void tearDown() {
+        manager.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    private ContinuousProver startProver(LoopbackVerifier verifier,
+                                         ProverStateChangeNotificationInterface notifications) {
+        Session session = Session.newInstanceActive(
+            factory, "1", verifier.key, pairing, new SimpleAuthToken("auth token"));
+        return manager.startProver(
+            session, verifier, notifications, verifier.expectedPicoSequenceNumber);
+    }
+
+    private LoopbackVerifier newVerifier() {
+        return new LoopbackVerifier(encKg.generateKey(), SequenceNumber.getRandomInstance());
+    }
+
+    @Test
+    public void testManySessionsOneThread() throws Exception {
+        List<LoopbackVerifier> verifiers = new ArrayList<LoopbackVerifier>();
+        List<CountingNotifications> notifications = new ArrayList<CountingNotifications>();
+
+        for (int i = 0; i < SESSIONS; i++) {
+            LoopbackVerifier verifier = newVerifier();
+            CountingNotifications n = new CountingNotifications(3);
+            startProver(verifier, n);
+            verifiers.add(verifier);
+            notifications.add(n);
+        }
+        assertEquals(SESSIONS, manager.getProverCount());
+
+        for (CountingNotifications n : notifications) {
+            assertTrue(n.ticks.await(10, TimeUnit.SECONDS));
+            assertEquals(0, n.errors.get());
+        }
+        for (LoopbackVerifier verifier : verifiers) {
+            assertEquals(IContinuousVerifier.State.ACTIVE, verifier.getState());
+        }
+    }
+
+    @Test
+    public void testPauseAndStop() throws Exception {
+        LoopbackVerifier verifier = newVerifier();
+        CountingNotifications n = new CountingNotifications(2);
+        ContinuousProver prover = startProver(verifier, n);
+        assertTrue(n.ticks.await(10, TimeUnit.SECONDS));
+
+        prover.pause();
+        assertEquals(IContinuousVerifier.State.PAUSED, verifier.getState());
+        assertEquals(1, n.paused.get());
+
+        prover.stop();
+        assertEquals(IContinuousVerifier.State.STOPPED, verifier.getState());
+        assertEquals(1, n.stopped.get());
+
+        manager.removeProver(prover);
+        assertEquals(0, manager.getProverCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStartAfterShutdown() throws Exception {
+        manager.shutdown();
+        startProver(newVerifier(), new CountingNotifications(1));
+    }
+
+    @Test
+    public void testSocketProxyPollsPartialMessages() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        SocketCombinedProxy proxy = new SocketCombinedProxy(
+            new InetSocketAddress("localhost", server.getLocalPort()),
+            new JsonMessageSerializer());
+        try {
+            assertNull(proxy.pollServiceReauth());
+            Socket socket = server.accept();
+
+            EncServiceReauthMessage msg = new ServiceReauthMessage(
+                1, ReauthState.CONTINUE, 10000, SequenceNumber.getRandomInstance())
+                .encrypt(encKg.generateKey());
+            byte[] bytes = new JsonMessageSerializer().serialize(
+                msg, EncServiceReauthMessage.class);
+            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+
+            // Split the length prefix and the body across several writes
+            dos.writeShort(0);
+            dos.flush();
+            Thread.sleep(50);
+            assertNull(proxy.pollServiceReauth());
+            dos.writeShort(bytes.length);
+            dos.write(bytes, 0, bytes.length / 2);
+            dos.flush();
+            Thread.sleep(50);
+            assertNull(proxy.pollServiceReauth());
+            dos.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+            dos.flush();
+            Thread.sleep(50);
+            assertEquals(msg, proxy.pollServiceReauth());
+            assertNull(proxy.pollServiceReauth());
+
+            // Blocking reads still work afterwards
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+            dos.flush();
+            assertEquals(msg, proxy.getServiceReauth());
+            socket.close();
+        } finally {
+            proxy.getSocket().close();
+            server.close();
+        }
+    }
+}
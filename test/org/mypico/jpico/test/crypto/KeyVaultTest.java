@@ -0,0 +1,254 @@
+package org.mypico.jpico.test.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.ISigmaVerifier;
+import org.mypico.jpico.crypto.KeyDeriver;
+import org.mypico.jpico.crypto.NewSigmaProver;
+import org.mypico.jpico.crypto.NewSigmaProver.ProverAuthRejectedException;
+import org.mypico.jpico.crypto.NewSigmaVerifier;
+import org.mypico.jpico.crypto.Nonce;
+import org.mypico.jpico.crypto.SigmaKeyDeriver;
+import org.mypico.jpico.crypto.messages.EncServiceReauthMessage;
+import org.mypico.jpico.crypto.messages.ReauthState;
+import org.mypico.jpico.crypto.messages.SequenceNumber;
+import org.mypico.jpico.crypto.messages.ServiceReauthMessage;
+import org.mypico.jpico.crypto.util.KeyVault;
+import org.mypico.jpico.crypto.util.VaultSecretKey;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.test.crypto.messages.MessageTest;
+import org.mypico.jpico.test.util.TestClientInterface;
+
+public class KeyVaultTest extends MessageTest {
+
+    private KeyVault vault;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        MessageTest.setUpBeforeClass();
+    }
+
+    @Before
+    public void setUp() {
+        vault = new KeyVault(32, 4);
+    }
+
+    @Test
+    public void testStoreAndRead() {
+        byte[] bytes = new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+        VaultSecretKey key = vault.store(bytes.clone(), "AES");
+
+        assertEquals("AES", key.getAlgorithm());
+        assertEquals("RAW", key.getFormat());
+        assertArrayEquals(bytes, key.getEncoded());
+        assertEquals(1, vault.getAllocatedSlots());
+    }
+
+    @Test
+    public void testEqualsSecretKeySpec() {
+        SecretKey heapKey = encKg.generateKey();
+        VaultSecretKey key = vault.store(heapKey);
+
+        assertTrue(key.equals(heapKey));
+        assertTrue(heapKey.equals(key));
+        assertEquals(heapKey.hashCode(), key.hashCode());
+    }
+
+    @Test
+    public void testDestroyReleasesSlot() {
+        VaultSecretKey key = vault.store(encKg.generateKey());
+        assertFalse(key.isDestroyed());
+
+        key.destroy();
+        assertTrue(key.isDestroyed());
+        assertEquals(0, vault.getAllocatedSlots());
+
+        // Destroying twice is harmless
+        key.destroy();
+        assertEquals(0, vault.getAllocatedSlots());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDestroyedKeyUnusable() {
+        VaultSecretKey key = vault.store(encKg.generateKey());
+        key.destroy();
+        key.getEncoded();
+    }
+
+    @Test
+    public void testSlabGrowth() {
+        for (int i = 0; i < 9; i++) {
+            vault.store(encKg.generateKey());
+        }
+        assertEquals(9, vault.getAllocatedSlots());
+        assertEquals(3 * 4 * 32, vault.getOffHeapBytes());
+    }
+
+    @Test
+    public void testSlotReuseDoesNotLeak() {
+        byte[] first = new byte[32];
+        Arrays.fill(first, (byte) 0x55);
+        VaultSecretKey key = vault.store(first, "Hmac-SHA256");
+        key.destroy();
+
+        // A shorter key re-using the slot must not see the old bytes
+        VaultSecretKey shorter = vault.store(new byte[16], "AES");
+        assertArrayEquals(new byte[16], shorter.getEncoded());
+    }
+
+    @Test
+    public void testReadNeverSeesReusedSlot() throws Exception {
+        final byte[] mine = new byte[16];
+        Arrays.fill(mine, (byte) 0x11);
+        final byte[] theirs = new byte[16];
+        Arrays.fill(theirs, (byte) 0x22);
+        for (int i = 0; i < 200; i++) {
+            final VaultSecretKey key = vault.store(mine, "AES");
+            // Destroy the key and immediately reuse its slot for another one
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    key.destroy();
+                    vault.store(theirs, "AES");
+                }
+            });
+            thread.start();
+            while (thread.isAlive()) {
+                try {
+                    assertArrayEquals(mine, key.getEncoded());
+                } catch (IllegalStateException e) {
+                    // Destroyed
+                }
+                // Never throws, whatever state the key is in
+                key.equals(new SecretKeySpec(mine, "AES"));
+                key.hashCode();
+            }
+            thread.join();
+            assertFalse(key.equals(new SecretKeySpec(mine, "AES")));
+            vault = new KeyVault(32, 4);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKeyTooLarge() {
+        vault.store(new byte[33], "AES");
+    }
+
+    @Test
+    public void testVaultDestroy() {
+        VaultSecretKey key = vault.store(encKg.generateKey());
+        vault.destroy();
+        assertTrue(key.isDestroyed());
+        assertTrue(vault.isDestroyed());
+    }
+
+    @Test
+    public void testCipherWithVaultKey() throws Exception {
+        SecretKey heapKey = encKg.generateKey();
+        VaultSecretKey key = vault.store(heapKey);
+
+        ServiceReauthMessage msg = new ServiceReauthMessage(
+            1, ReauthState.CONTINUE, 10000, SequenceNumber.getRandomInstance());
+        EncServiceReauthMessage enc = msg.encrypt(key);
+        assertEquals(msg, enc.decrypt(heapKey));
+
+        enc = msg.encrypt(heapKey);
+        assertEquals(msg, enc.decrypt(key));
+    }
+
+    @Test
+    public void testKeyDeriverIntoVault() {
+        byte[] secret = new byte[32];
+        Arrays.fill(secret, (byte) 7);
+        Nonce picoNonce = Nonce.getRandomInstance();
+        Nonce serviceNonce = Nonce.getRandomInstance();
+
+        KeyDeriver heapDeriver = SigmaKeyDeriver.getInstance(
+            secret.clone(), picoNonce, serviceNonce);
+        KeyDeriver vaultDeriver = SigmaKeyDeriver.getInstance(
+            secret.clone(), picoNonce, serviceNonce);
+
+        for (int i = 0; i < 3; i++) {
+            SecretKey expected = heapDeriver.getNextKey("AES", 128);
+            SecretKey actual = vaultDeriver.getNextKey("AES", 128, vault);
+            assertTrue(actual instanceof VaultSecretKey);
+            assertTrue(actual.equals(expected));
+            assertTrue(expected.equals(new SecretKeySpec(actual.getEncoded(), "AES")));
+        }
+    }
+
+    private NewSigmaVerifier proveWithVault(final ISigmaVerifier.Client client) throws Exception {
+        final KeyPair verifierIdKeyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        final NewSigmaVerifier verifier = new NewSigmaVerifier(
+            NewSigmaProver.VERSION_1_1, verifierIdKeyPair, 1, client, false, vault);
+        final NewSigmaProver prover = new NewSigmaProver(
+            NewSigmaProver.VERSION_1_1,
+            CryptoFactory.INSTANCE.ecKpg().generateKeyPair(),
+            null,
+            verifier,
+            KeyPairing.commitServicePublicKey(verifierIdKeyPair.getPublic()),
+            null);
+        prover.prove();
+        return verifier;
+    }
+
+    @Test
+    public void testVerifierKeepsOnlySharedKey() throws Exception {
+        final NewSigmaVerifier verifier = proveWithVault(new TestClientInterface("token"));
+
+        // Only the shared key, which now belongs to the caller, is left in the vault
+        assertEquals(1, vault.getAllocatedSlots());
+        assertTrue(verifier.getSharedKey() instanceof VaultSecretKey);
+        ((VaultSecretKey) verifier.getSharedKey()).destroy();
+        assertEquals(0, vault.getAllocatedSlots());
+    }
+
+    @Test
+    public void testRejectedVerifierReleasesAllSlots() throws Exception {
+        try {
+            proveWithVault(new TestClientInterface("token") {
+                @Override
+                public ClientAuthorisation onAuthenticate(PublicKey picoPublicKey,
+                                                          byte[] extraData) {
+                    return ClientAuthorisation.reject();
+                }
+            });
+            fail("Expected the client to reject the authentication");
+        } catch (ProverAuthRejectedException e) {
+            // Expected
+        }
+        assertEquals(0, vault.getAllocatedSlots());
+    }
+
+    @Test
+    public void testFailedVerifierReleasesAllSlots() throws Exception {
+        try {
+            proveWithVault(new TestClientInterface("token") {
+                @Override
+                public ClientAuthorisation onAuthenticate(PublicKey picoPublicKey,
+                                                          byte[] extraData) {
+                    throw new IllegalStateException("client failure");
+                }
+            });
+            fail("Expected the client failure to propagate");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(0, vault.getAllocatedSlots());
+    }
+}
@@ -0,0 +1,194 @@
+package org.mypico.jpico.test.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.AsyncDataAccessor;
+import org.mypico.jpico.data.DataAccessor;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+public class AsyncDataAccessorTest extends UsesCryptoTest {
+
+    private static final byte[] COMMITMENT = new byte[]{1, 2, 3, 4};
+
+    /**
+     * Wraps the in-memory accessor, counting calls and optionally holding them until released.
+     */
+    private static class GatedAccessor implements InvocationHandler {
+        final DataAccessor accessor;
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile CountDownLatch gate = new CountDownLatch(0);
+        volatile IOException failure = null;
+
+        GatedAccessor(DataAccessor accessor) {
+            this.accessor = accessor;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            calls.incrementAndGet();
+            started.countDown();
+            gate.await(10, TimeUnit.SECONDS);
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                return method.invoke(accessor, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private MemDataFactory factory;
+    private GatedAccessor gated;
+    private AsyncDataAccessor async;
+
+    @Before
+    public void setUp() {
+        MemDataStore store = new MemDataStore();
+        factory = new MemDataFactory(store);
+        gated = new GatedAccessor(new MemDataAccessor(store));
+        DataAccessor accessor = (DataAccessor) Proxy.newProxyInstance(
+            DataAccessor.class.getClassLoader(), new Class<?>[]{DataAccessor.class}, gated);
+        async = new AsyncDataAccessor(accessor, 1, 2);
+    }
+
+    @After
+    public void tearDown() {
+        gated.gate.countDown();
+        async.close();
+    }
+
+    private Service newService() {
+        return new Service(factory, "service", URI.create("http://service.example.com"),
+            COMMITMENT);
+    }
+
+    private static Throwable causeOf(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            fail("Expected the future to fail");
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+
+    @Test
+    public void testSaveAndLookup() throws Exception {
+        Service service = newService();
+        KeyPairing pairing = new KeyPairing(factory, "pairing", service,
+            CryptoFactory.INSTANCE.ecKpg().generateKeyPair(), "");
+        async.save(pairing).get();
+        assertTrue(pairing.isSaved());
+
+        assertEquals(service, async.getServiceByCommitment(COMMITMENT).get());
+        assertEquals(pairing, async.getKeyPairingById(pairing.getId()).get());
+        assertEquals(1, async.getKeyPairingsByServiceCommitment(COMMITMENT).get().size());
+        assertNull(async.getServiceById(service.getId() + 1).get());
+    }
+
+    @Test
+    public void testIdenticalLookupsCoalesced() throws Exception {
+        Service service = newService();
+        service.save();
+        gated.gate = new CountDownLatch(1);
+
+        ListenableFuture<Service> first = async.getServiceByCommitment(COMMITMENT);
+        ListenableFuture<Service> second = async.getServiceByCommitment(COMMITMENT.clone());
+        ListenableFuture<Service> byId = async.getServiceById(service.getId());
+        assertSame(first, second);
+        gated.gate.countDown();
+
+        assertEquals(service, first.get());
+        assertEquals(service, byId.get());
+        assertEquals(2, gated.calls.get());
+
+        // Once complete, a lookup goes to the store again
+        assertEquals(service, async.getServiceByCommitment(COMMITMENT).get());
+        assertEquals(3, gated.calls.get());
+
+        Map<String, Number> metrics = async.getMetrics();
+        assertEquals(3L, metrics.get("serviceByCommitment.calls"));
+        assertEquals(1L, metrics.get("serviceByCommitment.coalesced"));
+        assertEquals(1L, metrics.get("serviceById.calls"));
+        assertTrue(metrics.get("serviceByCommitment.maxMillis").doubleValue() > 0);
+    }
+
+    @Test
+    public void testFullQueueRejects() throws Exception {
+        gated.gate = new CountDownLatch(1);
+        ListenableFuture<Service> running = async.getServiceById(1);
+        assertTrue(gated.started.await(10, TimeUnit.SECONDS));
+        // The queue holds two more
+        ListenableFuture<Service> queued1 = async.getServiceById(2);
+        ListenableFuture<Service> queued2 = async.getServiceById(3);
+
+        ListenableFuture<Service> rejected = async.getServiceById(4);
+        assertTrue(rejected.isDone());
+        assertTrue(causeOf(rejected) instanceof RejectedExecutionException);
+        assertEquals(2, async.getMetrics().get("queued").intValue());
+        assertEquals(1L, async.getMetrics().get("serviceById.rejected"));
+
+        gated.gate.countDown();
+        assertNull(running.get());
+        assertNull(queued1.get());
+        assertNull(queued2.get());
+        // A rejected lookup is not left in flight
+        assertNull(async.getServiceById(4).get());
+    }
+
+    @Test
+    public void testFailurePropagated() throws Exception {
+        gated.failure = new IOException("store unavailable");
+        Throwable cause = causeOf(async.getTerminalById(1));
+        assertTrue(cause instanceof IOException);
+        assertEquals("store unavailable", cause.getMessage());
+        assertEquals(1L, async.getMetrics().get("terminalById.failures"));
+
+        gated.failure = null;
+        assertNull(async.getTerminalById(1).get());
+    }
+
+    @Test
+    public void testCloseRunsQueuedSaves() throws Exception {
+        Service service = newService();
+        ListenableFuture<Void> saved = async.save(service);
+        async.close();
+        assertTrue(saved.isDone());
+        assertTrue(service.isSaved());
+        assertEquals(1L, async.getMetrics().get("saveService.calls"));
+
+        assertTrue(causeOf(async.getServiceById(1)) instanceof RejectedExecutionException);
+    }
+}
@@ -3,9 +3,14 @@ package org.mypico.jpico.test.data.pairing;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -80,4 +85,41 @@ public abstract class KeyPairingAccessorTest extends UsesCryptoTest {
         //TODO fail("Not yet implemented");
     }
 
+    @Test
+    public void testGetKeyPairingsByServiceCommitments() throws Exception {
+        // Enough services to need more than one chunk in a database; they share a prefix too
+        List<byte[]> commitments = new ArrayList<byte[]>();
+        List<KeyPairing> pairings = new ArrayList<KeyPairing>();
+        for (int i = 0; i < 120; i++) {
+            Service s = ServiceTest.getService(factory, Integer.toString(i));
+            KeyPairing p = new KeyPairing(factory, "pairing " + i, s,
+                    CryptoFactory.INSTANCE.ecKpg().generateKeyPair(), "");
+            p.save();
+            pairings.add(p);
+            commitments.add(s.getCommitment());
+        }
+        // A second pairing with the first service
+        KeyPairing second = new KeyPairing(factory, "second", pairings.get(0).getService(),
+                CryptoFactory.INSTANCE.ecKpg().generateKeyPair(), "");
+        second.save();
+        // A pairing with a service which is not asked for
+        new KeyPairing(factory, "notwanted", ServiceTest.getService(factory, "notwanted"),
+                CryptoFactory.INSTANCE.ecKpg().generateKeyPair(), "").save();
+        byte[] missing = ServiceTest.getService(factory, "missing").getCommitment();
+        commitments.add(missing);
+
+        Map<ByteBuffer, List<KeyPairing>> found =
+                accessor.getKeyPairingsByServiceCommitments(commitments);
+        assertEquals(commitments.size(), found.size());
+        assertEquals(2, found.get(ByteBuffer.wrap(commitments.get(0))).size());
+        assertTrue(found.get(ByteBuffer.wrap(commitments.get(0))).contains(second));
+        for (int i = 0; i < pairings.size(); i++) {
+            assertTrue(found.get(ByteBuffer.wrap(commitments.get(i))).contains(pairings.get(i)));
+            if (i > 0) {
+                assertEquals(1, found.get(ByteBuffer.wrap(commitments.get(i))).size());
+            }
+        }
+        assertTrue(found.get(ByteBuffer.wrap(missing)).isEmpty());
+    }
+
 }
@@ -4,8 +4,15 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -92,4 +99,35 @@ public abstract class ServiceAccessorTest {
         byte[] wrongCommitment = Corrupter.corrupt(s.getCommitment());
         assertNull(accessor.getServiceByCommitment(wrongCommitment));
     }
+
+    @Test
+    public void testGetServicesByCommitments() throws IOException {
+        // Enough services to need more than one chunk in a database; they share a prefix too
+        List<byte[]> commitments = new ArrayList<byte[]>();
+        List<Service> services = new ArrayList<Service>();
+        for (int i = 0; i < 150; i++) {
+            Service s = saveService(Integer.toString(i));
+            services.add(s);
+            commitments.add(s.getCommitment());
+        }
+        saveService("notwanted");
+        byte[] missing = Corrupter.corrupt(services.get(0).getCommitment());
+        commitments.add(missing);
+
+        Map<ByteBuffer, Service> found = accessor.getServicesByCommitments(commitments);
+        assertEquals(services.size(), found.size());
+        for (Service s : services) {
+            assertEquals(s, found.get(ByteBuffer.wrap(s.getCommitment())));
+        }
+        assertNull(found.get(ByteBuffer.wrap(missing)));
+    }
+
+    @Test
+    public void testGetServicesByCommitmentsEmpty() throws IOException {
+        Service s = saveService();
+        assertTrue(accessor.getServicesByCommitments(
+                Collections.<byte[]>emptyList()).isEmpty());
+        assertTrue(accessor.getServicesByCommitments(
+                Arrays.asList(Corrupter.corrupt(s.getCommitment()))).isEmpty());
+    }
 }
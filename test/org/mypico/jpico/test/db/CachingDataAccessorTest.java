@@ -0,0 +1,184 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.CachingDataAccessor;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.db.DbChangeNotifier;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.support.ConnectionSource;
+
+public class CachingDataAccessorTest extends UsesCryptoTest {
+
+    private static final byte[] COMMITMENT = new byte[]{1, 2, 3, 4};
+    private static final byte[] OTHER_COMMITMENT = new byte[]{5, 6, 7, 8};
+
+    private static ConnectionSource dbConnection;
+    private static DbDataFactory factory;
+
+    private CachingDataAccessor accessor;
+    private KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = DatabaseHelper.getConnection();
+        factory = new DbDataFactory(dbConnection);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+        accessor = new CachingDataAccessor(new DbDataAccessor(dbConnection), 2);
+        DbChangeNotifier.addListener(dbConnection, accessor);
+        keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbChangeNotifier.removeListener(dbConnection, accessor);
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    private Service newService(byte[] commitment) throws Exception {
+        Service service = new Service(
+            factory, "test service", new URI("http://testservice.com"), commitment);
+        service.save();
+        return service;
+    }
+
+    private long metric(String name) {
+        return accessor.getMetrics().get(name).longValue();
+    }
+
+    @Test
+    public void testRepeatedLookupHitsCache() throws Exception {
+        newService(COMMITMENT);
+        Service first = accessor.getServiceByCommitment(COMMITMENT);
+        Service second = accessor.getServiceByCommitment(COMMITMENT);
+        assertNotNull(first);
+        assertSame(first, second);
+        assertEquals(1, metric("servicesByCommitment.hits"));
+        assertEquals(1, metric("servicesByCommitment.misses"));
+        assertEquals(0.5, accessor.getMetrics().get("hitRatio").doubleValue(), 0.001);
+    }
+
+    @Test
+    public void testMissInvalidatedBySave() throws Exception {
+        assertNull(accessor.getServiceByCommitment(COMMITMENT));
+        assertNull(accessor.getServiceByCommitment(COMMITMENT));
+        assertEquals(1, metric("servicesByCommitment.hits"));
+
+        newService(COMMITMENT);
+        assertNotNull(accessor.getServiceByCommitment(COMMITMENT));
+    }
+
+    @Test
+    public void testServiceUpdateInvalidates() throws Exception {
+        Service service = newService(COMMITMENT);
+        accessor.getServiceById(service.getId());
+
+        service.setAddress(new URI("http://elsewhere.com"));
+        service.save();
+        assertEquals(new URI("http://elsewhere.com"),
+            accessor.getServiceById(service.getId()).getAddress());
+        assertEquals(0, metric("servicesById.hits"));
+    }
+
+    @Test
+    public void testBulkLookupUsesCache() throws Exception {
+        Service service = newService(COMMITMENT);
+        newService(OTHER_COMMITMENT);
+        Service cached = accessor.getServiceByCommitment(COMMITMENT);
+
+        List<byte[]> commitments = Arrays.asList(COMMITMENT, OTHER_COMMITMENT);
+        Map<ByteBuffer, Service> found = accessor.getServicesByCommitments(commitments);
+        assertEquals(2, found.size());
+        assertSame(cached, found.get(ByteBuffer.wrap(COMMITMENT)));
+        assertEquals(1, metric("servicesByCommitment.hits"));
+
+        // Both are cached now
+        Service other = found.get(ByteBuffer.wrap(OTHER_COMMITMENT));
+        assertSame(other, accessor.getServicesByCommitments(commitments)
+            .get(ByteBuffer.wrap(OTHER_COMMITMENT)));
+        assertEquals(3, metric("servicesByCommitment.hits"));
+
+        KeyPairing pairing = new KeyPairing(factory, "pairing", service, keyPair, "");
+        pairing.save();
+        Map<ByteBuffer, List<KeyPairing>> pairings =
+            accessor.getKeyPairingsByServiceCommitments(commitments);
+        assertEquals(1, pairings.get(ByteBuffer.wrap(COMMITMENT)).size());
+        assertEquals(0, pairings.get(ByteBuffer.wrap(OTHER_COMMITMENT)).size());
+        assertEquals(1, accessor.getKeyPairingsByServiceCommitment(COMMITMENT).size());
+        assertEquals(1, metric("keyPairingsByServiceCommitment.hits"));
+    }
+
+    @Test
+    public void testKeyPairingsInvalidatedPrecisely() throws Exception {
+        Service service = newService(COMMITMENT);
+        Service other = newService(OTHER_COMMITMENT);
+        assertEquals(0, accessor.getKeyPairingsByServiceCommitment(COMMITMENT).size());
+        assertEquals(0, accessor.getKeyPairingsByServiceCommitment(OTHER_COMMITMENT).size());
+
+        KeyPairing pairing = new KeyPairing(factory, "pairing", service, keyPair, "");
+        pairing.save();
+        assertEquals(1, accessor.getKeyPairingsByServiceCommitment(COMMITMENT).size());
+        // Pairings of the other service are still cached
+        assertEquals(0, accessor.getKeyPairingsByServiceCommitment(OTHER_COMMITMENT).size());
+        assertEquals(1, metric("keyPairingsByServiceCommitment.hits"));
+
+        pairing.delete();
+        assertEquals(0, accessor.getKeyPairingsByServiceCommitment(COMMITMENT).size());
+        assertNotNull(other);
+    }
+
+    @Test
+    public void testTerminalSaveAndDelete() throws Exception {
+        assertNull(accessor.getTerminalByCommitment(COMMITMENT));
+
+        Terminal terminal = new Terminal(factory, "terminal", COMMITMENT, keyPair);
+        terminal.save();
+        Terminal cached = accessor.getTerminalByCommitment(COMMITMENT);
+        assertNotNull(cached);
+        assertSame(cached, accessor.getTerminalByCommitment(COMMITMENT));
+
+        terminal.delete();
+        assertNull(accessor.getTerminalByCommitment(COMMITMENT));
+    }
+
+    @Test
+    public void testBoundedSize() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            accessor.getServiceById(i + 1);
+        }
+        assertEquals(2, metric("servicesById.size"));
+        assertEquals(3, metric("servicesById.evictions"));
+    }
+}
@@ -0,0 +1,177 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.db.DbCursor;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.support.ConnectionSource;
+
+public class DbCursorTest extends UsesCryptoTest {
+
+    private static final int PAGE_SIZE = 10;
+
+    private static ConnectionSource dbConnection;
+    private static DbDataFactory factory;
+    private static DbDataAccessor accessor;
+    private static KeyPair keyPair;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = DatabaseHelper.getConnection();
+        factory = new DbDataFactory(dbConnection);
+        accessor = new DbDataAccessor(dbConnection);
+        keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    private List<KeyPairing> newKeyPairings(int count) throws Exception {
+        List<KeyPairing> pairings = new ArrayList<KeyPairing>();
+        for (int i = 0; i < count; i++) {
+            Service service = new Service(factory, "service " + i,
+                new URI("http://service" + i + ".example.com"), new byte[]{(byte) i});
+            KeyPairing pairing = new KeyPairing(factory, "pairing " + i, service, keyPair, "");
+            pairing.save();
+            pairings.add(pairing);
+        }
+        return pairings;
+    }
+
+    private static <T> List<T> drain(DbCursor<T> cursor) {
+        List<T> items = new ArrayList<T>();
+        try {
+            while (cursor.hasNext()) {
+                items.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+
+    @Test
+    public void testEmptyTable() throws Exception {
+        DbCursor<KeyPairing> cursor = accessor.iterateKeyPairings(PAGE_SIZE);
+        assertFalse(cursor.hasNext());
+        cursor.close();
+    }
+
+    @Test
+    public void testKeyPairingsAcrossPages() throws Exception {
+        // Not a multiple of the page size, and one exact multiple
+        for (int count : new int[]{25, 5}) {
+            List<KeyPairing> expected = newKeyPairings(count);
+            List<KeyPairing> actual = drain(accessor.iterateKeyPairings(PAGE_SIZE));
+            assertEquals(accessor.getAllKeyPairings().size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                KeyPairing pairing = actual.get(actual.size() - expected.size() + i);
+                assertEquals(expected.get(i).getId(), pairing.getId());
+                assertEquals(expected.get(i).getName(), pairing.getName());
+                assertArrayEquals(keyPair.getPublic().getEncoded(), pairing.getPublicKey().getEncoded());
+            }
+        }
+        assertEquals(30, drain(accessor.iterateKeyPairings(PAGE_SIZE)).size());
+    }
+
+    @Test
+    public void testLensPairingsAndTerminals() throws Exception {
+        Map<String, String> credentials = new HashMap<String, String>();
+        credentials.put("user", "alice");
+        for (int i = 0; i < 12; i++) {
+            Service service = new Service(factory, "service " + i,
+                new URI("http://service" + i + ".example.com"), new byte[]{(byte) i});
+            new LensPairing(factory, "lens " + i, service, credentials,
+                new ArrayList<String>()).save();
+            new Terminal(factory, "terminal " + i, new byte[]{(byte) i}, keyPair).save();
+        }
+
+        List<LensPairing> lensPairings = drain(accessor.iterateLensPairings(5));
+        assertEquals(12, lensPairings.size());
+        assertEquals("lens 0", lensPairings.get(0).getName());
+        assertEquals(credentials, lensPairings.get(11).getCredentials());
+
+        List<Terminal> terminals = drain(accessor.iterateTerminals(5));
+        assertEquals(12, terminals.size());
+        assertEquals("terminal 11", terminals.get(11).getName());
+    }
+
+    @Test
+    public void testSaveAndDeleteDuringIteration() throws Exception {
+        List<KeyPairing> pairings = newKeyPairings(15);
+        int deletedId = pairings.get(12).getId();
+        DbCursor<KeyPairing> cursor = accessor.iterateKeyPairings(PAGE_SIZE);
+        List<Integer> seen = new ArrayList<Integer>();
+        try {
+            while (cursor.hasNext()) {
+                KeyPairing pairing = cursor.next();
+                seen.add(pairing.getId());
+                if (seen.size() == 1) {
+                    // Delete a pairing on a later page and add a new one
+                    pairings.get(12).delete();
+                    newKeyPairings(1);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        // One deleted, one added
+        assertEquals(15, seen.size());
+        assertFalse(seen.contains(deletedId));
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        newKeyPairings(15);
+        DbCursor<KeyPairing> cursor = accessor.iterateKeyPairings(PAGE_SIZE);
+        assertTrue(cursor.hasNext());
+        cursor.next();
+        cursor.close();
+        assertFalse(cursor.hasNext());
+
+        // The database is still usable
+        assertEquals(15, accessor.getAllKeyPairings().size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPageSize() throws Exception {
+        accessor.iterateKeyPairings(0);
+    }
+}
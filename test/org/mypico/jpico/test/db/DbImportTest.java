@@ -0,0 +1,185 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbImportResult;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.test.data.TestDataFactory;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.support.ConnectionSource;
+
+public class DbImportTest extends UsesCryptoTest {
+
+    private static ConnectionSource dbConnection;
+    private static DbDataFactory factory;
+    private static DbDataAccessor accessor;
+    private static KeyPair keyPair;
+
+    private final TestDataFactory testFactory = new TestDataFactory();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = DatabaseHelper.getConnection();
+        factory = new DbDataFactory(dbConnection);
+        accessor = new DbDataAccessor(dbConnection);
+        keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    private Service newService(int i) throws Exception {
+        return new Service(testFactory, "service " + i,
+            new URI("http://service" + i + ".example.com"), new byte[]{1, 2, (byte) i});
+    }
+
+    @Test
+    public void testImportDeduplicatesServices() throws Exception {
+        List<Service> services = new ArrayList<Service>();
+        for (int i = 0; i < 3; i++) {
+            services.add(newService(i));
+        }
+        Map<String, String> credentials = new HashMap<String, String>();
+        credentials.put("username", "user");
+        credentials.put("password", "pass");
+
+        List<Pairing> pairings = new ArrayList<Pairing>();
+        for (int i = 0; i < 25; i++) {
+            // A fresh copy of the service each time, so only the commitment is shared
+            Service service = new Service(testFactory, services.get(i % 3));
+            pairings.add(new KeyPairing(factory, "key " + i, service, keyPair, "extra"));
+        }
+        for (int i = 0; i < 5; i++) {
+            pairings.add(new LensPairing(testFactory, "lens " + i, services.get(0), credentials,
+                Collections.singletonList("password")));
+        }
+
+        DbImportResult result = factory.importPairings(pairings, 10);
+        assertEquals(30, result.getPairingCount());
+        assertEquals(3, result.getServicesCreated());
+        assertEquals(0, result.getServicesReused());
+        assertEquals(3, result.getTransactionCount());
+        assertEquals(30, result.getMetrics().get("pairings"));
+
+        assertEquals(25, accessor.getAllKeyPairings().size());
+        assertEquals(9, accessor.getKeyPairingsByServiceCommitment(
+            services.get(0).getCommitment()).size());
+        assertEquals(8, accessor.getKeyPairingsByServiceCommitment(
+            services.get(2).getCommitment()).size());
+
+        List<LensPairing> lensPairings = accessor.getLensPairingsByServiceCommitment(
+            services.get(0).getCommitment());
+        assertEquals(5, lensPairings.size());
+        assertEquals(credentials, lensPairings.get(0).getCredentials());
+        assertEquals(Collections.singletonList("password"),
+            lensPairings.get(0).getPrivateFields());
+
+        KeyPairing imported = accessor.getKeyPairingsByServiceCommitment(
+            services.get(1).getCommitment()).get(0);
+        assertEquals("extra", imported.getExtraData());
+        assertArrayEquals(
+            keyPair.getPublic().getEncoded(), imported.getPublicKey().getEncoded());
+    }
+
+    @Test
+    public void testImportReusesSavedService() throws Exception {
+        Service saved = new Service(factory, newService(7));
+        saved.save();
+
+        List<KeyPairing> pairings = new ArrayList<KeyPairing>();
+        for (int i = 0; i < 2; i++) {
+            pairings.add(new KeyPairing(testFactory, "key " + i, newService(7), keyPair, ""));
+        }
+        DbImportResult result = factory.importPairings(pairings);
+        assertEquals(2, result.getPairingCount());
+        assertEquals(0, result.getServicesCreated());
+        assertEquals(1, result.getServicesReused());
+        assertEquals(1, result.getTransactionCount());
+
+        for (KeyPairing pairing : accessor.getAllKeyPairings()) {
+            assertEquals(saved.getId(), pairing.getService().getId());
+        }
+        assertNotNull(accessor.getServiceByCommitment(saved.getCommitment()));
+    }
+
+    @Test
+    public void testFailedBatchIsRolledBack() throws Exception {
+        // A service of the caller's, which the import must not give an id to
+        Service callers = new Service(factory, newService(1));
+        List<Pairing> pairings = new ArrayList<Pairing>();
+        pairings.add(new KeyPairing(testFactory, "key 0", newService(0), keyPair, ""));
+        pairings.add(new KeyPairing(testFactory, "key 1", callers, keyPair, ""));
+        // Names can't be null in the database, so this pairing fails the batch
+        pairings.add(new KeyPairing(testFactory, "key 2", newService(2), keyPair, "") {
+            @Override
+            public String getName() {
+                return null;
+            }
+        });
+        try {
+            factory.importPairings(pairings, 10);
+            fail("Expected the import to fail");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertTrue(accessor.getAllKeyPairings().isEmpty());
+        assertNull(accessor.getServiceByCommitment(newService(0).getCommitment()));
+        assertNull(accessor.getServiceByCommitment(callers.getCommitment()));
+        assertFalse(callers.isSaved());
+
+        // The services rolled back are created again by the next import
+        DbImportResult result = factory.importPairings(pairings.subList(0, 2), 10);
+        assertEquals(2, result.getServicesCreated());
+        assertEquals(0, result.getServicesReused());
+        assertNotNull(accessor.getServiceByCommitment(callers.getCommitment()));
+        assertFalse(callers.isSaved());
+    }
+
+    @Test
+    public void testImportNothing() throws Exception {
+        DbImportResult result = factory.importPairings(new ArrayList<Pairing>());
+        assertEquals(0, result.getPairingCount());
+        assertEquals(0, result.getTransactionCount());
+    }
+}
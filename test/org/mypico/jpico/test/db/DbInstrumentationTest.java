@@ -0,0 +1,162 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbInstrumentation;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.InstrumentedConnectionSource;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+public class DbInstrumentationTest extends UsesCryptoTest {
+
+    private static final byte[] COMMITMENT = new byte[]{1, 2, 3, 4};
+
+    private InstrumentedConnectionSource dbConnection;
+    private DbInstrumentation instrumentation;
+    private DbDataFactory factory;
+    private DbDataAccessor accessor;
+
+    @Before
+    public void setUp() throws Exception {
+        dbConnection = new InstrumentedConnectionSource(DatabaseHelper.getConnection());
+        DbVersioner.createDatabase(dbConnection);
+        instrumentation = new DbInstrumentation(dbConnection);
+        DbDaos daos = new DbDaos(instrumentation);
+        factory = new DbDataFactory(daos);
+        accessor = new DbDataAccessor(daos);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    private Service newService() {
+        return new Service(factory, "service", URI.create("http://service.example.com"),
+            COMMITMENT);
+    }
+
+    @Test
+    public void testSavesAndLookupsMeasured() throws Exception {
+        Service service = newService();
+        KeyPairing pairing = new KeyPairing(factory, "pairing", service,
+            CryptoFactory.INSTANCE.ecKpg().generateKeyPair(), "");
+        pairing.save();
+        service.setAddress(URI.create("http://renamed.example.com"));
+        service.save();
+
+        assertEquals(service, accessor.getServiceByCommitment(COMMITMENT));
+        assertNull(accessor.getServiceById(service.getId() + 1));
+        List<KeyPairing> pairings = accessor.getAllKeyPairings();
+        assertEquals(1, pairings.size());
+
+        Map<String, Number> metrics = instrumentation.getMetrics();
+        // Creating the key pairing also creates its pairing and service
+        assertEquals(1L, metrics.get("keyPairing.create.calls"));
+        assertEquals(1L, metrics.get("keyPairing.create.rows"));
+        assertEquals(3L, metrics.get("keyPairing.create.statements"));
+        assertEquals(1L, metrics.get("service.update.calls"));
+        assertEquals(1L, metrics.get("service.update.rows"));
+        assertEquals(1L, metrics.get("service.update.statements"));
+
+        assertEquals(1L, metrics.get("service.query.calls"));
+        assertEquals(1L, metrics.get("service.query.rows"));
+        assertEquals(1L, metrics.get("service.queryForFirst.calls"));
+        assertEquals(0L, metrics.get("service.queryForFirst.rows"));
+        assertEquals(1L, metrics.get("service.queryForFirst.statements"));
+        assertEquals(0L, metrics.get("service.queryForFirst.failures"));
+
+        // Joined queries are measured too
+        assertEquals(1L, metrics.get("keyPairing.graphQuery.calls"));
+        assertEquals(1L, metrics.get("keyPairing.graphQuery.rows"));
+        assertEquals(1L, metrics.get("keyPairing.graphQuery.statements"));
+
+        double p50 = metrics.get("service.update.p50Millis").doubleValue();
+        double max = metrics.get("service.update.maxMillis").doubleValue();
+        assertTrue(p50 > 0);
+        assertTrue(p50 <= max);
+        assertEquals(0L, metrics.get("unattributedStatements"));
+        assertEquals(metrics.get("statements"), sumOf(metrics, ".statements"));
+    }
+
+    @Test
+    public void testDeleteMeasured() throws Exception {
+        Pairing pairing = new Pairing(factory, "pairing", newService());
+        pairing.save();
+        pairing.delete();
+
+        Map<String, Number> metrics = instrumentation.getMetrics();
+        assertEquals(1L, metrics.get("pairing.delete.calls"));
+        assertEquals(1L, metrics.get("pairing.delete.rows"));
+        assertNull(accessor.getPairingById(pairing.getId()));
+    }
+
+    @Test
+    public void testFailuresCounted() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+        try {
+            accessor.getServiceById(1);
+            fail("Expected the lookup to fail");
+        } catch (IOException e) {
+            // expected
+        } finally {
+            DbVersioner.createDatabase(dbConnection);
+        }
+        Map<String, Number> metrics = instrumentation.getMetrics();
+        assertEquals(1L, metrics.get("service.queryForFirst.calls"));
+        assertEquals(1L, metrics.get("service.queryForFirst.failures"));
+        // Statements run without going through the DAOs
+        assertTrue(metrics.get("unattributedStatements").longValue() > 0);
+    }
+
+    @Test
+    public void testSlowStatementsCounted() throws Exception {
+        assertEquals(DbInstrumentation.DEFAULT_SLOW_STATEMENT_MILLIS,
+            instrumentation.getSlowStatementMillis());
+        newService().save();
+        long slow = instrumentation.getMetrics().get("slowStatements").longValue();
+
+        instrumentation.setSlowStatementMillis(0);
+        accessor.getServiceByCommitment(COMMITMENT);
+        accessor.getServiceByCommitment(COMMITMENT);
+        assertEquals(slow + 2, instrumentation.getMetrics().get("slowStatements").longValue());
+    }
+
+    @Test
+    public void testRedact() {
+        assertEquals("SELECT * FROM \"SERVICES\" WHERE \"name\" = ? AND \"id\" > ?",
+            DbInstrumentation.redact(
+                "SELECT * FROM \"SERVICES\" WHERE \"name\" = 'it''s 42' AND \"id\" > -17"));
+        assertEquals("UPDATE T2 SET \"col1\" = ? WHERE \"id\" = ?",
+            DbInstrumentation.redact("UPDATE T2 SET \"col1\" = 3.5 WHERE \"id\" = ?"));
+    }
+
+    private static Long sumOf(Map<String, Number> metrics, String suffix) {
+        long sum = 0;
+        for (Map.Entry<String, Number> entry : metrics.entrySet()) {
+            if (entry.getKey().endsWith(suffix)) {
+                sum += entry.getValue().longValue();
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,202 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbKeyPairingImp;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.InstrumentedConnectionSource;
+import org.mypico.jpico.db.StatementListener;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+
+public class DbJoinFetchTest extends UsesCryptoTest {
+
+    private static final int SERVICES = 3;
+    private static final int PAIRINGS = 6;
+
+    private static InstrumentedConnectionSource dbConnection;
+    private static DbDataFactory factory;
+    private static DbDataAccessor accessor;
+    private static KeyPair keyPair;
+    private static KeyGenerator keyGenerator;
+
+    private final AtomicInteger statements = new AtomicInteger();
+    private final StatementListener counter = new StatementListener() {
+        @Override
+        public void statementExecuted(String statement, long elapsedNanos) {
+            statements.incrementAndGet();
+        }
+    };
+
+    private List<Service> services;
+    private List<Session> sessions;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = new InstrumentedConnectionSource(DatabaseHelper.getConnection());
+        factory = new DbDataFactory(dbConnection);
+        accessor = new DbDataAccessor(dbConnection);
+        keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        keyGenerator = CryptoFactory.INSTANCE.aes256Kg();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+
+        Map<String, String> credentials = new HashMap<String, String>();
+        credentials.put("username", "user");
+        services = new ArrayList<Service>();
+        sessions = new ArrayList<Session>();
+        for (int i = 0; i < SERVICES; i++) {
+            byte[] commitment = new byte[32];
+            commitment[0] = (byte) i;
+            Service service = new Service(factory, "service " + i,
+                new URI("http://service" + i + ".example.com"), commitment);
+            service.save();
+            services.add(service);
+        }
+        for (int i = 0; i < PAIRINGS; i++) {
+            Service service = services.get(i % SERVICES);
+            KeyPairing keyPairing =
+                new KeyPairing(factory, "key " + i, service, keyPair, "");
+            keyPairing.save();
+            new LensPairing(factory, "lens " + i, service, credentials,
+                Collections.<String>emptyList()).save();
+
+            Session session = Session.newInstanceActive(factory, "remote " + i,
+                keyGenerator.generateKey(), keyPairing, new SimpleAuthToken("token"));
+            session.save();
+            sessions.add(session);
+            // Sessions need distinct authentication times
+            Thread.sleep(2);
+        }
+        dbConnection.addListener(counter);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dbConnection.removeListener(counter);
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    @Test
+    public void testDaoRefreshesEachRow() throws Exception {
+        // Reading through the DAO refreshes the pairing and the service of every row
+        Dao<DbKeyPairingImp, Integer> dao = DaoManager.createDao(dbConnection, DbKeyPairingImp.class);
+        assertEquals(PAIRINGS, dao.queryForAll().size());
+        assertEquals(1 + 2 * PAIRINGS, statements.get());
+    }
+
+    @Test
+    public void testAllKeyPairingsOneStatement() throws Exception {
+        List<KeyPairing> pairings = accessor.getAllKeyPairings();
+        assertEquals(1, statements.get());
+
+        assertEquals(PAIRINGS, pairings.size());
+        for (int i = 0; i < PAIRINGS; i++) {
+            KeyPairing pairing = pairings.get(i);
+            assertEquals("key " + i, pairing.getName());
+            assertEquals("service " + (i % SERVICES), pairing.getService().getName());
+            assertEquals(services.get(i % SERVICES).getId(), pairing.getService().getId());
+        }
+        assertEquals(1, statements.get());
+    }
+
+    @Test
+    public void testKeyPairingsByCommitmentOneStatement() throws Exception {
+        List<KeyPairing> pairings =
+            accessor.getKeyPairingsByServiceCommitment(services.get(1).getCommitment());
+        assertEquals(1, statements.get());
+        assertEquals(PAIRINGS / SERVICES, pairings.size());
+        for (KeyPairing pairing : pairings) {
+            assertEquals("service 1", pairing.getService().getName());
+        }
+    }
+
+    @Test
+    public void testLensPairingsOneStatement() throws Exception {
+        List<LensPairing> pairings = accessor.getAllLensPairings();
+        assertEquals(1, statements.get());
+        assertEquals(PAIRINGS, pairings.size());
+        assertEquals("user", pairings.get(0).getCredentials().get("username"));
+        assertEquals("service 0", pairings.get(0).getService().getName());
+
+        statements.set(0);
+        LensPairing pairing = accessor.getLensPairingById(pairings.get(1).getId());
+        assertEquals(1, statements.get());
+        assertEquals("lens 1", pairing.getName());
+    }
+
+    @Test
+    public void testSessionByIdOneStatement() throws Exception {
+        Session session = accessor.getSessionById(sessions.get(4).getId());
+        assertEquals(1, statements.get());
+        assertEquals("remote 4", session.getRemoteId());
+        assertEquals("key 4", session.getPairing().getName());
+        assertEquals("service 1", session.getPairing().getService().getName());
+        assertArrayEquals(
+            sessions.get(4).getSecretKey().getEncoded(), session.getSecretKey().getEncoded());
+        assertEquals(1, statements.get());
+    }
+
+    @Test
+    public void testSessionsByStatus() throws Exception {
+        sessions.get(2).setStatus(Session.Status.PAUSED);
+        sessions.get(2).save();
+        statements.set(0);
+
+        List<Session> active = accessor.getSessionsByStatus(Session.Status.ACTIVE);
+        assertEquals(1, statements.get());
+        assertEquals(PAIRINGS - 1, active.size());
+        for (Session session : active) {
+            assertEquals(Session.Status.ACTIVE, session.getStatus());
+            assertTrue(session.getPairing().getName().startsWith("key "));
+        }
+        List<Session> paused = accessor.getSessionsByStatus(Session.Status.PAUSED);
+        assertEquals(1, paused.size());
+        assertEquals(sessions.get(2).getId(), paused.get(0).getId());
+    }
+
+    @Test
+    public void testSharedServiceInstances() throws Exception {
+        List<KeyPairing> pairings = accessor.getAllKeyPairings();
+        assertSame(pairings.get(0).getService().getImp(),
+            pairings.get(SERVICES).getService().getImp());
+    }
+}
@@ -1,17 +1,30 @@
 package org.mypico.jpico.test.db;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.Test;
 import org.mypico.jpico.data.DataFactory;
+import org.mypico.jpico.data.pairing.LensPairing;
 import org.mypico.jpico.data.pairing.LensPairingAccessor;
+import org.mypico.jpico.data.service.Service;
 import org.mypico.jpico.db.DbDataFactory;
 import org.mypico.jpico.db.DbLensPairingAccessor;
 import org.mypico.jpico.db.DbLensPairingImp;
 import org.mypico.jpico.db.DbPairingImp;
 import org.mypico.jpico.db.DbServiceImp;
 import org.mypico.jpico.test.data.pairing.LensPairingAccessorTest;
+import org.mypico.jpico.test.data.service.ServiceTest;
 import org.mypico.jpico.test.util.DatabaseHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,4 +101,34 @@ public class DbLensPairingAccessorTest extends LensPairingAccessorTest {
     protected LensPairingAccessor getAccessor() {
         return accessor;
     }
+
+    @Test
+    public void testGetLensPairingsByCredentialsIgnoresOrder() throws IOException {
+        Service service = ServiceTest.getService(factory, "Service");
+        Map<String, String> credentials = new LinkedHashMap<String, String>();
+        credentials.put("username", "alice");
+        credentials.put("password", "secret");
+        credentials.put("domain", "example.com");
+        LensPairing p = new LensPairing(factory, "1", service, credentials,
+                Collections.<String>emptyList());
+        p.save();
+        Map<String, String> otherCredentials = new LinkedHashMap<String, String>(credentials);
+        otherCredentials.put("password", "other");
+        new LensPairing(factory, "2", service, otherCredentials,
+                Collections.<String>emptyList()).save();
+
+        // Same credentials, inserted in a different order
+        Map<String, String> reordered = new LinkedHashMap<String, String>();
+        reordered.put("domain", "example.com");
+        reordered.put("password", "secret");
+        reordered.put("username", "alice");
+        List<LensPairing> r = accessor.getLensPairingsByServiceCommitmentAndCredentials(
+                service.getCommitment(), reordered);
+        assertEquals(1, r.size());
+        assertEquals(p, r.get(0));
+
+        reordered.put("username", "bob");
+        assertTrue(accessor.getLensPairingsByServiceCommitmentAndCredentials(
+                service.getCommitment(), reordered).isEmpty());
+    }
 }
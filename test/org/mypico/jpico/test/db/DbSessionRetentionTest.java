@@ -0,0 +1,246 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbSessionImp;
+import org.mypico.jpico.db.DbSessionRetention;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.SessionRetentionPolicy;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+public class DbSessionRetentionTest extends UsesCryptoTest {
+
+    private static final long FAR_FUTURE = 60 * 60 * 1000;
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    private static ConnectionSource dbConnection;
+    private static Dao<DbSessionImp, Integer> sessionDao;
+    private static KeyGenerator keyGenerator;
+
+    private ScheduledExecutorService scheduler;
+    private DbDaos daos;
+    private DbDataFactory factory;
+    private DbDataAccessor accessor;
+    private Pairing first;
+    private Pairing second;
+    // Dates have to be unique, so each session is authenticated a second after the last
+    private long lastAuthDate;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = DatabaseHelper.getConnection();
+        sessionDao = DaoManager.createDao(dbConnection, DbSessionImp.class);
+        keyGenerator = CryptoFactory.INSTANCE.aes256Kg();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        daos = new DbDaos(dbConnection);
+        factory = new DbDataFactory(daos);
+        accessor = new DbDataAccessor(daos);
+
+        Service service = new Service(
+            factory, "test service", new URI("http://testservice.com"), new byte[]{1, 2, 3});
+        service.save();
+        first = new Pairing(factory, "first", service);
+        first.save();
+        second = new Pairing(factory, "second", service);
+        second.save();
+        lastAuthDate = System.currentTimeMillis() - 30 * DAY;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdownNow();
+        DbVersioner.dropDatabase(dbConnection);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    private Session newSession(Pairing pairing, Session.Status status, long age)
+        throws Exception {
+        lastAuthDate += 1000;
+        Session session = new Session(factory.getImp("remote", keyGenerator.generateKey(),
+            pairing, new SimpleAuthToken("token"), new Date(lastAuthDate - age), status,
+            Session.Error.NONE));
+        session.save();
+        return session;
+    }
+
+    private DbSessionRetention newRetention(SessionRetentionPolicy policy, int batchSize,
+                                            int maxRowsPerRun) throws Exception {
+        return new DbSessionRetention(
+            daos, policy, scheduler, FAR_FUTURE, batchSize, maxRowsPerRun);
+    }
+
+    @Test
+    public void testMaxAgeKeepsUnfinishedSessions() throws Exception {
+        Session oldClosed = newSession(first, Session.Status.CLOSED, 0);
+        Session oldError = newSession(first, Session.Status.ERROR, 0);
+        Session oldActive = newSession(first, Session.Status.ACTIVE, 0);
+        Session oldPaused = newSession(second, Session.Status.PAUSED, 0);
+        Session recentClosed = newSession(second, Session.Status.CLOSED, -29 * DAY);
+
+        DbSessionRetention retention = newRetention(
+            SessionRetentionPolicy.maxAge(7, TimeUnit.DAYS), 10, 100);
+        try {
+            assertEquals(2, retention.runOnce());
+        } finally {
+            retention.close();
+        }
+
+        assertNull(accessor.getSessionById(oldClosed.getId()));
+        assertNull(accessor.getSessionById(oldError.getId()));
+        assertNotNull(accessor.getSessionById(oldActive.getId()));
+        assertNotNull(accessor.getSessionById(oldPaused.getId()));
+        assertNotNull(accessor.getSessionById(recentClosed.getId()));
+    }
+
+    @Test
+    public void testKeepLatestClosed() throws Exception {
+        newSession(first, Session.Status.CLOSED, 0);
+        newSession(first, Session.Status.ERROR, 0);
+        Session latestFirst = newSession(first, Session.Status.CLOSED, 0);
+        Session active = newSession(first, Session.Status.ACTIVE, 0);
+        newSession(second, Session.Status.CLOSED, 0);
+        Session latestSecond = newSession(second, Session.Status.CLOSED, 0);
+
+        DbSessionRetention retention = newRetention(
+            SessionRetentionPolicy.keepLatestClosed(), 10, 100);
+        try {
+            assertEquals(3, retention.runOnce());
+            // Nothing more to do
+            assertEquals(0, retention.runOnce());
+        } finally {
+            retention.close();
+        }
+
+        assertEquals(3, sessionDao.countOf());
+        assertNotNull(accessor.getSessionById(latestFirst.getId()));
+        assertNotNull(accessor.getSessionById(active.getId()));
+        assertNotNull(accessor.getSessionById(latestSecond.getId()));
+    }
+
+    @Test
+    public void testMaxSessionsBoundedRuns() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            newSession(first, Session.Status.CLOSED, 0);
+        }
+        Session latestFirst = newSession(first, Session.Status.CLOSED, 0);
+        for (int i = 0; i < 3; i++) {
+            newSession(second, Session.Status.ERROR, 0);
+        }
+        Session latestSecond = newSession(second, Session.Status.CLOSED, 0);
+
+        // Each run carries on with the pairing the last one stopped part way through
+        DbSessionRetention retention = newRetention(
+            SessionRetentionPolicy.keepLatestClosed(), 10, 3);
+        try {
+            assertEquals(3, retention.runOnce());
+            assertEquals(3, retention.runOnce());
+            assertEquals(2, retention.runOnce());
+            assertEquals(0, retention.runOnce());
+        } finally {
+            retention.close();
+        }
+        assertEquals(2, sessionDao.countOf());
+        assertNotNull(accessor.getSessionById(latestFirst.getId()));
+        assertNotNull(accessor.getSessionById(latestSecond.getId()));
+    }
+
+    @Test
+    public void testMaxSessionsAndMaxAge() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            newSession(first, Session.Status.CLOSED, 0);
+        }
+        Session recent = newSession(first, Session.Status.CLOSED, -29 * DAY);
+
+        // Keeps the two latest, but only if they are recent enough
+        DbSessionRetention retention = newRetention(
+            new SessionRetentionPolicy(7, TimeUnit.DAYS, 2), 10, 100);
+        try {
+            assertEquals(4, retention.runOnce());
+        } finally {
+            retention.close();
+        }
+        assertEquals(1, sessionDao.countOf());
+        assertNotNull(accessor.getSessionById(recent.getId()));
+    }
+
+    @Test
+    public void testBoundedBatches() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            newSession(first, Session.Status.CLOSED, 0);
+        }
+
+        DbSessionRetention retention = newRetention(
+            SessionRetentionPolicy.maxAge(1, TimeUnit.DAYS), 4, 10);
+        try {
+            assertEquals(10, retention.runOnce());
+            assertEquals(10, retention.runOnce());
+            assertEquals(5, retention.runOnce());
+            assertEquals(0, sessionDao.countOf());
+
+            assertEquals(25L, retention.getMetrics().get("rowsRemoved"));
+            assertEquals(3L, retention.getMetrics().get("runs"));
+            // 3 + 3 + 2 statements
+            assertEquals(8L, retention.getMetrics().get("batches"));
+        } finally {
+            retention.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testScheduledRun() throws Exception {
+        newSession(first, Session.Status.CLOSED, 0);
+        DbSessionRetention retention = new DbSessionRetention(daos,
+            SessionRetentionPolicy.maxAge(1, TimeUnit.DAYS), scheduler, 10);
+        try {
+            while (sessionDao.countOf() > 0) {
+                Thread.sleep(10);
+            }
+            assertTrue((Long) retention.getMetrics().get("rowsRemoved") >= 1);
+        } finally {
+            retention.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativePolicy() {
+        SessionRetentionPolicy.maxSessionsPerPairing(-1);
+    }
+}
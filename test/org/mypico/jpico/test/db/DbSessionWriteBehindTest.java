@@ -0,0 +1,289 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbPairingImp;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbSessionImp;
+import org.mypico.jpico.db.DbSessionWriteBehind;
+import org.mypico.jpico.test.util.DatabaseHelper;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableUtils;
+
+public class DbSessionWriteBehindTest {
+
+    private static final long FAR_FUTURE = 60 * 60 * 1000;
+
+    private static ConnectionSource dbConnection;
+    private static Dao<DbSessionImp, Integer> sessionDao;
+
+    private ScheduledExecutorService scheduler;
+    private DbSessionWriteBehind writeBehind;
+    private DbDataFactory factory;
+    private Pairing pairing;
+    private long lastAuthDate = System.currentTimeMillis();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        dbConnection = DatabaseHelper.getConnection();
+        sessionDao = DaoManager.createDao(dbConnection, DbSessionImp.class);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        TableUtils.createTable(dbConnection, DbServiceImp.class);
+        TableUtils.createTable(dbConnection, DbPairingImp.class);
+        TableUtils.createTable(dbConnection, DbSessionImp.class);
+
+        scheduler = new ScheduledThreadPoolExecutor(1);
+        // Only flush on demand or when the batch is full
+        writeBehind = new DbSessionWriteBehind(dbConnection, scheduler, 10, FAR_FUTURE);
+        factory = new DbDataFactory(dbConnection, writeBehind);
+
+        Service service = new Service(
+            factory, "test service", new URI("http://testservice.com"), new byte[]{1, 2, 3});
+        service.save();
+        pairing = new Pairing(factory, "test pairing", service);
+        pairing.save();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writeBehind.close();
+        scheduler.shutdownNow();
+        TableUtils.dropTable(dbConnection, DbSessionImp.class, true);
+        TableUtils.dropTable(dbConnection, DbPairingImp.class, true);
+        TableUtils.dropTable(dbConnection, DbServiceImp.class, true);
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        dbConnection.close();
+    }
+
+    private Session newSavedSession() throws Exception {
+        Session session = Session.newInstanceActive(
+            factory, "1", KeyGenerator.getInstance("AES").generateKey(), pairing,
+            new SimpleAuthToken("auth token"));
+        // Last auth dates must be unique
+        session.setLastAuthDate(new Date(lastAuthDate++));
+        session.save();
+        return session;
+    }
+
+    private Session.Status storedStatus(Session session) throws Exception {
+        return sessionDao.queryForId(session.getId()).getStatus();
+    }
+
+    private void awaitEmpty() throws Exception {
+        for (int i = 0; i < 500 && writeBehind.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, writeBehind.getPendingCount());
+    }
+
+    @Test
+    public void testFirstSaveIsImmediate() throws Exception {
+        Session session = newSavedSession();
+        assertTrue(session.isSaved());
+        assertEquals(0, writeBehind.getPendingCount());
+        assertEquals(Session.Status.ACTIVE, storedStatus(session));
+    }
+
+    @Test
+    public void testUpdatesCoalesced() throws Exception {
+        Session session = newSavedSession();
+        for (int i = 0; i < 5; i++) {
+            session.setStatus((i % 2 == 0) ? Session.Status.PAUSED : Session.Status.ACTIVE);
+            session.setLastAuthDate(new Date(lastAuthDate++));
+            session.save();
+        }
+        assertEquals(1, writeBehind.getPendingCount());
+        assertEquals(Session.Status.ACTIVE, storedStatus(session));
+
+        writeBehind.flush();
+        assertEquals(0, writeBehind.getPendingCount());
+        assertEquals(Session.Status.PAUSED, storedStatus(session));
+        assertEquals(5L, writeBehind.getMetrics().get("queuedWrites"));
+        assertEquals(4L, writeBehind.getMetrics().get("coalescedWrites"));
+        assertEquals(1L, writeBehind.getMetrics().get("flushes"));
+        assertEquals(1L, writeBehind.getMetrics().get("flushedWrites"));
+    }
+
+    @Test
+    public void testAccessorSeesQueuedUpdates() throws Exception {
+        Session session = newSavedSession();
+        session.setStatus(Session.Status.CLOSED);
+        session.save();
+
+        DbDataAccessor accessor = new DbDataAccessor(dbConnection, writeBehind);
+        assertEquals(Session.Status.CLOSED, accessor.getSessionById(session.getId()).getStatus());
+        assertEquals(Session.Status.ACTIVE, storedStatus(session));
+    }
+
+    @Test
+    public void testQueuedStateIsCopied() throws Exception {
+        Session session = newSavedSession();
+        session.setStatus(Session.Status.PAUSED);
+        session.save();
+
+        // Changes made after saving are not written until the session is saved again
+        session.setStatus(Session.Status.ERROR);
+        DbDataAccessor accessor = new DbDataAccessor(dbConnection, writeBehind);
+        Session read = accessor.getSessionById(session.getId());
+        assertEquals(Session.Status.PAUSED, read.getStatus());
+
+        // Nor do changes made to a session read back while its update is queued
+        read.setStatus(Session.Status.CLOSED);
+        assertEquals(Session.Status.PAUSED,
+            accessor.getSessionById(session.getId()).getStatus());
+
+        writeBehind.flush();
+        assertEquals(Session.Status.PAUSED, storedStatus(session));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQueuedUpdatesVisibleDuringFlush() throws Exception {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // A session DAO whose updates wait until released, so a flush can be caught mid-write
+        final Dao<DbSessionImp, Integer> blockingDao = (Dao<DbSessionImp, Integer>)
+            Proxy.newProxyInstance(
+                Dao.class.getClassLoader(),
+                new Class<?>[]{Dao.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                        throws Throwable {
+                        if (method.getName().equals("update")) {
+                            writing.countDown();
+                            release.await();
+                        }
+                        try {
+                            return method.invoke(sessionDao, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+        DaoManager.registerDao(dbConnection, blockingDao);
+        final DbSessionWriteBehind blockingWriteBehind;
+        try {
+            blockingWriteBehind =
+                new DbSessionWriteBehind(dbConnection, scheduler, 10, FAR_FUTURE);
+        } finally {
+            DaoManager.registerDao(dbConnection, sessionDao);
+        }
+
+        final DbDataFactory blockingFactory = new DbDataFactory(dbConnection, blockingWriteBehind);
+        final Session session = Session.newInstanceActive(
+            blockingFactory, "1", KeyGenerator.getInstance("AES").generateKey(), pairing,
+            new SimpleAuthToken("auth token"));
+        session.setLastAuthDate(new Date(lastAuthDate++));
+        session.save();
+        session.setStatus(Session.Status.CLOSED);
+        session.save();
+
+        final Thread flusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blockingWriteBehind.flush();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        flusher.start();
+        try {
+            assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+            // The update is neither in the queue nor committed, but is still visible
+            DbDataAccessor accessor = new DbDataAccessor(dbConnection, blockingWriteBehind);
+            assertEquals(Session.Status.CLOSED,
+                accessor.getSessionById(session.getId()).getStatus());
+            assertEquals(1, blockingWriteBehind.getPendingCount());
+        } finally {
+            release.countDown();
+            flusher.join();
+        }
+        assertEquals(0, blockingWriteBehind.getPendingCount());
+        assertEquals(Session.Status.CLOSED, storedStatus(session));
+        blockingWriteBehind.close();
+    }
+
+    @Test
+    public void testBatchSizeTriggersFlush() throws Exception {
+        List<Session> sessions = new ArrayList<Session>();
+        for (int i = 0; i < 10; i++) {
+            sessions.add(newSavedSession());
+        }
+        for (Session session : sessions) {
+            session.setStatus(Session.Status.PAUSED);
+            session.save();
+        }
+        awaitEmpty();
+        for (Session session : sessions) {
+            assertEquals(Session.Status.PAUSED, storedStatus(session));
+        }
+    }
+
+    @Test
+    public void testIntervalTriggersFlush() throws Exception {
+        writeBehind.close();
+        writeBehind = new DbSessionWriteBehind(dbConnection, scheduler, 1000, 20);
+        factory = new DbDataFactory(dbConnection, writeBehind);
+
+        Session session = newSavedSession();
+        session.setStatus(Session.Status.PAUSED);
+        session.save();
+        awaitEmpty();
+        assertEquals(Session.Status.PAUSED, storedStatus(session));
+    }
+
+    @Test
+    public void testCloseFlushes() throws Exception {
+        Session session = newSavedSession();
+        session.setStatus(Session.Status.PAUSED);
+        session.save();
+        writeBehind.close();
+        assertEquals(Session.Status.PAUSED, storedStatus(session));
+
+        // After closing, saves are written straight away
+        session.setStatus(Session.Status.CLOSED);
+        session.save();
+        assertEquals(0, writeBehind.getPendingCount());
+        assertEquals(Session.Status.CLOSED, storedStatus(session));
+    }
+}
@@ -0,0 +1,115 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbKeyPairingImp;
+import org.mypico.jpico.db.DbLensPairingImp;
+import org.mypico.jpico.db.DbPairingImp;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbSessionImp;
+import org.mypico.jpico.db.DbTableConfigs;
+import org.mypico.jpico.db.DbTerminalImp;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.dao.BaseDaoImpl;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.field.FieldType;
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.support.ConnectionSource;
+import com.j256.ormlite.table.TableInfo;
+
+public class DbTableConfigsTest extends UsesCryptoTest {
+
+    private static final Class<?>[] TABLES = new Class<?>[]{
+        DbServiceImp.class, DbPairingImp.class, DbKeyPairingImp.class, DbLensPairingImp.class,
+        DbSessionImp.class, DbTerminalImp.class};
+
+    private ConnectionSource dbConnection;
+
+    @Before
+    public void setUp() throws Exception {
+        // A new connection source, for which the DaoManager has no DAOs yet
+        dbConnection = new JdbcConnectionSource("jdbc:derby:memory:tableConfigsDB;create=true");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+        dbConnection.close();
+    }
+
+    @Test
+    public void testConfigUpToDate() throws Exception {
+        assertEquals("Run DbTableConfigs.main to write the table configurations again",
+            DbTableConfigs.generate(dbConnection.getDatabaseType()), DbTableConfigs.getConfig());
+    }
+
+    @Test
+    public void testDaosMatchAnnotations() throws Exception {
+        new DbDaos(dbConnection);
+        for (Class<?> table : TABLES) {
+            checkTable(table);
+        }
+    }
+
+    @Test
+    public void testDaosShared() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+        Object serviceDao = DaoManager.lookupDao(dbConnection, DbServiceImp.class);
+        assertNotNull(serviceDao);
+
+        DbDataFactory factory = new DbDataFactory(dbConnection);
+        DbDataAccessor accessor = new DbDataAccessor(dbConnection);
+        assertSame(serviceDao, DaoManager.lookupDao(dbConnection, DbServiceImp.class));
+
+        Pairing pairing = new Pairing(factory, "pairing",
+            new Service(factory, "service", URI.create("http://service.example.com"),
+                new byte[]{1, 2, 3}));
+        pairing.save();
+        assertEquals(pairing, accessor.getPairingById(pairing.getId()));
+        assertEquals("service", accessor.getPairingById(pairing.getId()).getService().getName());
+    }
+
+    private <T> void checkTable(Class<T> table) throws Exception {
+        @SuppressWarnings("unchecked")
+        BaseDaoImpl<T, ?> dao = (BaseDaoImpl<T, ?>) DaoManager.lookupDao(dbConnection, table);
+        TableInfo<T, ?> configured = dao.getTableInfo();
+        TableInfo<T, ?> annotated = new TableInfo<T, Object>(dbConnection, null, table);
+
+        assertEquals(annotated.getTableName(), configured.getTableName());
+        FieldType[] expected = annotated.getFieldTypes();
+        FieldType[] actual = configured.getFieldTypes();
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            String name = table.getSimpleName() + "." + expected[i].getFieldName();
+            assertEquals(name, expected[i].getField(), actual[i].getField());
+            assertEquals(name, expected[i].getColumnName(), actual[i].getColumnName());
+            if (!expected[i].isForeign()) {
+                // Foreign fields only get theirs once their DAO is set up
+                assertEquals(name, expected[i].getDataPersister(), actual[i].getDataPersister());
+            }
+            assertEquals(name, expected[i].isCanBeNull(), actual[i].isCanBeNull());
+            assertEquals(name, expected[i].isGeneratedId(), actual[i].isGeneratedId());
+            assertEquals(name, expected[i].isUnique(), actual[i].isUnique());
+            assertEquals(name, expected[i].getIndexName(), actual[i].getIndexName());
+            assertEquals(name, expected[i].getUniqueIndexName(), actual[i].getUniqueIndexName());
+            assertEquals(name, expected[i].isForeign(), actual[i].isForeign());
+            assertEquals(name, expected[i].isForeignAutoCreate(), actual[i].isForeignAutoCreate());
+            assertEquals(name, expected[i].getColumnDefinition(),
+                actual[i].getColumnDefinition());
+        }
+    }
+}
@@ -1,17 +1,22 @@
 package org.mypico.jpico.test.db;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.security.PublicKey;
+import java.util.Arrays;
 
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
 import org.mypico.jpico.db.DbTerminalAccessor;
 import org.mypico.jpico.db.DbTerminalImp;
 import org.mypico.jpico.db.DbTerminalImpFactory;
@@ -35,6 +40,7 @@ public class DbTerminalImpTest extends UsesCryptoTest {
     private static ConnectionSource dbConnection;
     private static DbTerminalImpFactory factory;
     private static DbTerminalAccessor accessor;
+    private static Dao<DbTerminalImp, Integer> terminalDao;
 
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
@@ -43,7 +49,7 @@ public class DbTerminalImpTest extends UsesCryptoTest {
         dbConnection = DatabaseHelper.getConnection();
         LOGGER.info("Connected to database");
 
-        Dao<DbTerminalImp, Integer> terminalDao =
+        terminalDao =
                 DaoManager.createDao(dbConnection, DbTerminalImp.class);
         factory = new DbTerminalImpFactory(terminalDao);
         accessor = new DbTerminalAccessor(terminalDao);
@@ -91,4 +97,31 @@ public class DbTerminalImpTest extends UsesCryptoTest {
     	assertNull("getTerminalById not null after delete", accessor.getTerminalById(imp.getId()));
     	assertFalse("isSaved true after delete", imp.isSaved());
     }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testKeysDecodedOnFirstUse() throws Exception {
+        DbTerminalImp imp =
+            factory.getImp(TerminalTest.getTerminal(new TestTerminalImpFactory(), ""));
+        imp.save();
+
+        DbTerminalImp loaded = terminalDao.queryForId(imp.getId());
+        assertArrayEquals(imp.getPicoPublicKey().getEncoded(), loaded.getPicoPublicKeyBytes());
+        assertArrayEquals(imp.getPicoPrivateKey().getEncoded(), loaded.getPicoPrivateKeyBytes());
+
+        // Decoded keys are kept
+        assertArrayEquals(
+            imp.getPicoPublicKey().getEncoded(), loaded.getPicoPublicKey().getEncoded());
+        assertSame(loaded.getPicoPublicKey(), loaded.getPicoPublicKey());
+        assertArrayEquals(
+            imp.getPicoPrivateKey().getEncoded(), loaded.getPicoPrivateKey().getEncoded());
+        assertSame(loaded.getPicoPrivateKey(), loaded.getPicoPrivateKey());
+
+        // Replacing the stored bytes discards the decoded key
+        PublicKey otherKey = CryptoFactory.INSTANCE.ecKpg().generateKeyPair().getPublic();
+        loaded.setPicoPublicKeyBytes(otherKey.getEncoded());
+        assertArrayEquals(otherKey.getEncoded(), loaded.getPicoPublicKey().getEncoded());
+        assertFalse(Arrays.equals(
+            imp.getPicoPublicKey().getEncoded(), loaded.getPicoPublicKey().getEncoded()));
+    }
 }
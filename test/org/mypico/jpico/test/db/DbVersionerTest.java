@@ -3,10 +3,27 @@ package org.mypico.jpico.test.db;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
+import java.net.URI;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.mypico.jpico.ProgressCallback;
+import org.mypico.jpico.comms.org.apache.commons.codec.binary.Base64;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbLensPairingImp;
+import org.mypico.jpico.db.DbServiceAccessor;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbServiceImpFactory;
 import org.mypico.jpico.db.DbTerminalAccessor;
 import org.mypico.jpico.db.DbTerminalImp;
 import org.mypico.jpico.db.DbTerminalImpFactory;
@@ -20,6 +37,7 @@ import org.slf4j.LoggerFactory;
 
 import com.j256.ormlite.dao.Dao;
 import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.db.DerbyEmbeddedDatabaseType;
 import com.j256.ormlite.support.ConnectionSource;
 
 public class DbVersionerTest extends UsesCryptoTest {
@@ -29,12 +47,14 @@ public class DbVersionerTest extends UsesCryptoTest {
 	private static ConnectionSource dbConnection;
     private static DbTerminalImpFactory factory;
     private static DbTerminalAccessor accessor;
+    private static Dao<DbServiceImp, Integer> serviceDao;
+    private static Dao<DbTerminalImp, Integer> terminalDao;
     
     @BeforeClass
     public static void setUpBeforeClass() throws Exception {
         dbConnection = DatabaseHelper.getConnection();
-        Dao<DbTerminalImp, Integer> terminalDao =
-                DaoManager.createDao(dbConnection, DbTerminalImp.class);
+        terminalDao = DaoManager.createDao(dbConnection, DbTerminalImp.class);
+        serviceDao = DaoManager.createDao(dbConnection, DbServiceImp.class);
         factory = new DbTerminalImpFactory(terminalDao);
         accessor = new DbTerminalAccessor(terminalDao);
     }
@@ -105,4 +125,361 @@ public class DbVersionerTest extends UsesCryptoTest {
     	
     	DbVersioner.dropDatabase(dbConnection);
     }
+
+    /**
+     * Put a table back into the version 21 layout, with the commitment stored as an indexed
+     * Base64 string.
+     */
+    private static void downgradeTo21(Dao<?, Integer> dao, String table, int id, byte[] commitment)
+            throws SQLException {
+        // ORMLite upper cases table names for Derby, but quotes lower case column names
+        String t = table.toUpperCase();
+        dao.executeRaw("ALTER TABLE " + t + " ADD COLUMN \"commitment\" VARCHAR(255)");
+        dao.executeRaw("UPDATE " + t + " SET \"commitment\" = '"
+                + Base64.encodeBase64String(commitment) + "' WHERE \"id\" = " + id);
+        dao.executeRaw("ALTER TABLE " + t + " ALTER COLUMN \"commitment\" NOT NULL");
+        dao.executeRaw("ALTER TABLE " + t + " DROP COLUMN \"commitment_prefix\"");
+        dao.executeRaw("ALTER TABLE " + t + " DROP COLUMN \"commitment_hash\"");
+        dao.executeRaw("CREATE INDEX \"" + t + "_commitment_idx\" ON " + t
+                + " (\"commitment\")");
+    }
+
+    @Test
+    public void testUpgradeFrom21MigratesCommitments() throws SQLException, IOException {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            Terminal terminal = TerminalTest.getTerminal(factory, "");
+            terminal.save();
+            byte[] serviceCommitment = new byte[32];
+            serviceCommitment[0] = 1;
+            Service service = new Service(new DbServiceImpFactory(serviceDao), "service",
+                    URI.create("http://service.example.com"), serviceCommitment);
+            service.save();
+
+            downgradeTo21(terminalDao, "terminals", terminal.getId(),
+                    terminal.getCommitment());
+            downgradeTo21(serviceDao, "services", service.getId(), serviceCommitment);
+
+            DbVersioner.upgradeDatabase(dbConnection, 21);
+
+            Terminal migratedTerminal = accessor.getTerminalByCommitment(terminal.getCommitment());
+            assertNotNull(migratedTerminal);
+            assertEquals(terminal.getId(), migratedTerminal.getId());
+            assertArrayEquals(terminal.getCommitment(), migratedTerminal.getCommitment());
+
+            Service migratedService = new DbServiceAccessor(serviceDao)
+                    .getServiceByCommitment(serviceCommitment);
+            assertNotNull(migratedService);
+            assertEquals(service.getId(), migratedService.getId());
+            assertArrayEquals(serviceCommitment, migratedService.getCommitment());
+
+            // Rows saved after the migration can be found too
+            Terminal newTerminal = TerminalTest.getTerminal(factory, "new");
+            newTerminal.save();
+            assertNotNull(accessor.getTerminalByCommitment(newTerminal.getCommitment()));
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
+
+    /**
+     * Derby, presented as a database which can't alter or drop columns in place, so that
+     * upgrades rebuild tables as they do on SQLite.
+     */
+    private static class RebuildingDatabaseType extends DerbyEmbeddedDatabaseType {
+        @Override
+        public String getDatabaseName() {
+            return "Derby without ALTER COLUMN";
+        }
+    }
+
+    @Test
+    public void testUpgradeFrom21RebuildsTables() throws Exception {
+        ConnectionSource rebuilding = DatabaseHelper.getConnection(new RebuildingDatabaseType());
+        Dao<DbServiceImp, Integer> rebuildingServiceDao =
+                DaoManager.createDao(rebuilding, DbServiceImp.class);
+        Dao<DbTerminalImp, Integer> rebuildingTerminalDao =
+                DaoManager.createDao(rebuilding, DbTerminalImp.class);
+        DbVersioner.createDatabase(rebuilding);
+        try {
+            Terminal terminal = TerminalTest.getTerminal(
+                    new DbTerminalImpFactory(rebuildingTerminalDao), "");
+            terminal.save();
+            byte[] serviceCommitment = new byte[32];
+            serviceCommitment[0] = 2;
+            Service service = new Service(new DbServiceImpFactory(rebuildingServiceDao),
+                    "service", URI.create("http://service.example.com"), serviceCommitment);
+            service.save();
+
+            downgradeTo21(rebuildingTerminalDao, "terminals", terminal.getId(),
+                    terminal.getCommitment());
+            downgradeTo21(rebuildingServiceDao, "services", service.getId(), serviceCommitment);
+
+            DbVersioner.upgradeDatabase(rebuilding, 21);
+
+            Terminal migratedTerminal = new DbTerminalAccessor(rebuildingTerminalDao)
+                    .getTerminalByCommitment(terminal.getCommitment());
+            assertNotNull(migratedTerminal);
+            assertEquals(terminal.getId(), migratedTerminal.getId());
+            assertEquals(terminal.getName(), migratedTerminal.getName());
+            assertArrayEquals(terminal.getPicoPublicKey().getEncoded(),
+                    migratedTerminal.getPicoPublicKey().getEncoded());
+
+            Service migratedService = new DbServiceAccessor(rebuildingServiceDao)
+                    .getServiceByCommitment(serviceCommitment);
+            assertNotNull(migratedService);
+            assertEquals(service.getId(), migratedService.getId());
+            assertEquals(service.getAddress(), migratedService.getAddress());
+
+            // The old column is gone and the new ones are indexed and NOT NULL again
+            try {
+                rebuildingServiceDao.queryRaw("SELECT \"commitment\" FROM SERVICES").close();
+                fail("Old commitment column should have been removed");
+            } catch (SQLException e) {
+                // Expected
+            }
+            try {
+                rebuildingServiceDao.executeRaw(
+                        "UPDATE SERVICES SET \"commitment_hash\" = NULL");
+                fail("Commitment column should not be nullable");
+            } catch (SQLException e) {
+                // Expected
+            }
+            assertEquals(1, rebuildingServiceDao.queryRawValue(
+                    "SELECT COUNT(*) FROM SYS.SYSCONGLOMERATES c JOIN SYS.SYSTABLES t"
+                    + " ON c.TABLEID = t.TABLEID WHERE t.TABLENAME = 'SERVICES'"
+                    + " AND c.CONGLOMERATENAME = 'SERVICES_commitment_prefix_idx'"));
+        } finally {
+            DbVersioner.dropDatabase(rebuilding);
+            rebuilding.close();
+        }
+    }
+
+    @Test
+    public void testCommitmentsSharingPrefix() throws SQLException, IOException {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            DbServiceImpFactory serviceFactory = new DbServiceImpFactory(serviceDao);
+            byte[] first = new byte[32];
+            byte[] second = new byte[32];
+            second[31] = 1;
+            Service firstService = new Service(serviceFactory, "first",
+                    URI.create("http://first.example.com"), first);
+            firstService.save();
+            Service secondService = new Service(serviceFactory, "second",
+                    URI.create("http://second.example.com"), second);
+            secondService.save();
+
+            DbServiceAccessor serviceAccessor = new DbServiceAccessor(serviceDao);
+            assertEquals(firstService.getId(),
+                    serviceAccessor.getServiceByCommitment(first).getId());
+            assertEquals(secondService.getId(),
+                    serviceAccessor.getServiceByCommitment(second).getId());
+            byte[] third = new byte[32];
+            third[31] = 2;
+            assertNull(serviceAccessor.getServiceByCommitment(third));
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
+
+    @Test
+    public void testUpgradeFrom22AddsCredentialsFingerprints() throws SQLException, IOException {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            DbDataFactory dataFactory = new DbDataFactory(dbConnection);
+            Service service = new Service(dataFactory, "service",
+                    URI.create("http://service.example.com"), new byte[32]);
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("username", "alice");
+            credentials.put("password", "secret");
+            LensPairing pairing = new LensPairing(dataFactory, "pairing", service, credentials,
+                    Collections.<String>emptyList());
+            pairing.save();
+
+            // Put the lens pairings table back into the version 22 layout
+            terminalDao.executeRaw("DROP INDEX \"LENS_PAIRINGS_credentials_fingerprint_idx\"");
+            terminalDao.executeRaw(
+                    "ALTER TABLE LENS_PAIRINGS DROP COLUMN \"credentials_fingerprint\"");
+
+            DbVersioner.upgradeDatabase(dbConnection, 22);
+
+            DbDataAccessor dataAccessor = new DbDataAccessor(dbConnection);
+            List<LensPairing> found = dataAccessor.getLensPairingsByServiceCommitmentAndCredentials(
+                    service.getCommitment(), credentials);
+            assertEquals(1, found.size());
+            assertEquals(pairing.getId(), found.get(0).getId());
+
+            // Running the migration again does nothing
+            DbVersioner.upgradeDatabase(dbConnection, 22);
+            assertEquals(1, dataAccessor.getLensPairingsByServiceCommitmentAndCredentials(
+                    service.getCommitment(), credentials).size());
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
+
+    @Test
+    public void testUpgradeFrom23IndexesSessions() throws SQLException, IOException {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            // Put the sessions table back into the version 23 layout
+            terminalDao.executeRaw("DROP INDEX \"sessions_pairing_date_idx\"");
+
+            DbVersioner.upgradeDatabase(dbConnection, 23);
+            // Running the migration again does nothing
+            DbVersioner.upgradeDatabase(dbConnection, 23);
+
+            // Fails if the index wasn't created
+            terminalDao.executeRaw("DROP INDEX \"sessions_pairing_date_idx\"");
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
+
+    @Test
+    public void testUpgradeFrom22RebuildsLensPairings() throws Exception {
+        ConnectionSource rebuilding = DatabaseHelper.getConnection(new RebuildingDatabaseType());
+        DbVersioner.createDatabase(rebuilding);
+        try {
+            DbDataFactory dataFactory = new DbDataFactory(rebuilding);
+            Service service = new Service(dataFactory, "service",
+                    URI.create("http://service.example.com"), new byte[32]);
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("username", "alice");
+            LensPairing pairing = new LensPairing(dataFactory, "pairing", service, credentials,
+                    Collections.<String>emptyList());
+            pairing.save();
+
+            Dao<DbLensPairingImp, Integer> pairingDao =
+                    DaoManager.createDao(rebuilding, DbLensPairingImp.class);
+            pairingDao.executeRaw("DROP INDEX \"LENS_PAIRINGS_credentials_fingerprint_idx\"");
+            pairingDao.executeRaw(
+                    "ALTER TABLE LENS_PAIRINGS DROP COLUMN \"credentials_fingerprint\"");
+
+            DbVersioner.upgradeDatabase(rebuilding, 22);
+
+            List<LensPairing> found = new DbDataAccessor(rebuilding)
+                    .getLensPairingsByServiceCommitmentAndCredentials(
+                            service.getCommitment(), credentials);
+            assertEquals(1, found.size());
+            assertEquals(pairing.getId(), found.get(0).getId());
+            try {
+                pairingDao.executeRaw(
+                        "UPDATE LENS_PAIRINGS SET \"credentials_fingerprint\" = NULL");
+                fail("Fingerprint column should not be nullable");
+            } catch (SQLException e) {
+                // Expected
+            }
+
+            // The rebuilt table has the index, so running the migration again does nothing
+            DbVersioner.upgradeDatabase(rebuilding, 22);
+            assertEquals(1, pairingDao.countOf());
+        } finally {
+            DbVersioner.dropDatabase(rebuilding);
+            rebuilding.close();
+        }
+    }
+
+    /**
+     * Create lens pairings and put the lens pairings table back into the version 22 layout.
+     */
+    private static List<LensPairing> lensPairingsIn22(int count) throws Exception {
+        DbDataFactory dataFactory = new DbDataFactory(dbConnection);
+        Service service = new Service(dataFactory, "service",
+                URI.create("http://service.example.com"), new byte[32]);
+        List<LensPairing> pairings = new ArrayList<LensPairing>();
+        for (int i = 0; i < count; i++) {
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("username", "user" + i);
+            LensPairing pairing = new LensPairing(dataFactory, "pairing " + i, service,
+                    credentials, Collections.<String>emptyList());
+            pairing.save();
+            pairings.add(pairing);
+        }
+        terminalDao.executeRaw("DROP INDEX \"LENS_PAIRINGS_credentials_fingerprint_idx\"");
+        terminalDao.executeRaw(
+                "ALTER TABLE LENS_PAIRINGS DROP COLUMN \"credentials_fingerprint\"");
+        return pairings;
+    }
+
+    private static class RecordingCallback implements ProgressCallback {
+        final List<Stage> stages = new ArrayList<Stage>();
+
+        @Override
+        public void onAuthProgress(Object caller, Stage currentStage) {
+            stages.add(currentStage);
+        }
+    }
+
+    @Test
+    public void testUpgradeReportsProgressPerBatch() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            List<LensPairing> pairings = lensPairingsIn22(10);
+
+            RecordingCallback callback = new RecordingCallback();
+            DbVersioner.upgradeDatabase(dbConnection, 22, 4, callback);
+
+            // One report before the first batch and one after each of the three batches
+            assertEquals(4, callback.stages.size());
+            int[] expected = new int[]{0, 4, 8, 10};
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], callback.stages.get(i).getProgress());
+                assertEquals(10, callback.stages.get(i).getMaxProgress());
+            }
+            assertEquals(1.0f, callback.stages.get(3).getProgressFraction(), 0.0f);
+
+            DbDataAccessor dataAccessor = new DbDataAccessor(dbConnection);
+            for (LensPairing pairing : pairings) {
+                List<LensPairing> found =
+                        dataAccessor.getLensPairingsByServiceCommitmentAndCredentials(
+                        pairing.getService().getCommitment(), pairing.getCredentials());
+                assertEquals(1, found.size());
+                assertEquals(pairing.getId(), found.get(0).getId());
+            }
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
+
+    @Test
+    public void testInterruptedUpgradeResumes() throws Exception {
+        DbVersioner.createDatabase(dbConnection);
+        try {
+            List<LensPairing> pairings = lensPairingsIn22(10);
+
+            // Stop the upgrade once the first batch has been committed
+            try {
+                DbVersioner.upgradeDatabase(dbConnection, 22, 3, new ProgressCallback() {
+                    @Override
+                    public void onAuthProgress(Object caller, Stage currentStage) {
+                        if (currentStage.getProgress() > 0) {
+                            throw new IllegalStateException("interrupted");
+                        }
+                    }
+                });
+                fail("Upgrade should have been interrupted");
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+            assertEquals(3, serviceDao.queryRawValue("SELECT COUNT(*) FROM LENS_PAIRINGS"
+                    + " WHERE \"credentials_fingerprint\" IS NOT NULL"));
+
+            // Running the upgrade again only converts the remaining rows
+            RecordingCallback callback = new RecordingCallback();
+            DbVersioner.upgradeDatabase(dbConnection, 22, 3, callback);
+            assertEquals(7, callback.stages.get(0).getMaxProgress());
+            assertEquals(0, callback.stages.get(0).getProgress());
+            assertEquals(7, callback.stages.get(callback.stages.size() - 1).getProgress());
+
+            DbDataAccessor dataAccessor = new DbDataAccessor(dbConnection);
+            for (LensPairing pairing : pairings) {
+                assertEquals(1, dataAccessor.getLensPairingsByServiceCommitmentAndCredentials(
+                        pairing.getService().getCommitment(), pairing.getCredentials()).size());
+            }
+        } finally {
+            DbVersioner.dropDatabase(dbConnection);
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.security.KeyPair;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDaos;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.PooledConnectionSource;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.misc.TransactionManager;
+import com.j256.ormlite.support.DatabaseConnection;
+
+public class PooledConnectionSourceTest extends UsesCryptoTest {
+
+    private static final int POOL_SIZE = 2;
+    private static final int THREADS = 8;
+
+    private PooledConnectionSource dbConnection;
+    private DbDataFactory factory;
+    private DbDataAccessor accessor;
+    private Service service;
+
+    @Before
+    public void setUp() throws Exception {
+        dbConnection = DatabaseHelper.getPooledConnection(POOL_SIZE);
+        DbVersioner.createDatabase(dbConnection);
+        DbDaos daos = new DbDaos(dbConnection);
+        factory = new DbDataFactory(daos);
+        accessor = new DbDataAccessor(daos);
+        service = new Service(factory, "service", new URI("http://service.example.com"),
+                new byte[32]);
+        service.save();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        DbVersioner.dropDatabase(dbConnection);
+        dbConnection.close();
+    }
+
+    @Test
+    public void testSharedDaos() throws Exception {
+        KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        KeyPairing pairing = new KeyPairing(factory, "pairing", service, keyPair, "");
+        pairing.save();
+
+        KeyPairing found = accessor.getKeyPairingById(pairing.getId());
+        assertNotNull(found);
+        assertEquals("pairing", found.getName());
+        assertEquals(service.getId(), found.getService().getId());
+    }
+
+    @Test(timeout = 10000)
+    public void testNestedConnectionsInTransaction() throws Exception {
+        final PooledConnectionSource single = DatabaseHelper.getPooledConnection(1);
+        try {
+            final DbDataFactory singleFactory = new DbDataFactory(new DbDaos(single));
+            final KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+            // Saving a pairing inside a transaction needs more than one connection at a time
+            TransactionManager.callInTransaction(single, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    new KeyPairing(singleFactory, "pairing", service, keyPair, "").save();
+                    return null;
+                }
+            });
+            assertEquals(0, single.getConnectionsInUse());
+            assertEquals(1, accessor.getAllKeyPairings().size());
+        } finally {
+            single.close();
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testPoolSizeBoundsConnections() throws Exception {
+        KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        for (int i = 0; i < 10; i++) {
+            new KeyPairing(factory, "pairing " + i, service, keyPair, "").save();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS; t++) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int found = 0;
+                        for (int i = 0; i < 20; i++) {
+                            found += accessor.getAllKeyPairings().size();
+                        }
+                        return found;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(Integer.valueOf(200), result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(0, dbConnection.getConnectionsInUse());
+        assertTrue(dbConnection.getMaxConnectionsEverUsed() <= POOL_SIZE);
+        assertEquals(POOL_SIZE, dbConnection.getMetrics().get("poolSize"));
+    }
+
+    @Test(timeout = 10000)
+    public void testReleaseOnAnotherThread() throws Exception {
+        final PooledConnectionSource single = DatabaseHelper.getPooledConnection(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final DatabaseConnection connection = single.getReadWriteConnection();
+            assertEquals(1, single.getConnectionsInUse());
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    single.releaseConnection(connection);
+                    return null;
+                }
+            }).get();
+            assertEquals(0, single.getConnectionsInUse());
+
+            // The permit went back to the pool, so another thread can get a connection
+            executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    single.releaseConnection(single.getReadWriteConnection());
+                    return null;
+                }
+            }).get();
+            assertEquals(0, single.getConnectionsInUse());
+        } finally {
+            executor.shutdown();
+            single.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testAcquireTimesOut() throws Exception {
+        final PooledConnectionSource single = DatabaseHelper.getPooledConnection(1);
+        single.setAcquireTimeout(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final DatabaseConnection connection = single.getReadWriteConnection();
+            try {
+                executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        single.getReadWriteConnection();
+                        return null;
+                    }
+                }).get();
+                fail("Expected the wait for a connection to time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof SQLException);
+            }
+            single.releaseConnection(connection);
+            assertEquals(0, single.getConnectionsInUse());
+        } finally {
+            executor.shutdown();
+            single.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPoolSize() throws Exception {
+        DatabaseHelper.getPooledConnection(0);
+    }
+}
@@ -0,0 +1,213 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.URI;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.db.DbDataAccessor;
+import org.mypico.jpico.db.DbDataFactory;
+import org.mypico.jpico.db.DbVersioner;
+import org.mypico.jpico.db.ReplicatedConnectionSource;
+
+import com.j256.ormlite.jdbc.JdbcConnectionSource;
+import com.j256.ormlite.misc.TransactionManager;
+
+public class ReplicatedConnectionSourceTest {
+
+    private static final String PRIMARY_URL = "jdbc:derby:memory:primaryDB;create=true";
+    private static final String REPLICA_URL = "jdbc:derby:memory:replicaDB;create=true";
+    private static final String[] TABLES = {
+        "SERVICES", "PAIRINGS", "KEY_PAIRINGS", "LENS_PAIRINGS", "SESSIONS", "TERMINALS"};
+
+    private ReplicatedConnectionSource connection;
+    private DbDataFactory factory;
+    private DbDataAccessor accessor;
+    private ExecutorService otherThread;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = new ReplicatedConnectionSource(new JdbcConnectionSource(PRIMARY_URL),
+            Arrays.asList(new JdbcConnectionSource(REPLICA_URL)));
+        DbVersioner.dropDatabase(connection.getPrimary());
+        DbVersioner.createDatabase(connection.getPrimary());
+        DbVersioner.dropDatabase(connection.getReplicas().get(0));
+        DbVersioner.createDatabase(connection.getReplicas().get(0));
+        factory = new DbDataFactory(connection);
+        accessor = new DbDataAccessor(connection);
+        otherThread = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        otherThread.shutdownNow();
+        DbVersioner.dropDatabase(connection.getPrimary());
+        DbVersioner.dropDatabase(connection.getReplicas().get(0));
+        connection.close();
+    }
+
+    /**
+     * Refresh the replica by copying every row of the primary to it, as a periodic job would.
+     */
+    private void refreshReplica() throws SQLException {
+        final long started = System.nanoTime();
+        final Connection from = DriverManager.getConnection(PRIMARY_URL);
+        final Connection to = DriverManager.getConnection(REPLICA_URL);
+        try {
+            to.setAutoCommit(false);
+            for (String table : TABLES) {
+                final Statement delete = to.createStatement();
+                delete.executeUpdate("DELETE FROM " + table);
+                delete.close();
+                final Statement select = from.createStatement();
+                final ResultSet rows = select.executeQuery("SELECT * FROM " + table);
+                final ResultSetMetaData meta = rows.getMetaData();
+                final StringBuilder columns = new StringBuilder();
+                final StringBuilder values = new StringBuilder();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    columns.append(i > 1 ? ", \"" : "\"").append(meta.getColumnName(i))
+                        .append('"');
+                    values.append(i > 1 ? ", ?" : "?");
+                }
+                final PreparedStatement insert = to.prepareStatement("INSERT INTO " + table
+                    + " (" + columns + ") VALUES (" + values + ")");
+                while (rows.next()) {
+                    for (int i = 1; i <= meta.getColumnCount(); i++) {
+                        insert.setObject(i, rows.getObject(i), meta.getColumnType(i));
+                    }
+                    insert.executeUpdate();
+                }
+                insert.close();
+                rows.close();
+                select.close();
+            }
+            to.commit();
+        } finally {
+            to.close();
+            from.close();
+        }
+        connection.replicaRefreshed(0, started);
+    }
+
+    private Service newService(String name) {
+        return new Service(factory, name, URI.create("http://" + name + ".example.com"),
+            name.getBytes());
+    }
+
+    private Service lookUpOnOtherThread(final byte[] commitment) throws Exception {
+        return otherThread.submit(new Callable<Service>() {
+            @Override
+            public Service call() throws Exception {
+                return accessor.getServiceByCommitment(commitment);
+            }
+        }).get();
+    }
+
+    private long metric(String name) {
+        return connection.getMetrics().get(name).longValue();
+    }
+
+    @Test
+    public void testPrimaryUsedUntilReplicaRefreshed() throws Exception {
+        newService("first").save();
+        assertNotNull(lookUpOnOtherThread("first".getBytes()));
+        assertNotNull(accessor.getServiceByCommitment("first".getBytes()));
+        assertEquals(0, metric("replicaReads"));
+        assertEquals(0, metric("replicasAvailable"));
+
+        refreshReplica();
+        assertNotNull(lookUpOnOtherThread("first".getBytes()));
+        assertEquals(1, metric("replicasAvailable"));
+        assertEquals(1, metric("replicaReads"));
+    }
+
+    @Test
+    public void testReadYourWrites() throws Exception {
+        refreshReplica();
+        final Service service = newService("service");
+        service.save();
+
+        // Another thread reads the replica, which does not have the service yet
+        assertNull(lookUpOnOtherThread("service".getBytes()));
+        assertEquals(1, metric("replicaReads"));
+
+        // The thread which saved it reads the primary
+        assertEquals(service, accessor.getServiceByCommitment("service".getBytes()));
+        assertEquals(service, accessor.getServiceById(service.getId()));
+        assertEquals(1, metric("replicaReads"));
+        assertEquals(2, metric("ownWriteReads"));
+
+        // Both threads read the replica once it has caught up
+        refreshReplica();
+        assertEquals(service, lookUpOnOtherThread("service".getBytes()));
+        assertEquals(service, accessor.getServiceByCommitment("service".getBytes()));
+        assertEquals(3, metric("replicaReads"));
+        assertEquals(2, metric("ownWriteReads"));
+    }
+
+    @Test
+    public void testTransactionsReadPrimary() throws Exception {
+        refreshReplica();
+        final Service found = TransactionManager.callInTransaction(connection,
+            new Callable<Service>() {
+                @Override
+                public Service call() throws Exception {
+                    newService("service").save();
+                    return accessor.getServiceByCommitment("service".getBytes());
+                }
+            });
+        assertNotNull(found);
+        assertEquals(0, metric("replicaReads"));
+        assertNull(lookUpOnOtherThread("service".getBytes()));
+    }
+
+    @Test
+    public void testSaveOnOtherThreadUpdates() throws Exception {
+        refreshReplica();
+        final Service service = newService("service");
+        service.save();
+
+        // The replica does not have the row, so it must not be asked whether it exists
+        otherThread.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                service.save();
+                return null;
+            }
+        }).get();
+        assertEquals(0, metric("replicaReads"));
+        refreshReplica();
+        assertEquals(1, accessor.getServicesByCommitments(
+            Arrays.asList("service".getBytes())).size());
+        final Statement count = DriverManager.getConnection(PRIMARY_URL).createStatement();
+        final ResultSet rows = count.executeQuery("SELECT COUNT(*) FROM SERVICES");
+        rows.next();
+        assertEquals(1, rows.getInt(1));
+        count.getConnection().close();
+    }
+
+    @Test
+    public void testUnavailableReplicaNotRead() throws Exception {
+        refreshReplica();
+        connection.replicaUnavailable(0);
+        assertNull(lookUpOnOtherThread("service".getBytes()));
+        assertEquals(0, metric("replicaReads"));
+        assertEquals(1, metric("primaryReads"));
+    }
+}
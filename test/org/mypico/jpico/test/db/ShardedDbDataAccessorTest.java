@@ -0,0 +1,392 @@
+package org.mypico.jpico.test.db;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.db.DbReshardResult;
+import org.mypico.jpico.db.DbResharder;
+import org.mypico.jpico.db.DbServiceImp;
+import org.mypico.jpico.db.DbShards;
+import org.mypico.jpico.db.ShardedDbDataAccessor;
+import org.mypico.jpico.db.ShardedDbDataFactory;
+import org.mypico.jpico.test.util.DatabaseHelper;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+import com.j256.ormlite.dao.Dao;
+import com.j256.ormlite.dao.DaoManager;
+import com.j256.ormlite.support.ConnectionSource;
+
+public class ShardedDbDataAccessorTest extends UsesCryptoTest {
+
+    private static final int SERVICES = 30;
+
+    private List<ConnectionSource> connections;
+    private DbShards shards;
+    private ShardedDbDataFactory factory;
+    private ShardedDbDataAccessor accessor;
+    private KeyPair keyPair;
+    private List<byte[]> commitments;
+
+    @Before
+    public void setUp() throws Exception {
+        connections = new ArrayList<ConnectionSource>();
+        for (int i = 0; i < 4; i++) {
+            connections.add(DatabaseHelper.getShardConnection(i));
+        }
+        shards = open(3);
+        shards.dropDatabase();
+        shards.createDatabase();
+        factory = new ShardedDbDataFactory(shards);
+        accessor = new ShardedDbDataAccessor(shards);
+        keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        accessor.close();
+        open(4).dropDatabase();
+        for (ConnectionSource connection : connections) {
+            connection.close();
+        }
+    }
+
+    private DbShards open(int count) throws Exception {
+        return new DbShards(connections.subList(0, count));
+    }
+
+    /**
+     * Create services, each with a key pairing, a lens pairing and a plain pairing with a
+     * session.
+     */
+    private void populate() throws Exception {
+        final Random random = new Random(0);
+        commitments = new ArrayList<byte[]>();
+        for (int i = 0; i < SERVICES; i++) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            commitments.add(commitment);
+            final Service service = new Service(factory, "service " + i,
+                URI.create("http://service" + i + ".example.com"), commitment);
+            new KeyPairing(factory, "key " + i, service, keyPair, "").save();
+            final Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put("username", "user " + i);
+            new LensPairing(factory, "lens " + i, service, credentials,
+                new ArrayList<String>()).save();
+            final Pairing pairing = new Pairing(factory, "pairing " + i, service);
+            pairing.save();
+            final Session session = Session.newInstanceClosed(
+                factory, "remote " + i, pairing, null);
+            // Dates must be unique in each database
+            session.setLastAuthDate(new Date(i * 1000L + 1000));
+            session.save();
+        }
+    }
+
+    /**
+     * Check every service, and everything belonging to it, can be found in the right shard.
+     */
+    private void checkPopulated(DbShards shards, ShardedDbDataAccessor accessor)
+        throws Exception {
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        for (Session session : accessor.getSessionsByStatus(Session.Status.CLOSED)) {
+            sessions.put(session.getRemoteId(), session);
+        }
+        assertEquals(SERVICES, sessions.size());
+
+        for (int i = 0; i < SERVICES; i++) {
+            final byte[] commitment = commitments.get(i);
+            final int shard = shards.shardForCommitment(commitment);
+
+            final Service service = accessor.getServiceByCommitment(commitment);
+            assertEquals("service " + i, service.getName());
+            assertEquals(shard, shards.shardForId(service.getId()));
+            assertEquals(service, accessor.getServiceById(service.getId()));
+
+            final List<KeyPairing> keyPairings =
+                accessor.getKeyPairingsByServiceCommitment(commitment);
+            assertEquals(1, keyPairings.size());
+            final KeyPairing keyPairing = keyPairings.get(0);
+            assertEquals(shard, shards.shardForId(keyPairing.getId()));
+            assertArrayEquals(keyPair.getPublic().getEncoded(),
+                keyPairing.getPublicKey().getEncoded());
+            assertEquals(keyPairing, accessor.getKeyPairingById(keyPairing.getId()));
+
+            final List<LensPairing> lensPairings =
+                accessor.getLensPairingsByServiceCommitment(commitment);
+            assertEquals(1, lensPairings.size());
+            assertEquals("user " + i, lensPairings.get(0).getCredentials().get("username"));
+
+            final Session session = sessions.get("remote " + i);
+            assertEquals(shard, shards.shardForId(session.getId()));
+            assertEquals("remote " + i, accessor.getSessionById(session.getId()).getRemoteId());
+            final Pairing pairing = session.getPairing();
+            assertEquals("pairing " + i, pairing.getName());
+            assertEquals(shard, shards.shardForId(pairing.getId()));
+            assertEquals(pairing, accessor.getPairingById(pairing.getId()));
+        }
+    }
+
+    @Test
+    public void testSpreadAcrossShards() throws Exception {
+        populate();
+        checkPopulated(shards, accessor);
+
+        final int[] perShard = new int[shards.size()];
+        for (byte[] commitment : commitments) {
+            perShard[shards.shardForCommitment(commitment)]++;
+        }
+        for (int count : perShard) {
+            assertTrue(Arrays.toString(perShard), count > 0);
+        }
+        assertEquals(SERVICES, accessor.getAllKeyPairings().size());
+        assertEquals(SERVICES, accessor.getAllLensPairings().size());
+    }
+
+    @Test
+    public void testIdsOutsideShards() throws Exception {
+        populate();
+        assertNull(accessor.getServiceById(0));
+        assertNull(accessor.getPairingById(-1));
+        assertNull(accessor.getKeyPairingById(shards.size() * DbShards.SHARD_ID_RANGE + 1));
+        assertNull(accessor.getSessionById(Integer.MAX_VALUE));
+        assertNull(accessor.getTerminalById(DbShards.SHARD_ID_RANGE));
+    }
+
+    @Test
+    public void testBulkLookups() throws Exception {
+        populate();
+        final List<byte[]> wanted = new ArrayList<byte[]>(commitments.subList(0, 10));
+        final byte[] unknown = new byte[32];
+        wanted.add(unknown);
+
+        final Map<ByteBuffer, Service> services = accessor.getServicesByCommitments(wanted);
+        assertEquals(10, services.size());
+        assertEquals("service 3",
+            services.get(ByteBuffer.wrap(commitments.get(3))).getName());
+
+        final Map<ByteBuffer, List<KeyPairing>> keyPairings =
+            accessor.getKeyPairingsByServiceCommitments(wanted);
+        assertEquals(11, keyPairings.size());
+        assertEquals("key 7",
+            keyPairings.get(ByteBuffer.wrap(commitments.get(7))).get(0).getName());
+        assertTrue(keyPairings.get(ByteBuffer.wrap(unknown)).isEmpty());
+
+        assertTrue(accessor.getServicesByCommitments(new ArrayList<byte[]>()).isEmpty());
+    }
+
+    @Test
+    public void testTerminals() throws Exception {
+        final byte[] commitment = new byte[]{5, 6, 7, 8};
+        final Terminal terminal = new Terminal(factory, "terminal", commitment, keyPair);
+        terminal.save();
+
+        assertEquals(shards.shardForCommitment(commitment), shards.shardForId(terminal.getId()));
+        assertEquals(terminal, accessor.getTerminalById(terminal.getId()));
+        assertEquals(terminal, accessor.getTerminalByCommitment(commitment));
+        assertEquals(1, accessor.getAllTerminals().size());
+    }
+
+    @Test
+    public void testAddingShardMovesOnlyToNewShard() throws Exception {
+        final Random random = new Random(1);
+        final DbShards four = open(4);
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            final int before = shards.shardForCommitment(commitment);
+            final int after = four.shardForCommitment(commitment);
+            if (before != after) {
+                assertEquals(3, after);
+                moved++;
+            }
+        }
+        // About a quarter should move
+        assertTrue("moved " + moved, moved > 150 && moved < 350);
+    }
+
+    @Test
+    public void testReshard() throws Exception {
+        populate();
+        final Terminal terminal = new Terminal(factory, "terminal", new byte[]{1}, keyPair);
+        terminal.save();
+
+        // Grow to four shards
+        final DbShards four = open(4);
+        final DbReshardResult grown = new DbResharder(shards, four).reshard();
+        assertTrue(grown.getServicesMoved() > 0);
+        assertEquals(grown.getServicesMoved(), grown.getPairingsMoved() / 3);
+        assertEquals(grown.getServicesMoved(), grown.getSessionsMoved());
+
+        ShardedDbDataAccessor fourAccessor = new ShardedDbDataAccessor(four);
+        try {
+            checkPopulated(four, fourAccessor);
+            assertEquals(SERVICES, fourAccessor.getAllKeyPairings().size());
+            assertNotNull(fourAccessor.getTerminalByCommitment(new byte[]{1}));
+        } finally {
+            fourAccessor.close();
+        }
+
+        // Nothing more to move
+        assertEquals(0, new DbResharder(shards, four).reshard().getServicesMoved());
+
+        // Shrink back to three
+        final DbReshardResult shrunk = new DbResharder(four, shards).reshard();
+        assertEquals(grown.getServicesMoved(), shrunk.getServicesMoved());
+        checkPopulated(shards, accessor);
+        assertNotNull(accessor.getTerminalByCommitment(new byte[]{1}));
+    }
+
+    /**
+     * @return a commitment which moves from <code>from</code> to <code>to</code> when a fourth
+     * shard is added.
+     */
+    private byte[] commitmentMoving(int from, int to) throws Exception {
+        final DbShards four = open(4);
+        final Random random = new Random(2);
+        while (true) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            if (shards.shardForCommitment(commitment) == from
+                && four.shardForCommitment(commitment) == to) {
+                return commitment;
+            }
+        }
+    }
+
+    @Test
+    public void testReshardKeepsServicesSharingCommitment() throws Exception {
+        final byte[] commitment = commitmentMoving(0, 3);
+        for (int i = 0; i < 2; i++) {
+            final Service service = new Service(factory, "service " + i,
+                URI.create("http://service.example.com"), commitment);
+            new KeyPairing(factory, "key " + i, service, keyPair, "").save();
+        }
+
+        final DbShards four = open(4);
+        assertEquals(2, new DbResharder(shards, four).reshard().getServicesMoved());
+        final ShardedDbDataAccessor fourAccessor = new ShardedDbDataAccessor(four);
+        try {
+            final List<KeyPairing> keyPairings =
+                fourAccessor.getKeyPairingsByServiceCommitment(commitment);
+            assertEquals(2, keyPairings.size());
+            for (KeyPairing keyPairing : keyPairings) {
+                assertEquals(3, four.shardForId(keyPairing.getId()));
+            }
+        } finally {
+            fourAccessor.close();
+        }
+    }
+
+    /**
+     * Called by Derby to make deleting a moved service fail.
+     */
+    public static void interruptMove() throws SQLException {
+        throw new SQLException("interrupted");
+    }
+
+    @Test
+    public void testInterruptedReshardResumes() throws Exception {
+        populate();
+        // Another service with the same commitment as one which moves from the first shard
+        final byte[] shared = commitmentMoving(0, 3);
+        new KeyPairing(factory, "shared key", new Service(factory, "shared",
+            URI.create("http://shared.example.com"), shared), keyPair, "").save();
+        new KeyPairing(factory, "other shared key", new Service(factory, "other shared",
+            URI.create("http://shared.example.com"), shared), keyPair, "").save();
+
+        // Services copied from the first shard can't be deleted from it
+        final Dao<DbServiceImp, Integer> serviceDao =
+            DaoManager.createDao(connections.get(0), DbServiceImp.class);
+        serviceDao.executeRaw("CREATE PROCEDURE INTERRUPT_MOVE() PARAMETER STYLE JAVA NO SQL"
+            + " LANGUAGE JAVA EXTERNAL NAME '" + getClass().getName() + ".interruptMove'");
+        final DbShards four = open(4);
+        try {
+            serviceDao.executeRaw("CREATE TRIGGER INTERRUPT_MOVE AFTER DELETE ON SERVICES"
+                + " FOR EACH STATEMENT CALL INTERRUPT_MOVE()");
+            try {
+                new DbResharder(shards, four).reshard();
+                fail("Expected resharding to be interrupted");
+            } catch (IOException e) {
+                // Expected
+            }
+            serviceDao.executeRaw("DROP TRIGGER INTERRUPT_MOVE");
+        } finally {
+            serviceDao.executeRaw("DROP PROCEDURE INTERRUPT_MOVE");
+        }
+
+        // The copy left in the new shard is replaced, and nothing else is lost
+        new DbResharder(shards, four).reshard();
+        final ShardedDbDataAccessor fourAccessor = new ShardedDbDataAccessor(four);
+        try {
+            checkPopulated(four, fourAccessor);
+            assertEquals(2, fourAccessor.getKeyPairingsByServiceCommitment(shared).size());
+            assertEquals(SERVICES + 2, fourAccessor.getAllKeyPairings().size());
+        } finally {
+            fourAccessor.close();
+        }
+    }
+
+    @Test
+    public void testIdsBeyondShardRangeRejected() throws Exception {
+        DaoManager.createDao(connections.get(0), DbServiceImp.class).executeRaw(
+            "ALTER TABLE SERVICES ALTER COLUMN \"id\" RESTART WITH " + DbShards.SHARD_ID_RANGE);
+        final Random random = new Random(3);
+        final List<Service> saved = new ArrayList<Service>();
+        int attempts = 0;
+        while (attempts < 2) {
+            final byte[] commitment = new byte[32];
+            random.nextBytes(commitment);
+            if (shards.shardForCommitment(commitment) == 0) {
+                attempts++;
+                final Service service = new Service(factory, "service",
+                    URI.create("http://service.example.com"), commitment);
+                try {
+                    service.save();
+                    saved.add(service);
+                } catch (IOException e) {
+                    // Expected once the first shard's ids run out
+                }
+            }
+        }
+        // Only the last id in the first shard's range is handed out
+        assertEquals(1, saved.size());
+        assertEquals(DbShards.SHARD_ID_RANGE, saved.get(0).getId());
+        assertEquals(0, shards.shardForId(saved.get(0).getId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReshardRejectsReorderedShards() throws Exception {
+        final List<ConnectionSource> reordered = new ArrayList<ConnectionSource>(
+            connections.subList(0, 3));
+        reordered.add(1, connections.get(3));
+        new DbResharder(shards, new DbShards(reordered));
+    }
+}
@@ -0,0 +1,308 @@
+package org.mypico.jpico.test.mem;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.KeyPairing;
+import org.mypico.jpico.data.pairing.LensPairing;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.data.terminal.Terminal;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+public class MemDataStoreTest extends UsesCryptoTest {
+
+    private File snapshotFile;
+    private MemDataStore store;
+    private MemDataFactory factory;
+    private MemDataAccessor accessor;
+    private Service service;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = File.createTempFile("store", ".snapshot");
+        assertTrue(snapshotFile.delete());
+        open();
+        service = new Service(
+            factory, "test service", new URI("http://testservice.com"), new byte[]{1, 2, 3});
+        service.save();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+        snapshotFile.delete();
+    }
+
+    private void open() throws IOException {
+        store = new MemDataStore(snapshotFile);
+        factory = new MemDataFactory(store);
+        accessor = new MemDataAccessor(store);
+    }
+
+    private void reopen() throws IOException {
+        store.close();
+        open();
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws Exception {
+        KeyPair keyPair = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        KeyPairing keyPairing = new KeyPairing(factory, "key", service, keyPair, "extra");
+        keyPairing.save();
+
+        Map<String, String> credentials = new HashMap<String, String>();
+        credentials.put("username", "alice");
+        credentials.put("password", "pässword");
+        LensPairing lensPairing = new LensPairing(
+            factory, "lens", service, credentials, Arrays.asList("password"));
+        lensPairing.save();
+
+        SecretKey key = CryptoFactory.INSTANCE.aes256Kg().generateKey();
+        Session session = Session.newInstanceActive(
+            factory, "remote", key, keyPairing, new SimpleAuthToken("token"));
+        session.save();
+
+        KeyPair terminalKeys = CryptoFactory.INSTANCE.ecKpg().generateKeyPair();
+        Terminal terminal = new Terminal(factory, "terminal", new byte[]{4, 5, 6},
+            terminalKeys.getPublic(), terminalKeys.getPrivate());
+        terminal.save();
+
+        reopen();
+
+        assertEquals(service, accessor.getServiceByCommitment(new byte[]{1, 2, 3}));
+        assertEquals(new URI("http://testservice.com"),
+            accessor.getServiceById(service.getId()).getAddress());
+
+        KeyPairing k = accessor.getKeyPairingById(keyPairing.getId());
+        assertEquals("key", k.getName());
+        assertEquals("extra", k.getExtraData());
+        assertEquals(keyPairing.getDateCreated(), k.getDateCreated());
+        assertEquals(keyPair.getPublic(), k.getPublicKey());
+        assertArrayEquals(keyPair.getPrivate().getEncoded(), k.getPrivateKey().getEncoded());
+
+        LensPairing l = accessor.getLensPairingById(lensPairing.getId());
+        assertEquals(credentials, l.getCredentials());
+        assertEquals(Arrays.asList("password"), l.getPrivateFields());
+
+        Session s = accessor.getSessionById(session.getId());
+        assertEquals("remote", s.getRemoteId());
+        assertArrayEquals(key.getEncoded(), s.getSecretKey().getEncoded());
+        assertEquals(Session.Status.ACTIVE, s.getStatus());
+        assertEquals(session.getLastAuthDate(), s.getLastAuthDate());
+        assertEquals(keyPairing.getId(), s.getPairing().getId());
+        // Auth tokens are never stored
+        assertFalse(s.hasAuthToken());
+
+        Terminal t = accessor.getTerminalByCommitment(new byte[]{4, 5, 6});
+        assertEquals(terminal.getId(), t.getId());
+        assertEquals(terminalKeys.getPublic(), t.getPicoPublicKey());
+
+        // Ids carry on from where they were before the restart
+        Pairing p = new Pairing(factory, "after restart", service);
+        p.save();
+        assertTrue(p.getId() > lensPairing.getId());
+    }
+
+    @Test
+    public void testReadsAreCopies() throws Exception {
+        Pairing pairing = new Pairing(factory, "original", service);
+        pairing.save();
+
+        Pairing read = accessor.getPairingById(pairing.getId());
+        read.setName("changed");
+        assertEquals("original", accessor.getPairingById(pairing.getId()).getName());
+
+        read.save();
+        assertEquals("changed", accessor.getPairingById(pairing.getId()).getName());
+    }
+
+    @Test
+    public void testReadsSeeLatestReferencedEntities() throws Exception {
+        Pairing pairing = new Pairing(factory, "pairing", service);
+        pairing.save();
+        Session session = Session.newInstanceClosed(factory, "remote", pairing, null);
+        session.save();
+
+        service.setAddress(new URI("http://moved.com"));
+        service.save();
+        pairing.setName("renamed");
+        pairing.save();
+
+        Session read = accessor.getSessionById(session.getId());
+        assertEquals("renamed", read.getPairing().getName());
+        assertEquals(new URI("http://moved.com"), read.getPairing().getService().getAddress());
+    }
+
+    @Test
+    public void testSaveCreatesReferencedEntities() throws Exception {
+        Service unsaved = new Service(
+            factory, "unsaved", new URI("http://unsaved.com"), new byte[]{7, 8, 9});
+        Pairing pairing = new Pairing(factory, "pairing", unsaved);
+        Session session = Session.newInstanceClosed(factory, "remote", pairing, null);
+        session.save();
+
+        assertNotNull(accessor.getServiceByCommitment(new byte[]{7, 8, 9}));
+        assertTrue(pairing.isSaved());
+        Session read = accessor.getSessionById(session.getId());
+        assertEquals(pairing.getId(), read.getPairing().getId());
+    }
+
+    @Test
+    public void testDeletePairingDeletesSessions() throws Exception {
+        Pairing pairing = new Pairing(factory, "pairing", service);
+        pairing.save();
+        Session session = Session.newInstanceClosed(factory, "remote", pairing, null);
+        session.save();
+        int sessionId = session.getId();
+
+        int pairingId = pairing.getId();
+        pairing.getImp().delete();
+        assertNull(accessor.getPairingById(pairingId));
+        assertNull(accessor.getSessionById(sessionId));
+
+        reopen();
+        assertNull(accessor.getSessionById(sessionId));
+    }
+
+    @Test
+    public void testSnapshotOnlyWhenChanged() throws Exception {
+        assertTrue(store.snapshot());
+        assertFalse(store.snapshot());
+        assertEquals(1L, store.getMetrics().get("snapshots"));
+
+        new Pairing(factory, "pairing", service).save();
+        assertEquals(1L, store.getMetrics().get("unsavedModifications"));
+        assertTrue(store.snapshot());
+        assertEquals(0L, store.getMetrics().get("unsavedModifications"));
+        assertEquals(snapshotFile.length(), store.getMetrics().get("lastSnapshotBytes"));
+    }
+
+    @Test
+    public void testCorruptSnapshotRejected() throws Exception {
+        new Pairing(factory, "pairing", service).save();
+        store.snapshot();
+
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(file.length() / 2);
+            int b = file.read();
+            file.seek(file.length() / 2);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        try {
+            new MemDataStore(snapshotFile);
+            fail("corrupt snapshot was loaded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptCountRejected() throws Exception {
+        new Pairing(factory, "pairing", service).save();
+        store.snapshot();
+
+        // The count of services follows the magic number, version and four last ids
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(6 * 4);
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+
+        try {
+            new MemDataStore(snapshotFile);
+            fail("corrupt snapshot was loaded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptSessionStatusRejected() throws Exception {
+        Pairing pairing = new Pairing(factory, "pairing", service);
+        pairing.save();
+        Session.newInstanceActive(factory, "remote",
+            CryptoFactory.INSTANCE.aes256Kg().generateKey(), pairing,
+            new SimpleAuthToken("token")).save();
+        store.snapshot();
+
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            String contents = new String(bytes, "ISO-8859-1");
+            file.seek(contents.indexOf("ACTIVE"));
+            file.write("BROKEN".getBytes("ISO-8859-1"));
+        } finally {
+            file.close();
+        }
+
+        try {
+            new MemDataStore(snapshotFile);
+            fail("corrupt snapshot was loaded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPeriodicSnapshots() throws Exception {
+        store.close();
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            store = new MemDataStore(snapshotFile, scheduler, 10);
+            factory = new MemDataFactory(store);
+            new Pairing(factory, "pairing", service).save();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (store.getMetrics().get("unsavedModifications").longValue() != 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            store.close();
+        } finally {
+            scheduler.shutdownNow();
+        }
+
+        open();
+        assertEquals("pairing", accessor.getPairingById(1).getName());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSnapshotWithoutFile() throws Exception {
+        new MemDataStore().snapshot();
+    }
+}
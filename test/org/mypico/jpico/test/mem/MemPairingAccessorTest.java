@@ -0,0 +1,34 @@
+package org.mypico.jpico.test.mem;
+
+import org.junit.Before;
+import org.mypico.jpico.data.DataFactory;
+import org.mypico.jpico.data.pairing.PairingAccessor;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+import org.mypico.jpico.test.data.pairing.PairingAccessorTest;
+
+public class MemPairingAccessorTest extends PairingAccessorTest {
+
+    private MemDataFactory factory;
+    private MemDataAccessor accessor;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        MemDataStore store = new MemDataStore();
+        factory = new MemDataFactory(store);
+        accessor = new MemDataAccessor(store);
+        super.setUp();
+    }
+
+    @Override
+    protected DataFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    protected PairingAccessor getAccessor() {
+        return accessor;
+    }
+}
@@ -0,0 +1,34 @@
+package org.mypico.jpico.test.mem;
+
+import org.junit.Before;
+import org.mypico.jpico.data.terminal.Terminal.Accessor;
+import org.mypico.jpico.data.terminal.Terminal.ImpFactory;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+import org.mypico.jpico.test.data.terminal.TerminalAccessorTest;
+
+public class MemTerminalAccessorTest extends TerminalAccessorTest {
+
+    private MemDataFactory factory;
+    private MemDataAccessor accessor;
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        MemDataStore store = new MemDataStore();
+        factory = new MemDataFactory(store);
+        accessor = new MemDataAccessor(store);
+        super.setUp();
+    }
+
+    @Override
+    protected ImpFactory getFactory() {
+        return factory;
+    }
+
+    @Override
+    protected Accessor getAccessor() {
+        return accessor;
+    }
+}
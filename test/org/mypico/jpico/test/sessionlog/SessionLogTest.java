@@ -0,0 +1,244 @@
+package org.mypico.jpico.test.sessionlog;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import javax.crypto.SecretKey;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mypico.jpico.crypto.CryptoFactory;
+import org.mypico.jpico.crypto.SimpleAuthToken;
+import org.mypico.jpico.data.pairing.Pairing;
+import org.mypico.jpico.data.service.Service;
+import org.mypico.jpico.data.session.Session;
+import org.mypico.jpico.mem.MemDataAccessor;
+import org.mypico.jpico.mem.MemDataFactory;
+import org.mypico.jpico.mem.MemDataStore;
+import org.mypico.jpico.sessionlog.LogSessionAccessor;
+import org.mypico.jpico.sessionlog.LogSessionImpFactory;
+import org.mypico.jpico.sessionlog.SessionLog;
+import org.mypico.jpico.test.util.UsesCryptoTest;
+
+public class SessionLogTest extends UsesCryptoTest {
+
+    private static final int SMALL_SEGMENT = 1024;
+
+    private File directory;
+    private MemDataAccessor pairingAccessor;
+    private Pairing pairing;
+    private SessionLog log;
+    private LogSessionImpFactory factory;
+    private LogSessionAccessor accessor;
+    private long lastAuthDate = 1000;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("sessions", "");
+        assertTrue(directory.delete());
+
+        MemDataStore store = new MemDataStore();
+        MemDataFactory dataFactory = new MemDataFactory(store);
+        pairingAccessor = new MemDataAccessor(store);
+        Service service = new Service(
+            dataFactory, "test service", new URI("http://testservice.com"), new byte[]{1, 2, 3});
+        pairing = new Pairing(dataFactory, "pairing", service);
+        pairing.save();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (log != null) {
+            log.close();
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void open(SessionLog sessionLog) {
+        log = sessionLog;
+        factory = new LogSessionImpFactory(log);
+        accessor = new LogSessionAccessor(log, pairingAccessor);
+    }
+
+    private Session saveSession(String remoteId) throws Exception {
+        Session session = Session.newInstanceClosed(factory, remoteId, pairing, null);
+        session.setLastAuthDate(new Date(lastAuthDate++));
+        session.save();
+        return session;
+    }
+
+    @Test
+    public void testSaveAndRead() throws Exception {
+        open(new SessionLog(directory));
+        SecretKey key = CryptoFactory.INSTANCE.aes256Kg().generateKey();
+        Session session = Session.newInstanceActive(
+            factory, "remote", key, pairing, new SimpleAuthToken("token"));
+        session.save();
+        assertTrue(session.isSaved());
+
+        Session read = accessor.getSessionById(session.getId());
+        assertEquals("remote", read.getRemoteId());
+        assertArrayEquals(key.getEncoded(), read.getSecretKey().getEncoded());
+        assertEquals(Session.Status.ACTIVE, read.getStatus());
+        assertEquals(Session.Error.NONE, read.getError());
+        assertEquals(session.getLastAuthDate(), read.getLastAuthDate());
+        assertEquals(pairing, read.getPairing());
+        // Auth tokens are never stored
+        assertFalse(read.hasAuthToken());
+
+        read.setStatus(Session.Status.ERROR);
+        read.setError(Session.Error.IO_EXCEPTION);
+        read.save();
+        assertEquals(session.getId(), read.getId());
+        read = accessor.getSessionById(session.getId());
+        assertEquals(Session.Status.ERROR, read.getStatus());
+        assertEquals(Session.Error.IO_EXCEPTION, read.getError());
+        assertNull(accessor.getSessionById(session.getId() + 1));
+    }
+
+    @Test
+    public void testRecoveryAfterClose() throws Exception {
+        open(new SessionLog(directory));
+        Session first = saveSession("first");
+        Session second = saveSession("second");
+        second.setStatus(Session.Status.ERROR);
+        second.save();
+
+        log.close();
+        open(new SessionLog(directory));
+
+        assertEquals(2, log.size());
+        assertEquals("first", accessor.getSessionById(first.getId()).getRemoteId());
+        assertEquals(Session.Status.ERROR, accessor.getSessionById(second.getId()).getStatus());
+        assertEquals(second.getId() + 1, saveSession("third").getId());
+    }
+
+    @Test
+    public void testRecoveryWithoutClose() throws Exception {
+        open(new SessionLog(directory));
+        Session session = saveSession("remote");
+        SessionLog crashed = log;
+
+        // Open the directory again as if the process had died without closing the log
+        open(new SessionLog(directory));
+        try {
+            assertEquals("remote", accessor.getSessionById(session.getId()).getRemoteId());
+        } finally {
+            crashed.close();
+        }
+    }
+
+    @Test
+    public void testTornAppendDiscarded() throws Exception {
+        open(new SessionLog(directory));
+        saveSession("first");
+        saveSession("second");
+        long end = log.getMetrics().get("appendedBytes").longValue();
+        log.close();
+
+        // Leave half an append behind: a header whose payload never made it to the file
+        RandomAccessFile file = new RandomAccessFile(directory.listFiles()[0], "rw");
+        try {
+            file.seek(end);
+            file.writeInt(100);
+            file.writeInt(12345);
+            file.writeInt(0x01020304);
+        } finally {
+            file.close();
+        }
+
+        open(new SessionLog(directory));
+        assertEquals(2, log.size());
+        Session third = saveSession("third");
+        log.close();
+
+        open(new SessionLog(directory));
+        assertEquals(3, log.size());
+        assertEquals("third", accessor.getSessionById(third.getId()).getRemoteId());
+    }
+
+    @Test
+    public void testRollAndCompact() throws Exception {
+        open(new SessionLog(directory, SMALL_SEGMENT, 0.5));
+        Session kept = saveSession("kept");
+        Session session = saveSession("updated");
+        for (int i = 0; i < 200; i++) {
+            session.setStatus((i % 2 == 0) ? Session.Status.ACTIVE : Session.Status.CLOSED);
+            session.save();
+        }
+        int segments = log.getMetrics().get("segments").intValue();
+        assertTrue(segments > 10);
+
+        assertTrue(log.compact() > 0);
+        assertTrue(log.getMetrics().get("segments").intValue() < segments);
+        assertTrue(log.getMetrics().get("garbageRatio").doubleValue() <= 0.5);
+        assertEquals(directory.listFiles().length, log.getMetrics().get("segments").intValue());
+        assertEquals("kept", accessor.getSessionById(kept.getId()).getRemoteId());
+        assertEquals(Session.Status.CLOSED, accessor.getSessionById(session.getId()).getStatus());
+
+        log.close();
+        open(new SessionLog(directory, SMALL_SEGMENT, 0.5));
+        assertEquals(2, log.size());
+        assertEquals("kept", accessor.getSessionById(kept.getId()).getRemoteId());
+        assertEquals(Session.Status.CLOSED, accessor.getSessionById(session.getId()).getStatus());
+    }
+
+    @Test
+    public void testDeleteSurvivesCompaction() throws Exception {
+        open(new SessionLog(directory, SMALL_SEGMENT, 0.0));
+        Session deleted = saveSession("deleted");
+        Session session = saveSession("updated");
+        assertTrue(log.delete(deleted.getId()));
+        assertFalse(log.delete(deleted.getId()));
+        assertNull(accessor.getSessionById(deleted.getId()));
+
+        for (int i = 0; i < 50; i++) {
+            session.save();
+        }
+        log.compact();
+        log.close();
+
+        open(new SessionLog(directory, SMALL_SEGMENT, 0.0));
+        assertNull(accessor.getSessionById(deleted.getId()));
+        assertNotNull(accessor.getSessionById(session.getId()));
+        assertEquals(session.getId() + 1, saveSession("new").getId());
+    }
+
+    @Test
+    public void testBackgroundCompaction() throws Exception {
+        ScheduledExecutorService scheduler = new ScheduledThreadPoolExecutor(1);
+        try {
+            open(new SessionLog(directory, SMALL_SEGMENT, 0.5, scheduler, 10));
+            Session session = saveSession("updated");
+            for (int i = 0; i < 100; i++) {
+                session.save();
+            }
+            long deadline = System.currentTimeMillis() + 10000;
+            while (log.getMetrics().get("compactedSegments").longValue() == 0) {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+            log.close();
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
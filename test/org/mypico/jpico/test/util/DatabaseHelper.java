@@ -2,6 +2,9 @@ package org.mypico.jpico.test.util;
 
 import java.sql.SQLException;
 
+import org.mypico.jpico.db.PooledConnectionSource;
+
+import com.j256.ormlite.db.DatabaseType;
 import com.j256.ormlite.jdbc.JdbcConnectionSource;
 import com.j256.ormlite.support.ConnectionSource;
 
@@ -13,4 +16,17 @@ public class DatabaseHelper {
     public static ConnectionSource getConnection() throws SQLException {
         return new JdbcConnectionSource(DB_PROTOCOL + DB_NAME + ";create=true");
     }
+
+    public static ConnectionSource getConnection(DatabaseType databaseType) throws SQLException {
+        return new JdbcConnectionSource(DB_PROTOCOL + DB_NAME + ";create=true", databaseType);
+    }
+
+    public static ConnectionSource getShardConnection(int shard) throws SQLException {
+        return new JdbcConnectionSource(
+            DB_PROTOCOL + "memory:" + DB_NAME + "Shard" + shard + ";create=true");
+    }
+
+    public static PooledConnectionSource getPooledConnection(int poolSize) throws SQLException {
+        return new PooledConnectionSource(DB_PROTOCOL + DB_NAME + ";create=true", poolSize);
+    }
 }